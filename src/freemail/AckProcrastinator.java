@@ -31,6 +31,7 @@ import java.security.SecureRandom;
 import freemail.utils.PropsFile;
 import freemail.fcp.FCPException;
 import freemail.fcp.HighLevelFCPClient;
+import freemail.fcp.RequestClass;
 import freemail.fcp.FCPBadFileException;
 import freemail.fcp.FCPPutFailedException;
 import freemail.fcp.ConnectionTerminatedException;
@@ -101,7 +102,7 @@ public class AckProcrastinator implements Runnable {
 				long instime = Long.parseLong(s_it);
 				
 				if (instime < System.currentTimeMillis()) {
-					HighLevelFCPClient fcpcli = new HighLevelFCPClient();
+					HighLevelFCPClient fcpcli = new HighLevelFCPClient(null, RequestClass.ACK);
 					
 					ByteArrayInputStream bis = new ByteArrayInputStream(data);
 					
@@ -0,0 +1,193 @@
+/*
+ * FlagTable.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import freemail.utils.Logger;
+
+/**
+ * The flags of the messages in a folder, kept in a file next to them. Each time flags change a
+ * record of the UID and its new flags is added to the end of the file, so the last record for a
+ * UID is the one that counts. {@link #rewrite(int[], int[])} replaces the file with one record
+ * for each message once it has grown too long.
+ *
+ * The flags are a bit mask, see {@link freemail.imap.IMAPMessageFlags#getBits()}.
+ */
+class FlagTable {
+	private static final String FLAGS_FILE = ".flags";
+	private static final String FLAGS_TMP_FILE = ".flags-tmp";
+	// where a file we can't read is moved to, in case someone wants to look at it
+	private static final String FLAGS_BAD_FILE = ".flags-bad";
+	private static final int FLAGS_MAGIC = 0x464d464c; // "FMFL"
+	private static final int FLAGS_VERSION = 1;
+	private static final int HEADER_SIZE = 8;
+	private static final int RECORD_SIZE = 8;
+
+	private final File file;
+	private final File tmpFile;
+	private final File badFile;
+	// the number of records in the file
+	private int records = 0;
+
+	FlagTable(File dir) {
+		this.file = new File(dir, FLAGS_FILE);
+		this.tmpFile = new File(dir, FLAGS_TMP_FILE);
+		this.badFile = new File(dir, FLAGS_BAD_FILE);
+	}
+
+	/**
+	 * @return true if there is a file of flags to read
+	 */
+	boolean exists() {
+		return file.exists();
+	}
+
+	/**
+	 * Reads the flags of every message that has them. A file that doesn't start with the header
+	 * is moved aside, since records added to it could never be read back.
+	 * @return the flags by UID, which is empty if there aren't any
+	 */
+	Map<Integer, Integer> read() {
+		Map<Integer, Integer> flags = new HashMap<Integer, Integer>();
+		records = 0;
+
+		DataInputStream in;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		} catch(FileNotFoundException e) {
+			return flags;
+		}
+
+		boolean header = false;
+		boolean bad = false;
+		try {
+			if(in.readInt() != FLAGS_MAGIC || in.readInt() != FLAGS_VERSION) {
+				bad = true;
+				return flags;
+			}
+			header = true;
+			while(true) {
+				int uid = in.readInt();
+				int bits = in.readInt();
+				flags.put(Integer.valueOf(uid), Integer.valueOf(bits));
+				records++;
+			}
+		} catch(EOFException e) {
+			// that's all of them, or the last one was only partly written. If the header isn't
+			// all there the file wasn't finished when it was created
+			if(!header) bad = true;
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't read flags from " + file + ": " + e.getMessage());
+		} finally {
+			try {
+				in.close();
+			} catch(IOException e) {
+				// we have what we need
+			}
+			if(bad) moveAside();
+		}
+		return flags;
+	}
+
+	private void moveAside() {
+		Logger.error(this, "Flags in " + file + " are of unknown format, moving them to " + badFile);
+		badFile.delete();
+		if(!file.renameTo(badFile) && !file.delete()) {
+			Logger.error(this, "Couldn't move " + file + " aside");
+		}
+	}
+
+	/**
+	 * @return the number of records in the file, including ones that have been replaced
+	 */
+	int getRecords() {
+		return records;
+	}
+
+	/**
+	 * Records new flags for the given messages in a single write.
+	 */
+	void append(int[] uids, int[] bits) throws IOException {
+		// a file without a whole header has no records to keep
+		if(file.length() < HEADER_SIZE) {
+			rewrite(uids, bits);
+			return;
+		}
+
+		ByteArrayOutputStream buf = new ByteArrayOutputStream(uids.length * RECORD_SIZE);
+		DataOutputStream data = new DataOutputStream(buf);
+		for(int i = 0; i < uids.length; i++) {
+			data.writeInt(uids[i]);
+			data.writeInt(bits[i]);
+		}
+
+		FileOutputStream out = new FileOutputStream(file, true);
+		try {
+			// a record that was only partly written last time would spoil all the ones after it
+			long length = out.getChannel().size();
+			long partial = (length - HEADER_SIZE) % RECORD_SIZE;
+			if(partial != 0) out.getChannel().truncate(length - partial);
+			out.write(buf.toByteArray());
+		} finally {
+			out.close();
+		}
+		records += uids.length;
+	}
+
+	/**
+	 * Replaces the file with one that has the given flags and nothing else.
+	 */
+	void rewrite(int[] uids, int[] bits) throws IOException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream(HEADER_SIZE + uids.length * RECORD_SIZE);
+		DataOutputStream data = new DataOutputStream(buf);
+		data.writeInt(FLAGS_MAGIC);
+		data.writeInt(FLAGS_VERSION);
+		for(int i = 0; i < uids.length; i++) {
+			data.writeInt(uids[i]);
+			data.writeInt(bits[i]);
+		}
+
+		FileOutputStream out = new FileOutputStream(tmpFile);
+		try {
+			out.write(buf.toByteArray());
+		} finally {
+			out.close();
+		}
+
+		file.delete();
+		if(!tmpFile.renameTo(file)) {
+			tmpFile.delete();
+			throw new IOException("Couldn't replace " + file);
+		}
+		records = uids.length;
+	}
+}
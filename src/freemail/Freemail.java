@@ -27,8 +27,13 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 
-import freemail.fcp.FCPConnection;
+import freemail.fcp.AsyncFCPClient;
+import freemail.fcp.FCPConnectionPool;
 import freemail.fcp.FCPContext;
+import freemail.fcp.FCPData;
+import freemail.fcp.FreenetClient;
+import freemail.fcp.OfflineQueue;
+import freemail.fcp.WatchSet;
 import freemail.imap.IMAPListener;
 import freemail.smtp.SMTPListener;
 import freemail.utils.Logger;
@@ -41,18 +46,23 @@ public abstract class Freemail implements ConfigClient {
 	private static final String GLOBALDATADIR = "globaldata";
 	private static final String ACKDIR = "delayedacks";
 	protected static final String CFGFILE = "globalconfig";
+	private static final String DEFAULT_SLOT_FETCH_CONCURRENCY = "6";
+	private static final String DEFAULT_FCP_CONNECTIONS = "2";
+	private static final String DEFAULT_FCP_BULK_CONNECTIONS = "1";
+	private static final String DEFAULT_FCP_CLASS_LIMITS = "interactive=0,message=16,ack=4,background=2";
 	private File datadir;
 	private static File globaldatadir;
 	private static File tempdir;
-	protected static FCPConnection fcpconn = null;
+	protected static FCPConnectionPool fcppool = null;
+	protected static FreenetClient freenetClient = null;
 	
-	private Thread fcpThread;
 	private ArrayList<Thread> singleAccountWatcherThreadList = new ArrayList<Thread>();
 	private Thread messageSenderThread;
 	private Thread smtpThread;
 	private Thread ackInserterThread;
 	private Thread imapThread;
 	
+	private final FCPContext fcpctx;
 	private final AccountManager accountManager;
 	private final ArrayList<SingleAccountWatcher> singleAccountWatcherList = new ArrayList<SingleAccountWatcher>();
 	private final MessageSender sender;
@@ -85,11 +95,20 @@ public abstract class Freemail implements ConfigClient {
 			throw new IOException("Couldn't create data dir");
 		}
 		
-		FCPContext fcpctx = new FCPContext();
+		fcpctx = new FCPContext();
 		configurator.register(Configurator.FCP_HOST, fcpctx, "localhost");
 		configurator.register(Configurator.FCP_PORT, fcpctx, "9481");
+		configurator.register(Configurator.FCP_NODES, fcpctx, "");
+		configurator.register(Configurator.FCP_CONNECTIONS, fcpctx, DEFAULT_FCP_CONNECTIONS);
+		configurator.register(Configurator.FCP_BULK_CONNECTIONS, fcpctx, DEFAULT_FCP_BULK_CONNECTIONS);
+		configurator.register(Configurator.FCP_MEMORY_THRESHOLD, fcpctx, Integer.toString(FCPData.DEFAULT_MEMORY_THRESHOLD));
+		configurator.register(Configurator.FCP_OFFLINE_QUEUE_SIZE, fcpctx, Integer.toString(OfflineQueue.DEFAULT_CAPACITY));
+		configurator.register(Configurator.FCP_OFFLINE_QUEUE_ON_DISK, fcpctx, "false");
+		configurator.register(Configurator.FCP_CLASS_LIMITS, fcpctx, DEFAULT_FCP_CLASS_LIMITS);
 		
-		Freemail.fcpconn = new FCPConnection(fcpctx);
+		configurator.register(Configurator.FCP_PERSISTENT_INSERTS, this, "false");
+		configurator.register(Configurator.SLOT_FETCH_CONCURRENCY, this, DEFAULT_SLOT_FETCH_CONCURRENCY);
+		configurator.register(Configurator.SLOT_WATCH, this, "false");
 		
 		accountManager = new AccountManager(datadir);
 		
@@ -108,8 +127,16 @@ public abstract class Freemail implements ConfigClient {
 		return Freemail.tempdir;
 	}
 	
-	public static FCPConnection getFCPConnection() {
-		return Freemail.fcpconn;
+	public static FCPConnectionPool getFCPConnectionPool() {
+		return Freemail.fcppool;
+	}
+	
+	/**
+	 * Returns the client that all requests to Freenet should go through. This talks FCP to the
+	 * node unless the plugin has replaced it with one that calls the node directly.
+	 */
+	public static FreenetClient getFreenetClient() {
+		return Freemail.freenetClient;
 	}
 	
 	public AccountManager getAccountManager() {
@@ -124,13 +151,25 @@ public abstract class Freemail implements ConfigClient {
 			tempdir = new File(val);
 		} else if (key.equalsIgnoreCase(Configurator.GLOBAL_DATA_DIR)) {
 			globaldatadir = new File(val);
+		} else if (key.equalsIgnoreCase(Configurator.FCP_PERSISTENT_INSERTS)) {
+			OutboundContact.setPersistentInserts(val.equalsIgnoreCase("true"));
+		} else if (key.equalsIgnoreCase(Configurator.SLOT_FETCH_CONCURRENCY)) {
+			try {
+				InboundContact.setFetchConcurrency(Integer.parseInt(val));
+			} catch (NumberFormatException nfe) {
+				// just leave it as it was
+			}
+		} else if (key.equalsIgnoreCase(Configurator.SLOT_WATCH)) {
+			WatchSet.setEnabled(val.equalsIgnoreCase("true"));
 		}
 	}
 	
 	protected void startFcp() {
-		fcpThread = new Thread(fcpconn, "Freemail FCP Connection");
-		fcpThread.setDaemon(true);
-		fcpThread.start();
+		Freemail.fcppool = new FCPConnectionPool(fcpctx, fcpctx.getConnections(), fcpctx.getBulkConnections());
+		Freemail.freenetClient = new AsyncFCPClient(fcppool);
+		freenetClient.getMetrics().register();
+		
+		fcppool.start();
 	}
 	
 	// note that this relies on sender being initialized
@@ -181,6 +220,10 @@ public abstract class Freemail implements ConfigClient {
 		ackInserterThread.start();
 	}
 	
+	protected void killFreenetClient() {
+		if (fcppool != null) fcppool.kill();
+	}
+	
 	public void terminate() {
 		long start = System.nanoTime();
 		Iterator<SingleAccountWatcher> it = singleAccountWatcherList.iterator();
@@ -196,8 +239,9 @@ public abstract class Freemail implements ConfigClient {
 		ackinserter.kill();
 		smtpl.kill();
 		imapl.kill();
-		// now kill the FCP thread - that's what all the other threads will be waiting on
-		fcpconn.kill();
+		// now kill the Freenet client - that's what all the other threads will be waiting on
+		killFreenetClient();
+		if (freenetClient != null) freenetClient.getMetrics().unregister();
 		end = System.nanoTime();
 		Logger.debug(this, "Spent " + (end - start) + "ns killing other threads");
 		
@@ -233,9 +277,8 @@ public abstract class Freemail implements ConfigClient {
 					imapl.joinClientThreads();
 					imapThread = null;
 				}
-				if (fcpThread != null) {
-					fcpThread.join();
-					fcpThread = null;
+				if (fcppool != null) {
+					fcppool.join();
 				}
 				end = System.nanoTime();
 				Logger.debug(this, "Spent " + (end - start) + "ns joining other threads");
@@ -244,6 +287,9 @@ public abstract class Freemail implements ConfigClient {
 			}
 			cleanedUp = true;
 		}
+		
+		// nothing changes the folders any more
+		MailboxIndex.saveAll();
 	}
 }
 
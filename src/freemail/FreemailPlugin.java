@@ -24,8 +24,12 @@ package freemail;
 
 
 import java.io.IOException;
+import java.util.Map;
 
 import freemail.config.Configurator;
+import freemail.fcp.FCPMetrics;
+import freemail.fcp.PluginFreenetClient;
+import freemail.utils.LatencyHistogram;
 import freenet.clients.http.PageNode;
 import freenet.pluginmanager.FredPlugin;
 import freenet.pluginmanager.FredPluginHTTP;
@@ -41,6 +45,7 @@ import freenet.support.api.HTTPRequest;
 public class FreemailPlugin extends Freemail implements FredPlugin, FredPluginHTTP,
                                                         FredPluginThreadless, FredPluginVersioned, FredPluginRealVersioned {
 	private PluginRespirator pluginResp;
+	private PluginFreenetClient nodeClient;
 	
 	public FreemailPlugin() throws IOException {
 		super(CFGFILE);
@@ -55,11 +60,20 @@ public class FreemailPlugin extends Freemail implements FredPlugin, FredPluginHT
 	public void runPlugin(PluginRespirator pr) {
 		pluginResp = pr;
 		
-		startFcp();
+		// we're running inside the node, so there's no need to go through FCP
+		nodeClient = new PluginFreenetClient(pr.getHLSimpleClient());
+		Freemail.freenetClient = nodeClient;
+		nodeClient.getMetrics().register();
+		
 		startWorkers(true);
 		startServers(true);
 	}
 
+	@Override
+	protected void killFreenetClient() {
+		if (nodeClient != null) nodeClient.kill();
+	}
+
 	@Override
 	public String handleHTTPGet(HTTPRequest request) {
 		PageNode page = pluginResp.getPageMaker().getPageNode("Freemail plugin", false, null);
@@ -107,9 +121,52 @@ public class FreemailPlugin extends Freemail implements FredPlugin, FredPluginHT
 				"Unfortunately using the short address is also less secure than using the long form " +
 				"address");
 
+		addRequestStatus(contentNode);
+
 		return pageNode.generate();
 	}
 
+	/**
+	 * Shows how long requests to the node are taking and how they have ended.
+	 */
+	private void addRequestStatus(HTMLNode contentNode) {
+		FCPMetrics metrics = nodeClient.getMetrics();
+
+		HTMLNode statusBox = contentNode.addChild("div", "class", "infobox");
+		statusBox.addChild("div", "class", "infobox-header", "Freenet requests");
+		HTMLNode statusContent = statusBox.addChild("div", "class", "infobox-content");
+		statusContent.addChild("p", metrics.getInFlight() + " requests running, " + metrics.getQueued() + " waiting to be sent.");
+
+		HTMLNode latencyTable = statusContent.addChild("table", "class", "plugintable");
+		HTMLNode header = latencyTable.addChild("tr");
+		for (String title : new String[] {"Request", "Sent", "Waited (p50)", "Waited (p99)", "Node (p50)", "Node (p90)", "Node (p99)", "Node (max)"}) {
+			header.addChild("th", title);
+		}
+		for (String kind : metrics.getRequestKinds()) {
+			LatencyHistogram wait = metrics.getWaitTimes(kind);
+			LatencyHistogram node = metrics.getNodeTimes(kind);
+			HTMLNode row = latencyTable.addChild("tr");
+			row.addChild("td", kind);
+			row.addChild("td", Long.toString(node.getCount()));
+			row.addChild("td", FCPMetrics.millis(wait.getPercentile(50)));
+			row.addChild("td", FCPMetrics.millis(wait.getPercentile(99)));
+			row.addChild("td", FCPMetrics.millis(node.getPercentile(50)));
+			row.addChild("td", FCPMetrics.millis(node.getPercentile(90)));
+			row.addChild("td", FCPMetrics.millis(node.getPercentile(99)));
+			row.addChild("td", FCPMetrics.millis(node.getMax()));
+		}
+
+		HTMLNode outcomeTable = statusContent.addChild("table", "class", "plugintable");
+		HTMLNode outcomeHeader = outcomeTable.addChild("tr");
+		outcomeHeader.addChild("th", "Outcome");
+		outcomeHeader.addChild("th", "Requests");
+		for (Map.Entry<String, Long> e : metrics.getOutcomeCounts().entrySet()) {
+			HTMLNode row = outcomeTable.addChild("tr");
+			row.addChild("td", e.getKey());
+			row.addChild("td", e.getValue().toString());
+		}
+	}
+
 	@Override
 	public String handleHTTPPost(HTTPRequest request) {
 		PageNode page = pluginResp.getPageMaker().getPageNode("Freemail plugin", false, null);
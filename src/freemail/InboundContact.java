@@ -25,19 +25,31 @@ package freemail;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.FileOutputStream;
 import java.io.PrintStream;
 import java.io.IOException;
 import java.io.FileNotFoundException;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import freemail.FreenetURI;
 import freemail.utils.PropsFile;
 import freemail.utils.EmailAddress;
 import freemail.utils.Logger;
+import freemail.fcp.FCPData;
 import freemail.fcp.FCPException;
 import freemail.fcp.FCPFetchException;
+import freemail.fcp.FCPRequest;
+import freemail.fcp.FetchPipeline;
+import freemail.fcp.FetchProfile;
 import freemail.fcp.HighLevelFCPClient;
+import freemail.fcp.RequestClass;
+import freemail.fcp.WatchSet;
 import freemail.fcp.ConnectionTerminatedException;
 
 import org.archive.util.Base32;
@@ -46,8 +58,12 @@ public class InboundContact extends Postman implements SlotSaveCallback {
 	private static final String IBCT_PROPSFILE = "props";
 	// how many slots should we poll past the last occupied one?
 	private static final int POLL_AHEAD = 6;
+	// how many slots of a single contact may be fetched at the same time
+	private static volatile int fetchConcurrency = POLL_AHEAD;
 	private File ibct_dir;
 	private PropsFile ibct_props;
+	// the shard to send requests on, see HighLevelFCPClient
+	private String shard = null;
 	
 	public InboundContact(File contact_dir, FreenetURI mailsite) {
 		this(contact_dir, mailsite.getKeyBody());
@@ -71,8 +87,26 @@ public class InboundContact extends Postman implements SlotSaveCallback {
 		return this.ibct_props.get(key);
 	}
 	
-	public void fetch(MessageBank mb, long timeout) throws InterruptedException {
-		HighLevelFCPClient fcpcli = new HighLevelFCPClient();
+	/**
+	 * Sets the number of slots that will be polled at the same time for each contact. Setting
+	 * this to 1 means that each slot is checked after the previous one has been fetched.
+	 */
+	public static void setFetchConcurrency(int concurrency) {
+		fetchConcurrency = Math.max(1, concurrency);
+	}
+	
+	public void fetch(FreemailAccount account, long timeout) throws InterruptedException {
+		this.fetch(account, timeout, null);
+	}
+	
+	/**
+	 * As {@link #fetch(FreemailAccount, long)}, but if watches isn't null the slots are watched
+	 * instead of polled. The same WatchSet should be passed in every time for this contact, so
+	 * the watches keep running between calls.
+	 */
+	public void fetch(FreemailAccount account, long timeout, WatchSet watches) throws InterruptedException {
+		// keep all requests for an account on the same node
+		this.shard = account.getUsername();
 		
 		String slots = this.ibct_props.get("slots");
 		if (slots == null) {
@@ -91,6 +125,31 @@ public class InboundContact extends Postman implements SlotSaveCallback {
 			return;
 		}
 
+		if (watches != null) {
+			Set<String> expected = new HashSet<String>();
+			this.fetch(account.getMessageBank(), timeout, sm, basekey, null, 0, watches, expected);
+			// the slots we didn't get to this time are no longer expected
+			watches.retain(expected);
+			return;
+		}
+
+		int concurrency = fetchConcurrency;
+		FetchPipeline pipeline = new FetchPipeline(Freemail.getFreenetClient().forShard(shard), concurrency);
+		try {
+			this.fetch(account.getMessageBank(), timeout, sm, basekey, pipeline, concurrency, null, null);
+		} finally {
+			// get rid of any slots we fetched but didn't get round to
+			pipeline.cancelAll();
+		}
+	}
+	
+	/**
+	 * Goes through the slots, either fetching them with the pipeline or, if that is null,
+	 * collecting whatever the watches have found and adding the slots we are waiting for to
+	 * expected.
+	 */
+	private void fetch(MessageBank mb, long timeout, HashSlotManager sm, String basekey, FetchPipeline pipeline,
+	                   int concurrency, WatchSet watches, Set<String> expected) throws InterruptedException {
 		long start = System.nanoTime();
 		String slot;
 		while ( (slot = sm.getNextSlot()) != null) {
@@ -112,9 +171,29 @@ public class InboundContact extends Postman implements SlotSaveCallback {
 			
 			Logger.minor(this,"Attempting to fetch mail");
 			Logger.debug(this,"Fetch key is "+key);
-			File msg = null;
+			FCPData msg = null;
 			try {
-				msg = fcpcli.fetch(key);
+				if (pipeline == null) {
+					expected.add(key);
+					FCPRequest<FCPData> req = watches.poll(key);
+					if (req == null) {
+						Logger.minor(this,"No mail in slot yet, still watching it");
+						continue;
+					}
+					msg = req.getResult();
+				} else {
+					// start fetching the slots after this one while we wait for it. The order
+					// in which they complete doesn't matter since we handle them in slot order.
+					List<String> keys = new ArrayList<String>(concurrency);
+					keys.add(key);
+					for (String next : sm.peekSlots(concurrency - 1)) {
+						if (next.length() != 52) break;
+						keys.add(basekey+next);
+					}
+					
+					pipeline.prefetch(keys);
+					msg = pipeline.take(key).getResult();
+				}
 			} catch (ConnectionTerminatedException cte) {
 				return;
 			} catch (FCPFetchException fe) {
@@ -129,13 +208,20 @@ public class InboundContact extends Postman implements SlotSaveCallback {
 			Logger.normal(this,"Found a message!");
 			
 			// parse the Freemail header(s) out.
-			PropsFile msgprops = PropsFile.createPropsFile(msg, true);
+			PropsFile msgprops;
+			try {
+				msgprops = PropsFile.createPropsFile(msg.getInputStream(), true);
+			} catch (IOException ioe) {
+				Logger.error(this,"Couldn't read fetched message. Leaving in the queue to try later.");
+				msg.release();
+				continue;
+			}
 			String s_id = msgprops.get("id");
 			if (s_id == null) {
 				Logger.error(this,"Got a message with an invalid header. Discarding.");
 				sm.slotUsed();
 				msgprops.closeReader();
-				msg.delete();
+				msg.release();
 				continue;
 			}
 			
@@ -146,7 +232,7 @@ public class InboundContact extends Postman implements SlotSaveCallback {
 				Logger.error(this,"Got a message with an invalid (non-integer) id. Discarding.");
 				sm.slotUsed();
 				msgprops.closeReader();
-				msg.delete();
+				msg.release();
 				continue;
 			}
 			
@@ -157,31 +243,31 @@ public class InboundContact extends Postman implements SlotSaveCallback {
 			} catch (IOException ioe) {
 				Logger.error(this,"Couldn't read logfile, so don't know whether received message is a duplicate or not. Leaving in the queue to try later.");
 				msgprops.closeReader();
-				msg.delete();
+				msg.release();
 				continue;
 			}
 			if (isDupe) {
 				Logger.normal(this,"Got a message, but we've already logged that message ID as received. Discarding.");
 				sm.slotUsed();
 				msgprops.closeReader();
-				msg.delete();
+				msg.release();
 				continue;
 			}
 			
-			BufferedReader br = msgprops.getReader();
-			if (br == null) {
+			InputStream body = msgprops.getInputStream();
+			if (body == null) {
 				Logger.error(this,"Got an invalid message. Discarding.");
 				sm.slotUsed();
 				msgprops.closeReader();
-				msg.delete();
+				msg.release();
 				continue;
 			}
 			
 			try {
-				this.storeMessage(br, mb);
-				msg.delete();
+				this.storeMessage(body, mb);
+				msg.release();
 			} catch (IOException ioe) {
-				msg.delete();
+				msg.release();
 				continue;
 			} catch (ConnectionTerminatedException cte) {
 				// terminated before we could validate the sender. Give up, and we won't mark the slot used so we'll
@@ -237,7 +323,8 @@ public class InboundContact extends Postman implements SlotSaveCallback {
 			}
 		} else {
 			// try to fetch that KSK redirect address
-			HighLevelFCPClient cli = new HighLevelFCPClient();
+			// someone is probably waiting to read the message this is for
+			HighLevelFCPClient cli = new HighLevelFCPClient(shard, RequestClass.INTERACTIVE);
 			
 			// quick sanity check
 			if (sd.indexOf("\r") > 0 || sd.indexOf("\n") > 0) {
@@ -246,9 +333,9 @@ public class InboundContact extends Postman implements SlotSaveCallback {
 			}
 			
 			Logger.normal(this,"Attempting to fetch sender's mailsite to validate From address...");
-			File result;
+			FCPData result;
 			try {
-				result = cli.fetch("KSK@"+sd+MailSite.ALIAS_SUFFIX);
+				result = cli.fetch("KSK@"+sd+MailSite.ALIAS_SUFFIX, FetchProfile.REDIRECT);
 			} catch (FCPFetchException fe) {
 				// we just received the message so we can assume our
 				// network connection is healthy, and the mailsite
@@ -261,16 +348,16 @@ public class InboundContact extends Postman implements SlotSaveCallback {
 				return false;
 			}
 			Logger.normal(this,"Fetched sender's mailsite");
-			if (result.length() > 512) {
+			if (result.length() > FetchProfile.REDIRECT.getMaxSize()) {
 				Logger.error(this,"Sender's mailsite is too long. Consider this an error.");
-				result.delete();
+				result.release();
 				return false;
 			}
-			BufferedReader br = new BufferedReader(new FileReader(result));
+			BufferedReader br = new BufferedReader(new InputStreamReader(result.getInputStream()));
 			
 			String line = br.readLine();
 			br.close();
-			result.delete();
+			result.release();
 			FreenetURI furi;
 			try {
 				furi = new FreenetURI(line);
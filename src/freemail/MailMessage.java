@@ -22,19 +22,35 @@
 package freemail;
 
 import java.io.OutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.BufferedReader;
+import java.io.InputStream;
 import java.io.PrintStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Vector;
 import java.util.Enumeration;
 
 import freemail.imap.IMAPMessageFlags;
 
+/**
+ * A message in a {@link MessageBank}. Messages are kept on disk as they are sent to IMAP clients,
+ * with CRLF line endings, so that they can be sent straight from the file. The streams returned
+ * by {@link #writeHeadersAndGetStream()} and {@link #getRawStream()} end lines with CRLF whatever
+ * platform we are on, and messages written by older versions are converted when they are first
+ * needed.
+ */
 public class MailMessage {
+	// for converting messages that aren't in a folder with an index
+	private static final Object CONVERSION_LOCK = new Object();
+	
 	private File file;
 	private OutputStream os;
 	private PrintStream ps;
@@ -42,27 +58,25 @@ public class MailMessage {
 	private BufferedReader brdr;
 	private int msg_seqnum=0;
 	public IMAPMessageFlags flags;
+	// the index of the folder the message is in, or null if it isn't in one
+	private final MailboxIndex index;
+	private final int uid;
 	
-	MailMessage(File f, int msg_seqnum) {
+	MailMessage(File f, int msg_seqnum, MailboxIndex index, int uid, int flags) {
 		this.file = f;
+		this.index = index;
 		this.headers = new Vector<MailMessageHeader>();
 		this.msg_seqnum=msg_seqnum;
-		
-		// initialize flags from filename
-		String[] parts = f.getName().split(",");
-		if (parts.length < 2 && !f.getName().endsWith(",")) {
-			// treat it as a new message
-			this.flags = new IMAPMessageFlags();
-			this.flags.set("\\Recent", true);
-		} else if (parts.length < 2) {
-			// just doesn't have any flags set
-			this.flags = new IMAPMessageFlags();
-		} else {
-			this.flags = new IMAPMessageFlags(parts[1]);
-		}
+		this.uid = uid;
+		this.flags = new IMAPMessageFlags(flags);
 		this.brdr = null;
 	}
 	
+	MailMessage(File f, int msg_seqnum) {
+		// a message on its own has its flags in its file name
+		this(f, msg_seqnum, null, Integer.parseInt(f.getName().split(",")[0]), MailboxIndex.flagsFromName(f.getName()));
+	}
+	
 	public void addHeader(String name, String val) {
 		this.headers.add(new MailMessageHeader(name, val));
 	}
@@ -158,7 +172,7 @@ public class MailMessage {
 	
 	public PrintStream writeHeadersAndGetStream() throws FileNotFoundException {
 		this.os = new FileOutputStream(this.file);
-		this.ps = new PrintStream(this.os);
+		this.ps = new CRLFPrintStream(this.os);
 		
 		Enumeration<MailMessageHeader>  e = this.headers.elements();
 		
@@ -175,7 +189,7 @@ public class MailMessage {
 	
 	public PrintStream getRawStream() throws FileNotFoundException {
 		this.os = new FileOutputStream(this.file);
-		this.ps = new PrintStream(this.os);
+		this.ps = new CRLFPrintStream(this.os);
 		
 		return this.ps;
 	}
@@ -188,6 +202,32 @@ public class MailMessage {
 		} catch (IOException ioe) {
 			
 		}
+		if (this.index != null) this.indexContent();
+	}
+	
+	/**
+	 * Reads the message once it has been written, so that the index has its size and headers
+	 * before anyone asks for them.
+	 */
+	private void indexContent() {
+		Vector<MailMessageHeader> found = new Vector<MailMessageHeader>();
+		long size;
+		long bodyOffset;
+		try {
+			size = this.toCRLF();
+			bodyOffset = findBodyOffset(this.file);
+			BufferedReader rdr = new BufferedReader(new FileReader(this.file));
+			try {
+				parseHeaders(rdr, found);
+			} finally {
+				rdr.close();
+			}
+		} catch (IOException ioe) {
+			// they'll be worked out again when they are needed
+			this.index.written(this.uid, -1, -1, null);
+			return;
+		}
+		this.index.written(this.uid, size, bodyOffset, toArray(found));
 	}
 	
 	public void cancel() {
@@ -196,24 +236,43 @@ public class MailMessage {
 		} catch (IOException ioe) {
 		}
 		this.file.delete();
+		if (this.index != null) this.index.removed(this.uid);
 	}
 	
 	public void readHeaders() throws IOException {
+		if (this.headers.size() > 0) return;
+		
+		if (this.index != null) {
+			String[] cached = this.index.getHeaders(this.uid);
+			if (cached != null) {
+				for (int i = 0; i + 1 < cached.length; i += 2) {
+					this.addHeader(cached[i], cached[i + 1]);
+				}
+				return;
+			}
+		}
+		
 		BufferedReader bufrdr = new BufferedReader(new FileReader(this.file));
 		
 		this.readHeaders(bufrdr);
 		bufrdr.close();
+		
+		if (this.index != null) this.index.setHeaders(this.uid, toArray(this.headers));
 	}
 	
 	public void readHeaders(BufferedReader bufrdr) throws IOException {
 		if (this.headers.size() > 0) return;
 		
+		parseHeaders(bufrdr, this.headers);
+	}
+	
+	private static void parseHeaders(BufferedReader bufrdr, Vector<MailMessageHeader> into) throws IOException {
 		String line;
 		String[] parts = null;
 		while ( (line = bufrdr.readLine()) != null) {
 			if (line.length() == 0) {
 				if (parts != null)
-					this.addHeader(parts[0], parts[1]);
+					into.add(new MailMessageHeader(parts[0], parts[1]));
 				parts = null;
 				break;
 			} else if (line.startsWith(" ") || line.startsWith("\t")) {
@@ -223,7 +282,7 @@ public class MailMessage {
 				parts[1] += " "+line.trim();
 			} else {
 				if (parts != null)
-					this.addHeader(parts[0], parts[1]);
+					into.add(new MailMessageHeader(parts[0], parts[1]));
 				parts = null;
 				parts = line.split(": ", 2);
 				
@@ -233,14 +292,21 @@ public class MailMessage {
 		}
 		
 		if (parts != null) {
-			this.addHeader(parts[0], parts[1]);
+			into.add(new MailMessageHeader(parts[0], parts[1]));
+		}
+	}
+	
+	private static String[] toArray(Vector<MailMessageHeader> headers) {
+		String[] array = new String[headers.size() * 2];
+		for (int i = 0; i < headers.size(); i++) {
+			array[i * 2] = headers.get(i).name;
+			array[i * 2 + 1] = headers.get(i).val;
 		}
+		return array;
 	}
 	
 	public int getUID() {
-		String[] parts = this.file.getName().split(",");
-		
-		return Integer.parseInt(parts[0]);
+		return this.uid;
 	}
 
 	public int getSeqNum() {
@@ -248,20 +314,199 @@ public class MailMessage {
 	}
 	
 	public long getSize() throws IOException {
-		// this is quite arduous since we have to send the message
-		// with \r\n's, and hence it may not be the size it is on disk
-		BufferedReader br = new BufferedReader(new FileReader(this.file));
-		
-		long counter = 0;
-		String line;
+		if (this.index != null) {
+			long size = this.index.getSize(this.uid);
+			if (size >= 0) return size;
+		}
 		
-		while ( (line = br.readLine()) != null) {
-			counter += line.getBytes().length;
-			counter += "\r\n".getBytes().length;
+		// the index only knows the size once the message is as it is sent
+		long size = this.toCRLF();
+		if (this.index != null) this.index.setSize(this.uid, size);
+		return size;
+	}
+	
+	/**
+	 * Returns where the body of the message starts in the file, just after the blank line that
+	 * ends the headers, so that the headers and the body can each be sent straight from the file.
+	 * If there is no blank line the message is all headers, and this is its size.
+	 */
+	public long getBodyOffset() throws IOException {
+		if (this.index != null) {
+			long offset = this.index.getBodyOffset(this.uid);
+			if (offset >= 0) return offset;
 		}
 		
-		br.close();
-		return counter;
+		// the offset is in the file as it is sent
+		this.getSize();
+		long offset = findBodyOffset(this.file);
+		if (this.index != null) this.index.setBodyOffset(this.uid, offset);
+		return offset;
+	}
+	
+	/**
+	 * Reads the headers of a message with CRLF line endings to find where its body starts.
+	 */
+	private static long findBodyOffset(File f) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(f));
+		try {
+			long pos = 0;
+			// the number of bytes of CRLF CRLF we've just seen, counting a message that starts
+			// with a blank line as if it followed one
+			int matched = 2;
+			int b;
+			while ((b = in.read()) != -1) {
+				pos++;
+				if (b == ((matched % 2 == 0) ? '\r' : '\n')) {
+					matched++;
+					if (matched == 4) return pos;
+				} else {
+					matched = (b == '\r') ? 1 : 0;
+				}
+			}
+			return pos;
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Converts the message to CRLF line endings if it doesn't have them already, the way it
+	 * would have been sent before it was stored like that.
+	 * @return the size of the message
+	 */
+	private long toCRLF() throws IOException {
+		if (!needsCRLF(this.file)) return this.file.length();
+		
+		// another session may be converting the same message, so only one of them does it. The
+		// folder's index is the lock when there is one, since that's shared by everything using
+		// the folder
+		synchronized (this.index != null ? this.index : CONVERSION_LOCK) {
+			if (!needsCRLF(this.file)) return this.file.length();
+			
+			// the internal date of old messages is the time the file was last modified, which
+			// mustn't become the time it was converted
+			long modified = this.file.lastModified();
+			File tmp = File.createTempFile(".crlf-", null, this.file.getParentFile());
+			InputStream in = new FileInputStream(this.file);
+			try {
+				OutputStream out = new FileOutputStream(tmp);
+				try {
+					copyWithCRLF(in, out);
+				} finally {
+					out.close();
+				}
+			} catch (IOException ioe) {
+				tmp.delete();
+				throw ioe;
+			} finally {
+				in.close();
+			}
+			if (modified != 0) tmp.setLastModified(modified);
+			
+			this.file.delete();
+			if (!tmp.renameTo(this.file)) {
+				tmp.delete();
+				throw new IOException("Couldn't replace " + this.file);
+			}
+			return this.file.length();
+		}
+	}
+	
+	/**
+	 * Copies a message, or the rest of one, giving every line a CRLF line ending as it would be
+	 * sent. Bytes are copied as they are otherwise, whatever their charset.
+	 */
+	public static void copyWithCRLF(InputStream in, OutputStream out) throws IOException {
+		InputStream bin = new BufferedInputStream(in);
+		OutputStream bout = new BufferedOutputStream(out);
+		int prev = -1;
+		int b;
+		while ((b = bin.read()) != -1) {
+			if (b == '\n' && prev != '\r') bout.write('\r');
+			bout.write(b);
+			prev = b;
+		}
+		// the last line is sent with a line ending even if it doesn't have one
+		if (prev != -1 && prev != '\n') {
+			bout.write('\r');
+			bout.write('\n');
+		}
+		bout.flush();
+	}
+	
+	/**
+	 * @return true if the file has a line that doesn't end with CRLF
+	 */
+	private static boolean needsCRLF(File f) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(f));
+		try {
+			int prev = -1;
+			int b;
+			while ((b = in.read()) != -1) {
+				if (b == '\n' && prev != '\r') return true;
+				prev = b;
+			}
+			return prev != -1 && prev != '\n';
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Sends part of the message as it is on disk, which is as it is sent to clients. The message
+	 * should have been converted to CRLF line endings first, which {@link #getSize()} makes sure
+	 * of.
+	 * @param start the offset of the first byte to send
+	 * @param len the number of bytes to send
+	 * @return the number of bytes sent, which is less than len if the message is shorter
+	 */
+	public long transferTo(long start, long len, WritableByteChannel target) throws IOException {
+		FileChannel channel = this.openChannel();
+		try {
+			long end = Math.min(start + len, channel.size());
+			long pos = start;
+			while (pos < end) {
+				long sent = channel.transferTo(pos, end - pos, target);
+				if (sent <= 0) break;
+				pos += sent;
+			}
+			return Math.max(0, pos - start);
+		} finally {
+			channel.close();
+		}
+	}
+	
+	/**
+	 * Opens the message as it is on disk, for sending parts of it without reopening it. This
+	 * fails if the message has gone, e.g. because another session expunged it, so it can be
+	 * done before a client is told how much will be sent.
+	 */
+	public FileChannel openChannel() throws IOException {
+		return new FileInputStream(this.file).getChannel();
+	}
+	
+	/**
+	 * Returns the IMAP envelope of the message if it has already been made, or null.
+	 */
+	public String getCachedEnvelope() {
+		if (this.index == null) return null;
+		return this.index.getEnvelope(this.uid);
+	}
+	
+	/**
+	 * Remembers the IMAP envelope of the message, until the message changes.
+	 */
+	public void setCachedEnvelope(String envelope) {
+		if (this.index != null) this.index.setEnvelope(this.uid, envelope);
+	}
+	
+	/**
+	 * Returns when the message was delivered to its folder, in milliseconds since the epoch, or
+	 * 0 if it isn't known.
+	 */
+	public long getInternalDate() {
+		if (this.index == null) return this.file.lastModified();
+		return this.index.getInternalDate(this.uid);
 	}
 	
 	public void closeStream() {
@@ -283,12 +528,10 @@ public class MailMessage {
 	
 	public boolean copyTo(MailMessage msg) {
 		this.closeStream();
-		String line;
 		try {
-			PrintStream copyps = msg.getRawStream();
-			while ( (line = this.readLine()) != null) {
-				copyps.println(line);
-			}
+			long size = this.getSize();
+			msg.getRawStream();
+			this.transferTo(0, size, ((FileOutputStream)msg.os).getChannel());
 			msg.commit();
 		} catch (IOException ioe) {
 			msg.cancel();
@@ -297,6 +540,7 @@ public class MailMessage {
 		
 		msg.flags = this.flags;
 		msg.storeFlags();
+		if (msg.index != null) msg.index.setInternalDate(msg.uid, this.getInternalDate());
 		return true;
 	}
 	
@@ -305,12 +549,19 @@ public class MailMessage {
 	// torrent of exceptions they'll get thrown at them!
 	public void delete() {
 		this.file.delete();
+		if (this.index != null) this.index.removed(this.uid);
 	}
 	
 	public void storeFlags() {
+		if (this.index != null) {
+			this.index.setFlags(new int[] {this.uid}, new int[] {this.flags.getBits()});
+			return;
+		}
+		
 		String[] parts = this.file.getName().split(",");
 		
 		String newname = parts[0] + "," + this.flags.getShortFlagString();
+		if (newname.equals(this.file.getName())) return;
 		File newfile = new File(this.file.getParentFile(), newname);
 		
 		if(this.file.renameTo(newfile)) {
@@ -318,6 +569,102 @@ public class MailMessage {
 		}
 	}
 	
+	/**
+	 * Stores the flags of all the given messages, which is quicker than storing them one at a
+	 * time if they are in the same folder.
+	 */
+	public static void storeFlags(MailMessage[] msgs) {
+		int i = 0;
+		while (i < msgs.length) {
+			MailboxIndex index = msgs[i].index;
+			if (index == null) {
+				msgs[i++].storeFlags();
+				continue;
+			}
+			
+			// the run of messages in the same folder
+			int end = i;
+			while (end < msgs.length && msgs[end].index == index) end++;
+			
+			int[] uids = new int[end - i];
+			int[] bits = new int[end - i];
+			for (int j = i; j < end; j++) {
+				uids[j - i] = msgs[j].uid;
+				bits[j - i] = msgs[j].flags.getBits();
+			}
+			index.setFlags(uids, bits);
+			i = end;
+		}
+	}
+	
+	/**
+	 * A PrintStream that ends lines with CRLF, as messages are stored.
+	 */
+	private static class CRLFPrintStream extends PrintStream {
+		CRLFPrintStream(OutputStream out) {
+			super(out);
+		}
+		
+		@Override
+		public void println() {
+			print("\r\n");
+		}
+		
+		@Override
+		public synchronized void println(String x) {
+			print(x);
+			print("\r\n");
+		}
+		
+		@Override
+		public synchronized void println(Object x) {
+			print(x);
+			print("\r\n");
+		}
+		
+		@Override
+		public synchronized void println(char[] x) {
+			print(x);
+			print("\r\n");
+		}
+		
+		@Override
+		public synchronized void println(boolean x) {
+			print(x);
+			print("\r\n");
+		}
+		
+		@Override
+		public synchronized void println(char x) {
+			print(x);
+			print("\r\n");
+		}
+		
+		@Override
+		public synchronized void println(int x) {
+			print(x);
+			print("\r\n");
+		}
+		
+		@Override
+		public synchronized void println(long x) {
+			print(x);
+			print("\r\n");
+		}
+		
+		@Override
+		public synchronized void println(float x) {
+			print(x);
+			print("\r\n");
+		}
+		
+		@Override
+		public synchronized void println(double x) {
+			print(x);
+			print("\r\n");
+		}
+	}
+	
 	private static class MailMessageHeader {
 		public String name;
 		public String val;
@@ -28,6 +28,7 @@ import java.net.MalformedURLException;
 import freemail.utils.PropsFile;
 import freemail.fcp.FCPException;
 import freemail.fcp.HighLevelFCPClient;
+import freemail.fcp.RequestClass;
 import freemail.fcp.FCPPutFailedException;
 import freemail.fcp.FCPBadFileException;
 import freemail.fcp.ConnectionTerminatedException;
@@ -84,7 +85,7 @@ public class MailSite {
 		String key = this.accprops.get("mailsite.privkey");
 		if (key == null) return -1;
 		
-		HighLevelFCPClient cli = new HighLevelFCPClient();
+		HighLevelFCPClient cli = new HighLevelFCPClient(null, RequestClass.BACKGROUND);
 		
 		String minslot_s = this.accprops.get("mailsite.slot");
 		int minslot;
@@ -131,7 +132,7 @@ public class MailSite {
 			
 		Logger.normal(this,"Inserting mailsite redirect from "+"KSK@"+alias+ALIAS_SUFFIX+" to "+targetKey);
 		
-		HighLevelFCPClient cli = new HighLevelFCPClient();
+		HighLevelFCPClient cli = new HighLevelFCPClient(null, RequestClass.BACKGROUND);
 			
 		FCPPutFailedException err = null;
 		try {
@@ -0,0 +1,605 @@
+/*
+ * MailboxIndex.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import freemail.imap.IMAPMessageFlags;
+import freemail.utils.Logger;
+
+/**
+ * The messages in a folder, so that listing them doesn't mean listing and sorting the directory
+ * every time. There is one index for each folder however many {@link MessageBank}s there are for
+ * it, and {@link MailMessage}s tell it when they are created, renamed and deleted.
+ *
+ * Anything else that changes the folder is noticed because the directory's modification time
+ * changes, in which case the directory is listed again. The index also remembers the size,
+ * internal date and headers of each message and where its body starts, and is saved in the folder
+ * from time to time so that these don't have to be worked out again when Freemail is restarted.
+ * The headers, size and body offset are worked out as soon as a message has been written, so that
+ * clients that only want those never make us read the message itself.
+ *
+ * The flags of the messages are kept in a {@link FlagTable} and saved as soon as they change.
+ * Messages used to keep their flags at the end of their file name, e.g. "12,SA", which is where
+ * they are taken from for messages that aren't in the table yet. File names aren't changed any
+ * more, so after that they can be out of date.
+ */
+class MailboxIndex {
+	private static final String INDEX_FILE = ".index";
+	private static final String INDEX_TMP_FILE = ".index-tmp";
+	private static final int INDEX_MAGIC = 0x464d4958; // "FMIX"
+	private static final int INDEX_VERSION = 1;
+	// headers longer than this aren't saved, since the index can't hold them
+	private static final int MAX_SAVED_HEADER_LENGTH = 16 * 1024;
+	// how often the index is saved at most while it is changing
+	private static final long CHECKPOINT_INTERVAL = 60 * 1000;
+	// how many replaced records the flag table may have before it is rewritten
+	private static final int FLAG_RECORDS_SLACK = 1024;
+
+	private static final Map<File, MailboxIndex> indexes = new HashMap<File, MailboxIndex>();
+
+	private final File dir;
+	private final FlagTable flagTable;
+
+	// everything below is guarded by this
+	// null until the index is first used
+	private SortedMap<Integer, Entry> entries = null;
+	// the directory's modification time when we last knew what was in it
+	private long dirModified = 0;
+	private boolean dirty = false;
+	private long lastCheckpoint = 0;
+
+	private MailboxIndex(File dir) {
+		this.dir = dir;
+		this.flagTable = new FlagTable(dir);
+	}
+
+	/**
+	 * @return the index of the folder in the given directory
+	 */
+	static MailboxIndex forDir(File dir) {
+		File key = dir.getAbsoluteFile();
+		synchronized(indexes) {
+			MailboxIndex index = indexes.get(key);
+			if(index == null) {
+				index = new MailboxIndex(key);
+				indexes.put(key, index);
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * Forgets the index of the folder in the given directory, e.g. because it has been deleted.
+	 */
+	static void forget(File dir) {
+		synchronized(indexes) {
+			indexes.remove(dir.getAbsoluteFile());
+		}
+	}
+
+	/**
+	 * Saves every index that has changed since it was last saved.
+	 */
+	static void saveAll() {
+		List<MailboxIndex> all;
+		synchronized(indexes) {
+			all = new ArrayList<MailboxIndex>(indexes.values());
+		}
+		for(MailboxIndex index : all) {
+			synchronized(index) {
+				if(index.dirty && index.dir.exists()) index.checkpoint();
+			}
+		}
+	}
+
+	/**
+	 * What the index knows about a message.
+	 */
+	static class Entry {
+		final int uid;
+		File file;
+		// the size of the message when it is sent, or -1 if we don't know yet. Once we do, the
+		// message is on disk as it is sent
+		long size = -1;
+		// the offset of the body in the file, just after the blank line that ends the headers, or
+		// -1 if we don't know yet. Only known along with the size
+		long bodyOffset = -1;
+		// when the message was delivered, or 0 if we don't know yet
+		long internalDate = 0;
+		// see IMAPMessageFlags.getBits()
+		int flags;
+		// names and values of the headers one after the other, or null if we don't know them
+		String[] headers = null;
+		// the IMAP envelope, which isn't saved since it can be made again from the headers
+		String envelope = null;
+
+		private Entry(int uid, File file) {
+			this.uid = uid;
+			this.file = file;
+		}
+	}
+
+	/**
+	 * @return the messages in the folder, in order of UID
+	 */
+	synchronized List<MailMessage> listMessages() {
+		update();
+		List<MailMessage> msgs = new ArrayList<MailMessage>(entries.size());
+		int seq = 1;
+		for(Entry e : entries.values()) {
+			msgs.add(new MailMessage(e.file, seq++, this, e.uid, e.flags));
+		}
+		return msgs;
+	}
+
+	synchronized int size() {
+		update();
+		return entries.size();
+	}
+
+	/**
+	 * Notes that a message has been added to the folder.
+	 */
+	synchronized void added(File file) {
+		update();
+		Entry e = new Entry(parseUID(file.getName()), file);
+		e.internalDate = System.currentTimeMillis();
+		// just as it would be if it were only in the file name
+		e.flags = flagsFromName(file.getName());
+		entries.put(Integer.valueOf(e.uid), e);
+		changed();
+	}
+
+	/**
+	 * Notes that a message has been written, with its size, where its body starts and its headers.
+	 * @param headers see {@link #getHeaders(int)}, or null if they aren't known
+	 */
+	synchronized void written(int uid, long size, long bodyOffset, String[] headers) {
+		Entry e = getEntry(uid);
+		if(e == null) return;
+		e.size = size;
+		e.bodyOffset = bodyOffset;
+		e.headers = headers;
+		e.envelope = null;
+		changed();
+	}
+
+	/**
+	 * Notes that a message has been deleted.
+	 */
+	synchronized void removed(int uid) {
+		if(entries == null) return;
+		entries.remove(Integer.valueOf(uid));
+		changed();
+	}
+
+	/**
+	 * @return the flags of the message, or 0 if it isn't in the folder
+	 */
+	synchronized int getFlags(int uid) {
+		Entry e = getEntry(uid);
+		return e == null ? 0 : e.flags;
+	}
+
+	/**
+	 * Changes the flags of the given messages, saving them all in one go.
+	 */
+	synchronized void setFlags(int[] uids, int[] bits) {
+		for(int i = 0; i < uids.length; i++) {
+			Entry e = getEntry(uids[i]);
+			if(e != null) e.flags = bits[i];
+		}
+		saveFlags(uids, bits);
+	}
+
+	/**
+	 * @return the size of the message when it is sent, or -1 if it isn't known
+	 */
+	synchronized long getSize(int uid) {
+		Entry e = getEntry(uid);
+		return e == null ? -1 : e.size;
+	}
+
+	synchronized void setSize(int uid, long size) {
+		Entry e = getEntry(uid);
+		if(e == null) return;
+		e.size = size;
+		dirty = true;
+		checkpointIfDue();
+	}
+
+	/**
+	 * @return the offset in the file of the body of the message, or -1 if it isn't known
+	 */
+	synchronized long getBodyOffset(int uid) {
+		Entry e = getEntry(uid);
+		return e == null ? -1 : e.bodyOffset;
+	}
+
+	synchronized void setBodyOffset(int uid, long bodyOffset) {
+		Entry e = getEntry(uid);
+		if(e == null) return;
+		e.bodyOffset = bodyOffset;
+		dirty = true;
+		checkpointIfDue();
+	}
+
+	/**
+	 * @return the names and values of the headers of the message one after the other, or null
+	 *         if they aren't known
+	 */
+	synchronized String[] getHeaders(int uid) {
+		Entry e = getEntry(uid);
+		return e == null ? null : e.headers;
+	}
+
+	synchronized void setHeaders(int uid, String[] headers) {
+		Entry e = getEntry(uid);
+		if(e == null) return;
+		e.headers = headers;
+		e.envelope = null;
+		dirty = true;
+		checkpointIfDue();
+	}
+
+	/**
+	 * @return the IMAP envelope of the message, or null if it hasn't been made yet
+	 */
+	synchronized String getEnvelope(int uid) {
+		Entry e = getEntry(uid);
+		return e == null ? null : e.envelope;
+	}
+
+	synchronized void setEnvelope(int uid, String envelope) {
+		Entry e = getEntry(uid);
+		if(e != null) e.envelope = envelope;
+	}
+
+	/**
+	 * @return when the message was delivered, or 0 if it isn't in the folder
+	 */
+	synchronized long getInternalDate(int uid) {
+		Entry e = getEntry(uid);
+		if(e == null) return 0;
+		if(e.internalDate == 0) {
+			e.internalDate = e.file.lastModified();
+			dirty = true;
+		}
+		return e.internalDate;
+	}
+
+	synchronized void setInternalDate(int uid, long date) {
+		Entry e = getEntry(uid);
+		if(e == null) return;
+		e.internalDate = date;
+		dirty = true;
+		checkpointIfDue();
+	}
+
+	private Entry getEntry(int uid) {
+		if(entries == null) update();
+		return entries.get(Integer.valueOf(uid));
+	}
+
+	/**
+	 * Called after we have changed the folder ourselves, so that it isn't listed again.
+	 */
+	private void changed() {
+		dirModified = dir.lastModified();
+		dirty = true;
+		checkpointIfDue();
+	}
+
+	/**
+	 * Loads the index if it hasn't been yet, and lists the directory again if something else has
+	 * changed it since we last did.
+	 */
+	private void update() {
+		if(entries == null) {
+			entries = new TreeMap<Integer, Entry>();
+			Map<String, Entry> saved = load();
+			rescan(saved);
+			loadFlags();
+			if(dirty) checkpoint();
+			return;
+		}
+
+		if(dir.lastModified() != dirModified) {
+			Map<String, Entry> known = new HashMap<String, Entry>();
+			for(Entry e : entries.values()) {
+				known.put(e.file.getName(), e);
+			}
+			List<Entry> found = rescan(known);
+			if(!found.isEmpty()) saveFlags(found);
+		}
+	}
+
+	/**
+	 * Reads the flags of the messages from the flag table, and adds any that aren't there.
+	 */
+	private void loadFlags() {
+		Map<Integer, Integer> saved = flagTable.read();
+		List<Entry> missing = new ArrayList<Entry>();
+		for(Entry e : entries.values()) {
+			Integer bits = saved.get(Integer.valueOf(e.uid));
+			if(bits != null) {
+				e.flags = bits.intValue();
+			} else {
+				missing.add(e);
+			}
+		}
+		if(!missing.isEmpty() && !flagTable.exists()) {
+			Logger.normal(this, "Taking the flags of " + missing.size() + " messages in " + dir + " from their file names");
+		}
+
+		if(flagTable.getRecords() + missing.size() > entries.size() + FLAG_RECORDS_SLACK) {
+			rewriteFlags();
+		} else if(!missing.isEmpty()) {
+			saveFlags(missing);
+		}
+	}
+
+	private void saveFlags(List<Entry> changed) {
+		int[] uids = new int[changed.size()];
+		int[] bits = new int[changed.size()];
+		for(int i = 0; i < uids.length; i++) {
+			uids[i] = changed.get(i).uid;
+			bits[i] = changed.get(i).flags;
+		}
+		saveFlags(uids, bits);
+	}
+
+	private void saveFlags(int[] uids, int[] bits) {
+		if(flagTable.getRecords() + uids.length > entries.size() + FLAG_RECORDS_SLACK) {
+			rewriteFlags();
+			return;
+		}
+
+		try {
+			flagTable.append(uids, bits);
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't save flags in " + dir + ": " + e.getMessage());
+		}
+		// the flag table is in the folder too
+		dirModified = dir.lastModified();
+	}
+
+	/**
+	 * Replaces the flag table with one that only has the flags of the messages that are left.
+	 */
+	private void rewriteFlags() {
+		int[] uids = new int[entries.size()];
+		int[] bits = new int[entries.size()];
+		int i = 0;
+		for(Entry e : entries.values()) {
+			uids[i] = e.uid;
+			bits[i] = e.flags;
+			i++;
+		}
+		try {
+			flagTable.rewrite(uids, bits);
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't save flags in " + dir + ": " + e.getMessage());
+		}
+		dirModified = dir.lastModified();
+	}
+
+	/**
+	 * Rebuilds the index from the directory, keeping what we know about files that are still
+	 * there under the same name.
+	 * @return the messages we didn't know about
+	 */
+	private List<Entry> rescan(Map<String, Entry> known) {
+		// before listing, so that anything that changes while we do is seen next time
+		long modified = dir.lastModified();
+		String[] names = dir.list();
+		if(names == null) names = new String[0];
+
+		SortedMap<Integer, Entry> rebuilt = new TreeMap<Integer, Entry>();
+		List<Entry> found = new ArrayList<Entry>();
+		for(String name : names) {
+			if(!isMessageFile(name)) continue;
+
+			Entry e = known.get(name);
+			if(e == null) {
+				File f = new File(dir, name);
+				if(f.isDirectory()) continue;
+				e = new Entry(parseUID(name), f);
+				e.flags = flagsFromName(name);
+				// before anything rewrites the file, e.g. to convert its line endings
+				e.internalDate = f.lastModified();
+				found.add(e);
+				dirty = true;
+			}
+			rebuilt.put(Integer.valueOf(e.uid), e);
+		}
+		// something we knew about has gone
+		if(rebuilt.size() != known.size()) dirty = true;
+
+		entries = rebuilt;
+		dirModified = modified;
+		return found;
+	}
+
+	/**
+	 * @return true if the file with the given name in a folder is a message
+	 */
+	static boolean isMessageFile(String name) {
+		// a UID, optionally followed by a comma and the flags
+		int end = name.indexOf(',');
+		if(end < 0) end = name.length();
+		if(end == 0 || end > 9) return false;
+		for(int i = 0; i < end; i++) {
+			char c = name.charAt(i);
+			if(c < '0' || c > '9') return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the flags in the name of a message file, see {@link IMAPMessageFlags#getBits()}
+	 */
+	static int flagsFromName(String name) {
+		int comma = name.indexOf(',');
+		IMAPMessageFlags flags;
+		if(comma < 0) {
+			// it has never had any flags, so it's new
+			flags = new IMAPMessageFlags();
+			flags.set("\\Recent", true);
+		} else {
+			flags = new IMAPMessageFlags(name.substring(comma + 1));
+		}
+		return flags.getBits();
+	}
+
+	private static int parseUID(String name) {
+		int end = name.indexOf(',');
+		return Integer.parseInt(end < 0 ? name : name.substring(0, end));
+	}
+
+	/**
+	 * Reads the saved index.
+	 * @return what it says about each message by file name, which is empty if there isn't one
+	 */
+	private Map<String, Entry> load() {
+		Map<String, Entry> saved = new HashMap<String, Entry>();
+		File indexFile = new File(dir, INDEX_FILE);
+		DataInputStream in;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+		} catch(FileNotFoundException e) {
+			return saved;
+		}
+
+		try {
+			if(in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+				Logger.normal(this, "Ignoring index of unknown format in " + dir);
+				return saved;
+			}
+			int count = in.readInt();
+			for(int i = 0; i < count; i++) {
+				String name = in.readUTF();
+				Entry e = new Entry(in.readInt(), new File(dir, name));
+				e.size = in.readLong();
+				e.bodyOffset = in.readLong();
+				e.internalDate = in.readLong();
+				int headers = in.readInt();
+				if(headers >= 0) {
+					e.headers = new String[headers];
+					for(int j = 0; j < headers; j++) {
+						e.headers[j] = in.readUTF();
+					}
+				}
+				saved.put(name, e);
+			}
+		} catch(EOFException e) {
+			Logger.error(this, "Index of " + dir + " is truncated, the rest will be rebuilt");
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't read index of " + dir + ": " + e.getMessage());
+		} finally {
+			try {
+				in.close();
+			} catch(IOException e) {
+				// we have what we need
+			}
+		}
+		return saved;
+	}
+
+	private static boolean canSave(String[] headers) {
+		for(String h : headers) {
+			// writeUTF can't write more than 64k bytes, which this many characters always fit in
+			if(h.length() > MAX_SAVED_HEADER_LENGTH) return false;
+		}
+		return true;
+	}
+
+	private void checkpointIfDue() {
+		if(dirty && System.currentTimeMillis() - lastCheckpoint >= CHECKPOINT_INTERVAL) {
+			checkpoint();
+		}
+	}
+
+	/**
+	 * Saves the index in the folder, replacing the one that was there.
+	 */
+	private void checkpoint() {
+		boolean current = (dir.lastModified() == dirModified);
+		File tmp = new File(dir, INDEX_TMP_FILE);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.writeInt(INDEX_MAGIC);
+				out.writeInt(INDEX_VERSION);
+				out.writeInt(entries.size());
+				for(Entry e : entries.values()) {
+					out.writeUTF(e.file.getName());
+					out.writeInt(e.uid);
+					out.writeLong(e.size);
+					out.writeLong(e.bodyOffset);
+					out.writeLong(e.internalDate);
+					if(e.headers == null || !canSave(e.headers)) {
+						out.writeInt(-1);
+					} else {
+						out.writeInt(e.headers.length);
+						for(String h : e.headers) {
+							out.writeUTF(h);
+						}
+					}
+				}
+			} finally {
+				out.close();
+			}
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't save index of " + dir + ": " + e.getMessage());
+			tmp.delete();
+			return;
+		}
+
+		File indexFile = new File(dir, INDEX_FILE);
+		indexFile.delete();
+		if(!tmp.renameTo(indexFile)) {
+			Logger.error(this, "Couldn't save index of " + dir);
+			tmp.delete();
+			return;
+		}
+
+		// saving the index changes the directory too
+		if(current) dirModified = dir.lastModified();
+		dirty = false;
+		lastCheckpoint = System.currentTimeMillis();
+	}
+}
@@ -24,7 +24,6 @@ package freemail;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.File;
-import java.io.FilenameFilter;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.FileOutputStream;
@@ -33,8 +32,7 @@ import java.util.TreeMap;
 import java.util.SortedMap;
 import java.util.Vector;
 import java.util.Enumeration;
-import java.util.Comparator;
-import java.util.Arrays;
+import java.util.List;
 
 import freemail.utils.Logger;
 import freemail.utils.PropsFile;
@@ -49,6 +47,7 @@ public class MessageBank {
 	private final File dir;
 	private final MessageBank topLevel;
 	private final long uidValidity;
+	private final MailboxIndex index;
 
 	public MessageBank(FreemailAccount account) {
 		this.dir = new File(account.getAccountDir(), MESSAGES_DIR);
@@ -60,11 +59,13 @@ public class MessageBank {
 		//This is the top level message bank
 		topLevel = null;
 		this.uidValidity = 1;
+		this.index = MailboxIndex.forDir(dir);
 	}
 	
 	private MessageBank(File d, MessageBank topLevel) {
 		this.dir = d;
 		this.topLevel = topLevel;
+		this.index = MailboxIndex.forDir(dir);
 
 		//Read uidvalidity from propsfile or assign a new value
 		PropsFile props = PropsFile.createPropsFile(new File(dir, PROPSFILE));
@@ -121,6 +122,7 @@ public class MessageBank {
 			if (!files[i].delete()) return false;
 		}
 		
+		MailboxIndex.forget(this.dir);
 		return this.dir.delete();
 	}
 	
@@ -139,7 +141,9 @@ public class MessageBank {
 		this.writeNextId(newid);
 		
 		if (newfile != null) {
-			MailMessage newmsg = new MailMessage(newfile,0);
+			this.index.added(newfile);
+			int uid = Integer.parseInt(newfile.getName());
+			MailMessage newmsg = new MailMessage(newfile, 0, this.index, uid, this.index.getFlags(uid));
 			return newmsg;
 		}
 		
@@ -147,18 +151,9 @@ public class MessageBank {
 	}
 	
 	public synchronized SortedMap<Integer, MailMessage> listMessages() {
-		File[] files = this.dir.listFiles(new MessageFileNameFilter());
-
-		Arrays.sort(files, new UIDComparator());
-
 		TreeMap<Integer, MailMessage> msgs = new TreeMap<Integer, MailMessage>();
 
-		int seq=1;
-		for (int i = 0; i < files.length; i++) {
-			if (files[i].isDirectory()) continue;
-			
-			MailMessage msg = new MailMessage(files[i],seq++);
-			
+		for (MailMessage msg : this.index.listMessages()) {
 			msgs.put(new Integer(msg.getUID()), msg);
 		}
 		
@@ -166,21 +161,15 @@ public class MessageBank {
 	}
 	
 	public synchronized MailMessage[] listMessagesArray() {
-		File[] files = this.dir.listFiles(new MessageFileNameFilter());
-
-		Arrays.sort(files, new UIDComparator());
-		
-		MailMessage[] msgs = new MailMessage[files.length];
-		
-		for (int i = 0; i < files.length; i++) {
-			//if (files[i].getName().startsWith(".")) continue;
-			
-			MailMessage msg = new MailMessage(files[i],i+1);
-			
-			msgs[i] = msg;
-		}
-		
-		return msgs;
+		List<MailMessage> msgs = this.index.listMessages();
+		return msgs.toArray(new MailMessage[msgs.size()]);
+	}
+	
+	/**
+	 * Returns the number of messages in this MessageBank.
+	 */
+	public int countMessages() {
+		return this.index.size();
 	}
 	
 	public MessageBank getSubFolder(String name) {
@@ -335,26 +324,4 @@ public class MessageBank {
 
 		return uid % 0x100000000l;
 	}
-
-	private static class MessageFileNameFilter implements FilenameFilter {
-		@Override
-		public boolean accept(File dir, String name) {
-			if (name.startsWith(".")) return false;
-			if (!name.matches("[0-9]+(,.*)?")) return false;
-			return true;
-		}
-	}
-	
-	// compare to filenames by number leading up to ","
-	private static class UIDComparator implements Comparator<File> {
-		@Override
-		public final int compare ( File a, File b ) {
-			int ia=Integer.parseInt(a.getName().split(",",2)[0]);
-			int ib=Integer.parseInt(b.getName().split(",",2)[0]);
-
-			return( ia-ib );
-		}
-	}
-
-
 }
@@ -28,12 +28,15 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.FileNotFoundException;
 import java.net.MalformedURLException;
 import java.math.BigInteger;
 import java.security.SecureRandom;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.io.PrintWriter;
@@ -41,12 +44,18 @@ import java.io.PrintWriter;
 import freemail.utils.EmailAddress;
 import freemail.utils.PropsFile;
 import freemail.utils.DateStringFactory;
+import freemail.fcp.FCPData;
 import freemail.fcp.FCPException;
 import freemail.fcp.FCPFetchException;
+import freemail.fcp.FCPRequest;
+import freemail.fcp.FetchProfile;
 import freemail.fcp.HighLevelFCPClient;
 import freemail.fcp.FCPPutFailedException;
 import freemail.fcp.FCPBadFileException;
+import freemail.fcp.PersistentRequest;
+import freemail.fcp.RequestClass;
 import freemail.fcp.SSKKeyPair;
+import freemail.fcp.WatchSet;
 import freemail.fcp.ConnectionTerminatedException;
 import freemail.utils.Logger;
 
@@ -98,6 +107,16 @@ public class OutboundContact {
 	// If we last fetched the mailsite longer than this number of milliseconds
     // ago, re-fetch it.
 	private static final long MAILSITE_CACHE_TIME = 60 * 60 * 1000;
+	
+	// persistent message inserts are given identifiers starting with this
+	private static final String INSERT_ID_PREFIX = "Freemail-";
+	
+	// whether messages are inserted as persistent requests on the node's global queue
+	private static volatile boolean persistentInserts = false;
+	
+	// the identifiers of the persistent inserts each account had on the node when we first
+	// asked, and that we haven't picked up yet
+	private static final Map<String, Set<String>> insertsOnNode = new HashMap<String, Set<String>>();
 
 	/**
 	 * Used to store the index of the next ack we should check. This is done so we won't start from
@@ -106,6 +125,10 @@ public class OutboundContact {
 	//FIXME: This behaves badly when the outbox changes
 	private int nextAckIndex = 0;
 	
+	// the watches on the acks of the messages we have sent, if acks are watched rather than
+	// polled
+	private WatchSet ackWatches = null;
+	
 	public OutboundContact(FreemailAccount acc, EmailAddress a) throws BadFreemailAddressException, IOException,
 	                                                           OutboundContactFatalException, ConnectionTerminatedException,
 	                                                           InterruptedException {
@@ -194,14 +217,14 @@ public class OutboundContact {
 			}
 			ctskey += "cts";
 			
-			HighLevelFCPClient fcpcli = new HighLevelFCPClient();
+			HighLevelFCPClient fcpcli = new HighLevelFCPClient(account.getUsername());
 			
 			Logger.minor(this,"polling for CTS message: "+ctskey);
 			try {
-				File cts = fcpcli.fetch(ctskey);
+				FCPData cts = fcpcli.fetch(ctskey, FetchProfile.ACK);
 				
 				Logger.normal(this,"Sucessfully received CTS for "+this.address.getSubDomain());
-				cts.delete();
+				cts.release();
 				this.contactfile.put("status", "cts-received");
 				// delete initial slot for forward secrecy
 				this.contactfile.remove("initialslot");
@@ -231,7 +254,7 @@ public class OutboundContact {
 		
 		
 		if (ssk.pubkey == null || ssk.privkey == null) {
-			HighLevelFCPClient cli = new HighLevelFCPClient();
+			HighLevelFCPClient cli = new HighLevelFCPClient(account.getUsername());
 			ssk = cli.makeSSK();
 			
 			this.contactfile.put("commssk.privkey", ssk.privkey);
@@ -251,7 +274,7 @@ public class OutboundContact {
 		
 		
 		if (ssk.pubkey == null || ssk.privkey == null) {
-			HighLevelFCPClient cli = new HighLevelFCPClient();
+			HighLevelFCPClient cli = new HighLevelFCPClient(account.getUsername());
 			ssk = cli.makeSSK();
 			
 			this.contactfile.put("ackssk.privkey", ssk.privkey);
@@ -468,7 +491,7 @@ public class OutboundContact {
 		}
 		
 		// insert it!
-		HighLevelFCPClient cli = new HighLevelFCPClient();
+		HighLevelFCPClient cli = new HighLevelFCPClient(account.getUsername());
 		if (cli.slotInsert(encmsg, "KSK@"+rtsksk+"-"+DateStringFactory.getKeyString(), 1, "") < 0) {
 			// safe to copy the message into the contact outbox though
 			return false;
@@ -490,12 +513,12 @@ public class OutboundContact {
 	// fetch the redirect (assumes that this is a KSK address)
 	private String fetchKSKRedirect(String key) throws OutboundContactFatalException, ConnectionTerminatedException,
 	                                                   InterruptedException {
-		HighLevelFCPClient cli = new HighLevelFCPClient();
+		HighLevelFCPClient cli = new HighLevelFCPClient(account.getUsername());
 		
 		Logger.normal(this,"Attempting to fetch mailsite redirect "+key);
-		File result;
+		FCPData result;
 		try {
-			result = cli.fetch(key);
+			result = cli.fetch(key, FetchProfile.REDIRECT);
 		} catch (FCPFetchException fe) {
 			Logger.normal(this,"Failed to retrieve mailsite redirect "+key+" ("+fe.getMessage()+")");
 			return null;
@@ -504,29 +527,24 @@ public class OutboundContact {
 			return null;
 		}
 		
-		if (result.length() > 512) {
+		if (result.length() > FetchProfile.REDIRECT.getMaxSize()) {
 			Logger.normal(this,"Fatal: mailsite redirect too long. Ignoring.");
-			result.delete();
+			result.release();
 			throw new OutboundContactFatalException("Mailsite redirect too long.");
 		}
 		
-		BufferedReader br = null;
-		try {
-			br = new BufferedReader(new FileReader(result));
-		} catch (FileNotFoundException fnfe) {
-			// impossible
-			throw new AssertionError();
-		}
 		
 		String addr;
 		try {
+			BufferedReader br = new BufferedReader(new InputStreamReader(result.getInputStream()));
 			addr = br.readLine();
 			br.close();
 		} catch (IOException ioe) {
 			Logger.normal(this,"Warning: IO exception whilst reading mailsite redirect file: "+ioe.getMessage());
+			result.release();
 			return null;
 		}
-		result.delete();
+		result.release();
 		Logger.normal(this,"Mailsite redirect fetched successfully");
 		return addr;
 	}
@@ -545,12 +563,12 @@ public class OutboundContact {
 			return true;
 		}
 		
-		HighLevelFCPClient cli = new HighLevelFCPClient();
+		HighLevelFCPClient cli = new HighLevelFCPClient(account.getUsername());
 		
 		Logger.normal(this,"Attempting to fetch "+this.address.getMailpageKey());
-		File mailsite_file;
+		FCPData mailsite_file;
 		try {
-			mailsite_file = cli.fetch(this.address.getMailpageKey());
+			mailsite_file = cli.fetch(this.address.getMailpageKey(), FetchProfile.MAILSITE);
 		} catch (FCPFetchException fe) {
 			Logger.normal(this,"Failed to retrieve mailsite "+this.address.getMailpageKey());
 			return false;
@@ -561,13 +579,20 @@ public class OutboundContact {
 		
 		Logger.normal(this,"got mailsite");
 		
-		PropsFile mailsite = PropsFile.createPropsFile(mailsite_file);
+		PropsFile mailsite;
+		try {
+			mailsite = PropsFile.createPropsFile(mailsite_file.getInputStream(), false);
+		} catch (IOException ioe) {
+			Logger.error(this, "Couldn't read mailsite: " + ioe.getMessage());
+			mailsite_file.release();
+			return false;
+		}
 		
 		String rtsksk = mailsite.get("rtsksk");
 		String keymod_str = mailsite.get("asymkey.modulus");
 		String keyexp_str = mailsite.get("asymkey.pubexponent");
 		
-		mailsite_file.delete();
+		mailsite_file.release();
 		
 		if (rtsksk == null || keymod_str == null || keyexp_str == null) {
 			// Not actually fatal - the other party could publish a new, valid mailsite
@@ -708,7 +733,7 @@ public class OutboundContact {
 				continue;
 			}
 			
-			if (fcpcli == null) fcpcli = new HighLevelFCPClient();
+			if (fcpcli == null) fcpcli = new HighLevelFCPClient(account.getUsername());
 			
 			String key = this.contactfile.get("commssk.privkey");
 			
@@ -736,7 +761,11 @@ public class OutboundContact {
 			Logger.debug(this,"Insert key is "+key);
 			FCPPutFailedException err;
 			try {
-				err = fcpcli.put(fis, key);
+				if (persistentInserts) {
+					err = this.putPersistent(fcpcli, fis, key, msg);
+				} else {
+					err = fcpcli.put(fis, key);
+				}
 			} catch (FCPBadFileException bfe) {
 				Logger.normal(this,"Failed sending message. Will try again soon.");
 				continue;
@@ -780,10 +809,104 @@ public class OutboundContact {
 		}
 	}
 	
+	/**
+	 * Inserts the message as a persistent request on the node. If the node already has the
+	 * insert from before we restarted, we wait for that one instead of uploading the message
+	 * again.
+	 */
+	private FCPPutFailedException putPersistent(HighLevelFCPClient fcpcli, FileInputStream fis, String key,
+	                                            QueuedMessage msg) throws FCPBadFileException, FCPException,
+	                                                                      ConnectionTerminatedException,
+	                                                                      InterruptedException {
+		String id = INSERT_ID_PREFIX + account.getUsername() + "-" + msg.slot;
+		Set<String> onNode = this.getInsertsOnNode(fcpcli);
+		
+		FCPPutFailedException err;
+		boolean resumed;
+		synchronized (insertsOnNode) {
+			resumed = onNode.remove(id);
+		}
+		if (resumed) {
+			Logger.normal(this, "Picking up insert that was started before");
+			try {
+				fis.close();
+			} catch (IOException ioe) {
+				// we didn't need it anyway
+			}
+			err = fcpcli.putPersistent(null, key, id);
+		} else {
+			err = fcpcli.putPersistent(fis, key, id);
+		}
+		
+		if (err != null && err.errorcode == FCPPutFailedException.TIMEOUT) {
+			// it carries on without us, so pick it up next time instead of starting again
+			synchronized (insertsOnNode) {
+				onNode.add(id);
+			}
+		}
+		return err;
+	}
+	
+	/**
+	 * Returns the identifiers of the persistent inserts for this account that the node has and
+	 * that we haven't picked up yet. The node is only asked the first time round, after that we
+	 * keep track ourselves.
+	 */
+	private Set<String> getInsertsOnNode(HighLevelFCPClient fcpcli) throws FCPException, ConnectionTerminatedException,
+	                                                                      InterruptedException {
+		synchronized (insertsOnNode) {
+			Set<String> ids = insertsOnNode.get(account.getUsername());
+			if (ids != null) return ids;
+		}
+		
+		String prefix = INSERT_ID_PREFIX + account.getUsername() + "-";
+		Set<String> ids = new HashSet<String>();
+		int finished = 0;
+		for (PersistentRequest req : fcpcli.listPersistentRequests().values()) {
+			if (!req.getIdentifier().startsWith(prefix)) continue;
+			ids.add(req.getIdentifier());
+			if (req.isFinished()) finished++;
+		}
+		if (!ids.isEmpty()) {
+			Logger.normal(this, "Node has " + ids.size() + " message inserts from before (" + finished + " finished)");
+		}
+		
+		synchronized (insertsOnNode) {
+			// someone else might have got there first
+			Set<String> existing = insertsOnNode.get(account.getUsername());
+			if (existing != null) return existing;
+			insertsOnNode.put(account.getUsername(), ids);
+			return ids;
+		}
+	}
+	
+	/**
+	 * Sets whether messages are inserted as persistent requests on the node's global queue, so
+	 * that inserts that are running when we stop are picked up again when we start instead of
+	 * being uploaded again.
+	 */
+	public static void setPersistentInserts(boolean enabled) {
+		persistentInserts = enabled;
+	}
+	
 	private void pollAcks(long timeout) throws ConnectionTerminatedException, InterruptedException {
 		HighLevelFCPClient fcpcli = null;
 		Set<QueuedMessage> msgs = this.getSendQueue(null);
 		
+		if (WatchSet.isEnabled()) {
+			if (ackWatches == null) {
+				ackWatches = new WatchSet(Freemail.getFreenetClient().forShard(account.getUsername())
+						.forClass(RequestClass.ACK), FetchProfile.ACK);
+			}
+			// the watches are only looked at, so there's no need to spread them over several rounds
+			nextAckIndex = 0;
+		} else if (ackWatches != null) {
+			ackWatches.cancelAll();
+			ackWatches = null;
+		}
+		// the acks we are still waiting for
+		Set<String> expected = new HashSet<String>();
+		
 		Logger.debug(this, "Starting from ack index " + nextAckIndex);
 		long start = System.nanoTime();
 		int ackIndex = 0;
@@ -791,7 +914,7 @@ public class OutboundContact {
 			if (ackIndex++ < nextAckIndex) continue;
 			if (msg.first_send_time < 0) continue;
 			
-			if (fcpcli == null) fcpcli = new HighLevelFCPClient();
+			if (fcpcli == null) fcpcli = new HighLevelFCPClient(account.getUsername(), RequestClass.ACK);
 			
 			String key = this.contactfile.get("ackssk.pubkey");
 			if (key == null) {
@@ -805,9 +928,21 @@ public class OutboundContact {
 			Logger.debug(this,"Ack key is "+key);
 			
 			try {
-				File ack = fcpcli.fetch(key);
+				FCPData ack;
+				if (ackWatches != null) {
+					expected.add(key);
+					FCPRequest<FCPData> req = ackWatches.poll(key);
+					if (req == null) {
+						Logger.minor(this,"No ack yet, still watching for it");
+						this.noAck(msg, msgs);
+						continue;
+					}
+					ack = req.getResult();
+				} else {
+					ack = fcpcli.fetch(key, FetchProfile.ACK);
+				}
 				Logger.normal(this,"Ack received for message "+msg.uid+" on contact "+this.address.domain+". Now that's a job well done.");
-				ack.delete();
+				ack.release();
 				msg.delete();
 				// treat the ACK as a CTS too
 				this.contactfile.put("status", "cts-received");
@@ -817,29 +952,7 @@ public class OutboundContact {
 				Logger.minor(this,"Failed to receive ack ("+fe.getMessage()+")");
 				Logger.debug(this,"Ack key was "+key);
 				if (!fe.isNetworkError()) {
-					if (System.currentTimeMillis() > msg.first_send_time + FAIL_DELAY) {
-						// give up and bounce the message
-						File m = msg.getMessageFile();
-						
-						Postman.bounceMessage(m, account.getMessageBank(),
-								"Freemail has been trying for too long to deliver this message, and has received no acknowledgement. "
-								+"It is possible that the recipient has not run Freemail since you sent the message. "
-								+"If you believe this is likely, try resending the message.", true);
-						Logger.normal(this,"Giving up on message - been trying for too long.");
-						msg.delete();
-					} else if (System.currentTimeMillis() > msg.last_send_time + RTS_RETRANSMIT_DELAY) {
-						Logger.normal(this, "Resending RTS for contact");
-						init();
-
-						// bit of a fudge - this won't actually be the last send time, since we won't
-						// re-send messages at all now, it will be the last time the RTS was sent.
-						// Hack: We update the time for all the messages that have been sent since
-						// we only want to resend the RTS once, not once per message
-						for(QueuedMessage message : msgs) {
-							message.last_send_time = System.currentTimeMillis();
-							message.saveProps();
-						}
-					}
+					this.noAck(msg, msgs);
 				}
 			} catch (FCPException e) {
 				Logger.error(this, "Unknown error while fetching ack: " + e);
@@ -854,12 +967,48 @@ public class OutboundContact {
 			}
 		}
 
+		if (ackWatches != null) {
+			ackWatches.retain(expected);
+			return;
+		}
+
 		nextAckIndex = ackIndex;
 		if(nextAckIndex >= msgs.size()) {
 			nextAckIndex = 0;
 		}
 	}
 	
+	/**
+	 * Called when there is no ack for a message yet. Bounces the message if we've been waiting
+	 * for too long, or sends the RTS again in case the recipient didn't get it.
+	 */
+	private void noAck(QueuedMessage msg, Set<QueuedMessage> msgs) throws ConnectionTerminatedException,
+	                                                                    InterruptedException {
+		if (System.currentTimeMillis() > msg.first_send_time + FAIL_DELAY) {
+			// give up and bounce the message
+			File m = msg.getMessageFile();
+			
+			Postman.bounceMessage(m, account.getMessageBank(),
+					"Freemail has been trying for too long to deliver this message, and has received no acknowledgement. "
+					+"It is possible that the recipient has not run Freemail since you sent the message. "
+					+"If you believe this is likely, try resending the message.", true);
+			Logger.normal(this,"Giving up on message - been trying for too long.");
+			msg.delete();
+		} else if (System.currentTimeMillis() > msg.last_send_time + RTS_RETRANSMIT_DELAY) {
+			Logger.normal(this, "Resending RTS for contact");
+			init();
+
+			// bit of a fudge - this won't actually be the last send time, since we won't
+			// re-send messages at all now, it will be the last time the RTS was sent.
+			// Hack: We update the time for all the messages that have been sent since
+			// we only want to resend the RTS once, not once per message
+			for(QueuedMessage message : msgs) {
+				message.last_send_time = System.currentTimeMillis();
+				message.saveProps();
+			}
+		}
+	}
+	
 	/**
 	 * Returns the send queue for this contact.
 	 * @param comparator the Comparator used to sort the queue. If null, the queue will be unsorted.
@@ -28,11 +28,14 @@ import java.util.Random;
 import java.io.File;
 import java.io.BufferedReader;
 import java.io.FileReader;
+import java.io.InputStream;
+import java.io.StringReader;
 import java.io.PrintStream;
 import java.io.IOException;
 import freemail.fcp.ConnectionTerminatedException;
 
 import freemail.utils.EmailAddress;
+import freemail.utils.LineInputStream;
 
 /** A postman is any class that delivers mail to an inbox. Simple,
  *  if not politically correct.
@@ -41,16 +44,26 @@ public abstract class Postman {
 	private static final int BOUNDARY_LENGTH = 32;
 
 	/**
+	 * 
+	 * The body of the message is stored byte for byte, with only its line endings changed to CRLF.
 	 * 
 	 * @throws ConnectionTerminatedException if the Freenet connection was terminated whilst trying to validate the address
 	 */
-	protected void storeMessage(BufferedReader brdr, MessageBank mb) throws IOException, ConnectionTerminatedException,
-	                                                                        InterruptedException {
+	protected void storeMessage(InputStream in, MessageBank mb) throws IOException, ConnectionTerminatedException,
+	                                                                   InterruptedException {
+		LineInputStream lin = (in instanceof LineInputStream) ? (LineInputStream)in : new LineInputStream(in);
 		MailMessage newmsg = mb.createMessage();
 		
 		SimpleDateFormat sdf = new SimpleDateFormat("dd MMM yyyy HH:mm:ss Z", Locale.US);
 		
-		newmsg.readHeaders(brdr);
+		// only the headers are read as text, so that the body isn't decoded and encoded again
+		StringBuilder headers = new StringBuilder();
+		String hdrline;
+		while ((hdrline = lin.readLine()) != null) {
+			headers.append(hdrline).append("\n");
+			if (hdrline.length() == 0) break;
+		}
+		newmsg.readHeaders(new BufferedReader(new StringReader(headers.toString())));
 		
 		// add our own headers
 		// received and date
@@ -81,14 +94,10 @@ public abstract class Postman {
 		
 		
 		PrintStream ps = newmsg.writeHeadersAndGetStream();
-		
-		String line;
-		while ( (line = brdr.readLine()) != null) {
-			ps.println(line);
-		}
+		MailMessage.copyWithCRLF(lin, ps);
 		
 		newmsg.commit();
-		brdr.close();
+		lin.close();
 	}
 	
 	public static boolean bounceMessage(File origmsg, MessageBank mb, String errmsg) {
@@ -21,9 +21,14 @@
 
 package freemail;
 
+import freemail.fcp.FCPData;
 import freemail.fcp.FCPException;
 import freemail.fcp.FCPFetchException;
+import freemail.fcp.FCPRequest;
+import freemail.fcp.FetchProfile;
 import freemail.fcp.HighLevelFCPClient;
+import freemail.fcp.RequestClass;
+import freemail.fcp.WatchSet;
 import freemail.fcp.ConnectionTerminatedException;
 import freemail.utils.DateStringFactory;
 import freemail.utils.PropsFile;
@@ -37,6 +42,8 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.util.Date;
 import java.util.Calendar;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.TimeZone;
 import java.math.BigInteger;
 import java.net.MalformedURLException;
@@ -66,10 +73,11 @@ public class RTSFetcher implements SlotSaveCallback {
 	private static final int PASSES_PER_DAY = 3;
 	private static final int MAX_DAYS_BACK = 30;
 	public static final String LOGFILE = "rtslog";
-	private static final int RTS_MAX_SIZE = 2 * 1024 * 1024;
 	private static final String RTS_UNPROC_PREFIX = "unprocessed_rts";
 	private static final int RTS_MAX_ATTEMPTS = 15;
 	private FreemailAccount account;
+	// the watches on today's slots, if slots are watched rather than polled
+	private WatchSet watches = null;
 
 	RTSFetcher(String key, File ctdir, FreemailAccount acc) {
 		this.rtskey = key;
@@ -116,10 +124,28 @@ public class RTSFetcher implements SlotSaveCallback {
 	private void fetch() throws ConnectionTerminatedException, InterruptedException {
 		int i;
 		RTSLog log = new RTSLog(new File(this.contact_dir, LOGFILE));
+		
+		if (WatchSet.isEnabled()) {
+			if (this.watches == null) {
+				this.watches = new WatchSet(Freemail.getFreenetClient().forShard(account.getUsername()), FetchProfile.RTS);
+			}
+		} else if (this.watches != null) {
+			this.watches.cancelAll();
+			this.watches = null;
+		}
+		// the slots we are still watching. Only today's slots are watched, earlier days are
+		// only checked a few more times so they are polled as before.
+		Set<String> expected = new HashSet<String>();
+		
 		for (i = 1 - MAX_DAYS_BACK; i <= 0; i++) {
 			String datestr = DateStringFactory.getOffsetKeyString(i);
 			if (log.getPasses(datestr) < PASSES_PER_DAY) {
-				boolean successfulPoll = this.fetch_day(log, datestr);
+				boolean successfulPoll;
+				if (i == 0 && this.watches != null) {
+					successfulPoll = this.fetch_day(log, datestr, this.watches, expected);
+				} else {
+					successfulPoll = this.fetch_day(log, datestr, null, null);
+				}
 				// don't count passes for today since more
 				// mail may arrive
 				if (i < 0 && successfulPoll) {
@@ -134,6 +160,10 @@ public class RTSFetcher implements SlotSaveCallback {
 		
 		cal.add(Calendar.DAY_OF_MONTH, 0 - MAX_DAYS_BACK);
 		log.pruneBefore(cal.getTime());
+		
+		if (this.watches != null) {
+			this.watches.retain(expected);
+		}
 	}
 	
 	private static class MySlotSaveData {
@@ -142,13 +172,20 @@ public class RTSFetcher implements SlotSaveCallback {
 	}
 	
 	/**
+	 * @param watches the watches to check the slots with, or null to fetch them
+	 * @param expected if watches isn't null, the slots that are still being watched are added to this
 	 * @return true if the day was sucessfully polled, false if there were network-type errors and the polling shouldn't count
 	 *              as a valid check of that day's slots.
 	 */
-	private boolean fetch_day(RTSLog log, String date) throws ConnectionTerminatedException,
-	                                                          InterruptedException {
+	private boolean fetch_day(RTSLog log, String date, WatchSet watches, Set<String> expected)
+	                                                  throws ConnectionTerminatedException, InterruptedException {
+		// earlier days have been checked before, so there's no hurry
 		HighLevelFCPClient fcpcli;
-		fcpcli = new HighLevelFCPClient();
+		if (date.equals(DateStringFactory.getOffsetKeyString(0))) {
+			fcpcli = new HighLevelFCPClient(account.getUsername());
+		} else {
+			fcpcli = new HighLevelFCPClient(account.getUsername(), RequestClass.BACKGROUND);
+		}
 		
 		String keybase;
 		keybase = this.rtskey + date + "-";
@@ -167,16 +204,29 @@ public class RTSFetcher implements SlotSaveCallback {
 			Logger.minor(this,"trying to fetch "+keybase+slot);
 			
 			try {
-				File result = fcpcli.fetch(keybase+slot);
+				FCPData result;
+				if (watches != null) {
+					expected.add(keybase+slot);
+					FCPRequest<FCPData> req = watches.poll(keybase+slot);
+					if (req == null) {
+						Logger.minor(this,keybase+slot+": no RTS yet, still watching.");
+						continue;
+					}
+					result = req.getResult();
+				} else {
+					result = fcpcli.fetch(keybase+slot, FetchProfile.RTS);
+				}
 				
 				Logger.normal(this,keybase+slot+": got RTS!");
 				
 				File rts_dest = new File(this.contact_dir, RTS_UNPROC_PREFIX + "-" + log.getAndIncUnprocNextId()+",0");
 				
 				// stick this message in the RTS 'inbox'
-				if (result.renameTo(rts_dest)) {
+				if (result.moveTo(rts_dest)) {
 					// provided that worked, we can move on to the next RTS message
 					sm.slotUsed();
+				} else {
+					result.release();
 				}
 			} catch (FCPFetchException fe) {
 				if (fe.isFatal()) {
@@ -218,7 +268,7 @@ public class RTSFetcher implements SlotSaveCallback {
 		// sanity check!
 		if (!rtsmessage.exists()) return false;
 		
-		if (rtsmessage.length() > RTS_MAX_SIZE) {
+		if (rtsmessage.length() > FetchProfile.RTS.getMaxSize()) {
 			Logger.normal(this,"RTS Message is too large - discarding!");
 			return true;
 		}
@@ -313,7 +363,7 @@ public class RTSFetcher implements SlotSaveCallback {
 		byte[] our_hash = new byte[sha256.getDigestSize()];
 		sha256.doFinal(our_hash, 0);
 		
-		HighLevelFCPClient fcpcli = new HighLevelFCPClient();
+		HighLevelFCPClient fcpcli = new HighLevelFCPClient(account.getUsername());
 		
 		FreenetURI their_mailsite_furi;
 		try {
@@ -333,9 +383,9 @@ public class RTSFetcher implements SlotSaveCallback {
 		
 		
 		Logger.normal(this,"Trying to fetch sender's mailsite: "+their_mailsite);
-		File msfile;
+		FCPData msfile;
 		try {
-			msfile = fcpcli.fetch(their_mailsite);
+			msfile = fcpcli.fetch(their_mailsite, FetchProfile.MAILSITE);
 		} catch (FCPFetchException fe) {
 			// oh well, try again in a bit
 			rtsfile.delete();
@@ -348,13 +398,20 @@ public class RTSFetcher implements SlotSaveCallback {
 			return false;
 		}
 		
-		PropsFile mailsite = PropsFile.createPropsFile(msfile);
+		PropsFile mailsite;
+		try {
+			mailsite = PropsFile.createPropsFile(msfile.getInputStream(), false);
+		} catch (IOException ioe) {
+			Logger.error(this, "Couldn't read sender's mailsite: " + ioe.getMessage());
+			msfile.release();
+			return false;
+		}
 		String their_exponent = mailsite.get("asymkey.pubexponent");
 		String their_modulus = mailsite.get("asymkey.modulus");
 		
 		if (their_exponent == null || their_modulus == null) {
 			Logger.normal(this,"Mailsite fetched successfully but missing vital information! Discarding this RTS.");
-			msfile.delete();
+			msfile.release();
 			rtsfile.delete();
 			return true;
 		}
@@ -368,7 +425,7 @@ public class RTSFetcher implements SlotSaveCallback {
 			their_hash = deccipher.processBlock(their_encrypted_sig, 0, deccipher.getInputBlockSize());
 		} catch (InvalidCipherTextException icte) {
 			Logger.normal(this,"It was not possible to decrypt the signature of this RTS message. Discarding the RTS message.");
-			msfile.delete();
+			msfile.release();
 			rtsfile.delete();
 			return true;
 		}
@@ -377,7 +434,7 @@ public class RTSFetcher implements SlotSaveCallback {
 		// match!
 		if (their_hash.length < our_hash.length) {
 			Logger.normal(this,"The signature of the RTS message is not valid (our hash: "+our_hash.length+"bytes, their hash: "+their_hash.length+"bytes. Discarding the RTS message.");
-			msfile.delete();
+			msfile.release();
 			rtsfile.delete();
 			return true;
 		}
@@ -385,7 +442,7 @@ public class RTSFetcher implements SlotSaveCallback {
 		for (i = 0; i < our_hash.length; i++) {
 			if (their_hash[i] != our_hash[i]) {
 				Logger.normal(this,"The signature of the RTS message is not valid. Discarding the RTS message.");
-				msfile.delete();
+				msfile.release();
 				rtsfile.delete();
 				return true;
 			}
@@ -398,7 +455,7 @@ public class RTSFetcher implements SlotSaveCallback {
 			our_mailsite_keybody = new FreenetURI(account.getProps().get("mailsite.pubkey")).getKeyBody();
 		} catch (MalformedURLException mfue) {
 			Logger.normal(this,"Local mailsite URI is invalid! Corrupt account file?");
-			msfile.delete();
+			msfile.release();
 			rtsfile.delete();
 			return false;
 		}
@@ -408,7 +465,7 @@ public class RTSFetcher implements SlotSaveCallback {
 		try {
 			mailsite_furi = new FreenetURI(our_mailsite_keybody);
 		} catch (MalformedURLException mfe) {
-			msfile.delete();
+			msfile.release();
 			rtsfile.delete();
 			return false;
 		}
@@ -416,7 +473,7 @@ public class RTSFetcher implements SlotSaveCallback {
 		
 		if (!rtsprops.get("to").equalsIgnoreCase(our_subdomain) && our_domain_alias != null && !rtsprops.get("to").equals(our_domain_alias)) {
 			Logger.normal(this,"Recieved an RTS message that was not intended for the recipient. Discarding.");
-			msfile.delete();
+			msfile.release();
 			rtsfile.delete();
 			return true;
 		}
@@ -435,7 +492,7 @@ public class RTSFetcher implements SlotSaveCallback {
 		// insert the cts at some point
 		AckProcrastinator.put(ackssk+"cts");
 		
-		msfile.delete();
+		msfile.release();
 		rtsfile.delete();
 		
 		Logger.normal(this,"Inbound contact created!");
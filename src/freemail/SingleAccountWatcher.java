@@ -26,9 +26,14 @@ import java.io.FilenameFilter;
 import java.io.IOException;
 import java.lang.InterruptedException;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 
 import freemail.fcp.ConnectionTerminatedException;
+import freemail.fcp.WatchSet;
+import freemail.utils.FlightRecorder;
 import freemail.utils.Logger;
 
 public class SingleAccountWatcher implements Runnable {
@@ -50,12 +55,24 @@ public class SingleAccountWatcher implements Runnable {
 	private static final long SEND_TIMEOUT = 2 * 10 * MIN_POLL_DURATION;
 
 	private static final int MAILSITE_UPLOAD_INTERVAL = 60 * 60 * 1000;
+
+	// one event for each time round the loop in run(), with how long each part of it took
+	private static final FlightRecorder.EventType ROUND_EVENT = new FlightRecorder.EventType(
+			"freemail.PollRound", "Account Poll Round", "Accounts",
+			FlightRecorder.Field.text("account", "Account"),
+			FlightRecorder.Field.nanos("mailsitePublish", "Mailsite Publish"),
+			FlightRecorder.Field.nanos("outboxSend", "Outbox Send"),
+			FlightRecorder.Field.nanos("rtsPoll", "RTS Poll"),
+			FlightRecorder.Field.nanos("inboundPoll", "Inbound Poll"));
 	private final RTSFetcher rtsf;
 	private long mailsite_last_upload;
 	private final File obctdir;
 	private final File ibctdir;
 	private final FreemailAccount account;
 	private final Map<File, OutboundContact> obContacts = new HashMap<File, OutboundContact>();
+	// the watches on the slots of each inbound contact, if slots are watched. Guarded by itself,
+	// since kill() cancels them from another thread
+	private final Map<String, WatchSet> ibWatches = new HashMap<String, WatchSet>();
 
 	SingleAccountWatcher(FreemailAccount acc) {
 		this.account = acc;
@@ -109,6 +126,9 @@ public class SingleAccountWatcher implements Runnable {
 		while (!stopping) {
 			try {
 				long start = System.currentTimeMillis();
+				FlightRecorder.Event round = ROUND_EVENT.begin();
+				round.set(0, account.getUsername());
+				long phaseStart = System.nanoTime();
 				
 				// is it time we inserted the mailsite?
 				if (System.currentTimeMillis() > this.mailsite_last_upload + MAILSITE_UPLOAD_INTERVAL) {
@@ -117,6 +137,7 @@ public class SingleAccountWatcher implements Runnable {
 						this.mailsite_last_upload = System.currentTimeMillis();
 					}
 				}
+				phaseStart = endPhase(round, 1, phaseStart);
 				if(stopping) {
 					break;
 				}
@@ -138,8 +159,10 @@ public class SingleAccountWatcher implements Runnable {
 						}
 					}
 				}
+				phaseStart = endPhase(round, 2, phaseStart);
 				Logger.debug(this, "polling rts");
 				this.rtsf.poll();
+				phaseStart = endPhase(round, 3, phaseStart);
 				if(stopping) {
 					break;
 				}
@@ -148,15 +171,20 @@ public class SingleAccountWatcher implements Runnable {
 				Logger.debug(this, "polling for incoming message from all inbound contacts");
 				File[] ibcontacts = this.ibctdir.listFiles(new inboundContactFilenameFilter());
 				if (ibcontacts != null) {
+					Set<String> current = new HashSet<String>();
 					int i;
 					for (i = 0; i < ibcontacts.length; i++) {
 						if (ibcontacts[i].getName().equals(RTSFetcher.LOGFILE)) continue;
+						current.add(ibcontacts[i].getName());
 						
 						InboundContact ibct = new InboundContact(this.ibctdir, ibcontacts[i].getName());
 						
-						ibct.fetch(account.getMessageBank(), FETCH_TIMEOUT);
+						ibct.fetch(account, FETCH_TIMEOUT, getWatches(ibcontacts[i].getName()));
 					}
+					retainWatches(current);
 				}
+				endPhase(round, 4, phaseStart);
+				round.commit();
 				if(stopping) {
 					break;
 				}
@@ -177,10 +205,69 @@ public class SingleAccountWatcher implements Runnable {
 	}
 
 	/**
-	 * Terminate the run method
+	 * Records how long a phase of a round took in the given field of its event.
+	 * @return when the next phase starts
+	 */
+	private static long endPhase(FlightRecorder.Event round, int field, long phaseStart) {
+		long now = System.nanoTime();
+		round.set(field, now - phaseStart);
+		return now;
+	}
+
+	/**
+	 * Returns the watches for the given inbound contact, or null if slots aren't being watched.
+	 */
+	private WatchSet getWatches(String contact) {
+		if (!WatchSet.isEnabled()) {
+			// stop any watches left over from when they were turned on
+			cancelWatches();
+			return null;
+		}
+
+		synchronized (ibWatches) {
+			// we've been killed, and any watches would never be cancelled
+			if (stopping) return null;
+			WatchSet watches = ibWatches.get(contact);
+			if (watches == null) {
+				watches = new WatchSet(Freemail.getFreenetClient().forShard(account.getUsername()));
+				ibWatches.put(contact, watches);
+			}
+			return watches;
+		}
+	}
+
+	/**
+	 * Stops watching the slots of inbound contacts that are no longer there. The watches keep
+	 * their requests running on the node until they are cancelled.
+	 */
+	private void retainWatches(Set<String> contacts) {
+		synchronized (ibWatches) {
+			Iterator<Map.Entry<String, WatchSet>> it = ibWatches.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, WatchSet> e = it.next();
+				if (!contacts.contains(e.getKey())) {
+					e.getValue().close();
+					it.remove();
+				}
+			}
+		}
+	}
+
+	private void cancelWatches() {
+		synchronized (ibWatches) {
+			for (WatchSet watches : ibWatches.values()) {
+				watches.close();
+			}
+			ibWatches.clear();
+		}
+	}
+
+	/**
+	 * Terminate the run method, and stop watching slots
 	 */
 	public void kill() {
 		stopping = true;
+		cancelWatches();
 	}
 
 	private static class outboundContactFilenameFilter implements FilenameFilter {
@@ -21,6 +21,8 @@
 
 package freemail;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Vector;
 import java.util.Enumeration;
 
@@ -145,29 +147,59 @@ public abstract class SlotManager {
 	protected abstract String incSlot(String slot);
 	
 	public synchronized String getNextSlot() {
+		String retval = this.slotAt(this.slots, this.nextSlotNum);
+		
+		this.nextSlotNum++;
+		return retval;
+	}
+	
+	/** Returns up to count of the slots that the following calls to getNextSlot() will
+	 *  return, provided that none of them are marked as used in the mean time. This does
+	 *  not change the state of the SlotManager, so it can be used to start polling slots
+	 *  before getting to them.
+	 */
+	public synchronized List<String> peekSlots(int count) {
+		// work on a copy, since expired slots are removed on the way
+		Vector<Slot> copy = new Vector<Slot>(this.slots);
+		List<String> retval = new ArrayList<String>(count);
+		
+		int num = this.nextSlotNum;
+		while (retval.size() < count) {
+			String slot = this.slotAt(copy, num);
+			if (slot == null) break;
+			retval.add(slot);
+			num++;
+		}
+		return retval;
+	}
+	
+	/** Returns the slot at position num in the given list, or null if num is past the
+	 *  end of the poll window. Any expired slots in the way are removed from the list.
+	 */
+	private String slotAt(Vector<Slot> list, int num) {
 		String retval = null;
 		
 		boolean tryAgain = true;
 		while (tryAgain) {
 			tryAgain = false;
-			if (this.nextSlotNum >= this.slots.size() + this.pollAhead) {
+			if (num >= list.size() + this.pollAhead) {
 				// you've reached the end
 				retval = null;
-			} else if (this.nextSlotNum >= this.slots.size()) {
+			} else if (num >= list.size()) {
 				// we're into the unused slots. make one up.
-				Slot s = this.slots.lastElement();
+				Slot s = list.lastElement();
 				int i;
 				retval = s.slot;
-				for (i = this.slots.size(); i <= this.nextSlotNum; i++) {
+				for (i = list.size(); i <= num; i++) {
 					retval = this.incSlot(retval);
 				}
 			} else {
 				// we're looking at an unused slot
-				Slot s = this.slots.get(this.nextSlotNum);
+				Slot s = list.get(num);
 				// is this one too old?
-				if (s.time_added > 0 && s.time_added < System.currentTimeMillis() - SLOT_LIFETIME && this.nextSlotNum != this.slots.size() - 1) {
+				if (s.time_added > 0 && s.time_added < System.currentTimeMillis() - SLOT_LIFETIME && num != list.size() - 1) {
 					// this slot is too old. Forget it.
-					this.slots.remove(this.nextSlotNum);
+					list.remove(num);
 					tryAgain = true;
 				} else {
 					retval = s.slot;
@@ -175,7 +207,6 @@ public abstract class SlotManager {
 			}
 		}
 		
-		this.nextSlotNum++;
 		return retval;
 	}
 	
@@ -32,12 +32,22 @@ import freemail.utils.PropsFile;
 
 public class Configurator {
 	public static final String DATA_DIR = "datadir";
+	public static final String FCP_BULK_CONNECTIONS = "fcp_bulk_connections";
+	public static final String FCP_CLASS_LIMITS = "fcp_class_limits";
+	public static final String FCP_CONNECTIONS = "fcp_connections";
 	public static final String FCP_HOST = "fcp_host";
+	public static final String FCP_MEMORY_THRESHOLD = "fcp_memory_threshold";
+	public static final String FCP_NODES = "fcp_nodes";
+	public static final String FCP_OFFLINE_QUEUE_ON_DISK = "fcp_offline_queue_on_disk";
+	public static final String FCP_OFFLINE_QUEUE_SIZE = "fcp_offline_queue_size";
+	public static final String FCP_PERSISTENT_INSERTS = "fcp_persistent_inserts";
 	public static final String FCP_PORT = "fcp_port";
 	public static final String GLOBAL_DATA_DIR = "globaldatadir";
 	public static final String IMAP_BIND_ADDRESS = "imap_bind_address";
 	public static final String IMAP_BIND_PORT = "imap_bind_port";
 	public static final String LOG_LEVEL = "loglevel";
+	public static final String SLOT_FETCH_CONCURRENCY = "slot_fetch_concurrency";
+	public static final String SLOT_WATCH = "slot_watch";
 	public static final String SMTP_BIND_ADDRESS = "smtp_bind_address";
 	public static final String SMTP_BIND_PORT = "smtp_bind_port";
 	public static final String TEMP_DIR = "tempdir";
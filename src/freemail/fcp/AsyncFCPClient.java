@@ -0,0 +1,546 @@
+/*
+ * AsyncFCPClient.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.fcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import freemail.Freemail;
+import freemail.utils.Logger;
+
+/**
+ * {@link FreenetClient} that talks to the node over an {@link FCPConnection}. Every method sends
+ * its request to the node and returns immediately, so a single thread can have any number of
+ * requests outstanding on the same connection.
+ *
+ * If there is no connection to the node, requests wait in the pool's {@link OfflineQueue} and
+ * are sent once it is back. Only if the queue is full do the methods throw
+ * NoNodeConnectionException, in which case no request is created.
+ */
+public class AsyncFCPClient implements FreenetClient {
+	private static final int FCP_TOO_MANY_PATH_COMPONENTS = 11;
+	private static final int FCP_PERMANANT_REDIRECT = 27;
+	// ask for SimpleProgress messages, and for puts the compression messages as well
+	private static final String FETCH_VERBOSITY = "1";
+	private static final String PUT_VERBOSITY = "513";
+
+	private final FCPConnectionPool pool;
+	private final String shard;
+	private final RequestClass requestClass;
+
+	public AsyncFCPClient() {
+		this(Freemail.getFCPConnectionPool());
+	}
+
+	public AsyncFCPClient(FCPConnectionPool pool) {
+		this(pool, null, RequestClass.MESSAGE);
+	}
+
+	private AsyncFCPClient(FCPConnectionPool pool, String shard, RequestClass requestClass) {
+		this.pool = pool;
+		this.shard = shard;
+		this.requestClass = requestClass;
+	}
+
+	@Override
+	public FCPRequest<FCPData> fetch(String key, FCPRequestCallback<FCPData> cb) throws NoNodeConnectionException,
+	                                                                              ConnectionTerminatedException {
+		return fetch(key, FetchProfile.MESSAGE, cb);
+	}
+
+	@Override
+	public FCPRequest<FCPData> fetch(final String key, final FetchProfile profile, FCPRequestCallback<FCPData> cb)
+			throws NoNodeConnectionException, ConnectionTerminatedException {
+		// fetches with different limits can't share a result
+		String flightKey = profile.name() + ":" + key;
+		return pool.getFetchCoalescer().fetch(flightKey, requestClass, new FetchCoalescer.Starter() {
+			@Override
+			public FCPRequest<FCPData> start(FCPRequestCallback<FCPData> leaderCallback)
+					throws NoNodeConnectionException, ConnectionTerminatedException {
+				return startFetch(key, profile, false, leaderCallback);
+			}
+		}, cb);
+	}
+
+	@Override
+	public FCPRequest<FCPData> watch(String key, FCPRequestCallback<FCPData> cb) throws NoNodeConnectionException,
+	                                                                              ConnectionTerminatedException {
+		return watch(key, FetchProfile.MESSAGE, cb);
+	}
+
+	@Override
+	public FCPRequest<FCPData> watch(String key, FetchProfile profile, FCPRequestCallback<FCPData> cb)
+			throws NoNodeConnectionException, ConnectionTerminatedException {
+		return startFetch(key, profile, true, cb);
+	}
+
+	private FCPRequest<FCPData> startFetch(String key, FetchProfile profile, boolean watch, FCPRequestCallback<FCPData> cb)
+			throws NoNodeConnectionException, ConnectionTerminatedException {
+		FetchRequest req = new FetchRequest(pool, shard, requestClass, key, profile, watch, cb);
+		try {
+			req.submit();
+		} catch (FCPBadFileException bfe) {
+			// won't be thrown since this is a get
+			throw new AssertionError();
+		}
+		return req;
+	}
+
+	@Override
+	public FCPRequest<Void> put(InputStream data, String key, FCPRequestCallback<Void> cb) throws NoNodeConnectionException,
+	                                                                                             ConnectionTerminatedException,
+	                                                                                             FCPBadFileException {
+		// take a copy so the data can be sent again if the connection goes away
+		FCPData payload;
+		try {
+			payload = FCPData.copyOf(data);
+			data.close();
+		} catch (IOException ioe) {
+			throw new FCPBadFileException();
+		}
+
+		PutRequest req = new PutRequest(pool, shard, requestClass, key, payload, cb);
+		try {
+			req.submit();
+		} catch (NoNodeConnectionException nnce) {
+			payload.release();
+			throw nnce;
+		}
+		return req;
+	}
+
+	@Override
+	public FCPRequest<Void> putPersistent(InputStream data, String key, String identifier, FCPRequestCallback<Void> cb)
+			throws NoNodeConnectionException, ConnectionTerminatedException, FCPBadFileException {
+		FCPData payload = null;
+		if (data != null) {
+			try {
+				payload = FCPData.copyOf(data);
+				data.close();
+			} catch (IOException ioe) {
+				throw new FCPBadFileException();
+			}
+		}
+
+		PersistentPutRequest req = new PersistentPutRequest(pool, shard, requestClass, key, identifier, payload, cb);
+		try {
+			req.submit();
+		} catch (NoNodeConnectionException nnce) {
+			if (payload != null) payload.release();
+			throw nnce;
+		}
+		return req;
+	}
+
+	@Override
+	public FCPRequest<Map<String, PersistentRequest>> listPersistentRequests(FCPRequestCallback<Map<String, PersistentRequest>> cb)
+			throws NoNodeConnectionException, ConnectionTerminatedException {
+		ListRequest req = new ListRequest(pool, shard, requestClass, cb);
+		try {
+			req.submit();
+		} catch (FCPBadFileException bfe) {
+			// won't be thrown since no data
+			throw new AssertionError();
+		}
+		return req;
+	}
+
+	@Override
+	public FCPRequest<SSKKeyPair> makeSSK(FCPRequestCallback<SSKKeyPair> cb) throws NoNodeConnectionException,
+	                                                                               ConnectionTerminatedException {
+		SSKRequest req = new SSKRequest(pool, shard, requestClass, cb);
+		try {
+			req.submit();
+		} catch (FCPBadFileException bfe) {
+			// won't be thrown since no data
+			throw new AssertionError();
+		}
+		return req;
+	}
+
+	@Override
+	public boolean awaitConnection(long timeout) throws InterruptedException {
+		return pool.getCircuitBreaker().awaitClosed(timeout);
+	}
+
+	@Override
+	public FreenetClient forShard(String newShard) {
+		return new AsyncFCPClient(pool, newShard, requestClass);
+	}
+
+	@Override
+	public FreenetClient forClass(RequestClass newClass) {
+		return new AsyncFCPClient(pool, shard, newClass);
+	}
+
+	@Override
+	public FCPMetrics getMetrics() {
+		return pool.getMetrics();
+	}
+
+	private static class FetchRequest extends ConnectionRequest<FCPData> {
+		private volatile String key;
+		private final FetchProfile profile;
+		private final boolean watch;
+
+		FetchRequest(FCPConnectionPool pool, String shard, RequestClass requestClass, String key, FetchProfile profile,
+				boolean watch, FCPRequestCallback<FCPData> cb) {
+			super(pool, shard, false, requestClass, cb);
+			this.key = key;
+			this.profile = profile;
+			this.watch = watch;
+		}
+
+		@Override
+		protected String getRequestType() {
+			return watch ? "ClientGet (watch)" : "ClientGet";
+		}
+
+		@Override
+		protected String getKey() {
+			return key;
+		}
+
+		@Override
+		protected FCPMessage createMessage(FCPConnection conn) {
+			FCPMessage msg = conn.getMessage("ClientGet");
+			msg.headers.put("URI", key);
+			msg.headers.put("ReturnType", "direct");
+			msg.headers.put("Persistence", "connection");
+			msg.headers.put("PriorityClass", Integer.toString(getPriority()));
+			profile.addTo(msg);
+			if (watch) {
+				// keep looking until it's there, however long that takes
+				msg.headers.put("MaxRetries", "-1");
+			} else {
+				msg.headers.put("Verbosity", FETCH_VERBOSITY);
+			}
+			return msg;
+		}
+
+		@Override
+		protected boolean isLongRunning() {
+			return watch;
+		}
+
+		@Override
+		protected boolean isRemovable() {
+			return true;
+		}
+
+		@Override
+		protected void handleReply(FCPMessage reply) {
+			if (reply.getType().equalsIgnoreCase("AllData")) {
+				succeed(reply.getData());
+			} else if (reply.getType().equalsIgnoreCase("GetFailed")) {
+				String s_code = reply.headers.get("Code");
+				if (s_code == null) {
+					succeed(null);
+					return;
+				}
+				int code = Integer.parseInt(s_code);
+				if (code == FCP_PERMANANT_REDIRECT || code == FCP_TOO_MANY_PATH_COMPONENTS) {
+					String newuri = reply.headers.get("RedirectURI");
+					if (newuri == null) {
+						succeed(null);
+						return;
+					}
+					key = newuri;
+					restart();
+					return;
+				}
+				fail(new FCPFetchException(reply));
+			} else {
+				fail(FCPException.create(reply));
+			}
+		}
+	}
+
+	private static class PutRequest extends ConnectionRequest<Void> {
+		private final String key;
+		private final FCPData payload;
+
+		PutRequest(FCPConnectionPool pool, String shard, RequestClass requestClass, String key, FCPData payload,
+				FCPRequestCallback<Void> cb) {
+			super(pool, shard, true, requestClass, cb);
+			this.key = key;
+			this.payload = payload;
+		}
+
+		@Override
+		protected String getRequestType() {
+			return "ClientPut";
+		}
+
+		@Override
+		protected String getKey() {
+			return key;
+		}
+
+		@Override
+		protected long getPayloadLength() {
+			return payload.length();
+		}
+
+		@Override
+		protected FCPMessage createMessage(FCPConnection conn) throws FCPBadFileException {
+			FCPMessage msg = conn.getMessage("ClientPut");
+			msg.headers.put("URI", key);
+			msg.headers.put("Persistence", "connection");
+			msg.headers.put("PriorityClass", Integer.toString(getPriority()));
+			msg.headers.put("Verbosity", PUT_VERBOSITY);
+			try {
+				msg.setData(payload.getInputStream());
+			} catch (IOException ioe) {
+				throw new FCPBadFileException();
+			}
+			return msg;
+		}
+
+		@Override
+		protected boolean isRemovable() {
+			return true;
+		}
+
+		@Override
+		protected void spool() throws IOException {
+			payload.spill();
+		}
+
+		@Override
+		protected void handleReply(FCPMessage reply) {
+			if (reply.getType().equalsIgnoreCase("PutSuccessful")) {
+				succeed(null);
+			} else {
+				fail(FCPException.create(reply));
+			}
+		}
+
+		@Override
+		protected void completed() {
+			payload.release();
+		}
+	}
+
+	private static class PersistentPutRequest extends ConnectionRequest<Void> {
+		// how often we go back and forth between inserting and looking for the insert on the
+		// node before deciding that something is wrong
+		private static final int MAX_RESTARTS = 4;
+
+		private final String key;
+		private final String identifier;
+		private final FCPData payload;
+		// true once the node has the insert, from then on we only ask it how it's going
+		private volatile boolean onNode;
+		private int restarts = 0;
+
+		PersistentPutRequest(FCPConnectionPool pool, String shard, RequestClass requestClass, String key,
+				String identifier, FCPData payload, FCPRequestCallback<Void> cb) {
+			super(pool, shard, true, requestClass, cb);
+			this.key = key;
+			this.identifier = identifier;
+			this.payload = payload;
+			this.onNode = (payload == null);
+		}
+
+		@Override
+		protected String getRequestType() {
+			return "ClientPut (persistent)";
+		}
+
+		@Override
+		protected String getKey() {
+			return key;
+		}
+
+		@Override
+		protected long getPayloadLength() {
+			return payload == null ? 0 : payload.length();
+		}
+
+		@Override
+		protected FCPMessage createMessage(FCPConnection conn) throws FCPBadFileException {
+			FCPMessage msg;
+			if (onNode) {
+				msg = new FCPMessage(identifier, "GetRequestStatus");
+				msg.headers.put("Global", "true");
+				return msg;
+			}
+
+			msg = new FCPMessage(identifier, "ClientPut");
+			msg.headers.put("URI", key);
+			msg.headers.put("Persistence", "forever");
+			msg.headers.put("Global", "true");
+			msg.headers.put("PriorityClass", Integer.toString(getPriority()));
+			try {
+				msg.setData(payload.getInputStream());
+			} catch (IOException ioe) {
+				throw new FCPBadFileException();
+			}
+			return msg;
+		}
+
+		@Override
+		protected void spool() throws IOException {
+			if (payload != null) payload.spill();
+		}
+
+		@Override
+		public void requestStatus(FCPMessage status) {
+			super.requestStatus(status);
+			if (status.getType().equalsIgnoreCase("PersistentPut")) {
+				onNode = true;
+			}
+		}
+
+		@Override
+		protected void handleReply(FCPMessage reply) {
+			if (reply.getType().equalsIgnoreCase("PutSuccessful")) {
+				removeFromNode();
+				succeed(null);
+			} else if (reply.getType().equalsIgnoreCase("PutFailed")) {
+				removeFromNode();
+				fail(FCPException.create(reply));
+			} else if (reply.getType().equalsIgnoreCase("IdentifierCollision") && canRestart()) {
+				// we've been here before, so find out how it went
+				onNode = true;
+				restart();
+			} else if (isNoSuchIdentifier(reply) && payload != null && canRestart()) {
+				// it's been removed since, so start again
+				onNode = false;
+				restart();
+			} else {
+				fail(FCPException.create(reply));
+			}
+		}
+
+		private synchronized boolean canRestart() {
+			return ++restarts <= MAX_RESTARTS;
+		}
+
+		private static boolean isNoSuchIdentifier(FCPMessage reply) {
+			if (!reply.getType().equalsIgnoreCase("ProtocolError")) return false;
+			return Integer.toString(FCPProtocolException.NO_SUCH_IDENTIFIER).equals(reply.headers.get("Code"));
+		}
+
+		/**
+		 * Takes the finished insert off the node's queue, otherwise they would pile up there
+		 * forever.
+		 */
+		private void removeFromNode() {
+			FCPConnection conn = getConnection();
+			FCPMessage msg = new FCPMessage(identifier, "RemovePersistentRequest");
+			msg.headers.put("Global", "true");
+			try {
+				conn.sendMessage(msg);
+			} catch (Exception e) {
+				// it'll be found again next time we list the requests
+				Logger.minor(this, "Couldn't remove finished insert " + identifier + ": " + e);
+			}
+		}
+
+		@Override
+		protected void completed() {
+			if (payload != null) payload.release();
+		}
+	}
+
+	private static class ListRequest extends ConnectionRequest<Map<String, PersistentRequest>> {
+		private final Map<String, PersistentRequest> requests = new HashMap<String, PersistentRequest>();
+
+		ListRequest(FCPConnectionPool pool, String shard, RequestClass requestClass,
+				FCPRequestCallback<Map<String, PersistentRequest>> cb) {
+			// the same connections as the inserts, so it gets to see them
+			super(pool, shard, true, requestClass, cb);
+		}
+
+		@Override
+		protected String getRequestType() {
+			return "ListPersistentRequests";
+		}
+
+		@Override
+		protected FCPMessage createMessage(FCPConnection conn) {
+			return conn.getMessage("ListPersistentRequests");
+		}
+
+		@Override
+		public void requestStatus(FCPMessage status) {
+			if (!"true".equalsIgnoreCase(status.headers.get("Global"))) return;
+
+			String type = status.getType();
+			if (!type.equalsIgnoreCase("PersistentPut") && !type.equalsIgnoreCase("PutSuccessful")
+					&& !type.equalsIgnoreCase("PutFailed")) {
+				return;
+			}
+
+			synchronized (requests) {
+				PersistentRequest req = requests.get(status.getId());
+				if (req == null) {
+					req = new PersistentRequest(status.getId());
+					requests.put(status.getId(), req);
+				}
+				req.update(status);
+			}
+		}
+
+		@Override
+		protected void handleReply(FCPMessage reply) {
+			if (reply.getType().equalsIgnoreCase("EndListPersistentRequests")) {
+				synchronized (requests) {
+					succeed(new HashMap<String, PersistentRequest>(requests));
+				}
+			} else {
+				fail(FCPException.create(reply));
+			}
+		}
+	}
+
+	private static class SSKRequest extends ConnectionRequest<SSKKeyPair> {
+		SSKRequest(FCPConnectionPool pool, String shard, RequestClass requestClass, FCPRequestCallback<SSKKeyPair> cb) {
+			super(pool, shard, false, requestClass, cb);
+		}
+
+		@Override
+		protected String getRequestType() {
+			return "GenerateSSK";
+		}
+
+		@Override
+		protected FCPMessage createMessage(FCPConnection conn) {
+			return conn.getMessage("GenerateSSK");
+		}
+
+		@Override
+		protected void handleReply(FCPMessage reply) {
+			if (reply.getType().equalsIgnoreCase("SSKKeypair")) {
+				SSKKeyPair retval = new SSKKeyPair();
+
+				retval.privkey = reply.headers.get("InsertURI");
+				retval.pubkey = reply.headers.get("RequestURI");
+				succeed(retval);
+			} else {
+				succeed(null);
+			}
+		}
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * CircuitBreaker.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.fcp;
+
+/**
+ * Keeps track of whether any of a set of connections can reach a node. While none of them can,
+ * the breaker is open: requests are queued (or fail straight away with NoNodeConnectionException)
+ * instead of trying a connection, and anyone who wants to wait for the node can do so in
+ * {@link #awaitClosed(long)} rather than in a sleep loop of their own. The connections
+ * themselves probe the node by reconnecting with backoff, and the breaker closes as soon as one
+ * of them succeeds.
+ */
+public class CircuitBreaker {
+	private int connected = 0;
+	private Runnable connectListener = null;
+
+	/**
+	 * Sets something to run each time a connection comes up, after it has received NodeHello.
+	 * It is run on the connection's own thread so it shouldn't block.
+	 */
+	synchronized void setConnectListener(Runnable listener) {
+		connectListener = listener;
+	}
+
+	void connectionUp() {
+		Runnable listener;
+		synchronized(this) {
+			connected++;
+			if(connected == 1) {
+				notifyAll();
+			}
+			listener = connectListener;
+		}
+
+		if(listener != null) listener.run();
+	}
+
+	synchronized void connectionDown() {
+		assert (connected > 0);
+		connected--;
+	}
+
+	/**
+	 * @return true if no connection can currently reach the node
+	 */
+	public synchronized boolean isOpen() {
+		return connected == 0;
+	}
+
+	/**
+	 * Waits until at least one connection is up, or the timeout expires.
+	 * @return true if there is a connection
+	 */
+	public synchronized boolean awaitClosed(long timeout) throws InterruptedException {
+		long end = System.currentTimeMillis() + timeout;
+		while(connected == 0) {
+			long remaining = end - System.currentTimeMillis();
+			if(remaining <= 0) return false;
+			wait(remaining);
+		}
+		return true;
+	}
+}
@@ -0,0 +1,287 @@
+/*
+ * ConnectionRequest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.fcp;
+
+import java.io.IOException;
+
+import freemail.utils.Logger;
+
+/**
+ * A request that is in flight on an {@link FCPConnection}. Every request registers itself as the
+ * FCPClient for its own identifier, so any number of them can be outstanding on the same
+ * connection at once.
+ *
+ * The connection is picked from the pool each time the request is sent, and the message is
+ * built for that connection by {@link #createMessage(FCPConnection)}. This lets requests that
+ * can't be sent, or that lose their connection before the node has answered, wait in the pool's
+ * {@link OfflineQueue} and be sent again once the node is back.
+ *
+ * Before any of that the pool's {@link RequestScheduler} has to let the request go ahead, which
+ * it does once there is room for another request of its {@link RequestClass}.
+ *
+ * Requests that are given up on while the node is working on them are removed from the node if
+ * {@link #isRemovable()} says so, so that it doesn't carry on with something nobody wants.
+ */
+abstract class ConnectionRequest<T> extends FCPRequest<T> implements FCPClient {
+	/** The priority class of requests that don't say what they are for */
+	static final int DEFAULT_PRIORITY = RequestClass.MESSAGE.getPriorityClass();
+	// how many times a request is sent again after losing its connection before we give up on it
+	private static final int MAX_REQUEUES = 5;
+
+	private final FCPConnectionPool pool;
+	private final String shard;
+	private final boolean bulk;
+	private final RequestClass requestClass;
+
+	// the connection and message we were last sent with, null if we haven't been yet
+	private FCPConnection conn = null;
+	private FCPMessage msg = null;
+	private int requeues = 0;
+
+	/**
+	 * @param shard the shard to send the request for, or null for any
+	 * @param bulk true if the request should use the pool's insert lanes
+	 */
+	protected ConnectionRequest(FCPConnectionPool pool, String shard, boolean bulk, RequestClass requestClass,
+	                            FCPRequestCallback<T> callback) {
+		super(callback);
+		this.pool = pool;
+		this.shard = shard;
+		this.bulk = bulk;
+		this.requestClass = requestClass;
+	}
+
+	@Override
+	void start() throws NoNodeConnectionException, ConnectionTerminatedException, FCPBadFileException {
+		FCPConnection c = bulk ? pool.getBulkConnection(shard) : pool.getConnection(shard);
+		FCPMessage m = createMessage(c);
+		synchronized(this) {
+			conn = c;
+			msg = m;
+		}
+		// before it is sent, since the reply could come before doRequest returns
+		pool.getMetrics().requestSent(this);
+		c.doRequest(this, m);
+		madeProgress();
+	}
+
+	/**
+	 * Starts the request, or queues it to be started later if the scheduler wants it to wait or
+	 * there is no connection to the node at the moment.
+	 * @throws NoNodeConnectionException if the request couldn't be sent or queued
+	 */
+	void submit() throws NoNodeConnectionException, ConnectionTerminatedException, FCPBadFileException {
+		if(!pool.getScheduler().admit(this)) return;
+
+		try {
+			send();
+		} catch(NoNodeConnectionException e) {
+			pool.getScheduler().finished(this);
+			throw e;
+		}
+	}
+
+	/**
+	 * Starts the request once the scheduler has let it go ahead, or queues it until the node is
+	 * back if there is no connection at the moment.
+	 * @throws NoNodeConnectionException if the request couldn't be sent or queued
+	 */
+	void send() throws NoNodeConnectionException, ConnectionTerminatedException, FCPBadFileException {
+		if(!pool.getCircuitBreaker().isOpen()) {
+			try {
+				start();
+				return;
+			} catch(NoNodeConnectionException e) {
+				// the connection went away under us, so treat it as if we'd never had one
+			}
+		}
+
+		if(!pool.getOfflineQueue().offer(this)) {
+			throw new NoNodeConnectionException("No connection to node");
+		}
+	}
+
+	@Override
+	protected void abort() {
+		// if it was waiting it isn't on the node, whatever connection it was last sent on
+		boolean waiting = pool.getScheduler().remove(this);
+		waiting |= pool.getOfflineQueue().remove(this);
+
+		FCPConnection c;
+		FCPMessage m;
+		synchronized(this) {
+			c = conn;
+			m = msg;
+		}
+		if(c == null) return;
+		if(!waiting && isRemovable()) {
+			c.removeRequest(m);
+		} else {
+			// Don't leak the request/client map entry
+			c.cancelRequest(m);
+		}
+	}
+
+	/**
+	 * Returns true if the request should be removed from the node when it is given up on.
+	 * Requests that the node finishes quickly anyway don't need to be, and persistent ones are
+	 * meant to carry on without us.
+	 */
+	protected boolean isRemovable() {
+		return false;
+	}
+
+	/**
+	 * Builds the message that starts this request on the given connection.
+	 */
+	protected abstract FCPMessage createMessage(FCPConnection c) throws FCPBadFileException;
+
+	@Override
+	void finished() {
+		pool.getScheduler().finished(this);
+		pool.getMetrics().requestFinished(this, requestClass);
+	}
+
+	/**
+	 * Returns the node's priority class for the request, lower is more urgent. Queued requests
+	 * are sent in this order once the node is back.
+	 */
+	protected int getPriority() {
+		return requestClass.getPriorityClass();
+	}
+
+	RequestClass getRequestClass() {
+		return requestClass;
+	}
+
+	String getShard() {
+		return shard;
+	}
+
+	/**
+	 * Returns true if the request mostly sits at the node waiting for something to happen, so
+	 * it doesn't count towards the limit of its class.
+	 */
+	protected boolean isLongRunning() {
+		return false;
+	}
+
+	/**
+	 * Called when the request is put in the offline queue, if the queue is meant to keep what it
+	 * holds on disk. Requests that carry data should move it there.
+	 */
+	protected void spool() throws IOException {
+		// nothing to move by default
+	}
+
+	/**
+	 * Returns the connection the request was last sent on, or null if it hasn't been sent yet.
+	 */
+	protected synchronized FCPConnection getConnection() {
+		return conn;
+	}
+
+	/**
+	 * Returns the message that is currently outstanding for this request, or null if it hasn't
+	 * been sent yet. This changes if the request has to be restarted, e.g. because the node told
+	 * us to follow a redirect.
+	 */
+	public synchronized FCPMessage getMessage() {
+		return msg;
+	}
+
+	/**
+	 * Handles the completion message from the node. Implementations must end by calling one of
+	 * {@link #succeed(Object)}, {@link #fail(Exception)} or {@link #restart()}.
+	 */
+	protected abstract void handleReply(FCPMessage reply);
+
+	/**
+	 * Keeps track of the request's progress. Subclasses that look at the status messages
+	 * themselves should call this as well if the progress of the request matters.
+	 */
+	@Override
+	public void requestStatus(FCPMessage status) {
+		if(status.getType().equalsIgnoreCase("SimpleProgress")) {
+			setProgress(new RequestProgress(status));
+		} else {
+			madeProgress();
+		}
+	}
+
+	@Override
+	public void requestFinished(FCPMessage reply) {
+		if(isDone()) {
+			// We gave up on this request before the node finished it
+			reply.release();
+			return;
+		}
+
+		if(reply.getType().equalsIgnoreCase("ConnectionClosed") && requeue()) {
+			return;
+		}
+
+		handleReply(reply);
+	}
+
+	/**
+	 * Sends the request again after it has lost its connection, or queues it until the node is
+	 * back.
+	 * @return false if it could do neither, in which case the request should fail
+	 */
+	private boolean requeue() {
+		synchronized(this) {
+			if(++requeues > MAX_REQUEUES) return false;
+		}
+
+		try {
+			send();
+			return true;
+		} catch(NoNodeConnectionException e) {
+			return false;
+		} catch(ConnectionTerminatedException e) {
+			return false;
+		} catch(FCPBadFileException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Sends the request again with a new message from {@link #createMessage(FCPConnection)},
+	 * without completing it. If it can't be sent the request fails in the same way it would have
+	 * if the connection had closed while it was running.
+	 */
+	protected void restart() {
+		if(isDone()) return;
+
+		try {
+			start();
+		} catch(NoNodeConnectionException e) {
+			Logger.debug(this, "Lost node connection while restarting request: " + e.getMessage());
+			if(!pool.getOfflineQueue().offer(this)) {
+				fail(FCPException.create(new FCPMessage(1, "ConnectionClosed")));
+			}
+		} catch(ConnectionTerminatedException e) {
+			fail(e);
+		} catch(FCPBadFileException e) {
+			fail(FCPException.create(new FCPMessage(1, "ConnectionClosed")));
+		}
+	}
+}
@@ -21,31 +21,107 @@
 
 package freemail.fcp;
 
+import java.io.BufferedOutputStream;
 import java.io.OutputStream;
-import java.io.InputStream;
 import java.net.Socket;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
+import freemail.utils.Backoff;
 import freemail.utils.Logger;
 
 public class FCPConnection implements Runnable {
+	private static final int OUTPUT_BUFFER_SIZE = 16 * 1024;
+	private static final long RECONNECT_DELAY_MIN = 1000;
+	private static final long RECONNECT_DELAY_MAX = 2 * 60 * 1000;
+	// if we haven't heard from the node for this long we check that it's still there
+	static final long HEARTBEAT_INTERVAL = 30 * 1000;
+	// and if it doesn't answer within this long we give up on it
+	static final long HEARTBEAT_TIMEOUT = 30 * 1000;
+	/**
+	 * The start of the names our connections give the node. It is different each time Freemail
+	 * runs, so that two Freemails using the same node don't take each other's names.
+	 */
+	static final String CLIENT_NAME_PREFIX = "freemail-" + Integer.toHexString(new Random().nextInt()) + "-";
+	// for naming connections that aren't part of a pool, which are numbered as if in pool 0
+	private static final AtomicInteger unpooledCount = new AtomicInteger();
+	// messages the node sends when listing its persistent requests
+	private static final Set<String> LIST_TYPES = new HashSet<String>(Arrays.asList(
+			"PersistentGet", "PersistentPut", "PersistentPutDir", "DataFound", "GetFailed",
+			"PutSuccessful", "PutFailed"));
+
 	/**
 	 * Whether the thread this service runs in should stop.
 	 */
 	protected volatile boolean stopping = false;
 
 	private final FCPContext fcpctx;
-	private OutputStream os;
-	private InputStream is;
-	private Socket conn;
-	private int nextMsgId;
+	private final int preferredNode;
+	private final FCPDispatcher dispatcher;
+	private final CircuitBreaker breaker;
+	private final Backoff reconnectBackoff = new Backoff(RECONNECT_DELAY_MIN, RECONNECT_DELAY_MAX);
+	private final Object sleepLock = new Object();
+	// held while writing to the node, and while the stream is being replaced, so that messages
+	// aren't mixed up. The heartbeat only tries it, so it is never held up by a large insert
+	private final ReentrantLock writeLock = new ReentrantLock();
+	// the node we're connected to, or -1
+	private volatile int currentNode = -1;
+	private volatile OutputStream os;
+	private volatile FCPInputStream is;
+	private volatile Socket conn;
+	// when we sent a heartbeat that hasn't been answered yet, or 0
+	private volatile long heartbeatSent = 0;
+	// the name we give the node, which closes any other connection with the same name
+	private final String clientName;
+	// shared with the other connections of a pool, so identifiers are never used twice
+	private final AtomicInteger nextMsgId;
+	// outstanding requests, guarded by its own lock so that the reader thread doesn't have to
+	// wait for writes to finish
 	private final HashMap<String, FCPClient> clients;
+	// outstanding ListPersistentRequests, which get every message that is part of the list
+	// whatever its identifier. Also guarded by the clients lock.
+	private final HashMap<String, FCPClient> listers;
+	// whether we've asked the node to tell us about requests on the global queue, guarded by
+	// this
+	private boolean watchingGlobal = false;
 
 	public FCPConnection(FCPContext ctx) {
+		this(ctx, 0);
+	}
+	
+	/**
+	 * Creates a connection that will use the given node whenever it can, and fail over to the
+	 * others when it can't.
+	 */
+	public FCPConnection(FCPContext ctx, int preferredNode) {
+		this(ctx, preferredNode, new FCPDispatcher(), new CircuitBreaker(),
+				CLIENT_NAME_PREFIX + "0-" + unpooledCount.incrementAndGet(), new AtomicInteger(1));
+	}
+	
+	/**
+	 * As above, with replies delivered to clients by the given dispatcher, and the state of the
+	 * connection reported to the given breaker.
+	 * @param clientName the name to give the node, which must be different for each connection
+	 * @param nextMsgId where identifiers for messages come from
+	 */
+	FCPConnection(FCPContext ctx, int preferredNode, FCPDispatcher dispatcher, CircuitBreaker breaker,
+			String clientName, AtomicInteger nextMsgId) {
 		this.fcpctx = ctx;
+		this.clientName = clientName;
+		this.nextMsgId = nextMsgId;
+		this.preferredNode = preferredNode;
+		this.dispatcher = dispatcher;
+		this.breaker = breaker;
 		this.clients = new HashMap<String, FCPClient>();
+		this.listers = new HashMap<String, FCPClient>();
 		
 		this.tryConnect();
 	}
@@ -53,29 +129,58 @@ public class FCPConnection implements Runnable {
 	private void tryConnect() {
 		if (this.conn != null || stopping) return;
 		
+		int nodes = this.fcpctx.getNodeCount();
+		for (int i = 0; i < nodes; i++) {
+			int node = (this.preferredNode + i) % nodes;
+			if (connectTo(node)) {
+				if (node != this.preferredNode) {
+					Logger.normal(this, "Couldn't connect to " + this.fcpctx.getNodeName(this.preferredNode)
+							+ ", using " + this.fcpctx.getNodeName(node) + " instead");
+				}
+				this.currentNode = node;
+				this.heartbeatSent = 0;
+				this.reconnectBackoff.reset();
+				this.breaker.connectionUp();
+				return;
+			}
+		}
+	}
+	
+	private boolean connectTo(int node) {
 		try {
-			this.nextMsgId = 1;
-			this.conn = this.fcpctx.getConn();
-			this.is = this.conn.getInputStream();
-			this.os = this.conn.getOutputStream();
+			this.conn = this.fcpctx.getConn(node);
+			this.is = new FCPInputStream(this.conn.getInputStream());
+			// don't publish the stream until the node has said hello, so no requests are
+			// sent before that
+			OutputStream out = new BufferedOutputStream(this.conn.getOutputStream(), OUTPUT_BUFFER_SIZE);
 			
-			FCPMessage hello = new FCPMessage(this.nextMsgId, "ClientHello");
-			this.nextMsgId++;
-			hello.writeto(this.os);
+			FCPMessage hello = getMessage("ClientHello");
+			hello.headers.put("Name", this.clientName);
+			hello.writeto(out);
 			FCPMessage reply = this.getMessage();
 			if (reply.getType() == null) {
 				Logger.error(this,"Connection closed");
 				this.conn = null;
-				return;
+				this.is = null;
+				this.os = null;
+				return false;
 			}
 			if (!reply.getType().equals("NodeHello")) {
 				Logger.error(this,"Warning - got '"+reply.getType()+"' from node, expecting 'NodeHello'");
 			}
+			this.writeLock.lock();
+			try {
+				this.watchingGlobal = false;
+				this.os = out;
+			} finally {
+				this.writeLock.unlock();
+			}
+			return true;
 		} catch (IOException ioe) {
 			this.conn = null;
 			this.is = null;
 			this.os = null;
-			return;
+			return false;
 		} catch (FCPBadFileException bfe) {
 			// won't be thrown from a hello, so should really
 			// never get here!
@@ -94,20 +199,33 @@ public class FCPConnection implements Runnable {
 				if (msg.getType() == null) throw new IOException("Connection closed");
 				this.dispatch(msg);
 			} catch (IOException ioe) {
+				if (this.currentNode >= 0) {
+					this.breaker.connectionDown();
+				}
 				this.conn = null;
 				this.os = null;
 				this.is = null;
+				this.currentNode = -1;
 				// tell all our clients it's all over
-				Iterator<FCPClient> i = this.clients.values().iterator();
+				ArrayList<FCPClient> closed;
+				synchronized (this.clients) {
+					closed = new ArrayList<FCPClient>(this.clients.values());
+					this.clients.clear();
+					this.listers.clear();
+				}
+				Iterator<FCPClient> i = closed.iterator();
 				while (i.hasNext()) {
 					FCPClient cli = i.next();
-					cli.requestFinished(new FCPMessage(1, "ConnectionClosed"));
+					this.dispatcher.requestFinished(cli, new FCPMessage(1, "ConnectionClosed"));
 				}
-				this.clients.clear();
-				// wait a bit
+				// wait a bit, longer each time the node doesn't come back
 				if (!stopping) {
+					long delay = this.reconnectBackoff.next();
+					Logger.debug(this, "No connection to node, trying again in " + delay + "ms");
 					try {
-						Thread.sleep(10000);
+						synchronized (this.sleepLock) {
+							if (!stopping) this.sleepLock.wait(delay);
+						}
 					} catch (InterruptedException ie) {
 						Logger.debug(this, "FCPConnection interrupted, stopping");
 						kill();
@@ -123,6 +241,9 @@ public class FCPConnection implements Runnable {
 	 */
 	public void kill() {
 		stopping = true;
+		synchronized (this.sleepLock) {
+			this.sleepLock.notifyAll();
+		}
 		try {
 			// we can safely close the socket from this thread: any read operations other threads are in will throw a SocketException
 			if (conn != null) conn.close();
@@ -140,32 +261,214 @@ public class FCPConnection implements Runnable {
 		super.finalize();
 	}
 	
-	public synchronized void doRequest(FCPClient cli, FCPMessage msg) throws NoNodeConnectionException,
-	                                                                         ConnectionTerminatedException, FCPBadFileException {
-		if (stopping) throw new ConnectionTerminatedException("This FCP Connection has been terminated");
-		if (this.os == null) throw new NoNodeConnectionException("No Connection");
-		this.clients.put(msg.getId(), cli);
+	public void doRequest(FCPClient cli, FCPMessage msg) throws NoNodeConnectionException,
+	                                                            ConnectionTerminatedException, FCPBadFileException {
+		this.writeLock.lock();
+		try {
+			if (stopping) throw new ConnectionTerminatedException("This FCP Connection has been terminated");
+			if (this.os == null) throw new NoNodeConnectionException("No Connection");
+			synchronized (this.clients) {
+				this.clients.put(msg.getId(), cli);
+				if (msg.getType().equals("ListPersistentRequests")) {
+					this.listers.put(msg.getId(), cli);
+				}
+			}
+			try {
+				if (usesGlobalQueue(msg)) watchGlobal();
+				msg.writeto(this.os);
+			} catch (IOException ioe) {
+				cancelRequest(msg);
+				throw new NoNodeConnectionException(ioe.getMessage());
+			}
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * Sends a message that we don't expect an answer to, e.g. to remove a persistent request
+	 * that has finished.
+	 */
+	public void sendMessage(FCPMessage msg) throws NoNodeConnectionException,
+	                                               ConnectionTerminatedException, FCPBadFileException {
+		this.writeLock.lock();
+		try {
+			if (stopping) throw new ConnectionTerminatedException("This FCP Connection has been terminated");
+			if (this.os == null) throw new NoNodeConnectionException("No Connection");
+			try {
+				if (usesGlobalQueue(msg)) watchGlobal();
+				msg.writeto(this.os);
+			} catch (IOException ioe) {
+				throw new NoNodeConnectionException(ioe.getMessage());
+			}
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+	
+	private static boolean usesGlobalQueue(FCPMessage msg) {
+		return "true".equalsIgnoreCase(msg.headers.get("Global")) || msg.getType().equals("ListPersistentRequests");
+	}
+	
+	/**
+	 * The node only tells connections that are watching the global queue about requests on it, so
+	 * we start watching before the first such request on each connection. Only the messages that
+	 * end requests are asked for, anything else about other clients' requests is noise.
+	 */
+	private void watchGlobal() throws IOException, FCPBadFileException {
+		if (this.watchingGlobal) return;
+		
+		FCPMessage watch = getMessage("WatchGlobal");
+		watch.headers.put("Enabled", "true");
+		watch.headers.put("VerbosityMask", "0");
+		watch.writeto(this.os);
+		this.watchingGlobal = true;
+	}
+	
+	/**
+	 * @return true if this connection currently has a connection to the node
+	 */
+	public boolean isConnected() {
+		return this.os != null && !stopping;
+	}
+	
+	/**
+	 * Sends the node a heartbeat if we haven't heard from it for a while, and drops the
+	 * connection if it hasn't answered one in time so that we reconnect, possibly to another
+	 * node. Called periodically by whoever owns the connection.
+	 */
+	void checkHeartbeat(long now) {
+		FCPInputStream in = this.is;
+		if (in == null || !isConnected()) return;
+		
+		long lastActivity = in.getLastActivity();
+		long sent = this.heartbeatSent;
+		if (sent != 0 && lastActivity >= sent) {
+			// it answered, or at least said something
+			this.heartbeatSent = sent = 0;
+		}
+		
+		if (sent == 0) {
+			if (now - lastActivity < HEARTBEAT_INTERVAL) return;
+			
+			// something is being written, e.g. a large insert, so the connection is busy rather
+			// than idle. Waiting for it would hold up the heartbeats of every other connection
+			if (!this.writeLock.tryLock()) return;
+			try {
+				OutputStream out = this.os;
+				if (out == null) return;
+				FCPMessage ping = getMessage("GetNode");
+				ping.headers.put("WithPrivate", "false");
+				ping.headers.put("WithVolatile", "false");
+				this.heartbeatSent = now;
+				ping.writeto(out);
+			} catch (IOException ioe) {
+				closeSocket();
+			} catch (FCPBadFileException bfe) {
+				// no data, so can't happen
+				throw new AssertionError();
+			} finally {
+				this.writeLock.unlock();
+			}
+		} else if (now - sent >= HEARTBEAT_TIMEOUT) {
+			Logger.error(this, "Node " + this.fcpctx.getNodeName(this.currentNode) + " hasn't answered for "
+					+ (now - lastActivity) + "ms, reconnecting");
+			closeSocket();
+		}
+	}
+	
+	private void closeSocket() {
+		Socket s = this.conn;
 		try {
-			msg.writeto(this.os);
+			// the reader thread will see the connection close and clean up after it
+			if (s != null) s.close();
 		} catch (IOException ioe) {
-			throw new NoNodeConnectionException(ioe.getMessage());
+			// ignore
+		}
+	}
+	
+	/**
+	 * @return the node this connection would rather use
+	 */
+	public int getPreferredNode() {
+		return this.preferredNode;
+	}
+	
+	/**
+	 * @return the node this connection is currently connected to, or -1 if it isn't connected
+	 */
+	public int getNode() {
+		return this.currentNode;
+	}
+	
+	/**
+	 * @return the number of requests that have been sent on this connection and not yet completed
+	 */
+	public int getOutstandingRequests() {
+		synchronized (this.clients) {
+			return this.clients.size();
 		}
 	}
 
 	/**
 	 * Give up on a request.
-	 * This doesn't actually send a cancel command to the node
-	 * (I don't think such a thing exists) but it does remove our
-	 * request/client map entry. We need this for requests that never
-	 * complete, so we don't leak memory.
+	 * This doesn't tell the node (see removeRequest() for that)
+	 * but it does remove our request/client map entry. We need
+	 * this for requests that never complete, so we don't leak memory.
+	 */
+	public void cancelRequest(FCPMessage msg) {
+		synchronized (this.clients) {
+			this.clients.remove(msg.getId());
+			this.listers.remove(msg.getId());
+		}
+	}
+	
+	/**
+	 * Give up on a request and tell the node to stop working on it,
+	 * so it doesn't use up bandwidth and slots on something nobody
+	 * is waiting for any more.
 	 */
-	public synchronized void cancelRequest(FCPMessage msg) {
-		this.clients.remove(msg.getId());
-	}	
+	public void removeRequest(FCPMessage msg) {
+		cancelRequest(msg);
+		
+		FCPMessage remove = new FCPMessage(msg.getId(), "RemoveRequest");
+		remove.headers.put("Global", "false");
+		try {
+			sendMessage(remove);
+		} catch (NoNodeConnectionException nnce) {
+			// the request went with the connection
+		} catch (ConnectionTerminatedException cte) {
+			// likewise
+		} catch (FCPBadFileException bfe) {
+			// no data, so can't happen
+			throw new AssertionError();
+		}
+	}
 	
 	private void dispatch(FCPMessage msg) {
-		FCPClient cli = this.clients.get(msg.getId());
+		if (msg.getType().equals("EndListPersistentRequests")) {
+			finishListing(msg);
+			return;
+		}
+		
+		ArrayList<FCPClient> listing = null;
+		FCPClient cli;
+		synchronized (this.clients) {
+			if (!this.listers.isEmpty() && LIST_TYPES.contains(msg.getType()) && msg.getData() == null) {
+				listing = new ArrayList<FCPClient>(this.listers.values());
+			}
+			cli = this.clients.get(msg.getId());
+			if (cli != null && msg.isCompletionMessage()) {
+				this.clients.remove(msg.getId());
+			}
+		}
+		if (listing != null) {
+			for (FCPClient lister : listing) {
+				if (lister != cli) this.dispatcher.requestStatus(lister, msg);
+			}
+		}
 		if (cli == null) {
+			if (listing != null) return;
 			// normally we'd leave it up to the client
 			// to delete any data, but it looks like
 			// we'll have to do it
@@ -173,17 +476,36 @@ public class FCPConnection implements Runnable {
 			return;
 		}
 		if (msg.isCompletionMessage()) {
-			this.clients.remove(msg.getId());
-			cli.requestFinished(msg);
+			this.dispatcher.requestFinished(cli, msg);
 		} else {
-			cli.requestStatus(msg);
+			this.dispatcher.requestStatus(cli, msg);
+		}
+	}
+	
+	/**
+	 * The end of the list doesn't have an identifier, so it goes to everyone who asked for one.
+	 */
+	private void finishListing(FCPMessage msg) {
+		ArrayList<FCPClient> listing;
+		synchronized (this.clients) {
+			listing = new ArrayList<FCPClient>(this.listers.values());
+			this.clients.values().removeAll(listing);
+			this.listers.clear();
+		}
+		for (FCPClient lister : listing) {
+			this.dispatcher.requestFinished(lister, msg);
 		}
 	}
 	
-	public synchronized FCPMessage getMessage(String type) {
-		FCPMessage m = new FCPMessage(this.nextMsgId, type);
-		this.nextMsgId++;
-		return m;
+	public FCPMessage getMessage(String type) {
+		return new FCPMessage(this.nextMsgId.getAndIncrement(), type);
+	}
+	
+	/**
+	 * @return the name this connection gives the node
+	 */
+	public String getClientName() {
+		return this.clientName;
 	}
 	
 	private FCPMessage getMessage() throws IOException {
@@ -0,0 +1,284 @@
+/*
+ * FCPConnectionPool.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.fcp;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of connections to the node, or to each of the nodes if there are several. Requests
+ * are sent on whichever connection has the fewest requests outstanding. Inserts can be given
+ * lanes of their own, so that writing a large payload to the node doesn't hold up the small
+ * requests we use for polling.
+ *
+ * With several nodes, requests can be given a shard (e.g. the account they are for), and all
+ * requests for a shard go to the same node for as long as it is up. Each connection fails over
+ * to the other nodes when it can't reach its own.
+ *
+ * While none of the connections are up the pool's {@link CircuitBreaker} is open and requests
+ * wait in its {@link OfflineQueue}, or fail immediately if that is full.
+ *
+ * How many requests of each {@link RequestClass} run at once is up to the pool's
+ * {@link RequestScheduler}. Fetches of a key that is already being fetched through the pool
+ * share that request, see {@link FetchCoalescer}.
+ */
+public class FCPConnectionPool {
+	private static final long HEARTBEAT_CHECK_INTERVAL = 5 * 1000;
+	private static final AtomicInteger poolCount = new AtomicInteger();
+
+	// indexed by preferred node, then connection
+	private final FCPConnection[][] connections;
+	private final FCPConnection[][] bulkConnections;
+	private final Thread[] threads;
+	private final FCPDispatcher dispatcher = new FCPDispatcher();
+	private final CircuitBreaker breaker = new CircuitBreaker();
+	private final OfflineQueue offlineQueue;
+	private final RequestScheduler scheduler = new RequestScheduler();
+	private final FetchCoalescer coalescer = new FetchCoalescer();
+	private final FCPMetrics metrics;
+	// identifiers for messages on all the connections
+	private final AtomicInteger nextMsgId = new AtomicInteger(1);
+	private Timer heartbeatTimer = null;
+
+	/**
+	 * @param connections the number of connections per node used for ordinary requests, at
+	 *                    least one
+	 * @param bulkConnections the number of connections per node used only for inserts. If this
+	 *                        is 0 inserts share the ordinary connections.
+	 */
+	public FCPConnectionPool(FCPContext ctx, int connections, int bulkConnections) {
+		offlineQueue = new OfflineQueue(breaker, ctx.getOfflineQueueSize(), ctx.isOfflineQueueOnDisk());
+		metrics = new FCPMetrics(scheduler, offlineQueue);
+		for (RequestClass c : RequestClass.values()) {
+			scheduler.setLimit(c, ctx.getClassLimit(c));
+		}
+		breaker.setConnectListener(new Runnable() {
+			@Override
+			public void run() {
+				offlineQueue.replay();
+			}
+		});
+
+		// the node closes a connection when another one says hello with the same name, so each
+		// connection has its own
+		String namePrefix = FCPConnection.CLIENT_NAME_PREFIX + poolCount.incrementAndGet() + "-";
+		int count = 0;
+
+		int nodes = ctx.getNodeCount();
+		this.connections = new FCPConnection[nodes][Math.max(connections, 1)];
+		this.bulkConnections = new FCPConnection[nodes][Math.max(bulkConnections, 0)];
+		for (int node = 0; node < nodes; node++) {
+			for (int i = 0; i < this.connections[node].length; i++) {
+				this.connections[node][i] = new FCPConnection(ctx, node, dispatcher, breaker,
+						namePrefix + (++count), nextMsgId);
+			}
+			for (int i = 0; i < this.bulkConnections[node].length; i++) {
+				this.bulkConnections[node][i] = new FCPConnection(ctx, node, dispatcher, breaker,
+						namePrefix + (++count), nextMsgId);
+			}
+		}
+
+		this.threads = new Thread[nodes * (this.connections[0].length + this.bulkConnections[0].length)];
+	}
+
+	public synchronized void start() {
+		int t = 0;
+		for (int node = 0; node < connections.length; node++) {
+			for (int i = 0; i < connections[node].length; i++) {
+				threads[t++] = startThread(connections[node][i], "Freemail FCP Connection " + (node + 1) + "-" + (i + 1));
+			}
+			for (int i = 0; i < bulkConnections[node].length; i++) {
+				threads[t++] = startThread(bulkConnections[node][i], "Freemail FCP Bulk Connection " + (node + 1) + "-" + (i + 1));
+			}
+		}
+
+		heartbeatTimer = new Timer("Freemail FCP Heartbeat", true);
+		heartbeatTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				checkHeartbeats();
+			}
+		}, HEARTBEAT_CHECK_INTERVAL, HEARTBEAT_CHECK_INTERVAL);
+	}
+
+	private void checkHeartbeats() {
+		long now = System.currentTimeMillis();
+		for (int node = 0; node < connections.length; node++) {
+			for (FCPConnection conn : connections[node]) {
+				conn.checkHeartbeat(now);
+			}
+			for (FCPConnection conn : bulkConnections[node]) {
+				conn.checkHeartbeat(now);
+			}
+		}
+	}
+
+	private static Thread startThread(FCPConnection conn, String name) {
+		Thread t = new Thread(conn, name);
+		t.setDaemon(true);
+		t.start();
+		return t;
+	}
+
+	/**
+	 * Returns the connection that should be used for the next ordinary request.
+	 */
+	public FCPConnection getConnection() {
+		return leastLoaded(connections);
+	}
+
+	/**
+	 * Returns the connection that should be used for the next ordinary request for the given
+	 * shard, or for any shard if it is null.
+	 */
+	public FCPConnection getConnection(String shard) {
+		if (shard == null) return getConnection();
+		return pick(connections, getNodeFor(shard));
+	}
+
+	/**
+	 * Returns the connection that should be used for the next insert.
+	 */
+	public FCPConnection getBulkConnection() {
+		return getBulkConnection(null);
+	}
+
+	/**
+	 * Returns the connection that should be used for the next insert for the given shard, or
+	 * for any shard if it is null.
+	 */
+	public FCPConnection getBulkConnection(String shard) {
+		FCPConnection[][] conns = bulkConnections[0].length == 0 ? connections : bulkConnections;
+		if (shard == null) return leastLoaded(conns);
+		return pick(conns, getNodeFor(shard));
+	}
+
+	/**
+	 * Returns the breaker that tells whether any of the connections in this pool are up.
+	 */
+	public CircuitBreaker getCircuitBreaker() {
+		return breaker;
+	}
+
+	/**
+	 * Returns the queue that holds requests while none of the connections in this pool are up.
+	 */
+	public OfflineQueue getOfflineQueue() {
+		return offlineQueue;
+	}
+
+	/**
+	 * Returns the scheduler that decides when the requests in this pool are sent.
+	 */
+	public RequestScheduler getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * Returns the coalescer that lets fetches of the same key through this pool share a request.
+	 */
+	public FetchCoalescer getFetchCoalescer() {
+		return coalescer;
+	}
+
+	/**
+	 * Returns the metrics of the requests sent through this pool.
+	 */
+	public FCPMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Returns the dispatcher that delivers replies from all the connections in this pool.
+	 */
+	public FCPDispatcher getDispatcher() {
+		return dispatcher;
+	}
+
+	/**
+	 * @return the node that requests for the given shard are sent to while it is up
+	 */
+	public int getNodeFor(String shard) {
+		return (shard.hashCode() & Integer.MAX_VALUE) % connections.length;
+	}
+
+	private static FCPConnection pick(FCPConnection[][] conns, int node) {
+		FCPConnection conn = leastLoaded(conns[node]);
+		if (conn.isConnected()) return conn;
+
+		// its connections are down too, so any other node will do
+		return leastLoaded(conns);
+	}
+
+	private static FCPConnection leastLoaded(FCPConnection[][] conns) {
+		FCPConnection best = null;
+		for (FCPConnection[] nodeConns : conns) {
+			FCPConnection conn = leastLoaded(nodeConns);
+			if (best == null || load(conn) < load(best)) {
+				best = conn;
+			}
+		}
+		return best;
+	}
+
+	private static FCPConnection leastLoaded(FCPConnection[] conns) {
+		FCPConnection best = null;
+		for (FCPConnection conn : conns) {
+			if (best == null || load(conn) < load(best)) {
+				best = conn;
+			}
+		}
+		return best;
+	}
+
+	private static int load(FCPConnection conn) {
+		// disconnected ones are only used if there's nothing else, in which case the request
+		// will fail with NoNodeConnectionException as it would have anyway
+		return conn.isConnected() ? conn.getOutstandingRequests() : Integer.MAX_VALUE;
+	}
+
+	public void kill() {
+		synchronized (this) {
+			if (heartbeatTimer != null) heartbeatTimer.cancel();
+		}
+		// before the connections, so the requests they drop aren't queued
+		offlineQueue.close();
+		for (int node = 0; node < connections.length; node++) {
+			for (FCPConnection conn : connections[node]) {
+				conn.kill();
+			}
+			for (FCPConnection conn : bulkConnections[node]) {
+				conn.kill();
+			}
+		}
+	}
+
+	/**
+	 * Waits for the threads of all the connections to exit.
+	 */
+	public synchronized void join() throws InterruptedException {
+		for (int i = 0; i < threads.length; i++) {
+			if (threads[i] == null) continue;
+			threads[i].join();
+			threads[i] = null;
+		}
+	}
+}
@@ -21,6 +21,8 @@ package freemail.fcp;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
 
 import freemail.config.ConfigClient;
 import freemail.config.Configurator;
@@ -28,9 +30,78 @@ import freemail.config.Configurator;
 public class FCPContext implements ConfigClient {
 	private String hostname;
 	private int port;
+	// host:port pairs, used instead of hostname and port if set
+	private volatile List<String> nodes = new ArrayList<String>();
+	private int connections = 1;
+	private int bulkConnections = 0;
+	private int offlineQueueSize = OfflineQueue.DEFAULT_CAPACITY;
+	private boolean offlineQueueOnDisk = false;
+	// how many requests of each class may run at once, indexed by RequestClass
+	private final int[] classLimits = new int[RequestClass.values().length];
 	
-	public Socket getConn() throws IOException {
-		return new Socket(this.hostname, this.port);
+	public FCPContext() {
+		for (RequestClass c : RequestClass.values()) {
+			classLimits[c.ordinal()] = c.getDefaultLimit();
+		}
+	}
+	
+	/**
+	 * @return the number of nodes we have been configured to use, at least one
+	 */
+	public int getNodeCount() {
+		return Math.max(nodes.size(), 1);
+	}
+	
+	/**
+	 * Opens a connection to the given node.
+	 * @param node the index of the node, between 0 and getNodeCount() - 1
+	 */
+	public Socket getConn(int node) throws IOException {
+		List<String> n = this.nodes;
+		if (n.isEmpty()) {
+			return new Socket(this.hostname, this.port);
+		}
+		
+		String addr = n.get(node % n.size());
+		int colon = addr.lastIndexOf(':');
+		if (colon < 0) throw new IOException("Invalid node address " + addr);
+		try {
+			return new Socket(addr.substring(0, colon), Integer.parseInt(addr.substring(colon + 1)));
+		} catch (NumberFormatException nfe) {
+			throw new IOException("Invalid node address " + addr);
+		}
+	}
+	
+	/**
+	 * Returns a description of the given node for log messages.
+	 */
+	public String getNodeName(int node) {
+		List<String> n = this.nodes;
+		if (n.isEmpty()) return this.hostname + ":" + this.port;
+		return n.get(node % n.size());
+	}
+	
+	public int getConnections() {
+		return connections;
+	}
+	
+	public int getBulkConnections() {
+		return bulkConnections;
+	}
+	
+	public int getOfflineQueueSize() {
+		return offlineQueueSize;
+	}
+	
+	public boolean isOfflineQueueOnDisk() {
+		return offlineQueueOnDisk;
+	}
+	
+	/**
+	 * @return how many requests of the given class may run at once, 0 for no limit
+	 */
+	public synchronized int getClassLimit(RequestClass c) {
+		return classLimits[c.ordinal()];
 	}
 	
 	@Override
@@ -43,6 +114,54 @@ public class FCPContext implements ConfigClient {
 			} catch (NumberFormatException nfe) {
 				// just leave it as it was
 			}
+		} else if (key.equalsIgnoreCase(Configurator.FCP_NODES)) {
+			List<String> newNodes = new ArrayList<String>();
+			for (String node : val.split(",")) {
+				node = node.trim();
+				if (node.length() > 0) newNodes.add(node);
+			}
+			nodes = newNodes;
+		} else if (key.equalsIgnoreCase(Configurator.FCP_CONNECTIONS)) {
+			try {
+				connections = Math.max(Integer.parseInt(val), 1);
+			} catch (NumberFormatException nfe) {
+				// just leave it as it was
+			}
+		} else if (key.equalsIgnoreCase(Configurator.FCP_BULK_CONNECTIONS)) {
+			try {
+				bulkConnections = Math.max(Integer.parseInt(val), 0);
+			} catch (NumberFormatException nfe) {
+				// just leave it as it was
+			}
+		} else if (key.equalsIgnoreCase(Configurator.FCP_OFFLINE_QUEUE_SIZE)) {
+			try {
+				offlineQueueSize = Math.max(Integer.parseInt(val), 0);
+			} catch (NumberFormatException nfe) {
+				// just leave it as it was
+			}
+		} else if (key.equalsIgnoreCase(Configurator.FCP_OFFLINE_QUEUE_ON_DISK)) {
+			offlineQueueOnDisk = val.equalsIgnoreCase("true");
+		} else if (key.equalsIgnoreCase(Configurator.FCP_CLASS_LIMITS)) {
+			// e.g. message=16,ack=4
+			for (String limit : val.split(",")) {
+				String[] parts = limit.split("=", 2);
+				if (parts.length < 2) continue;
+				RequestClass c = RequestClass.forName(parts[0].trim());
+				if (c == null) continue;
+				try {
+					synchronized (this) {
+						classLimits[c.ordinal()] = Math.max(Integer.parseInt(parts[1].trim()), 0);
+					}
+				} catch (NumberFormatException nfe) {
+					// just leave it as it was
+				}
+			}
+		} else if (key.equalsIgnoreCase(Configurator.FCP_MEMORY_THRESHOLD)) {
+			try {
+				FCPData.setMemoryThreshold(Integer.parseInt(val));
+			} catch (NumberFormatException nfe) {
+				// just leave it as it was
+			}
 		}
 	}
 }
@@ -0,0 +1,344 @@
+/*
+ * FCPData.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.fcp;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import freemail.Freemail;
+import freemail.support.io.BufferPool;
+import freemail.utils.Logger;
+
+/**
+ * The payload of an FCP message. Payloads up to the memory threshold are kept in a pooled
+ * buffer, larger ones are written to a temporary file. Either way it is up to the receiver to
+ * call {@link #release()} once it is done with the data. Data that is shared by several
+ * receivers is counted, see {@link #retain()}, and only freed once all of them have released it.
+ */
+public class FCPData {
+	public static final int DEFAULT_MEMORY_THRESHOLD = 64 * 1024;
+	private static final int MAX_POOLED_BUFFERS = 16;
+
+	private static volatile BufferPool pool = new BufferPool(DEFAULT_MEMORY_THRESHOLD, MAX_POOLED_BUFFERS);
+
+	private final long length;
+	private byte[] buf;
+	private File file;
+	// the number of holders that still have to call release()
+	private int refs = 1;
+
+	private FCPData(byte[] buf, int length) {
+		this.buf = buf;
+		this.length = length;
+		this.file = null;
+	}
+
+	private FCPData(File file, long length) {
+		this.buf = null;
+		this.length = length;
+		this.file = file;
+	}
+
+	/**
+	 * Sets the largest payload that will be kept in memory. Setting this to 0 means that all
+	 * payloads will be written to disk.
+	 */
+	public static void setMemoryThreshold(int threshold) {
+		if(threshold < 0) threshold = 0;
+		if(threshold == pool.getBufferSize()) return;
+		pool = new BufferPool(threshold, MAX_POOLED_BUFFERS);
+	}
+
+	/**
+	 * Wraps data that is already in memory.
+	 */
+	static FCPData wrap(byte[] data) {
+		return new FCPData(data, data.length);
+	}
+
+	/**
+	 * Reads exactly len bytes of payload from the given stream. If the payload is too large to
+	 * be kept in memory and can't be written to disk it is skipped and null is returned.
+	 */
+	static FCPData read(FCPInputStream is, long len) throws IOException {
+		BufferPool p = pool;
+		if(len <= p.getBufferSize()) {
+			byte[] buf = p.get();
+			int offset = 0;
+			while(offset < len) {
+				int read = is.read(buf, offset, (int)len - offset);
+				if(read < 0) {
+					p.release(buf);
+					throw new IOException("Connection closed with " + (len - offset) + " bytes of data remaining");
+				}
+				offset += read;
+			}
+			return new FCPData(buf, (int)len);
+		}
+
+		File f;
+		FileOutputStream fos;
+		try {
+			f = File.createTempFile("freemail-fcp", null, Freemail.getTempDir());
+			fos = new FileOutputStream(f);
+		} catch (IOException ioe) {
+			Logger.error(FCPData.class, "Couldn't create temporary file for FCP data: " + ioe.getMessage());
+			// we still have to get the data off the connection
+			is.copyTo(new NullOutputStream(), len);
+			return null;
+		}
+
+		try {
+			is.copyTo(fos, len);
+			fos.close();
+		} catch (IOException ioe) {
+			fos.close();
+			f.delete();
+			throw ioe;
+		}
+		return new FCPData(f, len);
+	}
+
+	/**
+	 * Reads the given stream to the end, keeping the data in memory if it fits under the
+	 * threshold. Unlike the stream, the copy can be read as many times as needed.
+	 */
+	static FCPData copyOf(InputStream is) throws IOException {
+		BufferPool p = pool;
+		byte[] buf = p.get();
+		int len = 0;
+		while(len < buf.length) {
+			int read = is.read(buf, len, buf.length - len);
+			if(read < 0) return new FCPData(buf, len);
+			len += read;
+		}
+
+		int next = is.read();
+		if(next < 0) return new FCPData(buf, len);
+
+		// too much for memory, so the rest goes straight to disk after what we have so far
+		File f = File.createTempFile("freemail-fcp", null, Freemail.getTempDir());
+		long total = len + 1;
+		OutputStream os = new FileOutputStream(f);
+		try {
+			os.write(buf, 0, len);
+			os.write(next);
+			int read;
+			while((read = is.read(buf, 0, buf.length)) > 0) {
+				os.write(buf, 0, read);
+				total += read;
+			}
+			os.close();
+		} catch (IOException ioe) {
+			os.close();
+			f.delete();
+			throw ioe;
+		} finally {
+			p.release(buf);
+		}
+		return new FCPData(f, total);
+	}
+
+	public long length() {
+		return length;
+	}
+
+	public boolean isInMemory() {
+		return buf != null;
+	}
+
+	public InputStream getInputStream() throws IOException {
+		if(buf != null) {
+			return new ByteArrayInputStream(buf, 0, (int)length);
+		}
+		checkReleased();
+		return new FileInputStream(file);
+	}
+
+	/**
+	 * Returns a read only view of the data. Data that was written to disk is memory mapped.
+	 */
+	public ByteBuffer getByteBuffer() throws IOException {
+		if(buf != null) {
+			return ByteBuffer.wrap(buf, 0, (int)length).asReadOnlyBuffer();
+		}
+		checkReleased();
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Returns the data as a byte array. Only use this for data that is known to be small.
+	 */
+	public byte[] toByteArray() throws IOException {
+		if(length > Integer.MAX_VALUE) throw new IOException("Data too large for an array");
+
+		byte[] copy = new byte[(int)length];
+		if(buf != null) {
+			System.arraycopy(buf, 0, copy, 0, (int)length);
+			return copy;
+		}
+
+		InputStream is = getInputStream();
+		try {
+			int offset = 0;
+			while(offset < copy.length) {
+				int read = is.read(copy, offset, copy.length - offset);
+				if(read < 0) throw new IOException("File is shorter than expected");
+				offset += read;
+			}
+		} finally {
+			is.close();
+		}
+		return copy;
+	}
+
+	/**
+	 * Moves the data into the given file and releases it. Data on disk is renamed, data in
+	 * memory is written out.
+	 * @return true if the file was created
+	 */
+	public boolean moveTo(File dest) {
+		if(isShared()) {
+			// the others still need the file where it is
+			if(!copyTo(dest)) return false;
+			release();
+			return true;
+		}
+
+		if(buf == null) {
+			if(file == null || !file.renameTo(dest)) return false;
+			file = null;
+			return true;
+		}
+
+		if(!copyTo(dest)) return false;
+		release();
+		return true;
+	}
+
+	private boolean copyTo(File dest) {
+		try {
+			OutputStream os = new FileOutputStream(dest);
+			try {
+				InputStream is = getInputStream();
+				try {
+					byte[] chunk = new byte[4096];
+					int read;
+					while((read = is.read(chunk)) > 0) {
+						os.write(chunk, 0, read);
+					}
+				} finally {
+					is.close();
+				}
+			} finally {
+				os.close();
+			}
+		} catch (IOException ioe) {
+			dest.delete();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Writes data that is held in memory out to a temporary file and returns the buffer to the
+	 * pool. Data that is already on disk is left alone.
+	 */
+	public void spill() throws IOException {
+		// the other holders might be reading from the buffer
+		if(buf == null || isShared()) return;
+
+		File f = File.createTempFile("freemail-fcp", null, Freemail.getTempDir());
+		OutputStream os = new FileOutputStream(f);
+		try {
+			os.write(buf, 0, (int)length);
+			os.close();
+		} catch (IOException ioe) {
+			os.close();
+			f.delete();
+			throw ioe;
+		}
+
+		file = f;
+		pool.release(buf);
+		buf = null;
+	}
+
+	/**
+	 * Adds a holder of the data, who must call {@link #release()} when they are done with it just
+	 * like the first one.
+	 * @return this
+	 */
+	public synchronized FCPData retain() {
+		if(refs == 0) throw new IllegalStateException("Data has already been released");
+		refs++;
+		return this;
+	}
+
+	private synchronized boolean isShared() {
+		return refs > 1;
+	}
+
+	/**
+	 * Returns the buffer to the pool or deletes the temporary file once every holder has called
+	 * this. The data can't be used by the caller afterwards.
+	 */
+	public synchronized void release() {
+		if(refs > 0) refs--;
+		if(refs > 0) return;
+
+		if(buf != null) {
+			pool.release(buf);
+			buf = null;
+		}
+		if(file != null) {
+			file.delete();
+			file = null;
+		}
+	}
+
+	private void checkReleased() throws IOException {
+		if(file == null) throw new IOException("Data has already been released");
+	}
+
+	private static class NullOutputStream extends OutputStream {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	}
+}
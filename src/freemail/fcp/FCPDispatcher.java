@@ -0,0 +1,165 @@
+/*
+ * FCPDispatcher.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.fcp;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import freemail.utils.Logger;
+
+/**
+ * Delivers messages from the node to their clients on a small pool of threads, so that the
+ * connection reader threads only have to decode and route messages and a slow client can't
+ * stop us reading from the node. Each client has its own queue, so a client sees its messages
+ * in the order they arrived and never from two threads at once.
+ */
+public class FCPDispatcher {
+	private static final int DEFAULT_THREADS = 4;
+	private static final long THREAD_KEEPALIVE = 60 * 1000;
+
+	private final ThreadPoolExecutor executor;
+
+	// clients that have messages waiting or are being delivered to, guarded by this
+	private final Map<FCPClient, ClientQueue> queues = new HashMap<FCPClient, ClientQueue>();
+
+	private final AtomicInteger queueDepth = new AtomicInteger();
+	private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+	public FCPDispatcher() {
+		this(DEFAULT_THREADS);
+	}
+
+	public FCPDispatcher(int threads) {
+		executor = new ThreadPoolExecutor(threads, threads, THREAD_KEEPALIVE, TimeUnit.MILLISECONDS,
+		                                  new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Freemail FCP Dispatcher");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		// we never shut down, since clients have to be told about connections closing even
+		// while we're stopping, so let idle threads go instead
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Queues a completion message for the given client.
+	 */
+	public void requestFinished(FCPClient cli, FCPMessage msg) {
+		enqueue(cli, msg, true);
+	}
+
+	/**
+	 * Queues a status message for the given client.
+	 */
+	public void requestStatus(FCPClient cli, FCPMessage msg) {
+		enqueue(cli, msg, false);
+	}
+
+	/**
+	 * @return the number of messages that have been received but not yet delivered
+	 */
+	public int getQueueDepth() {
+		return queueDepth.get();
+	}
+
+	/**
+	 * @return the largest number of messages that have been waiting for delivery at once
+	 */
+	public int getMaxQueueDepth() {
+		return maxQueueDepth.get();
+	}
+
+	private void enqueue(FCPClient cli, FCPMessage msg, boolean finished) {
+		int depth = queueDepth.incrementAndGet();
+		int max;
+		while((max = maxQueueDepth.get()) < depth) {
+			if(maxQueueDepth.compareAndSet(max, depth)) break;
+		}
+
+		ClientQueue queue;
+		boolean start = false;
+		synchronized(this) {
+			queue = queues.get(cli);
+			if(queue == null) {
+				queue = new ClientQueue(cli);
+				queues.put(cli, queue);
+				start = true;
+			}
+			queue.messages.add(new Delivery(msg, finished));
+		}
+
+		if(start) {
+			executor.execute(queue);
+		}
+	}
+
+	private class ClientQueue implements Runnable {
+		private final FCPClient client;
+		private final LinkedList<Delivery> messages = new LinkedList<Delivery>();
+
+		ClientQueue(FCPClient client) {
+			this.client = client;
+		}
+
+		@Override
+		public void run() {
+			while(true) {
+				Delivery d;
+				synchronized(FCPDispatcher.this) {
+					d = messages.poll();
+					if(d == null) {
+						queues.remove(client);
+						return;
+					}
+				}
+				queueDepth.decrementAndGet();
+
+				try {
+					if(d.finished) {
+						client.requestFinished(d.msg);
+					} else {
+						client.requestStatus(d.msg);
+					}
+				} catch(RuntimeException e) {
+					Logger.error(this, "Caught exception from FCP client", e);
+				}
+			}
+		}
+	}
+
+	private static class Delivery {
+		private final FCPMessage msg;
+		private final boolean finished;
+
+		Delivery(FCPMessage msg, boolean finished) {
+			this.msg = msg;
+			this.finished = finished;
+		}
+	}
+}
@@ -0,0 +1,180 @@
+/*
+ * FCPInputStream.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.fcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import freemail.support.io.TooLongException;
+
+/**
+ * Buffered reader for the FCP wire format. One instance is kept for the lifetime of a node
+ * connection so that data read ahead while parsing one message is available for the next.
+ * Lines are split into field name and value on the byte level, and payloads are copied in
+ * bulk from the buffer and then directly from the underlying stream.
+ */
+public class FCPInputStream extends InputStream {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int BUFFER_SIZE = 16 * 1024;
+	private static final int MAX_LINE_LENGTH = 4096;
+
+	private final InputStream in;
+	private final byte[] buf = new byte[BUFFER_SIZE];
+	private int pos = 0;
+	private int limit = 0;
+
+	private final byte[] line = new byte[MAX_LINE_LENGTH];
+	private String name;
+	private String value;
+
+	// when we last got any data, read by other threads to tell whether the node is alive
+	private volatile long lastActivity = System.currentTimeMillis();
+
+	public FCPInputStream(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Reads the next line. If the line contains an equals sign it is split at the first one into
+	 * a field name and a value, otherwise the whole line is returned as the name and the value is
+	 * null.
+	 * @return false if the end of the stream was reached before any data was read
+	 * @throws TooLongException if the line is longer than the maximum allowed length
+	 */
+	public boolean readField() throws IOException {
+		int length = 0;
+		int equals = -1;
+
+		while(true) {
+			if(pos == limit && !fill()) {
+				if(length == 0) return false;
+				break;
+			}
+
+			byte b = buf[pos++];
+			if(b == '\n') break;
+			if(b == '=' && equals < 0) equals = length;
+			if(length == line.length) throw new TooLongException();
+			line[length++] = b;
+		}
+
+		if(length > 0 && line[length - 1] == '\r') length--;
+
+		if(equals < 0) {
+			name = new String(line, 0, length, UTF8);
+			value = null;
+		} else {
+			name = new String(line, 0, equals, UTF8);
+			value = new String(line, equals + 1, length - equals - 1, UTF8);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the field name (or whole line) read by the last call to {@link #readField()}.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the value read by the last call to {@link #readField()}, or null if the line
+	 * didn't contain an equals sign.
+	 */
+	public String getValue() {
+		return value;
+	}
+
+	/**
+	 * Copies exactly len bytes to the given stream.
+	 * @throws IOException if the stream ends before len bytes have been copied
+	 */
+	public void copyTo(OutputStream out, long len) throws IOException {
+		// first whatever we already have buffered
+		int buffered = (int)Math.min(len, limit - pos);
+		if(buffered > 0) {
+			out.write(buf, pos, buffered);
+			pos += buffered;
+			len -= buffered;
+		}
+
+		// then the rest in large chunks, bypassing the buffer
+		while(len > 0) {
+			int read = in.read(buf, 0, (int)Math.min(len, buf.length));
+			if(read < 0) throw new IOException("Connection closed with " + len + " bytes of data remaining");
+			lastActivity = System.currentTimeMillis();
+			out.write(buf, 0, read);
+			len -= read;
+		}
+	}
+
+	/**
+	 * @return the time at which data was last read from the underlying stream
+	 */
+	public long getLastActivity() {
+		return lastActivity;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if(pos == limit && !fill()) return -1;
+		return buf[pos++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0) return 0;
+		if(pos == limit) {
+			// large reads don't need to go through the buffer
+			if(len >= buf.length) {
+				int read = in.read(b, off, len);
+				if(read > 0) lastActivity = System.currentTimeMillis();
+				return read;
+			}
+			if(!fill()) return -1;
+		}
+
+		int count = Math.min(len, limit - pos);
+		System.arraycopy(buf, pos, b, off, count);
+		pos += count;
+		return count;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (limit - pos) + in.available();
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private boolean fill() throws IOException {
+		int read = in.read(buf, 0, buf.length);
+		if(read <= 0) return false;
+		lastActivity = System.currentTimeMillis();
+		pos = 0;
+		limit = read;
+		return true;
+	}
+}
@@ -23,64 +23,99 @@ package freemail.fcp;
 
 import java.io.OutputStream;
 import java.io.InputStream;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.HashMap;
-import java.util.Enumeration;
-import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
-import freemail.Freemail;
+public class FCPMessage {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int COPY_BUFFER_SIZE = 32 * 1024;
 
-import freemail.support.io.LineReader;
-import freemail.support.io.LineReadingInputStream;
+	/**
+	 * Message types that end a request. Type names are interned when messages are read, so
+	 * after the lookup here the types can be compared with equals() as well as equalsIgnoreCase().
+	 */
+	private static final Set<String> COMPLETION_TYPES = new HashSet<String>();
+	private static final Map<String, String> KNOWN_TYPES = new HashMap<String, String>();
+	static {
+		String[] completion = {"PutFailed", "PutSuccessful", "AllData", "GetFailed", "ProtocolError",
+		                       "SSKKeypair", "IdentifierCollision"};
+		String[] other = {"NodeHello", "CloseConnectionDuplicateClientName", "DataFound",
+		                  "SimpleProgress", "URIGenerated", "PutFetchable", "StartedCompression",
+		                  "FinishedCompression", "ExpectedHashes", "ExpectedMIME", "ExpectedDataLength",
+		                  "CompatibilityMode", "SendingToNetwork", "PersistentGet", "PersistentPut",
+		                  "PersistentRequestRemoved", "PersistentRequestModified", "EndListPersistentRequests",
+		                  "ConnectionClosed", "NodeData", "PersistentPutDir"};
+		for(String type : completion) {
+			COMPLETION_TYPES.add(type.toLowerCase());
+			KNOWN_TYPES.put(type.toLowerCase(), type);
+		}
+		for(String type : other) {
+			KNOWN_TYPES.put(type.toLowerCase(), type);
+		}
+	}
 
-public class FCPMessage {
 	private String messagetype;
 	private String identifier;
 	public final HashMap<String, String> headers;
-	private File data;
+	private FCPData data;
 	private InputStream outData;
 	
 	
 	public FCPMessage(int id, String type) {
-		this.identifier = Integer.toString(id);
+		this(Integer.toString(id), type);
+	}
+	
+	/**
+	 * Creates a message with an identifier of our choosing, e.g. for a persistent request that
+	 * has to be found again after a restart.
+	 */
+	public FCPMessage(String identifier, String type) {
+		this.identifier = identifier;
 		this.headers = new HashMap<String, String>();
 		this.messagetype = type;
 		this.data = null;
 		this.outData = null;
 	}
 	
-	public FCPMessage(InputStream is) throws IOException {
+	/**
+	 * Reads the next message from the given stream. If the stream ended before the start of a
+	 * message the type of the resulting message is null.
+	 */
+	public FCPMessage(FCPInputStream is) throws IOException {
 		this.headers = new HashMap<String, String>();
 		this.outData = null;
 		
 		this.messagetype = null;
-		LineReader r = new LineReadingInputStream(is);
 		
-		String line;
-		while ( (line = r.readLine(200, 200, false)) != null) {
-			/***************************************/
-			//Logger.normal(this,line);
+		while (is.readField()) {
+			String name = is.getName();
+			String value = is.getValue();
 			if (this.messagetype == null) {
-				this.messagetype = line;
-			} else if (line.startsWith("End")) {
+				this.messagetype = internType(name);
+			} else if (value != null) {
+				this.addHeader(name, value);
+			} else if (name.startsWith("End")) {
 				return;
-			} else if (line.equals("Data")) {
+			} else if (name.equals("Data")) {
 				try {
-					int len = Integer.decode(this.headers.get("DataLength")).intValue();
+					long len = Long.parseLong(this.headers.get("DataLength"));
 					this.readData(is, len);
 				} catch (NumberFormatException nfe) {
 				}
 				return;
-			} else {
-				String[] parts = line.split("=");
-				if (parts.length == 2)
-					this.addHeader(parts[0], parts[1]);
 			}
 		}
 	}
 	
+	private static String internType(String type) {
+		String known = KNOWN_TYPES.get(type.toLowerCase());
+		return known != null ? known : type;
+	}
+	
 	private void addHeader(String name, String val) {
 		if (name.equalsIgnoreCase("Identifier")) {
 			this.identifier = val;
@@ -97,7 +132,11 @@ public class FCPMessage {
 		return this.identifier;
 	}
 	
-	public File getData() {
+	/**
+	 * Returns the payload of the message, or null if it didn't have one. It's up to the
+	 * receiver of the message to release it.
+	 */
+	public FCPData getData() {
 		return this.data;
 	}
 	
@@ -105,80 +144,46 @@ public class FCPMessage {
 		this.outData = d;
 	}
 	
-	private void readData(InputStream is, int len) {
-		try {
-			this.data = File.createTempFile("freemail-fcp", null, Freemail.getTempDir());
-		} catch (Exception e) {
-			this.data = null;
-			return;
-		}
-		try {
-			FileOutputStream fos = new FileOutputStream(this.data);
-			
-			byte[] buf = new byte[1024];
-			while (len > 0) {
-				int toRead = len;
-				if (toRead > buf.length)
-					toRead = buf.length;
-				int read = is.read(buf, 0, toRead);
- 				fos.write(buf, 0, read);
-				len -= read;
-			}
-			fos.close();
-		} catch (IOException ioe) {
-			this.data = null;
-			return;
-		}
+	private void readData(FCPInputStream is, long len) throws IOException {
+		this.data = FCPData.read(is, len);
 	}
 	
 	public boolean isCompletionMessage() {
-		if (this.messagetype.equalsIgnoreCase("PutFailed"))
-			return true;
-		if (this.messagetype.equalsIgnoreCase("PutSuccessful"))
-			return true;
-		if (this.messagetype.equalsIgnoreCase("AllData"))
-			return true;
-		if (this.messagetype.equalsIgnoreCase("GetFailed"))
-			return true;
-		if (this.messagetype.equalsIgnoreCase("ProtocolError"))
-			return true;
-		if (this.messagetype.equalsIgnoreCase("SSKKeypair"))
-			return true;
-		if (this.messagetype.equalsIgnoreCase("IdentifierCollision"))
-			return true;
-		return false;
+		return COMPLETION_TYPES.contains(this.messagetype.toLowerCase());
 	}
 	
 	public void release() {
 		if (this.data != null) {
-			this.data.delete();
+			this.data.release();
 		}
 	}
 	
+	/**
+	 * Writes the message to the given stream, followed by its data if it has any, and flushes
+	 * the stream. Everything is written in one go so the stream should be buffered.
+	 */
 	public void writeto(OutputStream os) throws IOException, FCPBadFileException {
-		StringBuffer buf = new StringBuffer();
+		StringBuilder buf = new StringBuilder();
 		
 		buf.append(this.messagetype);
 		buf.append("\r\n");
 		
 		if (this.messagetype.equalsIgnoreCase("ClientHello")) {
-			buf.append("Name=freemail\r\n");
+			// the node only lets one connection at a time have each name
+			if (!this.headers.containsKey("Name")) buf.append("Name=freemail\r\n");
 			buf.append("ExpectedVersion=2.0\r\n");
 		}
 		
-		buf.append("Identifier="+this.identifier+"\r\n");
+		buf.append("Identifier=").append(this.identifier).append("\r\n");
 		
-		for (Enumeration<String> e = Collections.enumeration(this.headers.keySet()); e.hasMoreElements(); ) {
-			String hdr = e.nextElement();
-			String val = this.headers.get(hdr);
-			
-			buf.append(hdr+"="+val+"\r\n");
+		for (Map.Entry<String, String> hdr : this.headers.entrySet()) {
+			buf.append(hdr.getKey()).append('=').append(hdr.getValue()).append("\r\n");
 		}
 		
 		if (this.outData != null) {
 			buf.append("UploadFrom=direct\r\n");
 			try {
-				buf.append("DataLength="+this.outData.available()+"\r\n");
+				buf.append("DataLength=").append(this.outData.available()).append("\r\n");
 			} catch (IOException ioe) {
 				throw new FCPBadFileException();
 			}
@@ -186,12 +191,10 @@ public class FCPMessage {
 		} else {
 			buf.append("EndMessage\r\n");
 		}
-		if (buf.length() > 0) {
-			//Logger.normal(this,buf.toString());
-			os.write(buf.toString().getBytes());
-		}
+		os.write(buf.toString().getBytes(UTF8));
+		
 		if (this.outData != null) {
-			byte[] bytebuf = new byte[1024];
+			byte[] bytebuf = new byte[COPY_BUFFER_SIZE];
 			
 			int read;
 			while ( (read = this.outData.read(bytebuf)) > 0) {
@@ -199,5 +202,6 @@ public class FCPMessage {
 			}
 			this.outData.close();
 		}
+		os.flush();
 	}
 }
@@ -0,0 +1,288 @@
+/*
+ * FCPMetrics.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.fcp;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import freemail.utils.FlightRecorder;
+import freemail.utils.LatencyHistogram;
+import freemail.utils.Logger;
+
+/**
+ * Keeps track of how long requests to the node take and how they end, so it can be told whether
+ * slowness comes from the node or from requests waiting on our side.
+ *
+ * For each type of request (see {@link FCPRequest#getRequestType()}) and {@link RequestClass}
+ * there are two histograms in microseconds: how long requests waited to be sent, in the
+ * {@link RequestScheduler} or the {@link OfflineQueue}, and how long the node took from when
+ * they were sent until they finished. Requests that never got as far as the node only count
+ * towards the outcomes, which are kept per type of request and error code.
+ *
+ * The metrics can be seen on the plugin's page and over JMX, see {@link #register()}. Each
+ * request is also a freemail.FCPRequest event for the flight recorder, from when it was made
+ * until it finished.
+ */
+public class FCPMetrics implements FCPMetricsMBean {
+	public static final String MBEAN_NAME = "freemail:type=FCPMetrics";
+
+	static final FlightRecorder.EventType REQUEST_EVENT = new FlightRecorder.EventType(
+			"freemail.FCPRequest", "FCP Request", "FCP",
+			FlightRecorder.Field.text("keyType", "Key Type"),
+			FlightRecorder.Field.text("requestType", "Request Type"),
+			FlightRecorder.Field.text("requestClass", "Request Class"),
+			FlightRecorder.Field.bytes("bytes", "Bytes"),
+			FlightRecorder.Field.text("outcome", "Outcome"),
+			FlightRecorder.Field.nanos("waitTime", "Time Waiting To Be Sent"));
+
+	private final RequestScheduler scheduler;
+	private final OfflineQueue offlineQueue;
+
+	// everything below is guarded by this
+	private Map<String, LatencyHistogram> waitTimes = new TreeMap<String, LatencyHistogram>();
+	private Map<String, LatencyHistogram> nodeTimes = new TreeMap<String, LatencyHistogram>();
+	private SortedMap<String, Long> outcomes = new TreeMap<String, Long>();
+	private int inFlight = 0;
+	private ObjectName registeredAs = null;
+
+	/**
+	 * Creates metrics for a client that sends everything straight away.
+	 */
+	public FCPMetrics() {
+		this(null, null);
+	}
+
+	/**
+	 * Creates metrics for a client whose requests wait in the given scheduler and queue.
+	 */
+	FCPMetrics(RequestScheduler scheduler, OfflineQueue offlineQueue) {
+		this.scheduler = scheduler;
+		this.offlineQueue = offlineQueue;
+	}
+
+	/**
+	 * Called every time a request is sent to the node, including when it is sent again.
+	 */
+	void requestSent(FCPRequest<?> req) {
+		if(req.getRequestType() == null || !req.markSent()) return;
+		synchronized(this) {
+			inFlight++;
+		}
+	}
+
+	/**
+	 * Called once a request has completed or been cancelled.
+	 * @param requestClass the class of the request, or null if the client doesn't have them
+	 */
+	void requestFinished(FCPRequest<?> req, RequestClass requestClass) {
+		String type = req.getRequestType();
+		if(type == null) return;
+
+		boolean sent = req.wasSent();
+		String className = requestClass == null ? null : requestClass.name().toLowerCase();
+		String key = className == null ? type : type + "/" + className;
+		String description = describeOutcome(req, sent);
+		String outcome = type + ": " + description;
+		synchronized(this) {
+			if(sent) {
+				inFlight--;
+				histogram(waitTimes, key).record(req.getWaitTime() / 1000);
+				histogram(nodeTimes, key).record(req.getTimeSinceSent() / 1000);
+			}
+			Long count = outcomes.get(outcome);
+			outcomes.put(outcome, Long.valueOf(count == null ? 1 : count.longValue() + 1));
+		}
+
+		FlightRecorder.Event event = req.getEvent();
+		if(event.isRecording()) {
+			event.set(0, keyType(req.getKey()))
+					.set(1, type)
+					.set(2, className)
+					.set(3, req.getBytes())
+					.set(4, description)
+					.set(5, sent ? req.getWaitTime() : 0)
+					.commit();
+		}
+	}
+
+	/**
+	 * @return the type of the given key, e.g. "CHK", or null if there isn't a key
+	 */
+	static String keyType(String key) {
+		if(key == null) return null;
+		int at = key.indexOf('@');
+		return at > 0 ? key.substring(0, at).toUpperCase() : key;
+	}
+
+	private static LatencyHistogram histogram(Map<String, LatencyHistogram> map, String key) {
+		LatencyHistogram h = map.get(key);
+		if(h == null) {
+			h = new LatencyHistogram();
+			map.put(key, h);
+		}
+		return h;
+	}
+
+	private static String describeOutcome(FCPRequest<?> req, boolean sent) {
+		if(req.isCancelled()) return sent ? "cancelled" : "cancelled before being sent";
+
+		Exception e = req.getFailure();
+		if(e == null) return "succeeded";
+		if(e instanceof ConnectionTerminatedException) return "client terminated";
+
+		FCPException fe = (FCPException)e;
+		String type = fe.fcpMessageType;
+		if(fe instanceof FCPFetchException) {
+			type = "GetFailed";
+		} else if(fe instanceof FCPPutFailedException) {
+			type = "PutFailed";
+		} else if(fe instanceof FCPProtocolException) {
+			type = "ProtocolError";
+		}
+		return fe.errorcode == 0 ? type : type + " " + fe.errorcode;
+	}
+
+	@Override
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	@Override
+	public int getQueued() {
+		int queued = offlineQueue == null ? 0 : offlineQueue.size();
+		if(scheduler != null) {
+			for(RequestClass c : RequestClass.values()) {
+				queued += scheduler.getWaiting(c);
+			}
+		}
+		return queued;
+	}
+
+	/**
+	 * @return the type and class of every request that has been sent, in the form used by
+	 *         {@link #getWaitTimes(String)} and {@link #getNodeTimes(String)}
+	 */
+	public synchronized SortedSet<String> getRequestKinds() {
+		return new TreeSet<String>(nodeTimes.keySet());
+	}
+
+	/**
+	 * @return how long requests of the given kind waited to be sent in microseconds, or null if
+	 *         none have been
+	 */
+	public synchronized LatencyHistogram getWaitTimes(String kind) {
+		LatencyHistogram h = waitTimes.get(kind);
+		return h == null ? null : h.copy();
+	}
+
+	/**
+	 * @return how long the node took over requests of the given kind in microseconds, or null
+	 *         if none have been sent
+	 */
+	public synchronized LatencyHistogram getNodeTimes(String kind) {
+		LatencyHistogram h = nodeTimes.get(kind);
+		return h == null ? null : h.copy();
+	}
+
+	/**
+	 * @return how many requests have ended in each way, e.g. "ClientGet: GetFailed 13"
+	 */
+	public synchronized SortedMap<String, Long> getOutcomeCounts() {
+		return new TreeMap<String, Long>(outcomes);
+	}
+
+	@Override
+	public String[] getLatencies() {
+		List<String> lines = new ArrayList<String>();
+		for(String kind : getRequestKinds()) {
+			LatencyHistogram wait = getWaitTimes(kind);
+			LatencyHistogram node = getNodeTimes(kind);
+			lines.add(kind + ": " + node.getCount() + " sent, waited p50 " + millis(wait.getPercentile(50))
+					+ " p99 " + millis(wait.getPercentile(99)) + ", node p50 " + millis(node.getPercentile(50))
+					+ " p90 " + millis(node.getPercentile(90)) + " p99 " + millis(node.getPercentile(99))
+					+ " max " + millis(node.getMax()));
+		}
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	@Override
+	public String[] getOutcomes() {
+		List<String> lines = new ArrayList<String>();
+		for(Map.Entry<String, Long> e : getOutcomeCounts().entrySet()) {
+			lines.add(e.getKey() + ": " + e.getValue());
+		}
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	/**
+	 * Formats a number of microseconds as milliseconds.
+	 */
+	public static String millis(long micros) {
+		return (micros / 1000) + "ms";
+	}
+
+	@Override
+	public synchronized void reset() {
+		// requests that are in flight carry on counting towards the gauge
+		waitTimes = new TreeMap<String, LatencyHistogram>();
+		nodeTimes = new TreeMap<String, LatencyHistogram>();
+		outcomes = new TreeMap<String, Long>();
+	}
+
+	/**
+	 * Makes the metrics available over JMX as {@link #MBEAN_NAME}, in place of any that were
+	 * there before.
+	 */
+	public synchronized void register() {
+		if(registeredAs != null) return;
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(MBEAN_NAME);
+			if(server.isRegistered(name)) server.unregisterMBean(name);
+			server.registerMBean(this, name);
+			registeredAs = name;
+		} catch(JMException e) {
+			Logger.error(this, "Couldn't make FCP metrics available over JMX: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Removes the metrics from JMX if {@link #register()} put them there.
+	 */
+	public synchronized void unregister() {
+		if(registeredAs == null) return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredAs);
+		} catch(JMException e) {
+			// someone else has replaced them already
+		}
+		registeredAs = null;
+	}
+}
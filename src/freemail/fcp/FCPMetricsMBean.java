@@ -0,0 +1,51 @@
+/*
+ * FCPMetricsMBean.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.fcp;
+
+/**
+ * What {@link FCPMetrics} shows over JMX.
+ */
+public interface FCPMetricsMBean {
+	/**
+	 * @return the number of requests that have been sent to the node and haven't finished
+	 */
+	public int getInFlight();
+
+	/**
+	 * @return the number of requests waiting to be sent
+	 */
+	public int getQueued();
+
+	/**
+	 * @return one line for each type and class of request with how long they waited to be sent
+	 *         and how long the node took over them
+	 */
+	public String[] getLatencies();
+
+	/**
+	 * @return one line for each way each type of request has ended, with how many have
+	 */
+	public String[] getOutcomes();
+
+	/**
+	 * Forgets everything recorded so far.
+	 */
+	public void reset();
+}
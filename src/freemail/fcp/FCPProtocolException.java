@@ -2,6 +2,9 @@ package freemail.fcp;
 
 @SuppressWarnings("serial")
 public class FCPProtocolException extends FCPException {
+	/* The identifier doesn't belong to any request the node knows about */
+	public static final int NO_SUCH_IDENTIFIER = 14;
+
 	FCPProtocolException(FCPMessage msg) {
 		super(msg);
 
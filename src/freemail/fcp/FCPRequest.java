@@ -0,0 +1,327 @@
+/*
+ * FCPRequest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.fcp;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import freemail.utils.FlightRecorder;
+import freemail.utils.Logger;
+
+/**
+ * A single request to the node that completes asynchronously. The result can be waited for
+ * using {@link #getResult()}, or the request can be given a callback that is run when it
+ * completes. Subclasses decide how the request actually reaches the node, see
+ * {@link ConnectionRequest} for requests that are sent over an {@link FCPConnection}.
+ *
+ * While a request runs the node may tell us how it is getting on, see {@link #getProgress()}.
+ * {@link #waitWhileActive(long, long)} uses that to wait for as long as the request keeps
+ * moving and no longer.
+ */
+public abstract class FCPRequest<T> implements Future<T> {
+	private final FCPRequestCallback<T> callback;
+
+	private boolean done = false;
+	private boolean cancelled = false;
+	private T result = null;
+	private Exception failure = null;
+	private RequestProgress progress = null;
+	// when we last heard that the request was getting anywhere, 0 until it has been sent
+	private long lastActivity = 0;
+	// for FCPMetrics, from System.nanoTime()
+	private final long created = System.nanoTime();
+	private long sent;
+	private boolean wasSent = false;
+	// does nothing unless the flight recorder wanted requests when this one was made
+	private final FlightRecorder.Event event = FCPMetrics.REQUEST_EVENT.begin();
+
+	protected FCPRequest(FCPRequestCallback<T> callback) {
+		this.callback = callback;
+	}
+
+	/**
+	 * Sends the request to the node. If this returns without throwing, the request will
+	 * eventually complete.
+	 */
+	abstract void start() throws NoNodeConnectionException, ConnectionTerminatedException, FCPBadFileException;
+
+	/**
+	 * Called when the request is cancelled before it has completed, to stop whatever is still
+	 * running on its behalf.
+	 */
+	protected abstract void abort();
+
+	/**
+	 * Called once the request has completed or been cancelled, to free anything that was only
+	 * needed while it was running.
+	 */
+	protected void completed() {
+		// nothing to free by default
+	}
+
+	/**
+	 * Called after {@link #completed()}, for whatever is keeping track of the request.
+	 */
+	void finished() {
+		// nothing is by default
+	}
+
+	/**
+	 * Returns what kind of request this is in {@link FCPMetrics}, usually the name of the FCP
+	 * message that starts it, or null if it shouldn't be counted there, e.g. because it shares
+	 * the request of another.
+	 */
+	protected String getRequestType() {
+		return null;
+	}
+
+	/**
+	 * Returns the key the request is for, or null if it isn't for one.
+	 */
+	protected String getKey() {
+		return null;
+	}
+
+	/**
+	 * Returns the size of the data the request sends to the node, if any.
+	 */
+	protected long getPayloadLength() {
+		return 0;
+	}
+
+	/**
+	 * @return the number of bytes the request fetched or inserted
+	 */
+	synchronized long getBytes() {
+		if(result instanceof FCPData) return ((FCPData)result).length();
+		return getPayloadLength();
+	}
+
+	FlightRecorder.Event getEvent() {
+		return event;
+	}
+
+	/**
+	 * Notes that the request has been sent to the node.
+	 * @return true if this is the first time it has been and it hasn't completed already
+	 */
+	synchronized boolean markSent() {
+		if(wasSent || done) return false;
+		wasSent = true;
+		sent = System.nanoTime();
+		return true;
+	}
+
+	synchronized boolean wasSent() {
+		return wasSent;
+	}
+
+	/**
+	 * @return how long the request waited before it was first sent to the node, in nanoseconds
+	 */
+	synchronized long getWaitTime() {
+		return sent - created;
+	}
+
+	/**
+	 * @return how long it has been since the request was first sent to the node, in nanoseconds
+	 */
+	synchronized long getTimeSinceSent() {
+		return System.nanoTime() - sent;
+	}
+
+	/**
+	 * @return the exception the request failed with, or null if it didn't fail
+	 */
+	synchronized Exception getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Notes that the node is working on the request, e.g. because it has just been sent or
+	 * the node has told us it has started compressing the data.
+	 */
+	protected synchronized void madeProgress() {
+		lastActivity = System.currentTimeMillis();
+	}
+
+	/**
+	 * Records what the node last told us about the request's progress. Only counts as activity
+	 * if the node has got further since the last time.
+	 */
+	protected synchronized void setProgress(RequestProgress newProgress) {
+		if(newProgress.isFurtherThan(progress)) {
+			lastActivity = System.currentTimeMillis();
+		}
+		progress = newProgress;
+	}
+
+	/**
+	 * @return what the node last told us about the request's progress, or null if it hasn't
+	 */
+	public synchronized RequestProgress getProgress() {
+		return progress;
+	}
+
+	/**
+	 * @return when we last heard that the node was getting anywhere with the request, or 0 if
+	 *         it hasn't been sent yet
+	 */
+	public synchronized long getLastActivity() {
+		return lastActivity;
+	}
+
+	/**
+	 * Completes the request successfully.
+	 * @return false if the request had already completed or been cancelled, in which case the
+	 *         caller still owns the value
+	 */
+	protected boolean succeed(T value) {
+		return complete(value, null);
+	}
+
+	protected void fail(Exception e) {
+		assert (e instanceof FCPException || e instanceof ConnectionTerminatedException) : "Unexpected failure " + e;
+		complete(null, e);
+	}
+
+	private boolean complete(T value, Exception e) {
+		synchronized(this) {
+			if(done) return false;
+			done = true;
+			result = value;
+			failure = e;
+			notifyAll();
+		}
+
+		completed();
+		finished();
+		runCallback();
+		return true;
+	}
+
+	private void runCallback() {
+		if(callback == null) return;
+
+		try {
+			callback.requestCompleted(this);
+		} catch(RuntimeException e) {
+			Logger.error(this, "Caught exception from request callback", e);
+		}
+	}
+
+	/**
+	 * Waits up to the given number of milliseconds for the request to complete.
+	 * @return true if the request has completed
+	 */
+	public synchronized boolean waitFor(long timeout) throws InterruptedException {
+		long end = System.currentTimeMillis() + timeout;
+		while(!done) {
+			long remaining = end - System.currentTimeMillis();
+			if(remaining <= 0) return false;
+			wait(remaining);
+		}
+		return true;
+	}
+
+	/**
+	 * Waits for the request to complete for as long as the node keeps getting somewhere with it,
+	 * but no longer than maxTime milliseconds in all. The request stalls if stallTimeout
+	 * milliseconds pass after it was sent without any progress; time spent waiting to be sent
+	 * only counts towards maxTime.
+	 * @return true if the request has completed
+	 */
+	public synchronized boolean waitWhileActive(long stallTimeout, long maxTime) throws InterruptedException {
+		long end = System.currentTimeMillis() + maxTime;
+		while(!done) {
+			long now = System.currentTimeMillis();
+			long deadline = end;
+			long active = getLastActivity();
+			if(active != 0) deadline = Math.min(deadline, active + stallTimeout);
+			long remaining = deadline - now;
+			if(remaining <= 0) return false;
+			wait(remaining);
+		}
+		return true;
+	}
+
+	/**
+	 * Waits for the request to complete and returns the result.
+	 * @throws CancellationException if the request was cancelled
+	 */
+	public synchronized T getResult() throws FCPException, ConnectionTerminatedException, InterruptedException {
+		while(!done) {
+			wait();
+		}
+
+		if(cancelled) throw new CancellationException();
+		if(failure instanceof FCPException) throw (FCPException)failure;
+		if(failure instanceof ConnectionTerminatedException) throw (ConnectionTerminatedException)failure;
+		return result;
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		synchronized(this) {
+			if(done) return false;
+			done = true;
+			cancelled = true;
+			notifyAll();
+		}
+
+		abort();
+		completed();
+		finished();
+		runCallback();
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	@Override
+	public T get() throws InterruptedException, ExecutionException {
+		try {
+			return getResult();
+		} catch(FCPException e) {
+			throw new ExecutionException(e);
+		} catch(ConnectionTerminatedException e) {
+			throw new ExecutionException(e);
+		}
+	}
+
+	@Override
+	public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if(!waitFor(unit.toMillis(timeout))) {
+			throw new TimeoutException();
+		}
+		return get();
+	}
+}
@@ -0,0 +1,222 @@
+/*
+ * FetchCoalescer.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.fcp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import freemail.utils.Logger;
+
+/**
+ * Lets fetches of the same key that run at the same time share a single request to the node.
+ * Several accounts often fetch the same keys, e.g. the mailsite of someone they all talk to, and
+ * there is no point in the node looking for the same thing more than once at a time.
+ *
+ * Every caller gets a request of its own, which can be cancelled without affecting the others.
+ * The request to the node is only cancelled once all of them have been. When it completes every
+ * caller gets the result, and as with any fetch each of them must release the data; the data is
+ * shared and only freed once all of them have (see {@link FCPData#retain()}).
+ *
+ * A caller only joins a fetch that runs at the same priority as its own or a more urgent one,
+ * so an interactive request isn't kept waiting behind the limit for background requests.
+ */
+public class FetchCoalescer {
+	private final Map<String, Flight> inFlight = new HashMap<String, Flight>();
+
+	/**
+	 * Starts the request to the node for a fetch that nobody else is running.
+	 */
+	interface Starter {
+		FCPRequest<FCPData> start(FCPRequestCallback<FCPData> cb) throws NoNodeConnectionException,
+		                                                                ConnectionTerminatedException;
+	}
+
+	/**
+	 * Fetches the given key, joining a fetch of the same key that is already running if there is
+	 * one and using the starter to begin a new one otherwise.
+	 */
+	FCPRequest<FCPData> fetch(String key, RequestClass requestClass, Starter starter, FCPRequestCallback<FCPData> cb)
+			throws NoNodeConnectionException, ConnectionTerminatedException {
+		Flight flight;
+		Follower follower;
+		synchronized(inFlight) {
+			flight = inFlight.get(key);
+			if(flight != null && flight.requestClass.getPriorityClass() <= requestClass.getPriorityClass()) {
+				follower = new Follower(flight, cb);
+				flight.followers.add(follower);
+				Logger.debug(this, "Joining fetch of " + key + " with " + flight.followers.size() + " callers");
+				return follower;
+			}
+
+			// a less urgent fetch of the key carries on for those already waiting for it
+			flight = new Flight(key, requestClass);
+			follower = new Follower(flight, cb);
+			flight.followers.add(follower);
+			inFlight.put(key, flight);
+		}
+
+		FCPRequest<FCPData> leader;
+		try {
+			leader = starter.start(flight);
+		} catch (NoNodeConnectionException e) {
+			abandon(flight, follower);
+			throw e;
+		} catch (ConnectionTerminatedException e) {
+			abandon(flight, follower);
+			throw e;
+		}
+
+		boolean cancel;
+		synchronized(inFlight) {
+			flight.leader = leader;
+			// everyone might have given up while it was being started
+			cancel = flight.followers.isEmpty();
+		}
+		if(cancel) leader.cancel(false);
+		return follower;
+	}
+
+	/**
+	 * @return the number of keys that are being fetched
+	 */
+	public int size() {
+		synchronized(inFlight) {
+			return inFlight.size();
+		}
+	}
+
+	/**
+	 * Called when the request for a flight couldn't be started. Whoever joined in the meantime
+	 * is told the same as the caller that started it.
+	 */
+	private void abandon(Flight flight, Follower starter) {
+		List<Follower> others;
+		synchronized(inFlight) {
+			if(inFlight.get(flight.key) == flight) inFlight.remove(flight.key);
+			flight.followers.remove(starter);
+			others = new ArrayList<Follower>(flight.followers);
+			flight.followers.clear();
+		}
+		for(Follower f : others) {
+			f.fail(FCPException.create(new FCPMessage(1, "ConnectionClosed")));
+		}
+	}
+
+	/**
+	 * Called when a caller gives up on a fetch, to cancel the request to the node once nobody
+	 * is waiting for it any more.
+	 */
+	private void leave(Flight flight, Follower follower) {
+		FCPRequest<FCPData> leader;
+		synchronized(inFlight) {
+			if(!flight.followers.remove(follower) || !flight.followers.isEmpty()) return;
+			if(inFlight.get(flight.key) == flight) inFlight.remove(flight.key);
+			leader = flight.leader;
+		}
+		if(leader != null) leader.cancel(false);
+	}
+
+	private class Flight implements FCPRequestCallback<FCPData> {
+		final String key;
+		final RequestClass requestClass;
+		final List<Follower> followers = new ArrayList<Follower>();
+		FCPRequest<FCPData> leader = null;
+
+		Flight(String key, RequestClass requestClass) {
+			this.key = key;
+			this.requestClass = requestClass;
+		}
+
+		@Override
+		public void requestCompleted(FCPRequest<FCPData> req) {
+			List<Follower> waiting;
+			synchronized(inFlight) {
+				if(inFlight.get(key) == this) inFlight.remove(key);
+				waiting = new ArrayList<Follower>(followers);
+				followers.clear();
+			}
+
+			// only this class cancels the request, and then nobody is waiting for it
+			if(req.isCancelled()) return;
+
+			FCPData data;
+			try {
+				data = req.getResult();
+			} catch (FCPException e) {
+				for(Follower f : waiting) f.fail(e);
+				return;
+			} catch (ConnectionTerminatedException e) {
+				for(Follower f : waiting) f.fail(e);
+				return;
+			} catch (InterruptedException e) {
+				// it has completed, so this won't happen
+				throw new AssertionError();
+			}
+
+			if(data == null) {
+				for(Follower f : waiting) f.succeed(null);
+				return;
+			}
+			for(Follower f : waiting) {
+				if(!f.succeed(data.retain())) data.release();
+			}
+			data.release();
+		}
+	}
+
+	private class Follower extends FCPRequest<FCPData> {
+		private final Flight flight;
+
+		Follower(Flight flight, FCPRequestCallback<FCPData> cb) {
+			super(cb);
+			this.flight = flight;
+		}
+
+		@Override
+		void start() {
+			// the flight's request does the work
+		}
+
+		@Override
+		protected void abort() {
+			leave(flight, this);
+		}
+
+		@Override
+		public RequestProgress getProgress() {
+			FCPRequest<FCPData> leader = getLeader();
+			return leader == null ? null : leader.getProgress();
+		}
+
+		@Override
+		public long getLastActivity() {
+			FCPRequest<FCPData> leader = getLeader();
+			return leader == null ? 0 : leader.getLastActivity();
+		}
+
+		private FCPRequest<FCPData> getLeader() {
+			synchronized(inFlight) {
+				return flight.leader;
+			}
+		}
+	}
+}
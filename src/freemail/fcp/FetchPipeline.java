@@ -0,0 +1,116 @@
+/*
+ * FetchPipeline.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.fcp;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import freemail.utils.Logger;
+
+/**
+ * Fetches a sequence of keys with up to a fixed number of requests in flight at the same time.
+ * The caller announces which keys it is going to want using {@link #prefetch(List)}, then
+ * collects the results one at a time, in whatever order it likes, using {@link #take(String)}.
+ * This way the time taken to check n keys is roughly that of the slowest fetch instead of the
+ * sum of all of them, while the results can still be handled in order.
+ *
+ * Instances are not thread safe, they are meant to be used by the thread that is handling the
+ * results.
+ */
+public class FetchPipeline {
+	// how long to wait for the node to come back before complaining again
+	private static final long NODE_WAIT = 60 * 1000;
+
+	private final FreenetClient client;
+	private final int maxInFlight;
+
+	// requests that have been started but not taken, in the order they were started
+	private final Map<String, FCPRequest<FCPData>> requests = new LinkedHashMap<String, FCPRequest<FCPData>>();
+
+	public FetchPipeline(FreenetClient client, int maxInFlight) {
+		if(maxInFlight < 1) {
+			throw new IllegalArgumentException("maxInFlight must be positive, was " + maxInFlight);
+		}
+
+		this.client = client;
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * Starts fetching the given keys, in order, unless they are already being fetched. Keys are
+	 * skipped once there are as many requests outstanding as allowed, or if there is no
+	 * connection to the node, in which case they will be fetched by {@link #take(String)}
+	 * instead.
+	 */
+	public void prefetch(List<String> keys) throws ConnectionTerminatedException {
+		for(String key : keys) {
+			if(requests.size() >= maxInFlight) return;
+			if(requests.containsKey(key)) continue;
+
+			try {
+				requests.put(key, client.fetch(key, null));
+			} catch (NoNodeConnectionException e) {
+				Logger.debug(this, "No connection to node, not prefetching");
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns the request for the given key, starting it if it hasn't been prefetched. The key
+	 * is removed from the pipeline, so calling this again for the same key will start a new
+	 * request.
+	 */
+	public FCPRequest<FCPData> take(String key) throws ConnectionTerminatedException, InterruptedException {
+		FCPRequest<FCPData> req = requests.remove(key);
+		while(req == null) {
+			try {
+				req = client.fetch(key, null);
+			} catch (NoNodeConnectionException nnce) {
+				Logger.error(this,"Warning - no connection to node. Waiting...");
+				client.awaitConnection(NODE_WAIT);
+			}
+		}
+		return req;
+	}
+
+	/**
+	 * Cancels all requests that haven't been taken and releases any data they have fetched.
+	 */
+	public void cancelAll() {
+		Iterator<FCPRequest<FCPData>> it = requests.values().iterator();
+		while(it.hasNext()) {
+			FCPRequest<FCPData> req = it.next();
+			it.remove();
+
+			if(req.cancel(false)) continue;
+
+			// It had already completed so we have to clean up after it
+			try {
+				FCPData data = req.getResult();
+				if(data != null) data.release();
+			} catch (Exception e) {
+				// Failed requests don't leave anything behind
+			}
+		}
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * FetchProfile.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.fcp;
+
+/**
+ * What is being fetched, which decides how large a result the node will hand back, how hard it
+ * tries to find the key and whether it looks in its own datastore. Data over the size limit is
+ * rejected by the node with {@link FCPFetchException#TOO_BIG} before any of it reaches us, which
+ * matters for keys that anyone can insert to, such as RTS slots.
+ */
+public enum FetchProfile {
+	/** RTS messages, which anyone who knows our RTS key can send us */
+	RTS(2 * 1024 * 1024, 0, false),
+	/** Messages from our contacts, which may be as large as they like */
+	MESSAGE(-1, 0, false),
+	/** Acks and CTS messages, which are a block of random data */
+	ACK(4 * 1024, 0, false),
+	/** Someone's mailsite, fetched once when we need it rather than polled */
+	MAILSITE(64 * 1024, 2, false),
+	/** The KSK that points to someone's mailsite */
+	REDIRECT(512, 2, false);
+
+	private final long maxSize;
+	private final int maxRetries;
+	private final boolean ignoreStore;
+
+	private FetchProfile(long maxSize, int maxRetries, boolean ignoreStore) {
+		this.maxSize = maxSize;
+		this.maxRetries = maxRetries;
+		this.ignoreStore = ignoreStore;
+	}
+
+	/**
+	 * @return the largest result we want in bytes, or -1 if there is no limit
+	 */
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @return how many times the node should retry after failing to find the key. Keys that we
+	 *         poll anyway aren't retried, the next poll does that.
+	 */
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	/**
+	 * @return true if the node should go to the network even if it has the key in its datastore
+	 */
+	public boolean isIgnoreStore() {
+		return ignoreStore;
+	}
+
+	/**
+	 * Adds the profile's settings to a ClientGet.
+	 */
+	void addTo(FCPMessage msg) {
+		if (maxSize >= 0) msg.headers.put("MaxSize", Long.toString(maxSize));
+		msg.headers.put("MaxRetries", Integer.toString(maxRetries));
+		if (ignoreStore) msg.headers.put("IgnoreDS", "true");
+	}
+}
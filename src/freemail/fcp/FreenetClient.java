@@ -0,0 +1,124 @@
+/*
+ * FreenetClient.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.fcp;
+
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Non-blocking access to a Freenet node. Every method starts its request and returns immediately
+ * with an {@link FCPRequest} that completes when the node answers.
+ */
+public interface FreenetClient {
+	/**
+	 * Starts fetching the given key. The result of the request is the fetched data, which it is
+	 * up to the caller to release, or null if the node returned a failure that couldn't be
+	 * interpreted. A fetch that fails throws {@link FCPFetchException} from
+	 * {@link FCPRequest#getResult()}. The fetch uses the {@link FetchProfile#MESSAGE} profile.
+	 */
+	public FCPRequest<FCPData> fetch(String key, FCPRequestCallback<FCPData> cb) throws NoNodeConnectionException,
+	                                                                              ConnectionTerminatedException;
+
+	/**
+	 * As {@link #fetch(String, FCPRequestCallback)}, with the size limit and retries of the given
+	 * profile.
+	 */
+	public FCPRequest<FCPData> fetch(String key, FetchProfile profile, FCPRequestCallback<FCPData> cb)
+			throws NoNodeConnectionException, ConnectionTerminatedException;
+
+	/**
+	 * Starts a fetch of the given key that the node keeps retrying until the key turns up, for
+	 * keys that we expect to be inserted at some point, e.g. the next slot of a contact. The
+	 * request only completes when the data is found, the node gives up for some other reason or
+	 * the connection is lost, and is otherwise as for {@link #fetch(String, FCPRequestCallback)}.
+	 * Watches are usually kept in a {@link WatchSet}.
+	 */
+	public FCPRequest<FCPData> watch(String key, FCPRequestCallback<FCPData> cb) throws NoNodeConnectionException,
+	                                                                              ConnectionTerminatedException;
+
+	/**
+	 * As {@link #watch(String, FCPRequestCallback)}, with the size limit of the given profile.
+	 * The node keeps retrying whatever the profile says.
+	 */
+	public FCPRequest<FCPData> watch(String key, FetchProfile profile, FCPRequestCallback<FCPData> cb)
+			throws NoNodeConnectionException, ConnectionTerminatedException;
+
+	/**
+	 * Starts inserting the given data. The result of the request is always null, an insert that
+	 * fails throws {@link FCPPutFailedException} from {@link FCPRequest#getResult()}.
+	 */
+	public FCPRequest<Void> put(InputStream data, String key, FCPRequestCallback<Void> cb) throws NoNodeConnectionException,
+	                                                                                             ConnectionTerminatedException,
+	                                                                                             FCPBadFileException;
+
+	/**
+	 * Starts inserting the given data as a persistent request on the node's global queue, under
+	 * an identifier that the caller will use again for the same insert. Unlike a normal insert it
+	 * carries on if we go away, and if the node already has an insert with that identifier we
+	 * just wait for it to finish instead of starting another.
+	 *
+	 * The request is removed from the node's queue once it has finished and we have seen the
+	 * result, which is as for {@link #put(InputStream, String, FCPRequestCallback)}.
+	 * @param data the data to insert, or null if the insert is known to be on the node already
+	 */
+	public FCPRequest<Void> putPersistent(InputStream data, String key, String identifier, FCPRequestCallback<Void> cb)
+			throws NoNodeConnectionException, ConnectionTerminatedException, FCPBadFileException;
+
+	/**
+	 * Lists the inserts on the node's global queue. The result maps identifiers to what the node
+	 * said about them.
+	 */
+	public FCPRequest<Map<String, PersistentRequest>> listPersistentRequests(FCPRequestCallback<Map<String, PersistentRequest>> cb)
+			throws NoNodeConnectionException, ConnectionTerminatedException;
+
+	/**
+	 * Asks the node to generate a new SSK keypair. The result of the request is the new keypair,
+	 * or null if the node didn't return one.
+	 */
+	public FCPRequest<SSKKeyPair> makeSSK(FCPRequestCallback<SSKKeyPair> cb) throws NoNodeConnectionException,
+	                                                                               ConnectionTerminatedException;
+
+	/**
+	 * Waits until the client can reach the node again after having thrown
+	 * NoNodeConnectionException, or the timeout expires.
+	 * @return true if the node can be reached
+	 */
+	public boolean awaitConnection(long timeout) throws InterruptedException;
+
+	/**
+	 * Returns a client whose requests are all sent to the node that handles the given shard,
+	 * usually the name of an account, or to any node if shard is null. Clients that only use one node may return themselves.
+	 */
+	public FreenetClient forShard(String shard);
+
+	/**
+	 * Returns a client whose requests are all of the given class, which decides how urgent the
+	 * node and our own scheduling consider them. Requests are of class
+	 * {@link RequestClass#MESSAGE} unless a client for another class is used. Clients that don't
+	 * schedule requests may return themselves.
+	 */
+	public FreenetClient forClass(RequestClass requestClass);
+
+	/**
+	 * Returns the metrics of the requests made through this client, which are shared with the
+	 * clients returned by {@link #forShard(String)} and {@link #forClass(RequestClass)}.
+	 */
+	public FCPMetrics getMetrics();
+}
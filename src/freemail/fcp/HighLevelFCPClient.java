@@ -26,183 +26,234 @@ import java.io.InputStream;
 import java.io.FileInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Map;
 
 import freemail.Freemail;
 import freemail.utils.Logger;
 
-public class HighLevelFCPClient implements FCPClient {
-	private static final int FCP_TOO_MANY_PATH_COMPONENTS = 11;
-	private static final int FCP_PERMANANT_REDIRECT = 27;
-	// wait 10 minutes before giving up on inserts
-	private static final int PUT_TIMEOUT = 10 * 60 * 1000;
+public class HighLevelFCPClient {
+	// give up on inserts that the node hasn't got anywhere with for 5 minutes
+	private static final long PUT_STALL_TIMEOUT = 5 * 60 * 1000;
+	// and on any insert after an hour, however it's going
+	private static final long PUT_MAX_TIME = 60 * 60 * 1000;
+	// persistent inserts carry on when we stop waiting, so there's no point waiting for long
+	private static final long PERSISTENT_PUT_TIMEOUT = 10 * 60 * 1000;
+	// how long to wait for the node to come back before complaining again
+	private static final long NODE_WAIT = 60 * 1000;
 
-	private FCPConnection conn;
-
-	private FCPMessage donemsg;
-	private final Object donemsgLock = new Object();
+	private final FreenetClient client;
 	
 	public HighLevelFCPClient() {
-		this.conn = Freemail.getFCPConnection();
+		this.client = Freemail.getFreenetClient();
+	}
+	
+	/**
+	 * Creates a client whose requests all go to the node that handles the given shard, e.g. the
+	 * name of the account they are made for. If shard is null any node may be used.
+	 */
+	public HighLevelFCPClient(String shard) {
+		this(shard, RequestClass.MESSAGE);
+	}
+	
+	/**
+	 * As above, with all requests of the given class.
+	 */
+	public HighLevelFCPClient(String shard, RequestClass requestClass) {
+		this(Freemail.getFreenetClient().forShard(shard).forClass(requestClass));
+	}
+	
+	HighLevelFCPClient(FreenetClient client) {
+		this.client = client;
 	}
 	
-	// It's up to the client to delete this File once they're
+	// It's up to the client to release the data once they're
 	// done with it
-	public synchronized File fetch(String key) throws ConnectionTerminatedException,
-	                                                  FCPFetchException, FCPException,
-	                                                  InterruptedException {
-		FCPMessage msg = this.conn.getMessage("ClientGet");
-		msg.headers.put("URI", key);
-		msg.headers.put("ReturnType", "direct");
-		msg.headers.put("Persistence", "connection");
+	public FCPData fetch(String key) throws ConnectionTerminatedException, FCPFetchException, FCPException,
+	                                     InterruptedException {
+		return fetch(key, FetchProfile.MESSAGE);
+	}
+	
+	/**
+	 * As {@link #fetch(String)}, with the size limit and retries of the given profile.
+	 */
+	public FCPData fetch(String key, FetchProfile profile) throws ConnectionTerminatedException, FCPFetchException,
+	                                                             FCPException, InterruptedException {
+		FCPRequest<FCPData> req;
+		while (true) {
+			try {
+				req = this.client.fetch(key, profile, null);
+				break;
+			} catch (NoNodeConnectionException nnce) {
+				Logger.error(this,"Warning - no connection to node. Waiting...");
+				this.client.awaitConnection(NODE_WAIT);
+			}
+		}
 
-		FCPMessage reply;
-		synchronized(donemsgLock) {
-			assert (this.donemsg == null);
-			this.donemsg = null;
+		try {
+			return req.getResult();
+		} catch (InterruptedException ie) {
+			Logger.debug(this, "HighLevelFCPClient interrupted in fetch, stopping");
+			req.cancel(false);
+			throw ie;
+		}
+	}
+	
+	public SSKKeyPair makeSSK() throws ConnectionTerminatedException, InterruptedException {
+		FCPRequest<SSKKeyPair> req;
+		while (true) {
+			try {
+				req = this.client.makeSSK(null);
+				break;
+			} catch (NoNodeConnectionException nnce) {
+				Logger.error(this,"Warning - no connection to node. Waiting...");
+				this.client.awaitConnection(NODE_WAIT);
+			}
+		}
 
+		try {
+			return req.getResult();
+		} catch (InterruptedException ie) {
+			Logger.debug(this, "HighLevelFCPClient interrupted in makeSSK, stopping");
+			req.cancel(false);
+			throw ie;
+		} catch (FCPException e) {
+			// SSK requests never fail, they return null instead
+			throw new AssertionError();
+		}
+	}
+	
+	public FCPPutFailedException put(InputStream data, String key) throws FCPBadFileException,
+	                                                                      ConnectionTerminatedException,
+	                                                                      FCPException,
+	                                                                      InterruptedException {
+		FCPData payload = copyOf(data);
+		FCPRequest<Void> req;
+		try {
 			while (true) {
 				try {
-					this.conn.doRequest(this, msg);
+					req = this.client.put(openPayload(payload), key, null);
 					break;
 				} catch (NoNodeConnectionException nnce) {
 					Logger.error(this,"Warning - no connection to node. Waiting...");
-					Thread.sleep(10000);
-				} catch (FCPBadFileException bfe) {
-					// won't be thrown since this is a get,
-					// but keep the compiler happy
+					this.client.awaitConnection(NODE_WAIT);
 				}
 			}
-
-			while (this.donemsg == null) {
-				try {
-					donemsgLock.wait();
-				} catch (InterruptedException ie) {
-					Logger.debug(this, "HighLevelFCPClient interrupted in fetch, stopping");
-					conn.cancelRequest(msg);
-					throw ie;
-				}
-			}
-			reply = this.donemsg;
-			this.donemsg = null;
-		}
-		
-		if (reply.getType().equalsIgnoreCase("AllData")) {
-			return reply.getData();
-		} else if (reply.getType().equalsIgnoreCase("GetFailed")) {
-			String s_code = reply.headers.get("Code");
-			if (s_code == null) return null;
-			int code = Integer.parseInt(s_code);
-			if (code == FCP_PERMANANT_REDIRECT || code == FCP_TOO_MANY_PATH_COMPONENTS) {
-				String newuri = reply.headers.get("RedirectURI");
-				if (newuri == null) return null;
-				return this.fetch(newuri);
-			}
-			throw new FCPFetchException(reply);
-		} else {
-			throw FCPException.create(reply);
+		} finally {
+			payload.release();
 		}
+
+		return waitForPut(req, PUT_STALL_TIMEOUT, PUT_MAX_TIME);
 	}
 	
-	public synchronized SSKKeyPair makeSSK() throws ConnectionTerminatedException,
-	                                                InterruptedException {
-		FCPMessage msg = this.conn.getMessage("GenerateSSK");
-
-		FCPMessage reply;
-		synchronized(donemsgLock) {
-			assert (this.donemsg == null);
-			this.donemsg = null;
-
+	/**
+	 * As {@link #put(InputStream, String)}, but the insert is a persistent request on the node's
+	 * global queue under the given identifier, so it isn't lost if we give up waiting for it or
+	 * go away. Using the same identifier again picks up the existing insert.
+	 * @param data the data to insert, or null if the insert is known to be on the node already
+	 */
+	public FCPPutFailedException putPersistent(InputStream data, String key, String identifier) throws FCPBadFileException,
+	                                                                                                 ConnectionTerminatedException,
+	                                                                                                 FCPException,
+	                                                                                                 InterruptedException {
+		FCPData payload = (data != null) ? copyOf(data) : null;
+		FCPRequest<Void> req;
+		try {
 			while (true) {
 				try {
-					this.conn.doRequest(this, msg);
+					req = this.client.putPersistent(openPayload(payload), key, identifier, null);
 					break;
 				} catch (NoNodeConnectionException nnce) {
 					Logger.error(this,"Warning - no connection to node. Waiting...");
-					Thread.sleep(5000);
-				} catch (FCPBadFileException bfe) {
-					// won't be thrown since no data
+					this.client.awaitConnection(NODE_WAIT);
 				}
 			}
+		} finally {
+			if (payload != null) payload.release();
+		}
 
-			while (this.donemsg == null) {
-				try {
-					donemsgLock.wait();
-				} catch (InterruptedException ie) {
-					Logger.debug(this, "HighLevelFCPClient interrupted in makeSSK, stopping");
-					conn.cancelRequest(msg);
-					throw ie;
-				}
+		return waitForPut(req, PERSISTENT_PUT_TIMEOUT, PERSISTENT_PUT_TIMEOUT);
+	}
+	
+	/**
+	 * Reads the data to insert once and closes the stream, since the client reads what it is
+	 * given even when it then can't reach the node, and the insert may have to be tried again.
+	 */
+	private static FCPData copyOf(InputStream data) throws FCPBadFileException {
+		try {
+			try {
+				return FCPData.copyOf(data);
+			} finally {
+				data.close();
 			}
-
-			reply = this.donemsg;
-			this.donemsg = null;
+		} catch (IOException ioe) {
+			throw new FCPBadFileException();
 		}
-		
-		if (reply.getType().equalsIgnoreCase("SSKKeypair")) {
-			SSKKeyPair retval = new SSKKeyPair();
-			
-			retval.privkey = reply.headers.get("InsertURI");
-			retval.pubkey = reply.headers.get("RequestURI");
-			return retval;
-		} else {
-			return null;
+	}
+	
+	/**
+	 * Returns a new stream over the data for one attempt at inserting it, or null if there's no data.
+	 */
+	private static InputStream openPayload(FCPData payload) throws FCPBadFileException {
+		if (payload == null) return null;
+		try {
+			return payload.getInputStream();
+		} catch (IOException ioe) {
+			throw new FCPBadFileException();
 		}
 	}
 	
-	public synchronized FCPPutFailedException put(InputStream data, String key) throws FCPBadFileException,
-	                                                                                   ConnectionTerminatedException,
-	                                                                                   FCPException,
-	                                                                                   InterruptedException {
-		FCPMessage msg = this.conn.getMessage("ClientPut");
-		msg.headers.put("URI", key);
-		msg.headers.put("Persistence", "connection");
-		msg.setData(data);
-		
-		FCPMessage reply;
-		synchronized(donemsgLock) {
-			assert (this.donemsg == null);
-			this.donemsg = null;
-
-			long startedAt = 0;
-			while (true) {
-				try {
-					this.conn.doRequest(this, msg);
-					startedAt = System.currentTimeMillis();
-					break;
-				} catch (NoNodeConnectionException nnce) {
-					Logger.error(this,"Warning - no connection to node. Waiting...");
-					Thread.sleep(5000);
-				}
+	/**
+	 * Returns the inserts on the node's global queue, by identifier.
+	 */
+	public Map<String, PersistentRequest> listPersistentRequests() throws ConnectionTerminatedException, FCPException,
+	                                                                       InterruptedException {
+		FCPRequest<Map<String, PersistentRequest>> req;
+		while (true) {
+			try {
+				req = this.client.listPersistentRequests(null);
+				break;
+			} catch (NoNodeConnectionException nnce) {
+				Logger.error(this,"Warning - no connection to node. Waiting...");
+				this.client.awaitConnection(NODE_WAIT);
 			}
+		}
 
-			while (this.donemsg == null) {
-				if (System.currentTimeMillis() > startedAt + PUT_TIMEOUT) {
-					Logger.error(this, "Put timed out after "+PUT_TIMEOUT+"ms. That's not good!");
-					// 'cancel' the request, otherwise we'll leak memory
-					this.conn.cancelRequest(msg);
+		try {
+			return req.getResult();
+		} catch (InterruptedException ie) {
+			Logger.debug(this, "HighLevelFCPClient interrupted in listPersistentRequests, stopping");
+			req.cancel(false);
+			throw ie;
+		}
+	}
+	
+	/**
+	 * Waits for an insert for as long as the node is getting somewhere with it, see
+	 * {@link FCPRequest#waitWhileActive(long, long)}, and cancels it if it stalls or takes too
+	 * long.
+	 */
+	private FCPPutFailedException waitForPut(FCPRequest<Void> req, long stallTimeout, long maxTime)
+			throws ConnectionTerminatedException, FCPException, InterruptedException {
+		long start = System.currentTimeMillis();
+		try {
+			if (!req.waitWhileActive(stallTimeout, maxTime)) {
+				Logger.error(this, "Put timed out after " + (System.currentTimeMillis() - start) + "ms, progress was "
+						+ req.getProgress() + ". That's not good!");
+				// cancel the request, so the node stops working on it and we don't leak memory
+				req.cancel(false);
 
-					return new FCPPutFailedException(FCPPutFailedException.TIMEOUT, false);
-				}
-				try {
-					donemsgLock.wait(30000);
-				} catch (InterruptedException ie) {
-					Logger.debug(this, "HighLevelFCPClient interrupted in put, stopping");
-					conn.cancelRequest(msg);
-					throw ie;
-				}
+				return new FCPPutFailedException(FCPPutFailedException.TIMEOUT, false);
 			}
-
-			reply = this.donemsg;
-			this.donemsg = null;
-		}
-		
-		if (reply.getType().equalsIgnoreCase("PutSuccessful")) {
-			return null;
-		} else if(reply.getType().equalsIgnoreCase("PutFailed")) {
-			return new FCPPutFailedException(reply);
-		} else {
-			throw FCPException.create(reply);
+			req.getResult();
+		} catch (InterruptedException ie) {
+			Logger.debug(this, "HighLevelFCPClient interrupted in put, stopping");
+			req.cancel(false);
+			throw ie;
+		} catch (FCPPutFailedException e) {
+			return e;
 		}
+		return null;
 	}
 	
 	public int SlotInsert(File data, String basekey, int minslot, String suffix) throws ConnectionTerminatedException,
@@ -276,18 +327,4 @@ public class HighLevelFCPClient implements FCPClient {
 		}
 		return -1;
 	}
-	
-	@Override
-	public void requestStatus(FCPMessage msg) {
-		
-	}
-	
-	@Override
-	public void requestFinished(FCPMessage msg) {
-		synchronized (donemsgLock) {
-			assert (donemsg == null);
-			this.donemsg = msg;
-			donemsgLock.notifyAll();
-		}
-	}
 }
@@ -0,0 +1,245 @@
+/*
+ * OfflineQueue.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.fcp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import freemail.utils.Logger;
+
+/**
+ * Holds requests that couldn't be sent because there was no connection to the node, including
+ * ones that lost their connection before the node answered them. Whenever a connection has
+ * received NodeHello the queue is replayed, most urgent priority class first and in the order
+ * the requests were queued within each class.
+ *
+ * The queue is bounded: once it is full, requests fail with NoNodeConnectionException as they
+ * would without a queue. It can also be told to keep the data of queued inserts on disk, so
+ * that a long outage doesn't mean holding every pending message in memory.
+ */
+public class OfflineQueue {
+	public static final int DEFAULT_CAPACITY = 200;
+
+	private final CircuitBreaker breaker;
+	private final int capacity;
+	private final boolean onDisk;
+
+	private final PriorityQueue<Entry> queue = new PriorityQueue<Entry>(16, new EntryComparator());
+	private long nextSequence = 0;
+	private boolean replaying = false;
+	// set if another connection came up while we were replaying
+	private boolean replayAgain = false;
+	private boolean closed = false;
+
+	/**
+	 * @param capacity the most requests that will be held, 0 to not queue at all
+	 * @param onDisk true if the data of queued inserts should be moved to disk
+	 */
+	OfflineQueue(CircuitBreaker breaker, int capacity, boolean onDisk) {
+		this.breaker = breaker;
+		this.capacity = capacity;
+		this.onDisk = onDisk;
+	}
+
+	/**
+	 * Queues a request until the node is back.
+	 * @return false if the queue is full or has been closed
+	 */
+	boolean offer(ConnectionRequest<?> req) {
+		if(isFull()) return false;
+
+		if(onDisk) {
+			try {
+				req.spool();
+			} catch(IOException e) {
+				Logger.error(this, "Couldn't move queued request to disk, keeping it in memory: " + e.getMessage());
+			}
+		}
+
+		synchronized(this) {
+			if(closed || queue.size() >= capacity) return false;
+			queue.add(new Entry(req, nextSequence++));
+		}
+
+		// the node might have come back while we were deciding to queue this
+		if(!breaker.isOpen()) replay();
+		return true;
+	}
+
+	private synchronized boolean isFull() {
+		return closed || queue.size() >= capacity;
+	}
+
+	/**
+	 * Removes a request that is no longer wanted.
+	 */
+	synchronized boolean remove(ConnectionRequest<?> req) {
+		Iterator<Entry> it = queue.iterator();
+		while(it.hasNext()) {
+			if(it.next().req == req) {
+				it.remove();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Removes and returns the request that should be sent next, or null if there are none.
+	 */
+	synchronized ConnectionRequest<?> poll() {
+		Entry e = queue.poll();
+		return e == null ? null : e.req;
+	}
+
+	/**
+	 * @return the number of requests waiting for the node
+	 */
+	public synchronized int size() {
+		return queue.size();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Starts sending the queued requests again, unless that is already happening. This is done on
+	 * a thread of its own, since it is called by the connections as soon as they are up.
+	 */
+	void replay() {
+		synchronized(this) {
+			if(replaying) {
+				replayAgain = true;
+				return;
+			}
+			if(closed || queue.isEmpty()) return;
+			replaying = true;
+		}
+
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				boolean again = true;
+				try {
+					while(again) {
+						sendQueued();
+						again = checkReplayAgain();
+					}
+				} finally {
+					// only still set if something blew up
+					if(again) {
+						synchronized(OfflineQueue.this) {
+							replaying = false;
+						}
+					}
+				}
+			}
+		}, "Freemail FCP offline queue replay");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * @return true if we should go through the queue again, otherwise we are no longer replaying
+	 */
+	private synchronized boolean checkReplayAgain() {
+		if(replayAgain) {
+			replayAgain = false;
+			return true;
+		}
+		replaying = false;
+		return false;
+	}
+
+	private void sendQueued() {
+		int sent = 0;
+		while(true) {
+			Entry e;
+			synchronized(this) {
+				if(closed) return;
+				e = queue.poll();
+			}
+			if(e == null) break;
+			if(e.req.isDone()) continue;
+
+			try {
+				e.req.start();
+				sent++;
+			} catch(NoNodeConnectionException nnce) {
+				// lost the node again, so put it back where it was and wait for the next connection
+				synchronized(this) {
+					queue.add(e);
+				}
+				Logger.debug(this, "Lost node connection while replaying queued requests");
+				break;
+			} catch(ConnectionTerminatedException cte) {
+				e.req.fail(cte);
+			} catch(FCPBadFileException bfe) {
+				Logger.error(this, "Couldn't read data of queued request: " + bfe.getMessage());
+				e.req.fail(FCPException.create(new FCPMessage(1, "ConnectionClosed")));
+			}
+		}
+
+		if(sent > 0) Logger.normal(this, "Sent " + sent + " requests that were waiting for the node");
+	}
+
+	/**
+	 * Fails everything that is still queued and refuses new requests, for when we are shutting
+	 * down.
+	 */
+	void close() {
+		List<Entry> left;
+		synchronized(this) {
+			closed = true;
+			left = new ArrayList<Entry>(queue);
+			queue.clear();
+		}
+
+		for(Entry e : left) {
+			e.req.fail(new ConnectionTerminatedException("Shutting down"));
+		}
+	}
+
+	private static class Entry {
+		final ConnectionRequest<?> req;
+		final long sequence;
+		final int priority;
+
+		Entry(ConnectionRequest<?> req, long sequence) {
+			this.req = req;
+			this.sequence = sequence;
+			this.priority = req.getPriority();
+		}
+	}
+
+	private static class EntryComparator implements Comparator<Entry> {
+		@Override
+		public int compare(Entry a, Entry b) {
+			if(a.priority != b.priority) return a.priority < b.priority ? -1 : 1;
+			if(a.sequence != b.sequence) return a.sequence < b.sequence ? -1 : 1;
+			return 0;
+		}
+	}
+}
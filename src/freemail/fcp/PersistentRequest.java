@@ -0,0 +1,71 @@
+/*
+ * PersistentRequest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.fcp;
+
+/**
+ * What the node told us about one of the inserts on its global queue when we listed them.
+ */
+public class PersistentRequest {
+	private final String identifier;
+	private String uri = null;
+	private boolean finished = false;
+	private FCPPutFailedException failure = null;
+
+	PersistentRequest(String identifier) {
+		this.identifier = identifier;
+	}
+
+	public String getIdentifier() {
+		return identifier;
+	}
+
+	/**
+	 * @return the key being inserted, or null if the node didn't say
+	 */
+	public String getURI() {
+		return uri;
+	}
+
+	/**
+	 * @return true if the node has finished the insert, successfully or not
+	 */
+	public boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * @return why the insert failed, or null if it succeeded or is still running
+	 */
+	public FCPPutFailedException getFailure() {
+		return failure;
+	}
+
+	void update(FCPMessage msg) {
+		String msgUri = msg.headers.get("URI");
+		if (msgUri != null) uri = msgUri;
+
+		if (msg.getType().equalsIgnoreCase("PutSuccessful")) {
+			finished = true;
+		} else if (msg.getType().equalsIgnoreCase("PutFailed")) {
+			finished = true;
+			failure = new FCPPutFailedException(msg);
+		}
+	}
+}
@@ -0,0 +1,435 @@
+/*
+ * PluginFreenetClient.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.fcp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import freemail.utils.Logger;
+import freenet.client.ClientMetadata;
+import freenet.client.FetchException;
+import freenet.client.FetchResult;
+import freenet.client.HighLevelSimpleClient;
+import freenet.client.InsertBlock;
+import freenet.client.InsertException;
+import freenet.keys.FreenetURI;
+import freenet.support.io.ArrayBucket;
+
+/**
+ * {@link FreenetClient} that calls the node directly when Freemail is running as a plugin, so
+ * requests never go through a socket or the FCP codec and the data stays in memory. The node's
+ * simple client API blocks, so every request runs in a thread of its own. Failures are reported
+ * with the same exceptions and error codes as the FCP client (the codes are the node's own).
+ */
+public class PluginFreenetClient implements FreenetClient {
+	private static final int MAX_REDIRECTS = 10;
+
+	private final HighLevelSimpleClient client;
+	private final ExecutorService executor;
+	private final Set<NodeRequest<?>> running = new HashSet<NodeRequest<?>>();
+	// requests run as soon as they are made, so nothing is ever queued
+	private final FCPMetrics metrics = new FCPMetrics();
+	private boolean stopping = false;
+
+	public PluginFreenetClient(HighLevelSimpleClient client) {
+		this.client = client;
+		this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Freemail node request");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	@Override
+	public FCPRequest<FCPData> fetch(String key, FCPRequestCallback<FCPData> cb) throws ConnectionTerminatedException {
+		return fetch(key, FetchProfile.MESSAGE, cb);
+	}
+
+	@Override
+	public FCPRequest<FCPData> fetch(String key, FetchProfile profile, FCPRequestCallback<FCPData> cb)
+			throws ConnectionTerminatedException {
+		FetchRequest req = new FetchRequest(key, profile, cb);
+		req.start();
+		return req;
+	}
+
+	@Override
+	public FCPRequest<FCPData> watch(String key, FCPRequestCallback<FCPData> cb) throws ConnectionTerminatedException {
+		return watch(key, FetchProfile.MESSAGE, cb);
+	}
+
+	@Override
+	public FCPRequest<FCPData> watch(String key, FetchProfile profile, FCPRequestCallback<FCPData> cb)
+			throws ConnectionTerminatedException {
+		// The simple client blocks for as long as the node keeps trying, so a watch would hold
+		// on to a thread each. Fetch once instead, the caller will watch again if it isn't there.
+		return fetch(key, profile, cb);
+	}
+
+	@Override
+	public FCPRequest<Void> put(InputStream data, String key, FCPRequestCallback<Void> cb) throws ConnectionTerminatedException,
+	                                                                                             FCPBadFileException {
+		// The node wants a bucket anyway, and what we insert is small
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		try {
+			byte[] b = new byte[4096];
+			int read;
+			while((read = data.read(b)) >= 0) {
+				buf.write(b, 0, read);
+			}
+		} catch (IOException ioe) {
+			throw new FCPBadFileException();
+		}
+
+		PutRequest req = new PutRequest(buf.toByteArray(), key, cb);
+		req.start();
+		return req;
+	}
+
+	@Override
+	public FCPRequest<Void> putPersistent(InputStream data, String key, String identifier, FCPRequestCallback<Void> cb)
+			throws ConnectionTerminatedException, FCPBadFileException {
+		// The simple client has no persistent requests, and as part of the node we don't lose
+		// our inserts to a dropped connection anyway. Nothing can be on the node already since
+		// we never list anything.
+		if(data == null) throw new FCPBadFileException();
+		return put(data, key, cb);
+	}
+
+	@Override
+	public FCPRequest<Map<String, PersistentRequest>> listPersistentRequests(FCPRequestCallback<Map<String, PersistentRequest>> cb)
+			throws ConnectionTerminatedException {
+		ListRequest req = new ListRequest(cb);
+		req.start();
+		return req;
+	}
+
+	@Override
+	public FCPRequest<SSKKeyPair> makeSSK(FCPRequestCallback<SSKKeyPair> cb) throws ConnectionTerminatedException {
+		SSKRequest req = new SSKRequest(cb);
+		req.start();
+		return req;
+	}
+
+	@Override
+	public boolean awaitConnection(long timeout) {
+		// we're part of the node, so it can always be reached
+		return true;
+	}
+
+	@Override
+	public FreenetClient forShard(String shard) {
+		// there's only the one node
+		return this;
+	}
+
+	@Override
+	public FreenetClient forClass(RequestClass requestClass) {
+		// the simple client takes its priority from the node's defaults, and each request has a
+		// thread of its own so there is nothing to schedule
+		return this;
+	}
+
+	@Override
+	public FCPMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Fails all outstanding requests and refuses new ones. Requests that are blocked in the node
+	 * are left to finish on their own, their results are thrown away.
+	 */
+	public void kill() {
+		Set<NodeRequest<?>> toFail;
+		synchronized(this) {
+			stopping = true;
+			toFail = new HashSet<NodeRequest<?>>(running);
+			running.clear();
+		}
+		executor.shutdown();
+
+		for(NodeRequest<?> req : toFail) {
+			req.fail(new ConnectionTerminatedException("The Freenet client has been terminated"));
+		}
+	}
+
+	private synchronized void add(NodeRequest<?> req) throws ConnectionTerminatedException {
+		if(stopping) throw new ConnectionTerminatedException("The Freenet client has been terminated");
+		running.add(req);
+	}
+
+	private synchronized void remove(NodeRequest<?> req) {
+		running.remove(req);
+	}
+
+	/**
+	 * Builds the message the node would have sent over FCP for the given failure, so the usual
+	 * exception classes can be used.
+	 */
+	private static FCPMessage failureMessage(String type, int code, boolean fatal, String description) {
+		FCPMessage msg = new FCPMessage(0, type);
+		msg.headers.put("Code", Integer.toString(code));
+		msg.headers.put("Fatal", Boolean.toString(fatal));
+		if(description != null) {
+			msg.headers.put("ShortCodeDescription", description);
+		}
+		return msg;
+	}
+
+	private abstract class NodeRequest<T> extends FCPRequest<T> implements Runnable {
+		NodeRequest(FCPRequestCallback<T> callback) {
+			super(callback);
+		}
+
+		@Override
+		void start() throws ConnectionTerminatedException {
+			add(this);
+			try {
+				executor.execute(this);
+			} catch (RejectedExecutionException ree) {
+				remove(this);
+				throw new ConnectionTerminatedException("The Freenet client has been terminated");
+			}
+		}
+
+		@Override
+		protected void abort() {
+			// The node's simple client can't be interrupted, so let it finish and drop the result
+			remove(this);
+		}
+
+		@Override
+		void finished() {
+			metrics.requestFinished(this, null);
+		}
+
+		@Override
+		public void run() {
+			metrics.requestSent(this);
+			try {
+				runRequest();
+			} catch (RuntimeException e) {
+				Logger.error(this, "Caught exception from node", e);
+				failInternal();
+			} finally {
+				remove(this);
+			}
+		}
+
+		/**
+		 * Runs the request in the node. Implementations must end by calling
+		 * {@link #succeed(Object)} or {@link #fail(Exception)}.
+		 */
+		protected abstract void runRequest();
+
+		/**
+		 * Completes the request in the way an internal error in the node would have.
+		 */
+		protected abstract void failInternal();
+	}
+
+	private class FetchRequest extends NodeRequest<FCPData> {
+		private final String key;
+		private final FetchProfile profile;
+
+		FetchRequest(String key, FetchProfile profile, FCPRequestCallback<FCPData> callback) {
+			super(callback);
+			this.key = key;
+			this.profile = profile;
+		}
+
+		@Override
+		protected String getRequestType() {
+			return "ClientGet";
+		}
+
+		@Override
+		protected String getKey() {
+			return key;
+		}
+
+		@Override
+		protected void runRequest() {
+			FreenetURI uri;
+			try {
+				uri = new FreenetURI(key);
+			} catch (MalformedURLException mue) {
+				fail(new FCPFetchException(failureMessage("GetFailed", FCPFetchException.INVALID_URI, true, mue.getMessage())));
+				return;
+			}
+
+			for(int redirects = 0; ; redirects++) {
+				FetchResult result;
+				try {
+					// retries are left to the simple client's defaults
+					result = profile.getMaxSize() >= 0 ? client.fetch(uri, profile.getMaxSize()) : client.fetch(uri);
+				} catch (FetchException fe) {
+					// the node's modes are enums, whose codes are the ones FCP uses
+					int code = fe.getMode().code;
+					if(code == FCPFetchException.PERMANENT_REDIRECT || code == FCPFetchException.TOO_MANY_PATH_COMPONENTS) {
+						if(fe.newURI == null) {
+							succeed(null);
+							return;
+						}
+						if(redirects < MAX_REDIRECTS) {
+							uri = fe.newURI;
+							continue;
+						}
+					}
+					fail(new FCPFetchException(failureMessage("GetFailed", code, fe.isFatal(), fe.getMessage())));
+					return;
+				}
+
+				FCPData data;
+				try {
+					data = FCPData.wrap(result.asByteArray());
+				} catch (IOException ioe) {
+					fail(new FCPFetchException(failureMessage("GetFailed", FCPFetchException.BUCKET_ERROR, false, ioe.getMessage())));
+					return;
+				} finally {
+					result.asBucket().free();
+				}
+
+				if(!succeed(data)) {
+					// Cancelled while we were waiting for the node
+					data.release();
+				}
+				return;
+			}
+		}
+
+		@Override
+		protected void failInternal() {
+			fail(new FCPFetchException(failureMessage("GetFailed", FCPFetchException.INTERNAL_ERROR, false, null)));
+		}
+	}
+
+	private class PutRequest extends NodeRequest<Void> {
+		private final byte[] data;
+		private final String key;
+
+		PutRequest(byte[] data, String key, FCPRequestCallback<Void> callback) {
+			super(callback);
+			this.data = data;
+			this.key = key;
+		}
+
+		@Override
+		protected String getRequestType() {
+			return "ClientPut";
+		}
+
+		@Override
+		protected String getKey() {
+			return key;
+		}
+
+		@Override
+		protected long getPayloadLength() {
+			return data.length;
+		}
+
+		@Override
+		protected void runRequest() {
+			FreenetURI uri;
+			try {
+				uri = new FreenetURI(key);
+			} catch (MalformedURLException mue) {
+				fail(new FCPPutFailedException(FCPPutFailedException.INVALID_URI, true));
+				return;
+			}
+
+			InsertBlock block = new InsertBlock(new ArrayBucket(data), new ClientMetadata(), uri);
+			try {
+				client.insert(block, false, null);
+			} catch (InsertException ie) {
+				fail(FCPException.create(failureMessage("PutFailed", ie.getMode().code, ie.isFatal(), ie.getMessage())));
+				return;
+			}
+			succeed(null);
+		}
+
+		@Override
+		protected void failInternal() {
+			fail(new FCPPutFailedException(FCPPutFailedException.INTERNAL_ERROR, false));
+		}
+	}
+
+	private class ListRequest extends NodeRequest<Map<String, PersistentRequest>> {
+		ListRequest(FCPRequestCallback<Map<String, PersistentRequest>> callback) {
+			super(callback);
+		}
+
+		@Override
+		protected String getRequestType() {
+			return "ListPersistentRequests";
+		}
+
+		@Override
+		protected void runRequest() {
+			succeed(new HashMap<String, PersistentRequest>());
+		}
+
+		@Override
+		protected void failInternal() {
+			succeed(new HashMap<String, PersistentRequest>());
+		}
+	}
+
+	private class SSKRequest extends NodeRequest<SSKKeyPair> {
+		SSKRequest(FCPRequestCallback<SSKKeyPair> callback) {
+			super(callback);
+		}
+
+		@Override
+		protected String getRequestType() {
+			return "GenerateSSK";
+		}
+
+		@Override
+		protected void runRequest() {
+			FreenetURI[] keys = client.generateKeyPair("");
+
+			SSKKeyPair retval = new SSKKeyPair();
+			retval.privkey = keys[0].toString();
+			retval.pubkey = keys[1].toString();
+			succeed(retval);
+		}
+
+		@Override
+		protected void failInternal() {
+			// SSK requests never fail, they return null instead
+			succeed(null);
+		}
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * RequestClass.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.fcp;
+
+/**
+ * What a request is for, which decides the priority class the node gives it and how many
+ * requests of the same kind may run at once (see {@link RequestScheduler}).
+ */
+public enum RequestClass {
+	/** Requests someone is waiting for, e.g. checking the sender of a message being read */
+	INTERACTIVE(1, 0),
+	/** Sending and receiving messages */
+	MESSAGE(2, 16),
+	/** Inserting and looking for acks */
+	ACK(3, 4),
+	/** Things nobody is waiting for, e.g. checking old RTS slots or inserting the mailsite */
+	BACKGROUND(4, 2);
+
+	private final int priorityClass;
+	private final int defaultLimit;
+
+	private RequestClass(int priorityClass, int defaultLimit) {
+		this.priorityClass = priorityClass;
+		this.defaultLimit = defaultLimit;
+	}
+
+	/**
+	 * @return the node's priority class for these requests, lower is more urgent
+	 */
+	public int getPriorityClass() {
+		return priorityClass;
+	}
+
+	/**
+	 * @return how many of these requests may run at once unless configured otherwise, 0 for no
+	 *         limit
+	 */
+	public int getDefaultLimit() {
+		return defaultLimit;
+	}
+
+	/**
+	 * Returns the class with the given name, ignoring case, or null if there isn't one.
+	 */
+	public static RequestClass forName(String name) {
+		for (RequestClass c : values()) {
+			if (c.name().equalsIgnoreCase(name)) return c;
+		}
+		return null;
+	}
+}
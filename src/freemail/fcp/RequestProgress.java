@@ -0,0 +1,105 @@
+/*
+ * RequestProgress.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.fcp;
+
+/**
+ * How far the node has got with a request, from the last SimpleProgress message it sent about
+ * it. The counts are in blocks.
+ */
+public class RequestProgress {
+	private final int total;
+	private final int required;
+	private final int succeeded;
+	private final int failed;
+	private final int fatallyFailed;
+	private final boolean finalizedTotal;
+
+	RequestProgress(FCPMessage msg) {
+		total = getInt(msg, "Total");
+		required = getInt(msg, "Required");
+		succeeded = getInt(msg, "Succeeded");
+		failed = getInt(msg, "Failed");
+		fatallyFailed = getInt(msg, "FatallyFailed");
+		finalizedTotal = "true".equalsIgnoreCase(msg.headers.get("FinalizedTotal"));
+	}
+
+	public int getTotal() {
+		return total;
+	}
+
+	/**
+	 * @return the number of blocks that have to succeed for the request to succeed
+	 */
+	public int getRequired() {
+		return required;
+	}
+
+	public int getSucceeded() {
+		return succeeded;
+	}
+
+	public int getFailed() {
+		return failed;
+	}
+
+	public int getFatallyFailed() {
+		return fatallyFailed;
+	}
+
+	/**
+	 * @return true if the node knows how many blocks there are, otherwise the totals may go up
+	 */
+	public boolean isTotalFinalized() {
+		return finalizedTotal;
+	}
+
+	/**
+	 * @return the fraction of the required blocks that have succeeded, between 0 and 1
+	 */
+	public double getFraction() {
+		if (required <= 0) return 0;
+		return Math.min(1.0, (double)succeeded / required);
+	}
+
+	/**
+	 * @return true if the node has got further with the request than it had at the given point
+	 */
+	boolean isFurtherThan(RequestProgress other) {
+		if (other == null) return true;
+		return succeeded > other.succeeded || failed > other.failed || fatallyFailed > other.fatallyFailed
+				|| total != other.total || required != other.required;
+	}
+
+	@Override
+	public String toString() {
+		return succeeded + "/" + required + " blocks (" + total + " total" + (finalizedTotal ? "" : " so far")
+				+ ", " + failed + " failed, " + fatallyFailed + " fatally)";
+	}
+
+	private static int getInt(FCPMessage msg, String name) {
+		String value = msg.headers.get(name);
+		if (value == null) return 0;
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+}
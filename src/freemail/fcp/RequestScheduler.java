@@ -0,0 +1,239 @@
+/*
+ * RequestScheduler.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.fcp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import freemail.utils.Logger;
+
+/**
+ * Decides when the requests of a pool are sent. Each {@link RequestClass} may have a limit on
+ * how many of its requests run at once. Requests over the limit wait here until one of the same
+ * class finishes, so a backlog of acks or old RTS slots can't take the connections away from the
+ * messages someone is waiting for.
+ *
+ * Within a class the waiting requests are taken from the shards (usually accounts) in turn, so
+ * one account with a lot to do doesn't hold up the others. Every shard counts the requests of it
+ * that have been sent, and the shard that is furthest behind goes next. A shard that has been
+ * idle starts again level with the others rather than getting the turns it missed.
+ *
+ * Requests that mostly sit at the node waiting, such as watches, aren't limited.
+ */
+public class RequestScheduler {
+	private final int[] limits;
+	private final int[] running;
+	private final Map<ConnectionRequest<?>, RequestClass> started =
+			new IdentityHashMap<ConnectionRequest<?>, RequestClass>();
+	// indexed by class, then by shard
+	private final List<Map<String, ShardQueue>> waiting = new ArrayList<Map<String, ShardQueue>>();
+	// the turn of the last request sent in each class
+	private final long[] clock;
+
+	RequestScheduler() {
+		int classes = RequestClass.values().length;
+		limits = new int[classes];
+		running = new int[classes];
+		clock = new long[classes];
+		for (RequestClass c : RequestClass.values()) {
+			limits[c.ordinal()] = c.getDefaultLimit();
+			waiting.add(new HashMap<String, ShardQueue>());
+		}
+	}
+
+	/**
+	 * Sets how many requests of the given class may run at once, 0 for no limit.
+	 */
+	public void setLimit(RequestClass c, int limit) {
+		List<ConnectionRequest<?>> toSend;
+		synchronized (this) {
+			limits[c.ordinal()] = Math.max(limit, 0);
+			toSend = takeStartable(c);
+		}
+		send(toSend);
+	}
+
+	public synchronized int getLimit(RequestClass c) {
+		return limits[c.ordinal()];
+	}
+
+	/**
+	 * @return the number of requests of the given class that have been sent and haven't finished
+	 */
+	public synchronized int getRunning(RequestClass c) {
+		return running[c.ordinal()];
+	}
+
+	/**
+	 * @return the number of requests of the given class waiting to be sent
+	 */
+	public synchronized int getWaiting(RequestClass c) {
+		int count = 0;
+		for (ShardQueue q : waiting.get(c.ordinal()).values()) {
+			count += q.requests.size();
+		}
+		return count;
+	}
+
+	/**
+	 * Lets the request go ahead if its class is under its limit, otherwise queues it to be sent
+	 * by {@link ConnectionRequest#send()} once there is room.
+	 * @return true if the caller should send the request now
+	 */
+	boolean admit(ConnectionRequest<?> req) {
+		RequestClass c = req.getRequestClass();
+		if (req.isLongRunning()) return true;
+
+		synchronized (this) {
+			String shard = key(req.getShard());
+			Map<String, ShardQueue> queues = waiting.get(c.ordinal());
+			ShardQueue q = queues.get(shard);
+			if (q == null) {
+				q = new ShardQueue();
+				queues.put(shard, q);
+			}
+			if (q.requests.isEmpty()) {
+				// an idle shard doesn't get to save up its turns
+				q.turn = Math.max(q.turn, clock[c.ordinal()]);
+			}
+
+			int limit = limits[c.ordinal()];
+			if (limit == 0 || (running[c.ordinal()] < limit && getWaiting(c) == 0)) {
+				running[c.ordinal()]++;
+				started.put(req, c);
+				charge(c, q);
+				return true;
+			}
+
+			q.requests.add(req);
+			return false;
+		}
+	}
+
+	/**
+	 * Called when a request has completed or been cancelled, to send the next one of its class.
+	 */
+	void finished(ConnectionRequest<?> req) {
+		List<ConnectionRequest<?>> toSend;
+		synchronized (this) {
+			RequestClass c = started.remove(req);
+			if (c == null) {
+				// it never got to run, so it might still be waiting
+				remove(req);
+				return;
+			}
+			running[c.ordinal()]--;
+			toSend = takeStartable(c);
+		}
+		send(toSend);
+	}
+
+	/**
+	 * Removes a request that is waiting to be sent.
+	 * @return true if it was waiting
+	 */
+	synchronized boolean remove(ConnectionRequest<?> req) {
+		Map<String, ShardQueue> queues = waiting.get(req.getRequestClass().ordinal());
+		ShardQueue q = queues.get(key(req.getShard()));
+		if (q == null) return false;
+		return q.requests.remove(req);
+	}
+
+	/**
+	 * Takes as many requests of the given class off the queues as its limit allows, counting
+	 * them as running.
+	 */
+	private List<ConnectionRequest<?>> takeStartable(RequestClass c) {
+		List<ConnectionRequest<?>> toSend = new ArrayList<ConnectionRequest<?>>();
+		int limit = limits[c.ordinal()];
+		while (limit == 0 || running[c.ordinal()] < limit) {
+			ConnectionRequest<?> next = takeNext(c);
+			if (next == null) break;
+			running[c.ordinal()]++;
+			started.put(next, c);
+			toSend.add(next);
+		}
+		return toSend;
+	}
+
+	/**
+	 * Takes the next request from the shard that is furthest behind.
+	 */
+	private ConnectionRequest<?> takeNext(RequestClass c) {
+		ShardQueue best = null;
+		Iterator<Map.Entry<String, ShardQueue>> it = waiting.get(c.ordinal()).entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, ShardQueue> e = it.next();
+			ShardQueue q = e.getValue();
+			if (q.requests.isEmpty()) {
+				// forget about shards that have gone quiet once they've caught up
+				if (q.turn <= clock[c.ordinal()]) it.remove();
+				continue;
+			}
+			if (best == null || q.turn < best.turn) {
+				best = q;
+			}
+		}
+		if (best == null) return null;
+
+		charge(c, best);
+		return best.requests.removeFirst();
+	}
+
+	/**
+	 * Moves the shard on a turn for a request of it that is being sent.
+	 */
+	private void charge(RequestClass c, ShardQueue q) {
+		clock[c.ordinal()] = q.turn;
+		q.turn++;
+	}
+
+	private static void send(List<ConnectionRequest<?>> toSend) {
+		for (ConnectionRequest<?> req : toSend) {
+			if (req.isDone()) continue;
+			try {
+				req.send();
+			} catch (NoNodeConnectionException e) {
+				Logger.error(RequestScheduler.class, "Couldn't send or queue request: " + e.getMessage());
+				req.fail(FCPException.create(new FCPMessage(1, "ConnectionClosed")));
+			} catch (ConnectionTerminatedException e) {
+				req.fail(e);
+			} catch (FCPBadFileException e) {
+				Logger.error(RequestScheduler.class, "Couldn't read data of scheduled request");
+				req.fail(FCPException.create(new FCPMessage(1, "ConnectionClosed")));
+			}
+		}
+	}
+
+	private static String key(String shard) {
+		return shard == null ? "" : shard;
+	}
+
+	private static class ShardQueue {
+		final LinkedList<ConnectionRequest<?>> requests = new LinkedList<ConnectionRequest<?>>();
+		// the turn of the next request of the shard
+		long turn = 0;
+	}
+}
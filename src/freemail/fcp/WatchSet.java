@@ -0,0 +1,172 @@
+/*
+ * WatchSet.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.fcp;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import freemail.utils.Logger;
+
+/**
+ * Keeps a watch (see {@link FreenetClient#watch(String, FCPRequestCallback)}) running for each of
+ * the keys its owner expects to turn up, so that instead of fetching the same keys again every
+ * round the owner just checks which of its watches have found something. The node does the
+ * retrying, so the number of requests outstanding stays at one per expected key however often
+ * the owner looks.
+ *
+ * The owner calls {@link #poll(String)} for every key it expects, which starts the watch the
+ * first time and hands back the request once it has completed, and then {@link #retain(Collection)}
+ * with the keys it still expects so that watches for slots that have been used up are stopped.
+ *
+ * Instances are thread safe, but are normally used by a single thread.
+ */
+public class WatchSet {
+	// whether the callers should use watches rather than fetching every round
+	private static volatile boolean enabled = false;
+
+	private final FreenetClient client;
+	private final FetchProfile profile;
+	private final Map<String, FCPRequest<FCPData>> watches = new HashMap<String, FCPRequest<FCPData>>();
+	// guarded by watches
+	private boolean closed = false;
+
+	public WatchSet(FreenetClient client) {
+		this(client, FetchProfile.MESSAGE);
+	}
+
+	/**
+	 * Creates a set whose watches have the size limit of the given profile.
+	 */
+	public WatchSet(FreenetClient client, FetchProfile profile) {
+		this.client = client;
+		this.profile = profile;
+	}
+
+	/**
+	 * Sets whether slots are watched instead of polled.
+	 */
+	public static void setEnabled(boolean enable) {
+		enabled = enable;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Returns the watch for the given key if it has completed, in which case it is removed from
+	 * the set and it is up to the caller to deal with the result. Otherwise the watch is started
+	 * if it wasn't running already and null is returned. Null is also returned if the watch
+	 * couldn't be started because there is no connection to the node, it will be started the
+	 * next time round, or if the set has been closed.
+	 */
+	public FCPRequest<FCPData> poll(String key) throws ConnectionTerminatedException {
+		synchronized(watches) {
+			if(closed) return null;
+			FCPRequest<FCPData> req = watches.get(key);
+			if(req != null) {
+				if(!req.isDone()) return null;
+
+				watches.remove(key);
+				return req;
+			}
+		}
+
+		FCPRequest<FCPData> req;
+		try {
+			req = client.watch(key, profile, null);
+		} catch (NoNodeConnectionException e) {
+			Logger.debug(this, "No connection to node, not watching key");
+			return null;
+		}
+
+		synchronized(watches) {
+			if(closed) {
+				// closed while the watch was being started
+				stop(req);
+				return null;
+			}
+			watches.put(key, req);
+		}
+		return null;
+	}
+
+	/**
+	 * Stops the watches for all keys that aren't in the given collection.
+	 */
+	public void retain(Collection<String> keys) {
+		synchronized(watches) {
+			Iterator<Map.Entry<String, FCPRequest<FCPData>>> it = watches.entrySet().iterator();
+			while(it.hasNext()) {
+				Map.Entry<String, FCPRequest<FCPData>> e = it.next();
+				if(keys.contains(e.getKey())) continue;
+
+				it.remove();
+				stop(e.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Stops all the watches.
+	 */
+	public void cancelAll() {
+		synchronized(watches) {
+			for(FCPRequest<FCPData> req : watches.values()) {
+				stop(req);
+			}
+			watches.clear();
+		}
+	}
+
+	/**
+	 * Stops all the watches, and doesn't start any more. Watches run on the node until they are
+	 * stopped, so this must be called once the set is no longer wanted.
+	 */
+	public void close() {
+		synchronized(watches) {
+			closed = true;
+			cancelAll();
+		}
+	}
+
+	/**
+	 * @return the number of watches that are running or haven't been collected yet
+	 */
+	public int size() {
+		synchronized(watches) {
+			return watches.size();
+		}
+	}
+
+	private static void stop(FCPRequest<FCPData> req) {
+		if(req.cancel(false)) return;
+
+		// It had already found something that nobody wants any more
+		try {
+			FCPData data = req.getResult();
+			if(data != null) data.release();
+		} catch (Exception e) {
+			// Failed requests don't leave anything behind
+		}
+	}
+}
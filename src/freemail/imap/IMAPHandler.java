@@ -23,10 +23,11 @@
 package freemail.imap;
 
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.io.OutputStream;
 import java.io.PrintStream;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 import java.io.IOException;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -36,6 +37,7 @@ import java.util.TreeSet;
 import java.lang.NumberFormatException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Locale;
 
 import freemail.FreemailAccount;
 import freemail.MessageBank;
@@ -43,14 +45,25 @@ import freemail.MailMessage;
 import freemail.AccountManager;
 import freemail.ServerHandler;
 import freemail.utils.EmailAddress;
+import freemail.utils.FlightRecorder;
+import freemail.utils.LineInputStream;
 import freemail.utils.Logger;
 
 public class IMAPHandler extends ServerHandler implements Runnable {
 	private static final String CAPABILITY = "IMAP4rev1 CHILDREN NAMESPACE";
 
+	private static final FlightRecorder.EventType COMMAND_EVENT = new FlightRecorder.EventType(
+			"freemail.IMAPCommand", "IMAP Command", "IMAP",
+			FlightRecorder.Field.text("command", "Command"),
+			FlightRecorder.Field.text("mailbox", "Mailbox"),
+			FlightRecorder.Field.number("messages", "Messages In Mailbox"));
+
 	private final OutputStream os;
 	private final PrintStream ps;
-	private final BufferedReader bufrdr;
+	// for sending messages straight from their files, created when it is first needed
+	private WritableByteChannel channel = null;
+	// commands are read a line at a time, but literals are copied byte for byte
+	private final LineInputStream in;
 	private MessageBank mb;
 	private MessageBank inbox;
 	private final AccountManager accountManager;
@@ -60,7 +73,7 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 		accountManager = accMgr;
 		this.os = client.getOutputStream();
 		this.ps = new PrintStream(this.os);
-		this.bufrdr = new BufferedReader(new InputStreamReader(client.getInputStream()));
+		this.in = new LineInputStream(client.getInputStream());
 		this.mb = null;
 	}
 	
@@ -70,7 +83,7 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 		
 		String line;
 		try {
-			while ( !this.client.isClosed() && (line = this.bufrdr.readLine()) != null) {
+			while ( !this.client.isClosed() && (line = this.in.readLine()) != null) {
 				IMAPMessage msg = null;
 				try {
 					msg = new IMAPMessage(line);
@@ -87,12 +100,45 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 		}
 	}
 	
+	/**
+	 * Returns a channel that writes to the client. Anything printed to ps has to be flushed
+	 * before the channel is written to.
+	 */
+	private WritableByteChannel getChannel() {
+		if (this.channel == null) {
+			// the socket's own channel if it has one, since the file can be sent by the kernel
+			this.channel = this.client.getChannel();
+			if (this.channel == null) this.channel = Channels.newChannel(this.os);
+		}
+		return this.channel;
+	}
+	
 	private void sendWelcome() {
 		this.ps.print("* OK [CAPABILITY "+CAPABILITY+"] Freemail ready - hit me with your rhythm stick.\r\n");
 	}
 	
 	private void dispatch(IMAPMessage msg) {
 		Logger.debug(this, "Received: " + msg);
+		FlightRecorder.Event event = COMMAND_EVENT.begin();
+		try {
+			this.runCommand(msg);
+		} finally {
+			if (event.isRecording()) {
+				String command = msg.type;
+				if (command.equals("uid") && msg.args != null && msg.args.length > 0) {
+					command += " " + msg.args[0].toLowerCase();
+				}
+				event.set(0, command);
+				// the mailbox the command left selected, e.g. the one it selected
+				if (this.mb != null) {
+					event.set(1, this.mb.getName()).set(2, this.mb.countMessages());
+				}
+				event.commit();
+			}
+		}
+	}
+
+	private void runCommand(IMAPMessage msg) {
 		if (msg.type.equals("login")) {
 			this.handle_login(msg);
 		} else if (msg.type.equals("logout")) {
@@ -288,21 +334,17 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			
 		SortedMap<Integer, MailMessage> msgs = this.mb.listMessages();
 			
-		int numrecent = 0;
 		int numexists = msgs.size();
-		while (msgs.size() > 0) {
-			Integer current = msgs.firstKey();
-			MailMessage m =msgs.get(msgs.firstKey());
-				
-			// if it's recent, add to the tally
-			if (m.flags.get("\\Recent")) numrecent++;
-				
-			// remove the recent flag
-			m.flags.set("\\Recent", false);
-			m.storeFlags();
-				
-			msgs = msgs.tailMap(new Integer(current.intValue()+1));
+		List<MailMessage> recent = new LinkedList<MailMessage>();
+		for (MailMessage m : msgs.values()) {
+			if (m.flags.get("\\Recent")) {
+				// remove the recent flag
+				m.flags.set("\\Recent", false);
+				recent.add(m);
+			}
 		}
+		int numrecent = recent.size();
+		MailMessage.storeFlags(recent.toArray(new MailMessage[numrecent]));
 			
 		this.sendState(numexists+" EXISTS");
 		this.sendState(numrecent+" RECENT");
@@ -678,22 +720,19 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 		} else if (attr.startsWith("rfc822.header")) {
 			this.ps.print(a.substring(0, "rfc822.header".length()));
 			this.ps.flush();
-			return this.sendBody(mmsg, "header");
+			try {
+				return this.sendFromFile(mmsg, 0, mmsg.getBodyOffset(), -1, -1);
+			} catch (IOException ioe) {
+				return false;
+			}
 		} else if (attr.startsWith("internaldate")) {
 			/*
-			 * FIXME: Internaldate should not return Date from the message
-			 * For messages received though SMTP we want the date when we received it, for messages
-			 * added by COPY it should be the internal date of the source message, and for messages
-			 * added by APPEND it should either be the specified date or the date of the APPEND.
+			 * FIXME: Messages added by APPEND should get the date given to APPEND if there is one
 			 * See RFC 3501 section 2.3.3 (Internal Date Message Attribute).
 			 */
-			val = mmsg.getFirstHeader("Date");
-			if (val == null) {
-				// possibly should keep our own dates...
-				SimpleDateFormat sdf = new SimpleDateFormat("dd MMM yyyy HH:mm:ss Z");
-				
-				val = sdf.format(new Date());
-			}
+			SimpleDateFormat sdf = new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss Z", Locale.US);
+			long date = mmsg.getInternalDate();
+			val = sdf.format(date == 0 ? new Date() : new Date(date));
 			val = "\""+val+"\"";
 		}
 		
@@ -731,60 +770,23 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 		if (attr.charAt(attr.length() - 1) == ']')
 			attr = attr.substring(0, attr.length() - 1);
 		
-		if (attr.trim().length() == 0) {
-			try {
+		// the message is on disk as it is sent, so the whole of it, its headers and its text can
+		// go straight from the file
+		try {
+			if (attr.trim().length() == 0) {
 				this.ps.print("[]");
-				if(range_start!=-1) {
-					this.ps.print("<"+range_start+">");
-				}
-
-				long partsize=0;
-				if(range_start==-1) {
-					partsize=mmsg.getSize();
-				} else {
-					partsize=range_len;
-					if(mmsg.getSize()-range_start<partsize) {
-						partsize=mmsg.getSize()-range_start;
-					}
-				}
-				
-				this.ps.print(" {"+partsize+"}\r\n");
-
-				String line;
-				while ( (line = mmsg.readLine()) != null) {
-					line=line+"\r\n";
-					if(range_start>0) {
-						if(range_start>=line.length()) {
-							range_start-=line.length();
-							line="";
-						} else {
-							line=line.substring(range_start);
-							range_start=0;
-						}
-					}
-					if(range_start==0 || range_start==-1) {
-						if(range_len==-1) {
-							this.ps.print(line);
-						} else {
-							if(range_len>0) {
-								if(range_len<line.length()) {
-									line=line.substring(0, range_len);
-									range_len=line.length();
-								}
-								this.ps.print(line);
-								range_len-=line.length();
-								if(range_len<0) {
-									range_len=0;
-								}
-							}
-						}
-					}
-				}
-				mmsg.closeStream();
-			} catch (IOException ioe) {
-				return false;
+				return this.sendFromFile(mmsg, 0, mmsg.getSize(), range_start, range_len);
 			}
-			return true;
+			if (attr.equalsIgnoreCase("text")) {
+				this.ps.print("[TEXT]");
+				return this.sendFromFile(mmsg, mmsg.getBodyOffset(), mmsg.getSize(), range_start, range_len);
+			}
+			if (attr.equalsIgnoreCase("header")) {
+				this.ps.print("[HEADER]");
+				return this.sendFromFile(mmsg, 0, mmsg.getBodyOffset(), range_start, range_len);
+			}
+		} catch (IOException ioe) {
+			return false;
 		}
 		
 		StringBuffer buf = new StringBuffer("");
@@ -810,42 +812,64 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 					buf.append(mmsg.getHeaders(fields[j]));
 				}
 				buf.append("\r\n");
-			} else if (parts[0].equalsIgnoreCase("header")) {
-				// send all the header fields
-				try {
-					mmsg.readHeaders();
-				} catch (IOException ioe) {
-					//FIXME: Handle IOException properly
-					Logger.error(this, "Caught IOException while reading message headers: " + ioe.getMessage(), ioe);
-				}
-				
-				buf.append(mmsg.getAllHeadersAsString());
-				buf.append("\r\n");
-			} else if (parts[0].equalsIgnoreCase("text")) {
-				// just send the text of the message without headers
-				mmsg.closeStream();
-				String line;
-				// fast forward past the headers
-				try {
-					while ( (line = mmsg.readLine()) != null) {
-						if (line.length() == 0) break;
-					}
-					while ( (line = mmsg.readLine()) != null) {
-						buf.append(line+"\r\n");
-					}
-					mmsg.closeStream();
-				} catch (IOException ioe) {
-					// just return whatever we got
-				}
 			}
 			
-			this.ps.print(" {"+buf.length()+"}\r\n"+buf.toString());
+			String data = buf.toString();
+			if (range_start != -1) {
+				this.ps.print("<"+range_start+">");
+				int start = Math.min(range_start, data.length());
+				data = data.substring(start, start + Math.min(range_len, data.length() - start));
+			}
+			this.ps.print(" {"+data.length()+"}\r\n"+data);
 			return true;
 		}
 		
 		return false;
 	}
 	
+	/**
+	 * Sends the part of the message file from start up to end as a literal, or the part of that
+	 * the client asked for if it gave a range. Only the bytes that are sent are read.
+	 */
+	private boolean sendFromFile(MailMessage mmsg, long start, long end, int range_start, int range_len) throws IOException {
+		// opened before anything is sent, so that a message that has gone isn't promised
+		FileChannel channel = mmsg.openChannel();
+		try {
+			// the message may have got shorter since its size was read
+			end = Math.min(end, channel.size());
+			start = Math.min(start, end);
+			
+			long partsize = end - start;
+			if (range_start != -1) {
+				this.ps.print("<"+range_start+">");
+				start += Math.min(range_start, partsize);
+				partsize = Math.min(range_len, end - start);
+			}
+			
+			this.ps.print(" {"+partsize+"}\r\n");
+			this.ps.flush();
+			
+			WritableByteChannel target = this.getChannel();
+			long pos = start;
+			try {
+				while (pos < start + partsize) {
+					long sent = channel.transferTo(pos, start + partsize - pos, target);
+					if (sent <= 0) break;
+					pos += sent;
+				}
+			} catch (IOException ioe) {
+				Logger.error(this, "Couldn't send message " + mmsg.getUID() + ": " + ioe.getMessage(), ioe);
+			}
+			// the client has been told how much to expect, so it gets that much whatever happens
+			for (; pos < start + partsize; pos++) {
+				this.os.write(' ');
+			}
+			return true;
+		} finally {
+			channel.close();
+		}
+	}
+	
 	private void handle_store(IMAPMessage msg) {
 		if (msg.args == null || msg.args.length < 2) {
 			this.reply(msg, "BAD Not enough arguments");
@@ -941,9 +965,9 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			
 			for (int j = 0; j < mmsgs.length; j++) {
 				mmsgs[j].flags.set(flag, setFlagTo);
-				mmsgs[j].storeFlags();
 			}
 		}
+		MailMessage.storeFlags(mmsgs);
 		
 		if (msg.args[offset].toLowerCase().indexOf("silent") < 0) {
 			for (int i = 0; i < mmsgs.length; i++) {
@@ -1293,20 +1317,11 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 		
 		MailMessage newmsg = destmb.createMessage();
 		this.ps.print("+ OK\r\n");
+		this.ps.flush();
 		try {
-			PrintStream msgps = newmsg.getRawStream();
-			
-			String line;
-			int bytesread = 0;
-			while ( (line = this.bufrdr.readLine()) != null) {
-				msgps.println(line);
-				
-				bytesread += line.getBytes().length;
-				bytesread += "\r\n".length();
-				
-				if (bytesread >= datalen) break;
-			}
-			
+			// the literal is stored exactly as it was sent. The rest of the command line after it
+			// is read by the main loop as an empty line, which is ignored
+			this.in.copyTo(newmsg.getRawStream(), datalen);
 			newmsg.commit();
 		} catch (IOException ioe) {
 			this.reply(msg, "NO Failed to write message");
@@ -1322,6 +1337,9 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 	}
 	
 	private String getEnvelope(MailMessage mmsg) {
+		String envelope = mmsg.getCachedEnvelope();
+		if (envelope != null) return envelope;
+		
 		StringBuffer buf = new StringBuffer("(");
 		
 		try {
@@ -1348,7 +1366,9 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 		buf.append(IMAPifyString(mmsg.getFirstHeader("Message-ID")));
 		buf.append(")");
 		
-		return buf.toString();
+		envelope = buf.toString();
+		mmsg.setCachedEnvelope(envelope);
+		return envelope;
 	}
 	
 	private String IMAPifyString(String in) {
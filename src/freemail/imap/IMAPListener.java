@@ -21,9 +21,10 @@
 
 package freemail.imap;
 
-import java.net.ServerSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
 import java.io.IOException;
 
 import freemail.AccountManager;
@@ -63,7 +64,10 @@ public class IMAPListener extends ServerListener implements Runnable,ConfigClien
 	}
 
 	public void realrun() throws IOException {
-		sock = new ServerSocket(this.bindport, 10, InetAddress.getByName(this.bindaddress));
+		// opened through a channel so that clients' sockets have channels that messages can be
+		// sent to straight from their files
+		sock = ServerSocketChannel.open().socket();
+		sock.bind(new InetSocketAddress(InetAddress.getByName(this.bindaddress), this.bindport), 10);
 		sock.setSoTimeout(60000);
 		while (!sock.isClosed()) {
 			try {
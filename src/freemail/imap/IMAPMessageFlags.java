@@ -98,6 +98,18 @@ public class IMAPMessageFlags {
 		}
 	}
 	
+	/**
+	 * Creates flags from a bit mask returned by {@link #getBits()}.
+	 */
+	public IMAPMessageFlags(int bits) {
+		this.flags = new Vector<String>();
+		for (int i = 0; i < allFlags.length; i++) {
+			if ((bits & (1 << i)) != 0) {
+				this.flags.add(allFlags[i]);
+			}
+		}
+	}
+	
 	public void set(String flag, boolean value) {
 		flag = sanitize_flag(flag);
 		
@@ -125,6 +137,20 @@ public class IMAPMessageFlags {
 		return retval;
 	}
 	
+	/**
+	 * Returns the flags as a bit mask, with the bit for each flag in the same place as the flag
+	 * is in allFlags.
+	 */
+	public int getBits() {
+		int bits = 0;
+		for (int i = 0; i < allFlags.length; i++) {
+			if (this.flags.contains(allFlags[i])) {
+				bits |= 1 << i;
+			}
+		}
+		return bits;
+	}
+	
 	public String getFlags() {
 		String retval = "";
 		
@@ -38,6 +38,7 @@ import freemail.FreemailAccount;
 import freemail.MessageSender;
 import freemail.ServerHandler;
 import freemail.utils.EmailAddress;
+import freemail.utils.FlightRecorder;
 import freemail.utils.Logger;
 
 import org.bouncycastle.util.encoders.Base64;
@@ -49,6 +50,12 @@ public class SMTPHandler extends ServerHandler implements Runnable {
 	private FreemailAccount account;
 	private final MessageSender msgsender;
 	public static final String MY_HOSTNAME = "localhost";
+
+	private static final FlightRecorder.EventType COMMAND_EVENT = new FlightRecorder.EventType(
+			"freemail.SMTPCommand", "SMTP Command", "SMTP",
+			FlightRecorder.Field.text("command", "Command"),
+			FlightRecorder.Field.text("mailbox", "Account"),
+			FlightRecorder.Field.number("recipients", "Recipients"));
 	
 	private final AccountManager accountmanager;
 	
@@ -93,6 +100,23 @@ public class SMTPHandler extends ServerHandler implements Runnable {
 	}
 	
 	private void dispatch(SMTPCommand cmd) {
+		FlightRecorder.Event event = COMMAND_EVENT.begin();
+		// the recipients before the command, since sending the message forgets them
+		int recipients = this.to.size();
+		try {
+			this.runCommand(cmd);
+		} finally {
+			if (event.isRecording()) {
+				event.set(0, cmd.command);
+				if (this.account != null) {
+					event.set(1, this.account.getUsername());
+				}
+				event.set(2, Math.max(recipients, this.to.size())).commit();
+			}
+		}
+	}
+
+	private void runCommand(SMTPCommand cmd) {
 		if (cmd.command.equals("helo")) {
 			this.handle_helo(cmd);
 		} else if (cmd.command.equals("ehlo")) {
@@ -0,0 +1,59 @@
+/*
+ * BufferPool.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.support.io;
+
+import java.util.ArrayDeque;
+
+/**
+ * A bounded pool of equally sized byte arrays. Buffers that aren't returned are simply left to
+ * the garbage collector, so forgetting to call {@link #release(byte[])} only costs an allocation.
+ */
+public class BufferPool {
+	private final int bufferSize;
+	private final int maxPooled;
+	private final ArrayDeque<byte[]> pool = new ArrayDeque<byte[]>();
+
+	public BufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public synchronized byte[] get() {
+		byte[] buf = pool.pollFirst();
+		if(buf == null) {
+			buf = new byte[bufferSize];
+		}
+		return buf;
+	}
+
+	/**
+	 * Returns a buffer to the pool. Buffers of the wrong size, e.g. from before the pool was
+	 * replaced with one of a different size, are ignored.
+	 */
+	public synchronized void release(byte[] buf) {
+		if(buf.length != bufferSize) return;
+		if(pool.size() >= maxPooled) return;
+		pool.addFirst(buf);
+	}
+}
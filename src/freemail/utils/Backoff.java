@@ -0,0 +1,68 @@
+/*
+ * Backoff.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.utils;
+
+import java.util.Random;
+
+/**
+ * Jittered exponential backoff. Each call to {@link #next()} returns a delay between half and
+ * all of the current step, and doubles the step up to the maximum. The jitter stops a crowd of
+ * clients that lost the same server from all retrying at the same moment.
+ */
+public class Backoff {
+	private final long initial;
+	private final long max;
+	private final Random random;
+
+	private long step;
+
+	public Backoff(long initial, long max) {
+		this(initial, max, new Random());
+	}
+
+	public Backoff(long initial, long max, Random random) {
+		if(initial <= 0 || max < initial) {
+			throw new IllegalArgumentException("Invalid backoff " + initial + " to " + max);
+		}
+
+		this.initial = initial;
+		this.max = max;
+		this.random = random;
+		this.step = initial;
+	}
+
+	/**
+	 * Returns the time to wait before the next attempt, and backs off further.
+	 */
+	public synchronized long next() {
+		long half = step / 2;
+		long delay = half + (long)(random.nextDouble() * (step - half + 1));
+
+		step = Math.min(step * 2, max);
+		return Math.min(delay, max);
+	}
+
+	/**
+	 * Starts again from the initial delay, e.g. after a successful attempt.
+	 */
+	public synchronized void reset() {
+		step = initial;
+	}
+}
@@ -0,0 +1,287 @@
+/*
+ * FlightRecorder.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.utils;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Java Flight Recorder events for Freemail, so a recording of a Freemail that is slow shows what
+ * it was doing alongside the CPU and GC.
+ *
+ * Freemail still runs on JVMs that don't have JFR, so the event types are defined when the class
+ * is loaded through jdk.jfr.EventFactory instead of being compiled against it. Where that isn't
+ * there, or nothing is recording the event, {@link EventType#begin()} returns an event that does
+ * nothing and costs next to nothing.
+ *
+ * Events are in the "Freemail" category and named freemail.*, e.g. to record all of them:
+ * <pre>jcmd &lt;pid&gt; JFR.start settings=default +freemail.*#enabled=true</pre>
+ */
+public class FlightRecorder {
+	private static final Event NO_EVENT = new Event(null);
+
+	// jdk.jfr, or null if it isn't there
+	private static final Class<? extends Annotation> NAME;
+	private static final Class<? extends Annotation> LABEL;
+	private static final Class<? extends Annotation> CATEGORY;
+	private static final Class<? extends Annotation> TIMESPAN;
+	private static final Class<? extends Annotation> DATA_AMOUNT;
+	private static final Constructor<?> ANNOTATION_ELEMENT;
+	private static final Constructor<?> VALUE_DESCRIPTOR;
+	private static final Method CREATE;
+	private static final Method NEW_EVENT;
+	private static final Method GET_EVENT_TYPE;
+	private static final Method IS_ENABLED;
+	private static final Method SET;
+	private static final Method BEGIN;
+	private static final Method COMMIT;
+
+	static {
+		Class<? extends Annotation> name = null;
+		Class<? extends Annotation> label = null;
+		Class<? extends Annotation> category = null;
+		Class<? extends Annotation> timespan = null;
+		Class<? extends Annotation> dataAmount = null;
+		Constructor<?> annotationElement = null;
+		Constructor<?> valueDescriptor = null;
+		Method create = null;
+		Method newEvent = null;
+		Method getEventType = null;
+		Method isEnabled = null;
+		Method set = null;
+		Method begin = null;
+		Method commit = null;
+		try {
+			name = Class.forName("jdk.jfr.Name").asSubclass(Annotation.class);
+			label = Class.forName("jdk.jfr.Label").asSubclass(Annotation.class);
+			category = Class.forName("jdk.jfr.Category").asSubclass(Annotation.class);
+			timespan = Class.forName("jdk.jfr.Timespan").asSubclass(Annotation.class);
+			dataAmount = Class.forName("jdk.jfr.DataAmount").asSubclass(Annotation.class);
+			annotationElement = Class.forName("jdk.jfr.AnnotationElement").getConstructor(Class.class, Object.class);
+			valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class, List.class);
+			Class<?> factory = Class.forName("jdk.jfr.EventFactory");
+			create = factory.getMethod("create", List.class, List.class);
+			newEvent = factory.getMethod("newEvent");
+			getEventType = factory.getMethod("getEventType");
+			isEnabled = Class.forName("jdk.jfr.EventType").getMethod("isEnabled");
+			Class<?> event = Class.forName("jdk.jfr.Event");
+			set = event.getMethod("set", int.class, Object.class);
+			begin = event.getMethod("begin");
+			commit = event.getMethod("commit");
+		} catch(ClassNotFoundException e) {
+			create = null;
+		} catch(NoSuchMethodException e) {
+			create = null;
+		}
+		NAME = name;
+		LABEL = label;
+		CATEGORY = category;
+		TIMESPAN = timespan;
+		DATA_AMOUNT = dataAmount;
+		ANNOTATION_ELEMENT = annotationElement;
+		VALUE_DESCRIPTOR = valueDescriptor;
+		CREATE = create;
+		NEW_EVENT = newEvent;
+		GET_EVENT_TYPE = getEventType;
+		IS_ENABLED = isEnabled;
+		SET = set;
+		BEGIN = begin;
+		COMMIT = commit;
+	}
+
+	/**
+	 * @return true if this JVM has flight recorder events that can be created at runtime
+	 */
+	public static boolean isAvailable() {
+		return CREATE != null;
+	}
+
+	/**
+	 * A field of an event type.
+	 */
+	public static class Field {
+		private final String name;
+		private final String label;
+		private final Class<?> type;
+		private final Class<? extends Annotation> unit;
+		private final String unitValue;
+
+		private Field(String name, String label, Class<?> type, Class<? extends Annotation> unit, String unitValue) {
+			this.name = name;
+			this.label = label;
+			this.type = type;
+			this.unit = unit;
+			this.unitValue = unitValue;
+		}
+
+		public static Field text(String name, String label) {
+			return new Field(name, label, String.class, null, null);
+		}
+
+		public static Field number(String name, String label) {
+			return new Field(name, label, long.class, null, null);
+		}
+
+		public static Field nanos(String name, String label) {
+			return new Field(name, label, long.class, TIMESPAN, "NANOSECONDS");
+		}
+
+		public static Field bytes(String name, String label) {
+			return new Field(name, label, long.class, DATA_AMOUNT, "BYTES");
+		}
+	}
+
+	/**
+	 * A type of event. Events have a start time and duration as well as their fields.
+	 */
+	public static class EventType {
+		// jdk.jfr.EventFactory, or null if events can't be created
+		private final Object factory;
+		private final Object jfrType;
+
+		/**
+		 * @param name the name of the event type, which the flight recorder settings refer to
+		 * @param label what the event type is called in tools
+		 * @param subcategory the part of Freemail the event comes from, under "Freemail"
+		 */
+		public EventType(String name, String label, String subcategory, Field... fields) {
+			Object f = null;
+			Object t = null;
+			if(isAvailable()) {
+				try {
+					List<Object> annotations = new ArrayList<Object>();
+					annotations.add(ANNOTATION_ELEMENT.newInstance(NAME, name));
+					annotations.add(ANNOTATION_ELEMENT.newInstance(LABEL, label));
+					annotations.add(ANNOTATION_ELEMENT.newInstance(CATEGORY, new String[] {"Freemail", subcategory}));
+
+					List<Object> descriptors = new ArrayList<Object>();
+					for(Field field : fields) {
+						List<Object> fieldAnnotations = new ArrayList<Object>();
+						fieldAnnotations.add(ANNOTATION_ELEMENT.newInstance(LABEL, field.label));
+						if(field.unit != null) {
+							fieldAnnotations.add(ANNOTATION_ELEMENT.newInstance(field.unit, field.unitValue));
+						}
+						descriptors.add(VALUE_DESCRIPTOR.newInstance(field.type, field.name, fieldAnnotations));
+					}
+
+					f = CREATE.invoke(null, annotations, descriptors);
+					t = GET_EVENT_TYPE.invoke(f);
+				} catch(Exception e) {
+					Logger.error(FlightRecorder.class, "Couldn't define flight recorder event " + name + ": " + e);
+					f = null;
+					t = null;
+				}
+			}
+			factory = f;
+			jfrType = t;
+		}
+
+		/**
+		 * @return true if a recording wants events of this type
+		 */
+		public boolean isEnabled() {
+			if(jfrType == null) return false;
+			try {
+				return ((Boolean)IS_ENABLED.invoke(jfrType)).booleanValue();
+			} catch(IllegalAccessException e) {
+				return false;
+			} catch(InvocationTargetException e) {
+				return false;
+			}
+		}
+
+		/**
+		 * Starts an event of this type, which is recorded when it is committed. If nothing is
+		 * recording events of this type the event does nothing.
+		 */
+		public Event begin() {
+			if(!isEnabled()) return NO_EVENT;
+			try {
+				Object event = NEW_EVENT.invoke(factory);
+				BEGIN.invoke(event);
+				return new Event(event);
+			} catch(IllegalAccessException e) {
+				return NO_EVENT;
+			} catch(InvocationTargetException e) {
+				return NO_EVENT;
+			}
+		}
+	}
+
+	/**
+	 * An event that has begun and not been committed yet. Events aren't thread safe, and are
+	 * usually only used by the thread that began them.
+	 */
+	public static class Event {
+		private final Object event;
+
+		private Event(Object event) {
+			this.event = event;
+		}
+
+		/**
+		 * @return false if the event does nothing, so the fields needn't be worked out
+		 */
+		public boolean isRecording() {
+			return event != null;
+		}
+
+		/**
+		 * Sets the field with the given index, in the order they were given to the event type.
+		 */
+		public Event set(int field, String value) {
+			return setObject(field, value);
+		}
+
+		public Event set(int field, long value) {
+			return setObject(field, Long.valueOf(value));
+		}
+
+		private Event setObject(int field, Object value) {
+			if(event == null) return this;
+			try {
+				SET.invoke(event, Integer.valueOf(field), value);
+			} catch(IllegalAccessException e) {
+				// leave the field empty
+			} catch(InvocationTargetException e) {
+				// leave the field empty
+			}
+			return this;
+		}
+
+		/**
+		 * Ends the event and records it.
+		 */
+		public void commit() {
+			if(event == null) return;
+			try {
+				COMMIT.invoke(event);
+			} catch(IllegalAccessException e) {
+				// it isn't recorded then
+			} catch(InvocationTargetException e) {
+				// it isn't recorded then
+			}
+		}
+	}
+}
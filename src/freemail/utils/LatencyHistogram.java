@@ -0,0 +1,109 @@
+/*
+ * LatencyHistogram.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.utils;
+
+/**
+ * A histogram of durations in the style of HdrHistogram: small values are counted exactly and
+ * above that every power of two is split into the same number of buckets, so percentiles are
+ * accurate to within about 6% from microseconds up to days in a few kilobytes. Values are in
+ * whatever unit the caller likes, though the limit is meant for microseconds.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// values of 2^MAX_EXPONENT (about 12 days in microseconds) and over are counted as the largest
+	private static final int MAX_EXPONENT = 40;
+	private static final long MAX_VALUE = (1L << MAX_EXPONENT) - 1;
+
+	private final long[] counts = new long[SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS) * SUB_BUCKETS];
+	private long count = 0;
+	private long total = 0;
+	private long max = 0;
+
+	public synchronized void record(long value) {
+		if(value < 0) value = 0;
+		if(value > MAX_VALUE) value = MAX_VALUE;
+		counts[index(value)]++;
+		count++;
+		total += value;
+		if(value > max) max = value;
+	}
+
+	public synchronized long getCount() {
+		return count;
+	}
+
+	public synchronized long getMax() {
+		return max;
+	}
+
+	/**
+	 * @return the mean of the values recorded, or 0 if there aren't any
+	 */
+	public synchronized long getMean() {
+		return count == 0 ? 0 : total / count;
+	}
+
+	/**
+	 * Returns a value that at least the given percentage of the values recorded are no larger
+	 * than, or 0 if nothing has been recorded.
+	 */
+	public synchronized long getPercentile(double percentile) {
+		if(count == 0) return 0;
+		long wanted = Math.max((long)Math.ceil(percentile / 100 * count), 1);
+		long seen = 0;
+		for(int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if(seen >= wanted) return Math.min(highestIn(i), max);
+		}
+		return max;
+	}
+
+	/**
+	 * @return a copy of the histogram as it is now
+	 */
+	public synchronized LatencyHistogram copy() {
+		LatencyHistogram copy = new LatencyHistogram();
+		System.arraycopy(counts, 0, copy.counts, 0, counts.length);
+		copy.count = count;
+		copy.total = total;
+		copy.max = max;
+		return copy;
+	}
+
+	private static int index(long value) {
+		if(value < SUB_BUCKETS) return (int)value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		int sub = (int)(value >>> shift) - SUB_BUCKETS;
+		return SUB_BUCKETS + shift * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return the largest value that is counted in the given bucket
+	 */
+	private static long highestIn(int index) {
+		if(index < SUB_BUCKETS) return index;
+		int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+		int sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+		long lowest = (long)(SUB_BUCKETS + sub) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * LineInputStream.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * A buffered stream that can be read a line at a time as well as byte by byte, for protocols and
+ * files where some lines are text and the rest has to be copied exactly, e.g. an IMAP literal or
+ * the body of a message. A BufferedReader can't be used for these since it reads ahead and
+ * decodes what it has read.
+ */
+public class LineInputStream extends BufferedInputStream {
+	private final Charset charset;
+
+	/**
+	 * Creates a stream whose lines are decoded with the platform's default charset, as an
+	 * InputStreamReader would.
+	 */
+	public LineInputStream(InputStream in) {
+		this(in, Charset.defaultCharset());
+	}
+
+	public LineInputStream(InputStream in, Charset charset) {
+		super(in);
+		this.charset = charset;
+	}
+
+	/**
+	 * Reads a line ending with LF or CRLF, or with the end of the stream.
+	 * @return the line without its line ending, or null if the stream has ended
+	 */
+	public synchronized String readLine() throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = read()) != -1) {
+			if (b == '\n') break;
+			line.write(b);
+		}
+		if (b == -1 && line.size() == 0) return null;
+
+		byte[] bytes = line.toByteArray();
+		int len = bytes.length;
+		if (len > 0 && bytes[len - 1] == '\r') len--;
+		return new String(bytes, 0, len, charset);
+	}
+
+	/**
+	 * Copies exactly len bytes to the given stream.
+	 * @throws IOException if the stream ends first
+	 */
+	public synchronized void copyTo(OutputStream out, long len) throws IOException {
+		byte[] buf = new byte[8192];
+		while (len > 0) {
+			int read = read(buf, 0, (int)Math.min(buf.length, len));
+			if (read < 0) throw new IOException("Stream ended " + len + " bytes early");
+			out.write(buf, 0, read);
+			len -= read;
+		}
+	}
+}
@@ -22,11 +22,11 @@
 package freemail.utils;
 
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.PrintWriter;
-import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -67,6 +67,14 @@ public class PropsFile {
 		return createPropsFile(f, false);
 	}
 	
+	/**
+	 * Reads a PropsFile from the given stream. The result isn't backed by a file, so put() and
+	 * remove() will fail. See the constructor for the meaning of stopAtBlank.
+	 */
+	public static PropsFile createPropsFile(InputStream is, boolean stopAtBlank) {
+		return new PropsFile(new LineInputStream(is), stopAtBlank);
+	}
+	
 	public static void reapOld() {
 		Logger.debug(PropsFile.class, "Cleaning up stale PropsFiles");
 		
@@ -84,13 +92,26 @@ public class PropsFile {
 
 	private final File file;
 	private HashMap<String, String> data;
-	private BufferedReader bufrdr;
+	// the rest of what was read if it stopped at a blank line
+	private LineInputStream rest;
 	private String commentPrefix;
 	private String header;
 
+	private PropsFile(LineInputStream in, boolean stopAtBlank) {
+		this.file = null;
+		this.data = null;
+		
+		try {
+			this.rest = this.read(in, stopAtBlank);
+		} catch (IOException ioe) {
+		}
+		this.commentPrefix = null;
+		this.header = null;
+	}
+	
 	/** Pass true into stopAtBlank to cause the reader to stop upon encountering
 	 * a blank line. It's the the caller's responsibility to get
-	 * (using the getReader() method) the stream and close it properly.
+	 * (using the getInputStream() method) the stream and close it properly.
 	 */
 	private PropsFile(File f, boolean stopAtBlank) {
 		this.file = f;
@@ -98,7 +119,7 @@ public class PropsFile {
 		
 		if (f.exists()) {
 			try {
-				this.bufrdr = this.read(stopAtBlank);
+				this.rest = this.read(new LineInputStream(new FileInputStream(this.file)), stopAtBlank);
 			} catch (IOException ioe) {
 			}
 		}
@@ -114,11 +135,9 @@ public class PropsFile {
 		this.header = hdr;
 	}
 	
-	private synchronized BufferedReader read(boolean stopAtBlank) throws IOException {
+	private synchronized LineInputStream read(LineInputStream br, boolean stopAtBlank) throws IOException {
 		this.data = new HashMap<String, String>();
 		
-		BufferedReader br = new BufferedReader(new FileReader(this.file));
-		
 		String line = null;
 		while ( (line = br.readLine()) != null) {
 			if (this.commentPrefix != null && line.startsWith(this.commentPrefix)) {
@@ -136,19 +155,26 @@ public class PropsFile {
 		return null;
 	}
 	
-	public BufferedReader getReader() {
-		return this.bufrdr;
+	/**
+	 * Returns what comes after the blank line, byte for byte, or null if there wasn't one.
+	 */
+	public InputStream getInputStream() {
+		return this.rest;
 	}
 	
 	public void closeReader() {
-		if (this.bufrdr == null) return;
+		if (this.rest == null) return;
 		try {
-			this.bufrdr.close();
+			this.rest.close();
 		} catch (IOException ioe) {
 		}
 	}
 	
 	private synchronized void write() throws IOException {
+		if (file == null) {
+			throw new IOException("Can't write a PropsFile that was read from a stream");
+		}
+		
 		File parentDir = file.getParentFile();
 		if(parentDir != null && !parentDir.exists()) {
 			if(!parentDir.mkdirs()) {
@@ -201,7 +227,7 @@ public class PropsFile {
 	}
 	
 	public boolean exists() {
-		return this.file.exists();
+		return this.file != null && this.file.exists();
 	}
 	
 	public Set<String> listProps() {
@@ -223,6 +249,7 @@ public class PropsFile {
 	
 	@Override
 	public String toString() {
+		if (file == null) return super.toString();
 		return file.getPath();
 	}
 }
@@ -0,0 +1,338 @@
+/*
+ * FakeFCPNode.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package fakes;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import freemail.config.Configurator;
+import freemail.fcp.FCPBadFileException;
+import freemail.fcp.FCPContext;
+import freemail.fcp.FCPInputStream;
+import freemail.fcp.FCPMessage;
+
+/**
+ * A stand-in for a Freenet node that listens on a local port, answers ClientHello and records
+ * every other message it receives without answering it. Like the node, it closes a connection
+ * when another one says hello with the same name. Tests can answer them with
+ * {@link #send(FCPMessage)}, or subclasses can answer them as they arrive, see
+ * {@link SimulatedFCPNode}.
+ */
+public class FakeFCPNode implements Runnable {
+	/**
+	 * The type of a message that is counted rather than recorded, see {@link #getMarkerCount()}.
+	 */
+	public static final String MARKER = "TestMarker";
+
+	private final ServerSocket server;
+	private final Thread acceptThread;
+	private final List<Socket> sockets = new ArrayList<Socket>();
+	private final List<FCPMessage> received = new ArrayList<FCPMessage>();
+	// the connections that have said hello
+	private final Map<Socket, OutputStream> outputs = new LinkedHashMap<Socket, OutputStream>();
+	private final Map<String, Socket> clientNames = new HashMap<String, Socket>();
+	private int duplicateNames = 0;
+	private int markers = 0;
+
+	public FakeFCPNode() throws IOException {
+		this(0);
+	}
+
+	/**
+	 * Starts a node listening on the given port, e.g. that of a node that has been closed, so
+	 * that it looks like the same node coming back.
+	 */
+	public FakeFCPNode(int port) throws IOException {
+		server = new ServerSocket();
+		server.setReuseAddress(true);
+		server.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 50);
+
+		acceptThread = new Thread(this, "Fake FCP node");
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+	}
+
+	/**
+	 * Returns the address of this node in the form used by the fcp_nodes setting.
+	 */
+	public String getAddress() {
+		return "127.0.0.1:" + server.getLocalPort();
+	}
+
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	/**
+	 * Returns a context that connects to this node.
+	 */
+	public FCPContext createContext() {
+		FCPContext ctx = new FCPContext();
+		ctx.setConfigProp(Configurator.FCP_HOST, "127.0.0.1");
+		ctx.setConfigProp(Configurator.FCP_PORT, Integer.toString(server.getLocalPort()));
+		return ctx;
+	}
+
+	@Override
+	public void run() {
+		while(!server.isClosed()) {
+			final Socket s;
+			try {
+				s = server.accept();
+			} catch(IOException e) {
+				return;
+			}
+
+			synchronized(this) {
+				if(server.isClosed()) {
+					// accepted while we were being closed
+					try {
+						s.close();
+					} catch(IOException e) {
+						// nothing more to do with it
+					}
+					return;
+				}
+				sockets.add(s);
+				notifyAll();
+			}
+
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					handle(s);
+				}
+			}, "Fake FCP node connection");
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	private void handle(Socket s) {
+		try {
+			FCPInputStream is = new FCPInputStream(s.getInputStream());
+			OutputStream os = s.getOutputStream();
+			while(true) {
+				FCPMessage msg = new FCPMessage(is);
+				if(msg.getType() == null) return;
+
+				if(msg.getType().equals("ClientHello")) {
+					Socket previous;
+					OutputStream previousOs = null;
+					synchronized(this) {
+						previous = clientNames.put(msg.headers.get("Name"), s);
+						if(previous != null) {
+							duplicateNames++;
+							previousOs = outputs.remove(previous);
+						}
+					}
+					if(previous != null) closeDuplicate(previous, previousOs);
+
+					synchronized(os) {
+						new FCPMessage(0, "NodeHello").writeto(os);
+					}
+					synchronized(this) {
+						outputs.put(s, os);
+					}
+					continue;
+				}
+
+				if(msg.getType().equals(MARKER)) {
+					synchronized(this) {
+						markers++;
+						notifyAll();
+					}
+					continue;
+				}
+
+				synchronized(this) {
+					received.add(msg);
+					notifyAll();
+				}
+				answer(msg, os);
+			}
+		} catch(IOException e) {
+			// connection closed
+		} catch(FCPBadFileException e) {
+			throw new AssertionError();
+		} finally {
+			synchronized(this) {
+				outputs.remove(s);
+				clientNames.values().remove(s);
+			}
+		}
+	}
+
+	/**
+	 * Closes a connection whose name has been taken by another, telling it why first as the node
+	 * does.
+	 */
+	private void closeDuplicate(Socket s, OutputStream os) {
+		try {
+			if(os != null) reply(os, new FCPMessage(0, "CloseConnectionDuplicateClientName"));
+		} catch(IOException e) {
+			// it's being closed anyway
+		}
+		try {
+			s.close();
+		} catch(IOException e) {
+			// nothing more to do with it
+		}
+	}
+
+	/**
+	 * Called for every message other than ClientHello once it has been recorded. Nothing is
+	 * answered here.
+	 * @param os the connection the message came in on, for {@link #reply(OutputStream, FCPMessage)}
+	 */
+	protected void answer(FCPMessage msg, OutputStream os) throws IOException {
+		// left to the test
+	}
+
+	/**
+	 * Sends a message to the client on the given connection.
+	 */
+	protected void reply(OutputStream os, FCPMessage msg) throws IOException {
+		synchronized(os) {
+			try {
+				msg.writeto(os);
+			} catch(FCPBadFileException e) {
+				throw new AssertionError();
+			}
+		}
+	}
+
+	/**
+	 * Sends a message to every client that has said hello, e.g. the answer to a request that
+	 * was received.
+	 */
+	public void send(FCPMessage msg) throws IOException {
+		List<OutputStream> toSend;
+		synchronized(this) {
+			toSend = new ArrayList<OutputStream>(outputs.values());
+		}
+		for(OutputStream os : toSend) {
+			synchronized(os) {
+				try {
+					msg.writeto(os);
+				} catch(FCPBadFileException e) {
+					throw new AssertionError();
+				}
+			}
+		}
+	}
+
+	public synchronized int getConnectionCount() {
+		return sockets.size();
+	}
+
+	/**
+	 * @return how many times a client has said hello with a name another connection already had,
+	 *         which the node doesn't allow
+	 */
+	public synchronized int getDuplicateNameCount() {
+		return duplicateNames;
+	}
+
+	/**
+	 * Waits until at least count connections have been made to this node, or the timeout
+	 * expires.
+	 * @return true if there have been that many connections
+	 */
+	public synchronized boolean waitForConnections(int count, long timeout) throws InterruptedException {
+		long end = System.currentTimeMillis() + timeout;
+		while(sockets.size() < count) {
+			long remaining = end - System.currentTimeMillis();
+			if(remaining <= 0) return false;
+			wait(remaining);
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of {@link #MARKER} messages received. Messages on a connection arrive
+	 *         in order, so once a marker sent after some messages has arrived, so have they.
+	 */
+	public synchronized int getMarkerCount() {
+		return markers;
+	}
+
+	/**
+	 * Waits until at least count {@link #MARKER} messages have been received, or the timeout
+	 * expires.
+	 * @return true if there have been that many
+	 */
+	public synchronized boolean waitForMarkers(int count, long timeout) throws InterruptedException {
+		long end = System.currentTimeMillis() + timeout;
+		while(markers < count) {
+			long remaining = end - System.currentTimeMillis();
+			if(remaining <= 0) return false;
+			wait(remaining);
+		}
+		return true;
+	}
+
+	/**
+	 * Waits until at least count messages have been received, or the timeout expires.
+	 * @return the messages received so far
+	 */
+	public synchronized List<FCPMessage> waitForMessages(int count, long timeout) throws InterruptedException {
+		long end = System.currentTimeMillis() + timeout;
+		while(received.size() < count) {
+			long remaining = end - System.currentTimeMillis();
+			if(remaining <= 0) break;
+			wait(remaining);
+		}
+		return new ArrayList<FCPMessage>(received);
+	}
+
+	/**
+	 * Stops listening and closes all connections, as if the node had been shut down.
+	 */
+	public void close() throws IOException {
+		server.close();
+		// the socket only really stops listening once the thread blocked in accept() has noticed
+		try {
+			acceptThread.join();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		List<Socket> toClose;
+		synchronized(this) {
+			toClose = new ArrayList<Socket>(sockets);
+			sockets.clear();
+			outputs.clear();
+			clientNames.clear();
+		}
+		for(Socket s : toClose) {
+			s.close();
+		}
+	}
+}
@@ -0,0 +1,530 @@
+/*
+ * SimulatedFCPNode.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package fakes;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import freemail.fcp.FCPData;
+import freemail.fcp.FCPFetchException;
+import freemail.fcp.FCPMessage;
+import freemail.fcp.FCPPutFailedException;
+import freemail.fcp.FCPProtocolException;
+
+/**
+ * A {@link FakeFCPNode} that answers requests the way a node would, keeping the keys that are
+ * inserted in memory. It understands ClientGet (including MaxSize, watches with MaxRetries=-1
+ * and USK editions), ClientPut (including persistent inserts on the global queue), GenerateSSK,
+ * RemoveRequest and the heartbeat, which is enough for Freemail's own code to run against it.
+ *
+ * Tests can insert keys themselves, now or after a delay to simulate data that turns up later,
+ * make requests for a key fail with a given code, and slow every answer down to simulate the
+ * latency of the network. Inserting different data to a key that is already there fails with a
+ * collision, as with a real node.
+ *
+ * SSKs work as long as the key pairs come from this node: data inserted under an insert URI is
+ * stored under the matching request URI.
+ */
+public class SimulatedFCPNode extends FakeFCPNode {
+	private static final String BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789~-";
+
+	private final Timer timer = new Timer("Simulated FCP node", true);
+	private final SecureRandom random = new SecureRandom();
+
+	// everything below is guarded by store
+	private final Map<String, byte[]> store = new HashMap<String, byte[]>();
+	// the key body of each insert URI we have handed out, to that of its request URI
+	private final Map<String, String> sskPairs = new HashMap<String, String>();
+	private final Map<String, Integer> fetchFailures = new HashMap<String, Integer>();
+	private final Map<String, Integer> insertFailures = new HashMap<String, Integer>();
+	private final List<PendingGet> waiting = new ArrayList<PendingGet>();
+	// persistent inserts by identifier, with the message that finished them
+	private final Map<String, FCPMessage> persistent = new LinkedHashMap<String, FCPMessage>();
+	private final Map<String, String> persistentURIs = new HashMap<String, String>();
+
+	private volatile long latency = 0;
+	private final AtomicInteger fetches = new AtomicInteger();
+	private final AtomicInteger inserts = new AtomicInteger();
+
+	public SimulatedFCPNode() throws IOException {
+		super();
+	}
+
+	/**
+	 * Delays every answer by the given number of milliseconds.
+	 */
+	public void setLatency(long millis) {
+		latency = millis;
+	}
+
+	/**
+	 * Stores the data under the given key, as if someone else had inserted it. Anything
+	 * watching the key gets it.
+	 * @param key the request URI, or the insert URI of a key pair from this node
+	 */
+	public void insert(String key, byte[] data) {
+		List<PendingGet> found = new ArrayList<PendingGet>();
+		synchronized(store) {
+			store.put(storeKey(toRequestURI(key)), data.clone());
+			Iterator<PendingGet> it = waiting.iterator();
+			while(it.hasNext()) {
+				PendingGet get = it.next();
+				if(lookup(get.uri) != null) {
+					it.remove();
+					found.add(get);
+				}
+			}
+		}
+		for(PendingGet get : found) {
+			answerGet(get.msg, get.os, false);
+		}
+	}
+
+	/**
+	 * As {@link #insert(String, byte[])}, after the given number of milliseconds.
+	 */
+	public void insertLater(final String key, final byte[] data, long delay) {
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				insert(key, data);
+			}
+		}, delay);
+	}
+
+	/**
+	 * @return the data stored under the given key, or null if there isn't any
+	 */
+	public byte[] get(String key) {
+		synchronized(store) {
+			return store.get(storeKey(toRequestURI(key)));
+		}
+	}
+
+	/**
+	 * Makes fetches of the given key fail with the given code until {@link #clearFailures()}.
+	 */
+	public void failFetches(String key, int code) {
+		synchronized(store) {
+			fetchFailures.put(toRequestURI(key), code);
+		}
+	}
+
+	/**
+	 * Makes inserts to the given key fail with the given code until {@link #clearFailures()}.
+	 */
+	public void failInserts(String key, int code) {
+		synchronized(store) {
+			insertFailures.put(toRequestURI(key), code);
+		}
+	}
+
+	public void clearFailures() {
+		synchronized(store) {
+			fetchFailures.clear();
+			insertFailures.clear();
+		}
+	}
+
+	/**
+	 * @return the number of ClientGets received, watches included
+	 */
+	public int getFetchCount() {
+		return fetches.get();
+	}
+
+	/**
+	 * @return the number of ClientPuts received
+	 */
+	public int getInsertCount() {
+		return inserts.get();
+	}
+
+	/**
+	 * @return the number of fetches waiting for their key to be inserted
+	 */
+	public int getWaitingCount() {
+		synchronized(store) {
+			return waiting.size();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		timer.cancel();
+		super.close();
+	}
+
+	@Override
+	protected void answer(FCPMessage msg, OutputStream os) throws IOException {
+		String type = msg.getType();
+		if(type.equals("ClientGet")) {
+			fetches.incrementAndGet();
+			answerGet(msg, os, true);
+		} else if(type.equals("ClientPut")) {
+			inserts.incrementAndGet();
+			answerPut(msg, os);
+		} else if(type.equals("GenerateSSK")) {
+			answerGenerateSSK(msg, os);
+		} else if(type.equals("RemoveRequest") || type.equals("RemovePersistentRequest")) {
+			answerRemove(msg, os);
+		} else if(type.equals("ListPersistentRequests")) {
+			answerList(os);
+		} else if(type.equals("GetRequestStatus")) {
+			answerStatus(msg, os);
+		} else if(type.equals("GetNode")) {
+			respond(os, new FCPMessage(msg.getId(), "NodeData"));
+		}
+	}
+
+	private void answerGet(FCPMessage msg, OutputStream os, boolean first) {
+		String uri = msg.headers.get("URI");
+		byte[] data;
+		Integer failure;
+		String redirect = null;
+		synchronized(store) {
+			failure = fetchFailures.get(uri);
+			data = lookup(uri);
+			if(data == null && failure == null && uri.startsWith("USK@")) {
+				redirect = newerEdition(uri);
+			}
+			if(data == null && failure == null && redirect == null && first && "-1".equals(msg.headers.get("MaxRetries"))) {
+				// a watch, which waits for the data to be inserted
+				waiting.add(new PendingGet(uri, msg, os));
+				return;
+			}
+		}
+
+		if(failure != null) {
+			respond(os, getFailed(msg, failure.intValue(), false));
+		} else if(redirect != null) {
+			FCPMessage reply = getFailed(msg, FCPFetchException.PERMANENT_REDIRECT, false);
+			reply.headers.put("RedirectURI", redirect);
+			respond(os, reply);
+		} else if(data == null) {
+			respond(os, getFailed(msg, FCPFetchException.DATA_NOT_FOUND, false));
+		} else if(msg.headers.get("MaxSize") != null && data.length > Long.parseLong(msg.headers.get("MaxSize"))) {
+			respond(os, getFailed(msg, FCPFetchException.TOO_BIG, true));
+		} else {
+			FCPMessage reply = new FCPMessage(msg.getId(), "AllData");
+			reply.setData(new ByteArrayInputStream(data));
+			respond(os, reply);
+		}
+	}
+
+	private void answerPut(FCPMessage msg, OutputStream os) throws IOException {
+		FCPData payload = msg.getData();
+		byte[] data = payload == null ? new byte[0] : payload.toByteArray();
+		if(payload != null) payload.release();
+
+		String uri = msg.headers.get("URI");
+		if(uri.startsWith("CHK@")) uri = "CHK@" + hash(data);
+		String requestURI = toRequestURI(uri);
+		boolean global = "true".equalsIgnoreCase(msg.headers.get("Global"));
+
+		FCPMessage result;
+		synchronized(store) {
+			if(global) {
+				if(persistent.containsKey(msg.getId())) {
+					respond(os, new FCPMessage(msg.getId(), "IdentifierCollision"));
+					return;
+				}
+				persistentURIs.put(msg.getId(), requestURI);
+				// not finished yet, as far as a listing is concerned
+				persistent.put(msg.getId(), null);
+			}
+
+			Integer failure = insertFailures.get(requestURI);
+			byte[] existing = store.get(storeKey(requestURI));
+			if(failure != null) {
+				result = putFailed(msg, failure.intValue());
+			} else if(existing != null && !Arrays.equals(existing, data)) {
+				result = putFailed(msg, FCPPutFailedException.COLLISION);
+			} else {
+				result = new FCPMessage(msg.getId(), "PutSuccessful");
+				result.headers.put("URI", requestURI);
+			}
+		}
+
+		if(global) {
+			FCPMessage started = new FCPMessage(msg.getId(), "PersistentPut");
+			started.headers.put("Global", "true");
+			started.headers.put("URI", uri);
+			respond(os, started);
+			result.headers.put("Global", "true");
+			synchronized(store) {
+				if(persistent.containsKey(msg.getId())) persistent.put(msg.getId(), result);
+			}
+		}
+		if(result.getType().equals("PutSuccessful")) insert(requestURI, data);
+		respond(os, result);
+	}
+
+	private void answerGenerateSSK(FCPMessage msg, OutputStream os) {
+		String crypto = randomString(43);
+		String insertBody = randomString(43) + "," + crypto + ",AQECAAE";
+		String requestBody = randomString(43) + "," + crypto + ",AQACAAE";
+		synchronized(store) {
+			sskPairs.put(insertBody, requestBody);
+		}
+
+		FCPMessage reply = new FCPMessage(msg.getId(), "SSKKeypair");
+		reply.headers.put("InsertURI", "SSK@" + insertBody + "/");
+		reply.headers.put("RequestURI", "SSK@" + requestBody + "/");
+		respond(os, reply);
+	}
+
+	private void answerRemove(FCPMessage msg, OutputStream os) {
+		boolean found = false;
+		synchronized(store) {
+			Iterator<PendingGet> it = waiting.iterator();
+			while(it.hasNext()) {
+				if(it.next().msg.getId().equals(msg.getId())) {
+					it.remove();
+					found = true;
+				}
+			}
+			if(persistent.containsKey(msg.getId())) {
+				persistent.remove(msg.getId());
+				persistentURIs.remove(msg.getId());
+				found = true;
+			}
+		}
+		if(found) {
+			respond(os, new FCPMessage(msg.getId(), "PersistentRequestRemoved"));
+		} else {
+			respond(os, noSuchIdentifier(msg));
+		}
+	}
+
+	private void answerList(OutputStream os) {
+		List<FCPMessage> listing = new ArrayList<FCPMessage>();
+		synchronized(store) {
+			for(Map.Entry<String, FCPMessage> e : persistent.entrySet()) {
+				FCPMessage put = new FCPMessage(e.getKey(), "PersistentPut");
+				put.headers.put("Global", "true");
+				put.headers.put("URI", persistentURIs.get(e.getKey()));
+				listing.add(put);
+				if(e.getValue() != null) listing.add(e.getValue());
+			}
+		}
+		listing.add(new FCPMessage(0, "EndListPersistentRequests"));
+		for(FCPMessage m : listing) {
+			respond(os, m);
+		}
+	}
+
+	private void answerStatus(FCPMessage msg, OutputStream os) {
+		FCPMessage result;
+		boolean known;
+		synchronized(store) {
+			known = persistent.containsKey(msg.getId());
+			result = persistent.get(msg.getId());
+		}
+		if(!known) {
+			respond(os, noSuchIdentifier(msg));
+		} else if(result != null) {
+			respond(os, result);
+		}
+		// otherwise it is still running, and the result will come when it's done
+	}
+
+	/**
+	 * Returns the data for the given request URI. USKs with a negative edition get the latest
+	 * edition from the positive one onwards.
+	 */
+	private byte[] lookup(String uri) {
+		byte[] data = store.get(storeKey(uri));
+		if(data != null || !uri.startsWith("USK@")) return data;
+		if(editionOf(uri) >= 0) return null;
+
+		String latest = newerEdition(uri);
+		return latest == null ? null : store.get(storeKey(latest));
+	}
+
+	/**
+	 * Returns the URI of the latest edition of the given USK, if it is at least the one asked
+	 * for and isn't the one asked for.
+	 */
+	private String newerEdition(String uri) {
+		String[] parts = uri.split("/", 4);
+		if(parts.length < 3) return null;
+		long wanted = editionOf(uri);
+		if(wanted == Long.MIN_VALUE) return null;
+		wanted = Math.abs(wanted);
+		String body = parts[0].substring("USK@".length());
+		String rest = parts.length == 4 ? "/" + parts[3] : "";
+		String prefix = "SSK@" + body + "/" + parts[1] + "-";
+
+		String best = null;
+		long bestEdition = -1;
+		for(String key : store.keySet()) {
+			if(!key.startsWith(prefix)) continue;
+			int slash = key.indexOf('/', prefix.length());
+			String krest = slash < 0 ? "" : key.substring(slash);
+			if(!krest.equals(rest)) continue;
+			long edition;
+			try {
+				edition = Long.parseLong(slash < 0 ? key.substring(prefix.length()) : key.substring(prefix.length(), slash));
+			} catch(NumberFormatException e) {
+				continue;
+			}
+			if(edition >= wanted && edition > bestEdition) {
+				best = "USK@" + body + "/" + parts[1] + "/" + edition + rest;
+				bestEdition = edition;
+			}
+		}
+		if(best == null || best.equals(uri)) return null;
+		return best;
+	}
+
+	/**
+	 * @return the edition of the given USK, or Long.MIN_VALUE if it isn't a USK with one
+	 */
+	private static long editionOf(String uri) {
+		String[] parts = uri.split("/", 4);
+		if(!uri.startsWith("USK@") || parts.length < 3) return Long.MIN_VALUE;
+		try {
+			return Long.parseLong(parts[2]);
+		} catch(NumberFormatException e) {
+			return Long.MIN_VALUE;
+		}
+	}
+
+	/**
+	 * Returns the key data is stored under. As on a real node, an edition of a USK is the SSK
+	 * USK@key/name/edition/... stands for, SSK@key/name-edition/..., so data inserted under
+	 * either can be fetched by both.
+	 */
+	private static String storeKey(String uri) {
+		long edition = editionOf(uri);
+		if(edition < 0) return uri;
+		String[] parts = uri.split("/", 4);
+		return "SSK@" + parts[0].substring("USK@".length()) + "/" + parts[1] + "-" + edition
+				+ (parts.length == 4 ? "/" + parts[3] : "");
+	}
+
+	/**
+	 * Turns an insert URI from one of our key pairs into the matching request URI.
+	 */
+	private String toRequestURI(String uri) {
+		int at = uri.indexOf('@');
+		if(at < 0) return uri;
+		String type = uri.substring(0, at);
+		if(!type.equals("SSK") && !type.equals("USK")) return uri;
+
+		int slash = uri.indexOf('/', at);
+		String body = slash < 0 ? uri.substring(at + 1) : uri.substring(at + 1, slash);
+		String requestBody;
+		synchronized(store) {
+			requestBody = sskPairs.get(body);
+		}
+		if(requestBody == null) return uri;
+		return type + "@" + requestBody + (slash < 0 ? "" : uri.substring(slash));
+	}
+
+	private void respond(final OutputStream os, final FCPMessage msg) {
+		long delay = latency;
+		if(delay <= 0) {
+			sendNow(os, msg);
+			return;
+		}
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				sendNow(os, msg);
+			}
+		}, delay);
+	}
+
+	private void sendNow(OutputStream os, FCPMessage msg) {
+		try {
+			reply(os, msg);
+		} catch(IOException e) {
+			// the client has gone, as it would from a real node
+		}
+	}
+
+	private static FCPMessage getFailed(FCPMessage req, int code, boolean fatal) {
+		FCPMessage reply = new FCPMessage(req.getId(), "GetFailed");
+		reply.headers.put("Code", Integer.toString(code));
+		reply.headers.put("Fatal", Boolean.toString(fatal));
+		return reply;
+	}
+
+	private static FCPMessage putFailed(FCPMessage req, int code) {
+		FCPMessage reply = new FCPMessage(req.getId(), "PutFailed");
+		reply.headers.put("Code", Integer.toString(code));
+		return reply;
+	}
+
+	private static FCPMessage noSuchIdentifier(FCPMessage req) {
+		FCPMessage reply = new FCPMessage(req.getId(), "ProtocolError");
+		reply.headers.put("Code", Integer.toString(FCPProtocolException.NO_SUCH_IDENTIFIER));
+		return reply;
+	}
+
+	private String randomString(int length) {
+		StringBuilder sb = new StringBuilder(length);
+		for(int i = 0; i < length; i++) {
+			sb.append(BASE64.charAt(random.nextInt(BASE64.length())));
+		}
+		return sb.toString();
+	}
+
+	private static String hash(byte[] data) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+			StringBuilder sb = new StringBuilder();
+			for(byte b : digest) {
+				sb.append(String.format("%02x", b & 0xff));
+			}
+			return sb.toString();
+		} catch(NoSuchAlgorithmException e) {
+			throw new AssertionError();
+		}
+	}
+
+	private static class PendingGet {
+		final String uri;
+		final FCPMessage msg;
+		final OutputStream os;
+
+		PendingGet(String uri, FCPMessage msg, OutputStream os) {
+			this.uri = uri;
+			this.msg = msg;
+			this.os = os;
+		}
+	}
+}
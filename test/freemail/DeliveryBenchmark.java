@@ -0,0 +1,477 @@
+/*
+ * DeliveryBenchmark.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.bouncycastle.util.encoders.Base64;
+
+import utils.Utils;
+
+import fakes.SimulatedFCPNode;
+import freemail.config.Configurator;
+import freemail.utils.PropsFile;
+
+/**
+ * Measures how long a message takes from SMTP DATA on one Freemail instance to showing up in
+ * the IMAP inbox on another. Both instances run as separate FreemailCli processes against a
+ * {@link SimulatedFCPNode} in this process, which plays the part of Freenet.
+ *
+ * One or more sending accounts on the first instance each send to the same account on the
+ * second, so every sender is a separate contact of the receiver. The first message from each
+ * sender also goes through the RTS/CTS handshake and is reported separately.
+ *
+ * This is not a unit test, run it with <code>ant benchmark -Dbenchmark.args="..."</code>. The
+ * arguments are:
+ * <pre>
+ *   --messages N      how many messages to send in all (default 20)
+ *   --senders N       how many sending accounts, i.e. contacts of the receiver (default 1)
+ *   --depth N         how many messages may be on their way at once (default 5)
+ *   --latency MS      how long the node takes to answer each request (default 0)
+ *   --poll MS         how often to check the receiver's inbox (default 1000)
+ *   --timeout MIN     how long to wait for all messages before giving up (default 60)
+ *   --set KEY=VALUE   a config setting for both instances, e.g. slot_watch=true
+ *   --dir DIR         where to put the instances (default benchmark)
+ * </pre>
+ */
+public class DeliveryBenchmark {
+	private static final String PASSWORD = "benchmark";
+	private static final String RECEIVER = "receiver";
+	private static final String SUBJECT_PREFIX = "Benchmark message ";
+	private static final Pattern EXISTS = Pattern.compile("^\\* (\\d+) EXISTS");
+	private static final Pattern SUBJECT = Pattern.compile("^Subject: " + SUBJECT_PREFIX + "(\\d+)", Pattern.CASE_INSENSITIVE);
+
+	private int messages = 20;
+	private int senders = 1;
+	private int depth = 5;
+	private long latency = 0;
+	private long pollInterval = 1000;
+	private long timeout = 60;
+	private final Map<String, String> settings = new HashMap<String, String>();
+	private File dir = new File("benchmark");
+
+	private SimulatedFCPNode node;
+	private final List<Process> processes = new ArrayList<Process>();
+
+	// when each message was sent and when it arrived, by sequence number
+	private final Map<Integer, Long> sent = new HashMap<Integer, Long>();
+	private final Map<Integer, Long> arrived = new HashMap<Integer, Long>();
+	// the sequence numbers of the first message from each sender
+	private final List<Integer> handshakes = new ArrayList<Integer>();
+
+	public static void main(String[] args) throws Exception {
+		DeliveryBenchmark bench = new DeliveryBenchmark();
+		if(!bench.parseArgs(args)) {
+			System.err.println("Usage: DeliveryBenchmark [--messages N] [--senders N] [--depth N] [--latency MS] "
+					+ "[--poll MS] [--timeout MIN] [--set KEY=VALUE]... [--dir DIR]");
+			System.exit(1);
+		}
+		try {
+			bench.run();
+		} finally {
+			bench.shutdown();
+		}
+		System.exit(0);
+	}
+
+	private boolean parseArgs(String[] args) {
+		try {
+			for(int i = 0; i < args.length; i++) {
+				if(i + 1 >= args.length) return false;
+				String arg = args[i];
+				String val = args[++i];
+				if(arg.equals("--messages")) {
+					messages = Integer.parseInt(val);
+				} else if(arg.equals("--senders")) {
+					senders = Integer.parseInt(val);
+				} else if(arg.equals("--depth")) {
+					depth = Integer.parseInt(val);
+				} else if(arg.equals("--latency")) {
+					latency = Long.parseLong(val);
+				} else if(arg.equals("--poll")) {
+					pollInterval = Long.parseLong(val);
+				} else if(arg.equals("--timeout")) {
+					timeout = Long.parseLong(val);
+				} else if(arg.equals("--set")) {
+					String[] parts = val.split("=", 2);
+					if(parts.length < 2) return false;
+					settings.put(parts[0], parts[1]);
+				} else if(arg.equals("--dir")) {
+					dir = new File(val);
+				} else {
+					return false;
+				}
+			}
+		} catch(NumberFormatException e) {
+			return false;
+		}
+		return messages > 0 && senders > 0 && depth > 0;
+	}
+
+	private void run() throws Exception {
+		if(dir.exists()) Utils.delete(dir);
+		node = new SimulatedFCPNode();
+		node.setLatency(latency);
+
+		Instance from = new Instance(new File(dir, "sender"));
+		Instance to = new Instance(new File(dir, "receiver"));
+		List<String> senderNames = new ArrayList<String>();
+		for(int i = 0; i < senders; i++) {
+			String name = "sender" + i;
+			from.createAccount(name);
+			senderNames.add(name);
+		}
+		to.createAccount(RECEIVER);
+		String toAddress = RECEIVER + "@" + to.getDomain(RECEIVER);
+
+		from.start();
+		to.start();
+		waitForPort(from.smtpPort);
+		waitForPort(to.imapPort);
+		log("Both instances are running");
+
+		Inbox inbox = new Inbox(to.imapPort);
+		int seen = inbox.count();
+		long start = System.currentTimeMillis();
+		long end = start + timeout * 60 * 1000;
+		int next = 0;
+		while(arrived.size() < messages && System.currentTimeMillis() < end) {
+			// keep up to depth messages on their way
+			while(next < messages && next - arrived.size() < depth) {
+				String sender = senderNames.get(next % senders);
+				if(next < senders) handshakes.add(Integer.valueOf(next));
+				sendMessage(from.smtpPort, sender, sender + "@" + from.getDomain(sender), toAddress, next);
+				next++;
+			}
+
+			Thread.sleep(pollInterval);
+			int count = inbox.count();
+			if(count > seen) {
+				long now = System.currentTimeMillis();
+				for(Integer seq : inbox.subjects(seen + 1, count)) {
+					if(!arrived.containsKey(seq)) arrived.put(seq, Long.valueOf(now));
+				}
+				seen = count;
+			}
+		}
+		long elapsed = System.currentTimeMillis() - start;
+		inbox.close();
+
+		report(elapsed);
+	}
+
+	private void report(long elapsed) {
+		List<Long> first = new ArrayList<Long>();
+		List<Long> rest = new ArrayList<Long>();
+		for(Map.Entry<Integer, Long> e : arrived.entrySet()) {
+			Long sentAt = sent.get(e.getKey());
+			if(sentAt == null) continue;
+			long taken = e.getValue().longValue() - sentAt.longValue();
+			if(handshakes.contains(e.getKey())) {
+				first.add(Long.valueOf(taken));
+			} else {
+				rest.add(Long.valueOf(taken));
+			}
+		}
+
+		System.out.println();
+		System.out.println("Messages: " + messages + ", senders: " + senders + ", depth: " + depth
+				+ ", node latency: " + latency + "ms, settings: " + settings);
+		System.out.println("Delivered " + arrived.size() + " of " + messages + " in " + (elapsed / 1000) + "s");
+		printLatencies("First message from each sender (with RTS/CTS)", first);
+		printLatencies("Other messages", rest);
+		if(elapsed > 0) {
+			System.out.println("Throughput: " + (arrived.size() * 3600L * 1000 / elapsed) + " messages/hour");
+		}
+		System.out.println("Node requests: " + node.getFetchCount() + " fetches, " + node.getInsertCount() + " inserts");
+		if(node.getDuplicateNameCount() > 0) {
+			System.out.println("Connections closed for taking another's client name: " + node.getDuplicateNameCount());
+		}
+	}
+
+	private static void printLatencies(String what, List<Long> latencies) {
+		if(latencies.isEmpty()) {
+			System.out.println(what + ": none delivered");
+			return;
+		}
+		Collections.sort(latencies);
+		System.out.println(what + ": " + latencies.size() + " delivered, p50 " + (percentile(latencies, 50) / 1000.0)
+				+ "s, p99 " + (percentile(latencies, 99) / 1000.0) + "s, max "
+				+ (latencies.get(latencies.size() - 1).longValue() / 1000.0) + "s");
+	}
+
+	/**
+	 * @return the given percentile of a sorted list, by the nearest rank method
+	 */
+	private static long percentile(List<Long> sorted, int p) {
+		int rank = (int)Math.ceil(p / 100.0 * sorted.size());
+		return sorted.get(Math.max(rank, 1) - 1).longValue();
+	}
+
+	private void sendMessage(int port, String username, String fromAddress, String toAddress, int seq) throws IOException {
+		Socket s = new Socket("127.0.0.1", port);
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "UTF-8"));
+			PrintStream out = new PrintStream(s.getOutputStream(), true, "UTF-8");
+			expect(in, "220");
+			smtp(in, out, "EHLO localhost", "250");
+			String creds = "\0" + username + "\0" + PASSWORD;
+			smtp(in, out, "AUTH PLAIN " + new String(Base64.encode(creds.getBytes("UTF-8")), "UTF-8"), "235");
+			smtp(in, out, "MAIL FROM:<" + fromAddress + ">", "250");
+			smtp(in, out, "RCPT TO:<" + toAddress + ">", "250");
+			sent.put(Integer.valueOf(seq), Long.valueOf(System.currentTimeMillis()));
+			smtp(in, out, "DATA", "354");
+			out.print("From: " + fromAddress + "\r\n");
+			out.print("To: " + toAddress + "\r\n");
+			out.print("Subject: " + SUBJECT_PREFIX + seq + "\r\n");
+			out.print("\r\n");
+			out.print("Sent at " + System.currentTimeMillis() + "\r\n");
+			smtp(in, out, ".", "250");
+			smtp(in, out, "QUIT", "221");
+		} finally {
+			s.close();
+		}
+	}
+
+	private static void smtp(BufferedReader in, PrintStream out, String cmd, String reply) throws IOException {
+		out.print(cmd + "\r\n");
+		out.flush();
+		expect(in, reply);
+	}
+
+	/**
+	 * Reads an SMTP reply, which may run over several lines, and checks its code.
+	 */
+	private static void expect(BufferedReader in, String code) throws IOException {
+		String line;
+		do {
+			line = in.readLine();
+			if(line == null) throw new IOException("Connection closed while waiting for " + code);
+		} while(line.length() > 3 && line.charAt(3) == '-');
+		if(!line.startsWith(code)) throw new IOException("Expected " + code + " but got " + line);
+	}
+
+	private static void waitForPort(int port) throws InterruptedException, IOException {
+		long end = System.currentTimeMillis() + 60 * 1000;
+		while(true) {
+			try {
+				new Socket("127.0.0.1", port).close();
+				return;
+			} catch(IOException e) {
+				if(System.currentTimeMillis() > end) throw e;
+				Thread.sleep(200);
+			}
+		}
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket s = new ServerSocket(0);
+		try {
+			return s.getLocalPort();
+		} finally {
+			s.close();
+		}
+	}
+
+	private void shutdown() throws IOException {
+		for(Process p : processes) {
+			p.destroy();
+		}
+		if(node != null) node.close();
+	}
+
+	private static void log(String msg) {
+		System.out.println("[" + System.currentTimeMillis() + "] " + msg);
+	}
+
+	/**
+	 * A FreemailCli in a directory of its own, talking to our node.
+	 */
+	private class Instance {
+		private final File dir;
+		private final int smtpPort;
+		private final int imapPort;
+
+		Instance(File dir) throws IOException {
+			this.dir = dir;
+			if(!dir.mkdirs()) throw new IOException("Couldn't create " + dir);
+			smtpPort = freePort();
+			imapPort = freePort();
+
+			PropsFile cfg = PropsFile.createPropsFile(new File(dir, Freemail.CFGFILE));
+			cfg.put(Configurator.FCP_HOST, "127.0.0.1");
+			cfg.put(Configurator.FCP_PORT, Integer.toString(node.getPort()));
+			cfg.put(Configurator.SMTP_BIND_ADDRESS, "127.0.0.1");
+			cfg.put(Configurator.SMTP_BIND_PORT, Integer.toString(smtpPort));
+			cfg.put(Configurator.IMAP_BIND_ADDRESS, "127.0.0.1");
+			cfg.put(Configurator.IMAP_BIND_PORT, Integer.toString(imapPort));
+			for(Map.Entry<String, String> e : settings.entrySet()) {
+				cfg.put(e.getKey(), e.getValue());
+			}
+		}
+
+		void createAccount(String username) throws IOException, InterruptedException {
+			log("Creating account " + username + " in " + dir);
+			if(launch("--newaccount", username).waitFor() != 0
+					|| launch("--passwd", username, PASSWORD).waitFor() != 0) {
+				throw new IOException("Couldn't create account " + username);
+			}
+		}
+
+		String getDomain(String username) throws IOException {
+			File accprops = new File(new File(new File(dir, Freemail.DEFAULT_DATADIR), username), AccountManager.ACCOUNT_FILE);
+			String domain = AccountManager.getFreemailDomain(PropsFile.createPropsFile(accprops));
+			if(domain == null) throw new IOException("Account " + username + " has no address");
+			return domain;
+		}
+
+		void start() throws IOException {
+			processes.add(launch());
+		}
+
+		/**
+		 * Runs FreemailCli with the given arguments, with its output going to a log file.
+		 */
+		private Process launch(String... args) throws IOException {
+			List<String> cmd = new ArrayList<String>();
+			cmd.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+			cmd.add("-cp");
+			cmd.add(System.getProperty("java.class.path"));
+			cmd.add(FreemailCli.class.getName());
+			cmd.add("-c");
+			cmd.add(Freemail.CFGFILE);
+			Collections.addAll(cmd, args);
+
+			ProcessBuilder pb = new ProcessBuilder(cmd);
+			pb.directory(dir.getAbsoluteFile());
+			pb.redirectErrorStream(true);
+			Process p = pb.start();
+			p.getOutputStream().close();
+			copyInBackground(p.getInputStream(), new FileOutputStream(new File(dir, "freemail.log"), true));
+			return p;
+		}
+	}
+
+	private static void copyInBackground(final InputStream in, final OutputStream out) {
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				byte[] buf = new byte[4096];
+				try {
+					int read;
+					while((read = in.read(buf)) > 0) {
+						out.write(buf, 0, read);
+					}
+				} catch(IOException e) {
+					// the process has gone
+				} finally {
+					try {
+						out.close();
+					} catch(IOException e) {
+						// nothing more to do with it
+					}
+				}
+			}
+		}, "Benchmark log copier");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * The receiver's inbox, as seen over IMAP.
+	 */
+	private static class Inbox {
+		private final Socket socket;
+		private final BufferedReader in;
+		private final PrintStream out;
+		private int tag = 0;
+
+		Inbox(int port) throws IOException {
+			socket = new Socket("127.0.0.1", port);
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+			out = new PrintStream(socket.getOutputStream(), true, "UTF-8");
+			in.readLine();
+			command("LOGIN " + RECEIVER + " " + PASSWORD);
+		}
+
+		/**
+		 * @return the number of messages in the inbox
+		 */
+		int count() throws IOException {
+			// NOOP doesn't report new messages, so select the inbox again
+			for(String line : command("SELECT INBOX")) {
+				Matcher m = EXISTS.matcher(line);
+				if(m.find()) return Integer.parseInt(m.group(1));
+			}
+			throw new IOException("No EXISTS in reply to SELECT");
+		}
+
+		/**
+		 * @return the sequence numbers of the benchmark messages among the given messages
+		 */
+		List<Integer> subjects(int from, int to) throws IOException {
+			List<Integer> seqs = new ArrayList<Integer>();
+			for(String line : command("FETCH " + from + ":" + to + " (BODY.PEEK[HEADER])")) {
+				Matcher m = SUBJECT.matcher(line);
+				if(m.find()) seqs.add(Integer.valueOf(m.group(1)));
+			}
+			return seqs;
+		}
+
+		/**
+		 * Sends a command and returns the lines of the reply.
+		 */
+		private List<String> command(String cmd) throws IOException {
+			String t = "B" + (tag++);
+			out.print(t + " " + cmd + "\r\n");
+			out.flush();
+			List<String> lines = new ArrayList<String>();
+			while(true) {
+				String line = in.readLine();
+				if(line == null) throw new IOException("Connection closed during " + cmd);
+				if(line.startsWith(t + " ")) {
+					if(!line.startsWith(t + " OK")) throw new IOException(cmd + " failed: " + line);
+					return lines;
+				}
+				lines.add(line);
+			}
+		}
+
+		void close() throws IOException {
+			socket.close();
+		}
+	}
+}
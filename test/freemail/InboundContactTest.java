@@ -0,0 +1,149 @@
+/*
+ * InboundContactTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.archive.util.Base32;
+
+import utils.Utils;
+
+import fakes.SimulatedFCPNode;
+import fakes.FakeFCPNode;
+import freemail.fcp.AsyncFCPClient;
+import freemail.fcp.FCPTestBase;
+import freemail.fcp.HighLevelFCPClient;
+import freemail.fcp.SSKKeyPair;
+import freemail.fcp.WatchSet;
+
+/**
+ * Receives messages from a contact through a {@link SimulatedFCPNode}, the way
+ * {@link SingleAccountWatcher} does.
+ */
+public class InboundContactTest extends FCPTestBase {
+	private static final String TEST_DIR = "inboundcontact";
+	private static final String MESSAGE = "id=1\r\n\r\n"
+			+ "From: sender@example.com\r\n"
+			+ "Subject: Test\r\n"
+			+ "\r\n"
+			+ "Hello\r\n";
+
+	private File testDir;
+	// the same as node
+	private SimulatedFCPNode simNode;
+	private FreemailAccount account;
+	private InboundContact contact;
+	private SSKKeyPair commssk;
+	private String slot;
+
+	@Override
+	protected FakeFCPNode createNode() throws IOException {
+		simNode = new SimulatedFCPNode();
+		return simNode;
+	}
+
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+		testDir = new File(TEST_DIR);
+		if(testDir.exists()) {
+			System.out.println("WARNING: Test directory exists, deleting");
+			Utils.delete(testDir);
+		}
+		File accountDir = new File(testDir, "account");
+		File contactDir = new File(testDir, "contacts");
+		File ackDir = new File(testDir, "acks");
+		accountDir.mkdirs();
+		contactDir.mkdirs();
+		ackDir.mkdirs();
+		AckProcrastinator.setAckDir(ackDir);
+
+		Freemail.fcppool = pool;
+		Freemail.freenetClient = new AsyncFCPClient(pool);
+
+		account = new FreemailAccount("test", accountDir, null);
+		commssk = new HighLevelFCPClient().makeSSK();
+
+		byte[] first = new byte[32];
+		first[0] = 1;
+		slot = Base32.encode(first);
+		contact = new InboundContact(contactDir, "contact");
+		contact.setProp("commssk", commssk.pubkey);
+		contact.setProp("ackssk", "SSK@ack/");
+		contact.setProp("slots", slot);
+	}
+
+	@Override
+	public void tearDown() throws Exception {
+		WatchSet.setEnabled(false);
+		Freemail.freenetClient = null;
+		Freemail.fcppool = null;
+		super.tearDown();
+		Utils.delete(testDir);
+	}
+
+	public void testMessageIsDelivered() throws Exception {
+		simNode.insert(commssk.privkey + slot, MESSAGE.getBytes("UTF-8"));
+
+		contact.fetch(account, 10000);
+
+		assertEquals(1, account.getMessageBank().listMessages().size());
+		// the slot is used up and the ack is on its way
+		assertFalse(slot.equals(contact.getProp("slots")));
+		assertEquals(1, new File(testDir, "acks").listFiles().length);
+	}
+
+	public void testDuplicateIsDiscarded() throws Exception {
+		simNode.insert(commssk.privkey + slot, MESSAGE.getBytes("UTF-8"));
+		contact.fetch(account, 10000);
+
+		// the same message again in the next slot
+		String next = contact.getProp("slots");
+		simNode.insert(commssk.privkey + next, MESSAGE.getBytes("UTF-8"));
+		contact.fetch(account, 10000);
+
+		assertEquals(1, account.getMessageBank().listMessages().size());
+		assertFalse(next.equals(contact.getProp("slots")));
+	}
+
+	public void testMessageThatTurnsUpLaterIsWatched() throws Exception {
+		WatchSet.setEnabled(true);
+		WatchSet watches = new WatchSet(Freemail.getFreenetClient().forShard("test"));
+
+		contact.fetch(account, 10000, watches);
+		assertEquals(0, account.getMessageBank().listMessages().size());
+		// the watch is sent in the background, so it may not have reached the node yet
+		long sent = System.currentTimeMillis() + 5000;
+		while(simNode.getWaitingCount() == 0 && System.currentTimeMillis() < sent) {
+			Thread.sleep(10);
+		}
+		assertTrue(simNode.getWaitingCount() > 0);
+
+		simNode.insertLater(commssk.privkey + slot, MESSAGE.getBytes("UTF-8"), 100);
+		long end = System.currentTimeMillis() + 10000;
+		while(account.getMessageBank().listMessages().isEmpty() && System.currentTimeMillis() < end) {
+			Thread.sleep(50);
+			contact.fetch(account, 10000, watches);
+		}
+		assertEquals(1, account.getMessageBank().listMessages().size());
+		watches.cancelAll();
+	}
+}
@@ -19,8 +19,13 @@
 
 package freemail;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.util.Arrays;
 
 import utils.Utils;
 
@@ -71,4 +76,58 @@ public class MailMessageTest extends TestCase {
 		msg.storeFlags();
 		assertEquals(new File(msgDir, "0,SX"), msgDir.listFiles()[0]);
 	}
+
+	public void testOldMessageIsConvertedToCRLF() throws IOException {
+		File messageFile = new File(msgDir, "1");
+		// a line ending from another platform, 8 bit text and no line ending at the end
+		byte[] old = {'A', ':', ' ', 'b', '\n', '\n', (byte)0xe9, '\r', '\n', 'x'};
+		FileOutputStream out = new FileOutputStream(messageFile);
+		out.write(old);
+		out.close();
+		// the internal date of an old message is when it was last modified
+		long modified = 1000000000000L;
+		assertTrue(messageFile.setLastModified(modified));
+
+		MailMessage msg = new MailMessage(messageFile, 0);
+		assertEquals(14, msg.getSize());
+		assertEquals(modified, messageFile.lastModified());
+		assertEquals(1, msgDir.listFiles().length);
+
+		ByteArrayOutputStream sent = new ByteArrayOutputStream();
+		assertEquals(14, msg.transferTo(0, 100, Channels.newChannel(sent)));
+		byte[] expected = {'A', ':', ' ', 'b', '\r', '\n', '\r', '\n', (byte)0xe9, '\r', '\n', 'x', '\r', '\n'};
+		assertTrue(Arrays.equals(expected, sent.toByteArray()));
+
+		sent.reset();
+		assertEquals(3, msg.transferTo(6, 3, Channels.newChannel(sent)));
+		assertTrue(Arrays.equals(new byte[] {'\r', '\n', (byte)0xe9}, sent.toByteArray()));
+	}
+
+	public void testWrittenMessageHasCRLF() throws IOException {
+		File messageFile = new File(msgDir, "2");
+		MailMessage msg = new MailMessage(messageFile, 0);
+		msg.addHeader("Subject", "Test");
+		msg.writeHeadersAndGetStream().println("body");
+		msg.commit();
+
+		assertEquals("Subject: Test\r\n\r\nbody\r\n".length(), messageFile.length());
+	}
+
+	public void testBodyIsSentFromItsOffset() throws IOException {
+		File messageFile = new File(msgDir, "3");
+		MailMessage msg = new MailMessage(messageFile, 0);
+		msg.addHeader("Subject", "Test");
+		PrintStream ps = msg.writeHeadersAndGetStream();
+		ps.println("first");
+		ps.println("");
+		ps.println("second");
+		msg.commit();
+
+		long offset = msg.getBodyOffset();
+		assertEquals("Subject: Test\r\n\r\n".length(), offset);
+
+		ByteArrayOutputStream sent = new ByteArrayOutputStream();
+		msg.transferTo(offset, msg.getSize() - offset, Channels.newChannel(sent));
+		assertEquals("first\r\n\r\nsecond\r\n", sent.toString("US-ASCII"));
+	}
 }
@@ -20,6 +20,9 @@
 package freemail;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.SortedMap;
 
 import utils.Utils;
 
@@ -71,4 +74,147 @@ public class MessageBankTest extends TestCase {
 		//This would fail because .subsubfolder couldn't be deleted
 		assertTrue(subFolder.delete());
 	}
+
+	public void testListingFollowsChanges() throws Exception {
+		MailMessage first = createMessage("first");
+		MailMessage second = createMessage("second");
+		assertEquals(2, rootMessageBank.listMessages().size());
+
+		second.flags.set("\\Seen", true);
+		second.storeFlags();
+		MailMessage[] msgs = rootMessageBank.listMessagesArray();
+		assertEquals(2, msgs.length);
+		assertEquals(first.getUID(), msgs[0].getUID());
+		assertTrue(msgs[1].flags.get("\\Seen"));
+
+		first.delete();
+		assertEquals(1, rootMessageBank.countMessages());
+		assertEquals(Integer.valueOf(second.getUID()), rootMessageBank.listMessages().firstKey());
+	}
+
+	public void testFilesAddedBehindOurBackAreListed() throws Exception {
+		createMessage("first");
+		assertEquals(1, rootMessageBank.countMessages());
+
+		// make sure the directory doesn't look the same as it did
+		File inbox = new File(accountDir, "inbox");
+		assertTrue(new File(inbox, "100,S").createNewFile());
+		inbox.setLastModified(inbox.lastModified() + 1000);
+
+		SortedMap<Integer, MailMessage> msgs = rootMessageBank.listMessages();
+		assertEquals(2, msgs.size());
+		assertTrue(msgs.get(Integer.valueOf(100)).flags.get("\\Seen"));
+	}
+
+	public void testIndexIsSavedAndLoaded() throws Exception {
+		for(int i = 0; i < 3; i++) {
+			createMessage("Body " + i);
+		}
+		MailMessage msg = rootMessageBank.listMessagesArray()[1];
+		long size = msg.getSize();
+		long date = msg.getInternalDate();
+
+		// forget the index and write over the message, so the size only comes from the saved index
+		MailboxIndex.saveAll();
+		MailboxIndex.forget(new File(accountDir, "inbox"));
+		new FileOutputStream(new File(accountDir, "inbox/" + msg.getUID())).close();
+
+		MessageBank reloaded = new MessageBank(new FreemailAccount(null, accountDir, null));
+		MailMessage[] msgs = reloaded.listMessagesArray();
+		assertEquals(3, msgs.length);
+		assertEquals(size, msgs[1].getSize());
+		assertEquals(date, msgs[1].getInternalDate());
+	}
+
+	public void testFlagsAreKeptWithoutRenaming() throws Exception {
+		MailMessage msg = createMessage("body");
+		File inbox = new File(accountDir, "inbox");
+		File file = new File(inbox, Integer.toString(msg.getUID()));
+		assertTrue(file.exists());
+
+		MailMessage[] msgs = rootMessageBank.listMessagesArray();
+		msgs[0].flags.set("\\Recent", false);
+		msgs[0].flags.set("\\Flagged", true);
+		MailMessage.storeFlags(msgs);
+		assertTrue(file.exists());
+
+		MailboxIndex.forget(inbox);
+		MailMessage reloaded = new MessageBank(new FreemailAccount(null, accountDir, null)).listMessagesArray()[0];
+		assertEquals("\\Flagged", reloaded.flags.getFlags());
+	}
+
+	public void testFlagsAreTakenFromOldFileNames() throws Exception {
+		File inbox = new File(accountDir, "inbox");
+		assertTrue(new File(inbox, "1,SA").createNewFile());
+		assertTrue(new File(inbox, "2,").createNewFile());
+		assertTrue(new File(inbox, "3").createNewFile());
+		MailboxIndex.forget(inbox);
+
+		MailMessage[] msgs = new MessageBank(new FreemailAccount(null, accountDir, null)).listMessagesArray();
+		assertEquals("\\Seen \\Answered", msgs[0].flags.getFlags());
+		assertEquals("", msgs[1].flags.getFlags());
+		assertEquals("\\Recent", msgs[2].flags.getFlags());
+
+		// the names are left alone, the flags come from the table from now on
+		msgs[0].flags.set("\\Seen", false);
+		msgs[0].storeFlags();
+		assertTrue(new File(inbox, "1,SA").exists());
+		MailboxIndex.forget(inbox);
+		msgs = new MessageBank(new FreemailAccount(null, accountDir, null)).listMessagesArray();
+		assertEquals("\\Answered", msgs[0].flags.getFlags());
+	}
+
+	/*
+	 * Records added to a flag table whose header we can't read could never be read back, so the
+	 * flags would be lost on every restart.
+	 */
+	public void testFlagsSurviveCorruptFlagTable() throws Exception {
+		// a header of another format, and one that was never finished
+		checkFlagsSurvive(new byte[] {'F', 'M', 'F', 'L', 0, 0, 0, 99});
+		checkFlagsSurvive(new byte[] {'F', 'M'});
+	}
+
+	private void checkFlagsSurvive(byte[] header) throws Exception {
+		File inbox = new File(accountDir, "inbox");
+		createMessage("body");
+		MailboxIndex.forget(inbox);
+		FileOutputStream out = new FileOutputStream(new File(inbox, ".flags"));
+		out.write(header);
+		out.close();
+
+		MailMessage[] msgs = new MessageBank(new FreemailAccount(null, accountDir, null)).listMessagesArray();
+		MailMessage msg = msgs[msgs.length - 1];
+		msg.flags.set("\\Recent", false);
+		msg.flags.set("\\Flagged", true);
+		msg.storeFlags();
+
+		MailboxIndex.forget(inbox);
+		msgs = new MessageBank(new FreemailAccount(null, accountDir, null)).listMessagesArray();
+		assertEquals("\\Flagged", msgs[msgs.length - 1].flags.getFlags());
+	}
+
+	public void testHeadersAndSizeComeFromIndex() throws Exception {
+		MailMessage msg = createMessage("body");
+		long size = rootMessageBank.listMessagesArray()[0].getSize();
+		assertEquals("Subject: Test\r\n\r\nbody\r\n".length(), size);
+
+		// the message itself isn't read again, even after a restart
+		MailboxIndex.saveAll();
+		File inbox = new File(accountDir, "inbox");
+		MailboxIndex.forget(inbox);
+		new FileOutputStream(new File(inbox, Integer.toString(msg.getUID()))).close();
+
+		MailMessage reloaded = new MessageBank(new FreemailAccount(null, accountDir, null)).listMessagesArray()[0];
+		reloaded.readHeaders();
+		assertEquals("Test", reloaded.getFirstHeader("Subject"));
+		assertEquals(size, reloaded.getSize());
+	}
+
+	private MailMessage createMessage(String body) throws IOException {
+		MailMessage msg = rootMessageBank.createMessage();
+		msg.addHeader("Subject", "Test");
+		msg.writeHeadersAndGetStream().println(body);
+		msg.commit();
+		return msg;
+	}
 }
@@ -0,0 +1,72 @@
+/*
+ * SlotManagerTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class SlotManagerTest extends TestCase {
+	private static final SlotSaveCallback NULL_CALLBACK = new SlotSaveCallback() {
+		@Override
+		public void saveSlots(String slots, Object userdata) {
+			// Nothing to save
+		}
+	};
+
+	/*
+	 * peekSlots() must return the same slots as the following calls to getNextSlot(), and must
+	 * not change what getNextSlot() returns.
+	 */
+	public void testPeekMatchesGetNextSlot() {
+		NaturalSlotManager sm = new NaturalSlotManager(NULL_CALLBACK, null, "1,3,5");
+		sm.setPollAhead(3);
+
+		List<String> peeked = sm.peekSlots(10);
+		assertEquals(6, peeked.size());
+
+		for(String slot : peeked) {
+			assertEquals(slot, sm.getNextSlot());
+		}
+		assertNull(sm.getNextSlot());
+	}
+
+	/*
+	 * Marking a slot as used extends the poll window, but doesn't change which slots come next.
+	 */
+	public void testPeekAfterSlotUsed() {
+		NaturalSlotManager sm = new NaturalSlotManager(NULL_CALLBACK, null, "1");
+		sm.setPollAhead(2);
+
+		List<String> peeked = sm.peekSlots(10);
+		assertEquals(3, peeked.size());
+		assertEquals("1", peeked.get(0));
+
+		assertEquals("1", sm.getNextSlot());
+		sm.slotUsed();
+
+		peeked = sm.peekSlots(10);
+		assertEquals(3, peeked.size());
+		assertEquals("2", peeked.get(0));
+		assertEquals("3", peeked.get(1));
+		assertEquals("4", peeked.get(2));
+		assertEquals("2", sm.getNextSlot());
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * FCPConnectionPoolTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.fcp;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import fakes.FakeFCPNode;
+import freemail.config.Configurator;
+
+public class FCPConnectionPoolTest extends FCPTestBase {
+	@Override
+	protected FCPConnectionPool createPool() {
+		// each test makes its own
+		return null;
+	}
+
+	public void testRequestsSpreadOverConnections() throws Exception {
+		pool = new FCPConnectionPool(node.createContext(), 2, 0);
+		assertEquals(2, node.getConnectionCount());
+
+		AsyncFCPClient client = new AsyncFCPClient(pool);
+		for(int i = 0; i < 4; i++) {
+			client.fetch("KSK@test-" + i, null);
+		}
+
+		FCPConnection first = pool.getConnection();
+		assertEquals(2, first.getOutstandingRequests());
+		assertEquals(4, node.waitForMessages(4, 5000).size());
+	}
+
+	public void testInsertsUseBulkConnection() throws Exception {
+		pool = new FCPConnectionPool(node.createContext(), 1, 1);
+
+		AsyncFCPClient client = new AsyncFCPClient(pool);
+		client.put(new ByteArrayInputStream(new byte[10000]), "KSK@insert", null);
+		assertEquals(1, pool.getBulkConnection().getOutstandingRequests());
+		assertEquals(0, pool.getConnection().getOutstandingRequests());
+
+		client.fetch("KSK@fetch", null);
+		assertEquals(1, pool.getConnection().getOutstandingRequests());
+		assertNotSame(pool.getConnection(), pool.getBulkConnection());
+	}
+
+	public void testInsertsShareConnectionsWithoutBulkLanes() throws Exception {
+		pool = new FCPConnectionPool(node.createContext(), 1, 0);
+		assertSame(pool.getConnection(), pool.getBulkConnection());
+	}
+
+	public void testShardStaysOnOneNode() throws Exception {
+		FakeFCPNode other = new FakeFCPNode();
+		try {
+			FCPContext ctx = new FCPContext();
+			ctx.setConfigProp(Configurator.FCP_NODES, node.getAddress() + ", " + other.getAddress());
+			pool = new FCPConnectionPool(ctx, 2, 0);
+			assertEquals(2, node.getConnectionCount());
+			assertEquals(2, other.getConnectionCount());
+
+			FreenetClient client = new AsyncFCPClient(pool).forShard("alice");
+			for(int i = 0; i < 3; i++) {
+				client.fetch("KSK@test-" + i, null);
+			}
+
+			FakeFCPNode expected = (pool.getNodeFor("alice") == 0) ? node : other;
+			FakeFCPNode unused = (expected == node) ? other : node;
+			assertEquals(3, expected.waitForMessages(3, 5000).size());
+			assertEquals(0, unused.waitForMessages(1, 200).size());
+		} finally {
+			other.close();
+		}
+	}
+
+	public void testFailoverToOtherNode() throws Exception {
+		FakeFCPNode down = new FakeFCPNode();
+		String downAddress = down.getAddress();
+		down.close();
+
+		FCPContext ctx = new FCPContext();
+		ctx.setConfigProp(Configurator.FCP_NODES, downAddress + "," + node.getAddress());
+		pool = new FCPConnectionPool(ctx, 1, 0);
+
+		// both connections should have ended up on the node that is up
+		assertEquals(2, node.getConnectionCount());
+		assertEquals(1, pool.getConnection().getNode());
+
+		AsyncFCPClient client = new AsyncFCPClient(pool);
+		client.forShard("alice").fetch("KSK@a", null);
+		client.forShard("bob").fetch("KSK@b", null);
+		assertEquals(2, node.waitForMessages(2, 5000).size());
+	}
+
+	public void testConnectionsHaveTheirOwnNames() throws Exception {
+		pool = new FCPConnectionPool(node.createContext(), 2, 1);
+		assertEquals(3, node.getConnectionCount());
+		assertFalse(pool.getConnection().getClientName().equals(pool.getBulkConnection().getClientName()));
+
+		// none of them should have been closed and reopened for taking another's name
+		assertFalse(node.waitForConnections(4, 500));
+		assertEquals(0, node.getDuplicateNameCount());
+	}
+
+	public void testIdentifiersAreUniqueAcrossConnections() throws Exception {
+		pool = new FCPConnectionPool(node.createContext(), 2, 0);
+
+		AsyncFCPClient client = new AsyncFCPClient(pool);
+		for(int i = 0; i < 4; i++) {
+			client.fetch("KSK@test-" + i, null);
+		}
+
+		Set<String> ids = new HashSet<String>();
+		for(FCPMessage msg : node.waitForMessages(4, 5000)) {
+			ids.add(msg.getId());
+		}
+		assertEquals(4, ids.size());
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * FCPConnectionTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.fcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import freemail.config.Configurator;
+
+public class FCPConnectionTest extends FCPTestBase {
+	@Override
+	protected FCPConnectionPool createPool() {
+		// these tests mostly use connections on their own
+		return null;
+	}
+
+	public void testHeartbeatDetectsDeadNode() throws Exception {
+		CircuitBreaker breaker = new CircuitBreaker();
+		FCPConnection conn = new FCPConnection(node.createContext(), 0, new FCPDispatcher(), breaker,
+				"freemail-test", new AtomicInteger(1));
+		Thread t = new Thread(conn);
+		t.start();
+		try {
+			assertFalse(breaker.isOpen());
+
+			// nothing heard from the node for a while, so ask it something
+			long now = System.currentTimeMillis() + FCPConnection.HEARTBEAT_INTERVAL;
+			conn.checkHeartbeat(now);
+			List<FCPMessage> received = node.waitForMessages(1, 5000);
+			assertEquals(1, received.size());
+			assertEquals("GetNode", received.get(0).getType());
+
+			// the fake node never answers, so the connection should be dropped and reopened
+			conn.checkHeartbeat(now + FCPConnection.HEARTBEAT_TIMEOUT);
+			assertTrue(node.waitForConnections(2, 10000));
+			assertTrue(breaker.awaitClosed(5000));
+		} finally {
+			conn.kill();
+			t.join();
+		}
+	}
+
+	public void testNodeClosesConnectionWithSameName() throws Exception {
+		FCPConnection first = new FCPConnection(node.createContext(), 0, new FCPDispatcher(), new CircuitBreaker(),
+				"freemail-test", new AtomicInteger(1));
+		FCPConnection second = new FCPConnection(node.createContext(), 0, new FCPDispatcher(), new CircuitBreaker(),
+				"freemail-test", new AtomicInteger(1));
+		try {
+			assertEquals(1, node.getDuplicateNameCount());
+		} finally {
+			first.kill();
+			second.kill();
+		}
+	}
+
+	public void testHeartbeatDoesntWaitForWrite() throws Exception {
+		final FCPConnection conn = new FCPConnection(node.createContext());
+		final CountDownLatch writing = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final FCPMessage put = conn.getMessage("ClientPut");
+		// an insert whose data takes as long as we like to write
+		put.setData(new InputStream() {
+			private boolean sent = false;
+
+			@Override
+			public int available() {
+				return sent ? 0 : 1;
+			}
+
+			@Override
+			public int read() throws IOException {
+				if(sent) return -1;
+				writing.countDown();
+				try {
+					release.await();
+				} catch(InterruptedException e) {
+					throw new IOException();
+				}
+				sent = true;
+				return 'x';
+			}
+		});
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					conn.doRequest(new FCPClient() {
+						@Override
+						public void requestFinished(FCPMessage msg) {
+						}
+
+						@Override
+						public void requestStatus(FCPMessage msg) {
+						}
+					}, put);
+				} catch(Exception e) {
+					// checked below by the request never reaching the node
+				}
+			}
+		};
+		t.start();
+		try {
+			assertTrue(writing.await(5, TimeUnit.SECONDS));
+
+			// nothing heard from the node for a while, but the heartbeat mustn't wait for the insert
+			Thread heartbeat = new Thread() {
+				@Override
+				public void run() {
+					conn.checkHeartbeat(System.currentTimeMillis() + FCPConnection.HEARTBEAT_INTERVAL);
+				}
+			};
+			heartbeat.start();
+			heartbeat.join(5000);
+			assertFalse(heartbeat.isAlive());
+		} finally {
+			release.countDown();
+			t.join();
+			conn.kill();
+		}
+		// only the insert, no ping
+		List<FCPMessage> received = node.waitForMessages(1, 5000);
+		assertEquals(1, received.size());
+		assertEquals("ClientPut", received.get(0).getType());
+	}
+
+	public void testNoHeartbeatWhileActive() throws Exception {
+		FCPConnection conn = new FCPConnection(node.createContext());
+		try {
+			conn.checkHeartbeat(System.currentTimeMillis());
+			assertEquals(0, node.waitForMessages(1, 200).size());
+		} finally {
+			conn.kill();
+		}
+	}
+
+	public void testBreakerOpenWithoutNode() throws Exception {
+		FCPContext ctx = node.createContext();
+		ctx.setConfigProp(Configurator.FCP_OFFLINE_QUEUE_SIZE, "0");
+		node.close();
+
+		pool = new FCPConnectionPool(ctx, 2, 0);
+		assertTrue(pool.getCircuitBreaker().isOpen());
+		assertFalse(pool.getCircuitBreaker().awaitClosed(100));
+
+		try {
+			new AsyncFCPClient(pool).fetch("KSK@test", null);
+			fail("Request should have failed without a node");
+		} catch(NoNodeConnectionException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * FCPDispatcherTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.fcp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class FCPDispatcherTest extends TestCase {
+	public void testSlowClientDoesNotBlockOthers() throws Exception {
+		FCPDispatcher dispatcher = new FCPDispatcher(2);
+
+		final CountDownLatch slowStarted = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		RecordingClient slow = new RecordingClient() {
+			@Override
+			public void requestStatus(FCPMessage msg) {
+				slowStarted.countDown();
+				try {
+					release.await();
+				} catch(InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+				super.requestStatus(msg);
+			}
+		};
+		RecordingClient fast = new RecordingClient();
+
+		dispatcher.requestStatus(slow, new FCPMessage(1, "SimpleProgress"));
+		assertTrue(slowStarted.await(5, TimeUnit.SECONDS));
+		dispatcher.requestFinished(slow, new FCPMessage(1, "AllData"));
+		dispatcher.requestFinished(fast, new FCPMessage(2, "AllData"));
+
+		assertTrue(fast.awaitFinished());
+		// the slow client's second message is still waiting behind the first
+		assertEquals(1, dispatcher.getQueueDepth());
+
+		release.countDown();
+		assertTrue(slow.awaitFinished());
+		assertEquals(0, dispatcher.getQueueDepth());
+		assertTrue(dispatcher.getMaxQueueDepth() >= 2);
+	}
+
+	public void testMessagesDeliveredInOrder() throws Exception {
+		FCPDispatcher dispatcher = new FCPDispatcher(4);
+		RecordingClient client = new RecordingClient();
+
+		for(int i = 0; i < 100; i++) {
+			FCPMessage msg = new FCPMessage(1, "SimpleProgress");
+			msg.headers.put("Succeeded", Integer.toString(i));
+			dispatcher.requestStatus(client, msg);
+		}
+		dispatcher.requestFinished(client, new FCPMessage(1, "AllData"));
+
+		assertTrue(client.awaitFinished());
+		List<FCPMessage> received = client.getReceived();
+		assertEquals(101, received.size());
+		for(int i = 0; i < 100; i++) {
+			assertEquals(Integer.toString(i), received.get(i).headers.get("Succeeded"));
+		}
+		assertEquals("AllData", received.get(100).getType());
+	}
+
+	private static class RecordingClient implements FCPClient {
+		private final List<FCPMessage> received = new ArrayList<FCPMessage>();
+		private final CountDownLatch finished = new CountDownLatch(1);
+
+		@Override
+		public void requestStatus(FCPMessage msg) {
+			synchronized(received) {
+				received.add(msg);
+			}
+		}
+
+		@Override
+		public void requestFinished(FCPMessage msg) {
+			synchronized(received) {
+				received.add(msg);
+			}
+			finished.countDown();
+		}
+
+		boolean awaitFinished() throws InterruptedException {
+			return finished.await(5, TimeUnit.SECONDS);
+		}
+
+		List<FCPMessage> getReceived() {
+			synchronized(received) {
+				return new ArrayList<FCPMessage>(received);
+			}
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * FCPMessageTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.fcp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+public class FCPMessageTest extends TestCase {
+	public void testParseSeveralMessages() throws IOException {
+		String wire = "NodeHello\r\n"
+		            + "Identifier=1\r\n"
+		            + "Version=Fred,0.7,1.0,1466\r\n"
+		            + "EndMessage\r\n"
+		            + "getfailed\n"
+		            + "Identifier=7\n"
+		            + "Code=13\n"
+		            + "RedirectURI=KSK@a=b\n"
+		            + "EndMessage\n";
+		FCPInputStream is = new FCPInputStream(new ByteArrayInputStream(wire.getBytes("UTF-8")));
+
+		FCPMessage hello = new FCPMessage(is);
+		assertEquals("NodeHello", hello.getType());
+		assertEquals("1", hello.getId());
+		assertEquals("Fred,0.7,1.0,1466", hello.headers.get("Version"));
+		assertFalse(hello.isCompletionMessage());
+
+		FCPMessage failed = new FCPMessage(is);
+		assertEquals("GetFailed", failed.getType());
+		assertEquals("7", failed.getId());
+		assertEquals("13", failed.headers.get("Code"));
+		assertEquals("KSK@a=b", failed.headers.get("RedirectURI"));
+		assertTrue(failed.isCompletionMessage());
+
+		assertNull(new FCPMessage(is).getType());
+	}
+
+	public void testParseData() throws IOException {
+		// Make the payload larger than the read buffer so it is copied in several steps
+		byte[] payload = new byte[100 * 1024];
+		for(int i = 0; i < payload.length; i++) {
+			payload[i] = (byte)i;
+		}
+
+		ByteArrayOutputStream wire = new ByteArrayOutputStream();
+		wire.write(("AllData\r\nIdentifier=3\r\nDataLength=" + payload.length + "\r\nData\r\n").getBytes("UTF-8"));
+		wire.write(payload);
+		wire.write("PutSuccessful\r\nIdentifier=4\r\nEndMessage\r\n".getBytes("UTF-8"));
+
+		FCPInputStream is = new FCPInputStream(new ByteArrayInputStream(wire.toByteArray()));
+
+		FCPMessage allData = new FCPMessage(is);
+		assertEquals("AllData", allData.getType());
+		FCPData data = allData.getData();
+		assertNotNull(data);
+		try {
+			// larger than the default threshold, so it should have gone to disk
+			assertFalse(data.isInMemory());
+			assertEquals(payload.length, data.length());
+			byte[] read = data.toByteArray();
+			for(int i = 0; i < payload.length; i++) {
+				assertEquals(payload[i], read[i]);
+			}
+		} finally {
+			allData.release();
+		}
+
+		FCPMessage success = new FCPMessage(is);
+		assertEquals("PutSuccessful", success.getType());
+		assertEquals("4", success.getId());
+	}
+
+	public void testSmallDataInMemory() throws IOException {
+		byte[] payload = "rtsksk=abc\r\n".getBytes("UTF-8");
+
+		ByteArrayOutputStream wire = new ByteArrayOutputStream();
+		wire.write(("AllData\r\nIdentifier=5\r\nDataLength=" + payload.length + "\r\nData\r\n").getBytes("UTF-8"));
+		wire.write(payload);
+
+		FCPInputStream is = new FCPInputStream(new ByteArrayInputStream(wire.toByteArray()));
+		FCPMessage allData = new FCPMessage(is);
+		FCPData data = allData.getData();
+		try {
+			assertTrue(data.isInMemory());
+			assertEquals(payload.length, data.length());
+			assertEquals(payload.length, data.getByteBuffer().remaining());
+
+			byte[] read = data.toByteArray();
+			assertEquals(new String(payload, "UTF-8"), new String(read, "UTF-8"));
+		} finally {
+			allData.release();
+		}
+	}
+
+	public void testWriteAndReadBack() throws IOException, FCPBadFileException {
+		FCPMessage msg = new FCPMessage(12, "ClientPut");
+		msg.headers.put("URI", "KSK@test\u00e6");
+		msg.setData(new ByteArrayInputStream(new byte[] {1, 2, 3}));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		msg.writeto(out);
+
+		FCPInputStream is = new FCPInputStream(new ByteArrayInputStream(out.toByteArray()));
+		FCPMessage read = new FCPMessage(is);
+		try {
+			assertEquals("ClientPut", read.getType());
+			assertEquals("12", read.getId());
+			assertEquals("KSK@test\u00e6", read.headers.get("URI"));
+			assertEquals("direct", read.headers.get("UploadFrom"));
+			assertEquals(3, read.getData().length());
+		} finally {
+			read.release();
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * FCPMetricsTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.fcp;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+
+import freemail.utils.LatencyHistogram;
+
+public class FCPMetricsTest extends FCPTestBase {
+	private FCPMetrics metrics;
+
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+		metrics = pool.getMetrics();
+	}
+
+	@Override
+	public void tearDown() throws Exception {
+		metrics.unregister();
+		super.tearDown();
+	}
+
+	public void testFailedFetchIsRecorded() throws Exception {
+		FreenetClient client = new AsyncFCPClient(pool).forClass(RequestClass.ACK);
+		FCPRequest<FCPData> req = client.fetch("CHK@data", null);
+		FCPMessage get = node.waitForMessages(1, 5000).get(0);
+		assertEquals(1, metrics.getInFlight());
+
+		FCPMessage failed = new FCPMessage(get.getId(), "GetFailed");
+		failed.headers.put("Code", Integer.toString(FCPFetchException.DATA_NOT_FOUND));
+		node.send(failed);
+		assertTrue(req.waitFor(5000));
+
+		assertEquals(0, metrics.getInFlight());
+		assertEquals(Long.valueOf(1), metrics.getOutcomeCounts().get("ClientGet: GetFailed 13"));
+		LatencyHistogram times = metrics.getNodeTimes("ClientGet/ack");
+		assertNotNull(times);
+		assertEquals(1, times.getCount());
+		assertEquals(1, metrics.getWaitTimes("ClientGet/ack").getCount());
+	}
+
+	public void testSharedFetchIsCountedOnce() throws Exception {
+		FCPRequest<FCPData> first = new AsyncFCPClient(pool).fetch("CHK@data", null);
+		FCPRequest<FCPData> second = new AsyncFCPClient(pool).fetch("CHK@data", null);
+		FCPMessage get = node.waitForMessages(1, 5000).get(0);
+
+		FCPMessage failed = new FCPMessage(get.getId(), "GetFailed");
+		failed.headers.put("Code", Integer.toString(FCPFetchException.DATA_NOT_FOUND));
+		node.send(failed);
+		assertTrue(first.waitFor(5000));
+		assertTrue(second.waitFor(5000));
+
+		assertEquals(Long.valueOf(1), metrics.getOutcomeCounts().get("ClientGet: GetFailed 13"));
+	}
+
+	public void testWaitingRequestIsQueued() throws Exception {
+		pool.getScheduler().setLimit(RequestClass.BACKGROUND, 1);
+		FreenetClient client = new AsyncFCPClient(pool).forClass(RequestClass.BACKGROUND);
+		client.fetch("CHK@one", null);
+		FCPRequest<FCPData> waiting = client.fetch("CHK@two", null);
+		node.waitForMessages(1, 5000);
+
+		assertEquals(1, metrics.getInFlight());
+		assertEquals(1, metrics.getQueued());
+
+		waiting.cancel(false);
+		assertEquals(0, metrics.getQueued());
+		assertEquals(Long.valueOf(1), metrics.getOutcomeCounts().get("ClientGet: cancelled before being sent"));
+		// it never reached the node
+		assertNull(metrics.getNodeTimes("ClientGet/background"));
+	}
+
+	public void testRegisteredOverJMX() throws Exception {
+		metrics.register();
+		ObjectName name = new ObjectName(FCPMetrics.MBEAN_NAME);
+		assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+		assertEquals(Integer.valueOf(0), ManagementFactory.getPlatformMBeanServer().getAttribute(name, "InFlight"));
+
+		metrics.unregister();
+		assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+	}
+}
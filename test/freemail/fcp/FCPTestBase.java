@@ -0,0 +1,80 @@
+/*
+ * FCPTestBase.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.fcp;
+
+import java.io.IOException;
+import java.util.List;
+
+import fakes.FakeFCPNode;
+import junit.framework.TestCase;
+
+/**
+ * Starts a {@link FakeFCPNode} and a pool with a single connection to it for each test, and
+ * shuts them down afterwards. Extend this and add the tests to the subclass.
+ */
+public abstract class FCPTestBase extends TestCase {
+	protected FakeFCPNode node;
+	protected FCPConnectionPool pool;
+
+	@Override
+	public void setUp() throws Exception {
+		node = createNode();
+		pool = createPool();
+	}
+
+	@Override
+	public void tearDown() throws Exception {
+		if(pool != null) pool.kill();
+		node.close();
+	}
+
+	/**
+	 * Creates the node for each test. Override this to use e.g. a SimulatedFCPNode.
+	 */
+	protected FakeFCPNode createNode() throws IOException {
+		return new FakeFCPNode();
+	}
+
+	/**
+	 * Creates the pool for each test. Override this to return null for tests that make their own
+	 * pools, which are killed afterwards if they are left in {@link #pool}.
+	 */
+	protected FCPConnectionPool createPool() {
+		FCPConnectionPool p = new FCPConnectionPool(node.createContext(), 1, 0);
+		p.start();
+		return p;
+	}
+
+	/**
+	 * Checks that the node has received exactly count messages, and that no more are on their
+	 * way from the requests made so far. Requests are written to the node by the thread that
+	 * makes them, so this needs the pool to have only one connection.
+	 * @return the messages received
+	 */
+	protected List<FCPMessage> assertReceived(int count) throws Exception {
+		int markers = node.getMarkerCount();
+		pool.getConnection().sendMessage(pool.getConnection().getMessage(FakeFCPNode.MARKER));
+		assertTrue(node.waitForMarkers(markers + 1, 5000));
+
+		List<FCPMessage> received = node.waitForMessages(count + 1, 0);
+		assertEquals(count, received.size());
+		return received;
+	}
+}
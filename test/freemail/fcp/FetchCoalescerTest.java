@@ -0,0 +1,90 @@
+/*
+ * FetchCoalescerTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.fcp;
+
+import java.io.ByteArrayInputStream;
+
+public class FetchCoalescerTest extends FCPTestBase {
+	public void testConcurrentFetchesShareRequest() throws Exception {
+		FCPRequest<FCPData> first = new AsyncFCPClient(pool).forShard("alice").fetch("USK@site/1", null);
+		FCPRequest<FCPData> second = new AsyncFCPClient(pool).forShard("bob").fetch("USK@site/1", null);
+
+		FCPMessage get = assertReceived(1).get(0);
+		assertEquals(1, pool.getFetchCoalescer().size());
+
+		FCPMessage found = new FCPMessage(get.getId(), "AllData");
+		found.setData(new ByteArrayInputStream(new byte[] {1, 2, 3}));
+		node.send(found);
+
+		FCPData a = first.getResult();
+		FCPData b = second.getResult();
+		assertEquals(3, a.length());
+		a.release();
+		// the other caller can still read it
+		assertEquals(3, b.toByteArray().length);
+		b.release();
+		assertEquals(0, pool.getFetchCoalescer().size());
+
+		// a fetch after that is a new request
+		new AsyncFCPClient(pool).fetch("USK@site/1", null);
+		assertEquals(2, node.waitForMessages(2, 5000).size());
+	}
+
+	public void testCancellingOneCallerLeavesTheOther() throws Exception {
+		FreenetClient client = new AsyncFCPClient(pool);
+		FCPRequest<FCPData> first = client.fetch("KSK@alias", null);
+		FCPRequest<FCPData> second = client.fetch("KSK@alias", null);
+
+		FCPMessage get = node.waitForMessages(1, 5000).get(0);
+		assertTrue(first.cancel(false));
+		assertFalse(second.isDone());
+		assertEquals(1, pool.getConnection().getOutstandingRequests());
+
+		FCPMessage failed = new FCPMessage(get.getId(), "GetFailed");
+		failed.headers.put("Code", "13");
+		node.send(failed);
+		try {
+			second.getResult();
+			fail("Fetch should have failed");
+		} catch (FCPFetchException e) {
+			// expected
+		}
+	}
+
+	public void testCancellingEveryCallerCancelsRequest() throws Exception {
+		FreenetClient client = new AsyncFCPClient(pool);
+		FCPRequest<FCPData> first = client.fetch("KSK@alias", null);
+		FCPRequest<FCPData> second = client.fetch("KSK@alias", null);
+		node.waitForMessages(1, 5000);
+
+		first.cancel(false);
+		second.cancel(false);
+		assertEquals(0, pool.getConnection().getOutstandingRequests());
+		assertEquals(0, pool.getFetchCoalescer().size());
+	}
+
+	public void testMoreUrgentFetchDoesNotWaitForLessUrgent() throws Exception {
+		new AsyncFCPClient(pool).forClass(RequestClass.BACKGROUND).fetch("KSK@alias", null);
+		new AsyncFCPClient(pool).forClass(RequestClass.INTERACTIVE).fetch("KSK@alias", null);
+		new AsyncFCPClient(pool).forClass(RequestClass.ACK).fetch("KSK@alias", null);
+
+		assertReceived(2);
+	}
+}
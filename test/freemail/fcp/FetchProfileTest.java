@@ -0,0 +1,55 @@
+/*
+ * FetchProfileTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.fcp;
+
+import java.util.List;
+
+public class FetchProfileTest extends FCPTestBase {
+	public void testProfileSetsLimits() throws Exception {
+		FreenetClient client = new AsyncFCPClient(pool);
+		client.fetch("KSK@rts-1", FetchProfile.RTS, null);
+		client.fetch("SSK@message", null);
+
+		List<FCPMessage> received = node.waitForMessages(2, 5000);
+		FCPMessage rts = received.get(0);
+		assertEquals(Long.toString(2 * 1024 * 1024), rts.headers.get("MaxSize"));
+		assertEquals("0", rts.headers.get("MaxRetries"));
+		assertNull(rts.headers.get("IgnoreDS"));
+
+		// messages can be any size
+		assertNull(received.get(1).headers.get("MaxSize"));
+	}
+
+	public void testWatchKeepsRetrying() throws Exception {
+		new AsyncFCPClient(pool).watch("SSK@ack", FetchProfile.ACK, null);
+
+		FCPMessage get = node.waitForMessages(1, 5000).get(0);
+		assertEquals("4096", get.headers.get("MaxSize"));
+		assertEquals("-1", get.headers.get("MaxRetries"));
+	}
+
+	public void testSameKeyWithOtherProfileIsFetchedSeparately() throws Exception {
+		FreenetClient client = new AsyncFCPClient(pool);
+		client.fetch("KSK@alias", FetchProfile.REDIRECT, null);
+		client.fetch("KSK@alias", FetchProfile.MAILSITE, null);
+
+		assertEquals(2, node.waitForMessages(2, 5000).size());
+	}
+}
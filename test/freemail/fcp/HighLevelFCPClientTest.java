@@ -0,0 +1,75 @@
+/*
+ * HighLevelFCPClientTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.fcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+public class HighLevelFCPClientTest extends FCPTestBase {
+	private static final byte[] DATA = "mailsite".getBytes();
+
+	/*
+	 * The client reads the stream it is given even if it then can't reach the node, so the data
+	 * has to be there again when the insert is retried.
+	 */
+	public void testRetriedInsertSendsTheData() throws Exception {
+		// reads and closes the stream like the real client, but can't reach the node the first time
+		FreenetClient client = new AsyncFCPClient(pool) {
+			private boolean reached = false;
+
+			@Override
+			public FCPRequest<Void> put(InputStream data, String key, FCPRequestCallback<Void> cb)
+					throws NoNodeConnectionException, ConnectionTerminatedException, FCPBadFileException {
+				if(reached) return super.put(data, key, cb);
+				reached = true;
+				try {
+					while(data.read() >= 0);
+					data.close();
+				} catch(IOException e) {
+					throw new FCPBadFileException();
+				}
+				throw new NoNodeConnectionException();
+			}
+		};
+		final HighLevelFCPClient fcpcli = new HighLevelFCPClient(client);
+
+		final int[] slot = {-2};
+		Thread inserter = new Thread() {
+			@Override
+			public void run() {
+				try {
+					slot[0] = fcpcli.slotInsert(DATA, "KSK@test", 1, "");
+				} catch(Exception e) {
+					// the slot stays at -2 and the test fails
+				}
+			}
+		};
+		inserter.start();
+
+		FCPMessage put = node.waitForMessages(1, 5000).get(0);
+		assertEquals("ClientPut", put.getType());
+		assertTrue(Arrays.equals(DATA, put.getData().toByteArray()));
+
+		node.send(new FCPMessage(put.getId(), "PutSuccessful"));
+		inserter.join(5000);
+		assertEquals(1, slot[0]);
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * OfflineQueueTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.fcp;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+
+import fakes.FakeFCPNode;
+import freemail.config.Configurator;
+
+public class OfflineQueueTest extends FCPTestBase {
+	@Override
+	protected FCPConnectionPool createPool() {
+		// each test makes its own
+		return null;
+	}
+
+	public void testRequestsSentWhenNodeComesBack() throws Exception {
+		FCPContext ctx = node.createContext();
+		int port = node.getPort();
+		node.close();
+
+		pool = new FCPConnectionPool(ctx, 1, 0);
+		assertTrue(pool.getCircuitBreaker().isOpen());
+
+		AsyncFCPClient client = new AsyncFCPClient(pool);
+		FCPRequest<FCPData> fetch = client.fetch("KSK@queued", null);
+		client.put(new ByteArrayInputStream(new byte[100]), "KSK@queued-insert", null);
+		assertFalse(fetch.isDone());
+		assertEquals(2, pool.getOfflineQueue().size());
+
+		node = new FakeFCPNode(port);
+		pool.start();
+
+		List<FCPMessage> received = node.waitForMessages(2, 10000);
+		assertEquals(2, received.size());
+		assertEquals("ClientGet", received.get(0).getType());
+		assertEquals("KSK@queued", received.get(0).headers.get("URI"));
+		assertEquals("ClientPut", received.get(1).getType());
+		assertEquals(100, received.get(1).getData().length());
+		assertEquals(0, pool.getOfflineQueue().size());
+	}
+
+	public void testQueueIsBounded() throws Exception {
+		FCPContext ctx = node.createContext();
+		ctx.setConfigProp(Configurator.FCP_OFFLINE_QUEUE_SIZE, "2");
+		node.close();
+
+		pool = new FCPConnectionPool(ctx, 1, 0);
+		AsyncFCPClient client = new AsyncFCPClient(pool);
+		client.fetch("KSK@one", null);
+		client.fetch("KSK@two", null);
+		try {
+			client.fetch("KSK@three", null);
+			fail("Queue should have been full");
+		} catch(NoNodeConnectionException e) {
+			// expected
+		}
+	}
+
+	public void testCancelledRequestLeavesQueue() throws Exception {
+		FCPContext ctx = node.createContext();
+		node.close();
+
+		pool = new FCPConnectionPool(ctx, 1, 0);
+		FCPRequest<FCPData> req = new AsyncFCPClient(pool).fetch("KSK@cancel", null);
+		assertEquals(1, pool.getOfflineQueue().size());
+
+		assertTrue(req.cancel(false));
+		assertEquals(0, pool.getOfflineQueue().size());
+	}
+
+	public void testShutdownFailsQueuedRequests() throws Exception {
+		FCPContext ctx = node.createContext();
+		node.close();
+
+		pool = new FCPConnectionPool(ctx, 1, 0);
+		FCPRequest<FCPData> req = new AsyncFCPClient(pool).fetch("KSK@shutdown", null);
+		pool.kill();
+
+		assertTrue(req.waitFor(1000));
+		try {
+			req.getResult();
+			fail("Request should have failed");
+		} catch(ConnectionTerminatedException e) {
+			// expected
+		}
+	}
+
+	public void testPriorityOrder() throws Exception {
+		OfflineQueue queue = new OfflineQueue(new CircuitBreaker(), 10, false);
+		TestRequest bulk = new TestRequest(4);
+		TestRequest first = new TestRequest(1);
+		TestRequest second = new TestRequest(1);
+		TestRequest normal = new TestRequest(ConnectionRequest.DEFAULT_PRIORITY);
+
+		assertTrue(queue.offer(bulk));
+		assertTrue(queue.offer(first));
+		assertTrue(queue.offer(normal));
+		assertTrue(queue.offer(second));
+
+		assertSame(first, queue.poll());
+		assertSame(second, queue.poll());
+		assertSame(normal, queue.poll());
+		assertSame(bulk, queue.poll());
+		assertNull(queue.poll());
+	}
+
+	private static class TestRequest extends ConnectionRequest<Void> {
+		private final int priority;
+
+		TestRequest(int priority) {
+			super(null, null, false, RequestClass.MESSAGE, null);
+			this.priority = priority;
+		}
+
+		@Override
+		protected int getPriority() {
+			return priority;
+		}
+
+		@Override
+		protected FCPMessage createMessage(FCPConnection c) {
+			return c.getMessage("ClientGet");
+		}
+
+		@Override
+		protected void handleReply(FCPMessage reply) {
+			succeed(null);
+		}
+	}
+}
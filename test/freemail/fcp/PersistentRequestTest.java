@@ -0,0 +1,121 @@
+/*
+ * PersistentRequestTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.fcp;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.Map;
+
+public class PersistentRequestTest extends FCPTestBase {
+	private AsyncFCPClient client;
+
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+		client = new AsyncFCPClient(pool);
+	}
+
+	public void testPersistentInsertOnGlobalQueue() throws Exception {
+		FCPRequest<Void> req = client.putPersistent(new ByteArrayInputStream(new byte[10]), "KSK@test", "Freemail-test-1", null);
+
+		List<FCPMessage> received = node.waitForMessages(2, 5000);
+		assertEquals(2, received.size());
+		assertEquals("WatchGlobal", received.get(0).getType());
+		FCPMessage put = received.get(1);
+		assertEquals("ClientPut", put.getType());
+		assertEquals("Freemail-test-1", put.getId());
+		assertEquals("forever", put.headers.get("Persistence"));
+		assertEquals("true", put.headers.get("Global"));
+
+		node.send(globalMessage("PutSuccessful", "Freemail-test-1"));
+		assertTrue(req.waitFor(5000));
+		assertNull(req.getResult());
+
+		// and it cleans up after itself
+		received = node.waitForMessages(3, 5000);
+		assertEquals(3, received.size());
+		assertEquals("RemovePersistentRequest", received.get(2).getType());
+		assertEquals("Freemail-test-1", received.get(2).getId());
+	}
+
+	public void testCollisionPicksUpExistingInsert() throws Exception {
+		FCPRequest<Void> req = client.putPersistent(new ByteArrayInputStream(new byte[10]), "KSK@test", "Freemail-test-2", null);
+		node.waitForMessages(2, 5000);
+
+		node.send(new FCPMessage("Freemail-test-2", "IdentifierCollision"));
+		List<FCPMessage> received = node.waitForMessages(3, 5000);
+		assertEquals(3, received.size());
+		assertEquals("GetRequestStatus", received.get(2).getType());
+		assertEquals("Freemail-test-2", received.get(2).getId());
+		assertFalse(req.isDone());
+
+		FCPMessage failed = globalMessage("PutFailed", "Freemail-test-2");
+		failed.headers.put("Code", Integer.toString(FCPPutFailedException.COLLISION));
+		node.send(failed);
+		assertTrue(req.waitFor(5000));
+		try {
+			req.getResult();
+			fail("Insert should have failed");
+		} catch(FCPPutFailedException e) {
+			assertEquals(FCPPutFailedException.COLLISION, e.errorcode);
+		}
+	}
+
+	public void testResumeWithoutData() throws Exception {
+		FCPRequest<Void> req = client.putPersistent(null, "KSK@test", "Freemail-test-3", null);
+
+		List<FCPMessage> received = node.waitForMessages(2, 5000);
+		assertEquals("GetRequestStatus", received.get(1).getType());
+
+		node.send(globalMessage("PutSuccessful", "Freemail-test-3"));
+		assertTrue(req.waitFor(5000));
+		assertNull(req.getResult());
+	}
+
+	public void testListPersistentRequests() throws Exception {
+		FCPRequest<Map<String, PersistentRequest>> req = client.listPersistentRequests(null);
+		List<FCPMessage> received = node.waitForMessages(2, 5000);
+		assertEquals("ListPersistentRequests", received.get(1).getType());
+
+		FCPMessage running = globalMessage("PersistentPut", "running");
+		running.headers.put("URI", "KSK@running");
+		node.send(running);
+		node.send(globalMessage("PersistentPut", "done"));
+		node.send(globalMessage("PutSuccessful", "done"));
+		// not on the global queue, so not ours
+		node.send(new FCPMessage("other", "PersistentPut"));
+		node.send(new FCPMessage(0, "EndListPersistentRequests"));
+
+		assertTrue(req.waitFor(5000));
+		Map<String, PersistentRequest> list = req.getResult();
+		assertEquals(2, list.size());
+		assertFalse(list.get("running").isFinished());
+		assertEquals("KSK@running", list.get("running").getURI());
+		assertTrue(list.get("done").isFinished());
+		assertNull(list.get("done").getFailure());
+		assertEquals(0, pool.getConnection().getOutstandingRequests());
+	}
+
+	private static FCPMessage globalMessage(String type, String identifier) {
+		FCPMessage msg = new FCPMessage(identifier, type);
+		msg.headers.put("Global", "true");
+		return msg;
+	}
+}
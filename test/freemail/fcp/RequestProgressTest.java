@@ -0,0 +1,114 @@
+/*
+ * RequestProgressTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.fcp;
+
+import java.util.List;
+
+public class RequestProgressTest extends FCPTestBase {
+	public void testProgressIsRecorded() throws Exception {
+		FCPRequest<FCPData> req = new AsyncFCPClient(pool).fetch("CHK@data", null);
+		FCPMessage get = node.waitForMessages(1, 5000).get(0);
+		assertEquals("1", get.headers.get("Verbosity"));
+		assertNull(req.getProgress());
+
+		node.send(progress(get, 5));
+		long end = System.currentTimeMillis() + 5000;
+		while(req.getProgress() == null && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		RequestProgress progress = req.getProgress();
+		assertNotNull(progress);
+		assertEquals(5, progress.getSucceeded());
+		assertEquals(10, progress.getRequired());
+		assertEquals(0.5, progress.getFraction(), 0.001);
+	}
+
+	public void testWaitLastsWhileProgressIsMade() throws Exception {
+		FCPRequest<FCPData> req = new AsyncFCPClient(pool).fetch("CHK@data", null);
+		final FCPMessage get = node.waitForMessages(1, 5000).get(0);
+
+		Thread sender = new Thread() {
+			@Override
+			public void run() {
+				try {
+					for(int i = 1; i <= 5; i++) {
+						Thread.sleep(200);
+						node.send(progress(get, i));
+					}
+				} catch (Exception e) {
+					// the wait will end early and the test fail
+				}
+			}
+		};
+		long start = System.currentTimeMillis();
+		sender.start();
+
+		// it keeps going past the stall timeout while there is progress, then stalls
+		assertFalse(req.waitWhileActive(500, 10000));
+		long waited = System.currentTimeMillis() - start;
+		assertTrue("Waited " + waited + "ms", waited >= 1000);
+		assertTrue("Waited " + waited + "ms", waited < 5000);
+		assertFalse(req.isDone());
+		sender.join();
+	}
+
+	public void testWaitStopsAtMaxTime() throws Exception {
+		FCPRequest<FCPData> req = new AsyncFCPClient(pool).fetch("CHK@data", null);
+		node.waitForMessages(1, 5000);
+
+		long start = System.currentTimeMillis();
+		assertFalse(req.waitWhileActive(10000, 200));
+		assertTrue(System.currentTimeMillis() - start < 5000);
+	}
+
+	public void testCancelRemovesRequestFromNode() throws Exception {
+		FCPRequest<FCPData> req = new AsyncFCPClient(pool).fetch("CHK@data", null);
+		FCPMessage get = node.waitForMessages(1, 5000).get(0);
+
+		assertTrue(req.cancel(false));
+		List<FCPMessage> received = node.waitForMessages(2, 5000);
+		assertEquals(2, received.size());
+		assertEquals("RemoveRequest", received.get(1).getType());
+		assertEquals(get.getId(), received.get(1).getId());
+		assertEquals(0, pool.getConnection().getOutstandingRequests());
+	}
+
+	public void testWaitingRequestIsNotRemoved() throws Exception {
+		pool.getScheduler().setLimit(RequestClass.BACKGROUND, 1);
+		FreenetClient client = new AsyncFCPClient(pool).forClass(RequestClass.BACKGROUND);
+		client.fetch("CHK@one", null);
+		FCPRequest<FCPData> waiting = client.fetch("CHK@two", null);
+		node.waitForMessages(1, 5000);
+
+		assertTrue(waiting.cancel(false));
+		assertReceived(1);
+	}
+
+	private static FCPMessage progress(FCPMessage get, int succeeded) {
+		FCPMessage msg = new FCPMessage(get.getId(), "SimpleProgress");
+		msg.headers.put("Total", "20");
+		msg.headers.put("Required", "10");
+		msg.headers.put("Succeeded", Integer.toString(succeeded));
+		msg.headers.put("Failed", "0");
+		msg.headers.put("FatallyFailed", "0");
+		msg.headers.put("FinalizedTotal", "true");
+		return msg;
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * RequestSchedulerTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.fcp;
+
+import java.util.List;
+
+public class RequestSchedulerTest extends FCPTestBase {
+	private RequestScheduler scheduler;
+
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+		scheduler = pool.getScheduler();
+	}
+
+	public void testLimitHoldsBackRequests() throws Exception {
+		scheduler.setLimit(RequestClass.BACKGROUND, 1);
+		FreenetClient client = new AsyncFCPClient(pool).forClass(RequestClass.BACKGROUND);
+
+		FCPRequest<FCPData> first = client.fetch("KSK@one", null);
+		FCPRequest<FCPData> second = client.fetch("KSK@two", null);
+
+		List<FCPMessage> received = assertReceived(1);
+		assertEquals("KSK@one", received.get(0).headers.get("URI"));
+		assertEquals("4", received.get(0).headers.get("PriorityClass"));
+		assertEquals(1, scheduler.getRunning(RequestClass.BACKGROUND));
+		assertEquals(1, scheduler.getWaiting(RequestClass.BACKGROUND));
+
+		notFound(received.get(0));
+		assertTrue(first.waitFor(5000));
+
+		received = node.waitForMessages(2, 5000);
+		assertEquals(2, received.size());
+		assertEquals("KSK@two", received.get(1).headers.get("URI"));
+		assertFalse(second.isDone());
+		assertEquals(0, scheduler.getWaiting(RequestClass.BACKGROUND));
+	}
+
+	public void testShardsTakeTurns() throws Exception {
+		scheduler.setLimit(RequestClass.MESSAGE, 1);
+		FreenetClient busy = new AsyncFCPClient(pool).forShard("busy");
+		FreenetClient quiet = new AsyncFCPClient(pool).forShard("quiet");
+
+		busy.fetch("KSK@busy1", null);
+		busy.fetch("KSK@busy2", null);
+		busy.fetch("KSK@busy3", null);
+		quiet.fetch("KSK@quiet1", null);
+
+		for(int i = 1; i < 4; i++) {
+			List<FCPMessage> received = node.waitForMessages(i, 5000);
+			assertEquals(i, received.size());
+			notFound(received.get(i - 1));
+		}
+
+		List<FCPMessage> received = node.waitForMessages(4, 5000);
+		assertEquals("KSK@busy1", received.get(0).headers.get("URI"));
+		assertEquals("KSK@quiet1", received.get(1).headers.get("URI"));
+		assertEquals("KSK@busy2", received.get(2).headers.get("URI"));
+		assertEquals("KSK@busy3", received.get(3).headers.get("URI"));
+	}
+
+	public void testCancelledRequestIsNeverSent() throws Exception {
+		scheduler.setLimit(RequestClass.BACKGROUND, 1);
+		FreenetClient client = new AsyncFCPClient(pool).forClass(RequestClass.BACKGROUND);
+
+		client.fetch("KSK@one", null);
+		FCPRequest<FCPData> second = client.fetch("KSK@two", null);
+		client.fetch("KSK@three", null);
+		assertTrue(second.cancel(false));
+		assertEquals(1, scheduler.getWaiting(RequestClass.BACKGROUND));
+
+		notFound(node.waitForMessages(1, 5000).get(0));
+		List<FCPMessage> received = node.waitForMessages(2, 5000);
+		assertEquals("KSK@three", received.get(1).headers.get("URI"));
+	}
+
+	public void testWatchesAreNotLimited() throws Exception {
+		scheduler.setLimit(RequestClass.MESSAGE, 1);
+		FreenetClient client = new AsyncFCPClient(pool);
+
+		client.watch("KSK@one", null);
+		client.watch("KSK@two", null);
+
+		assertEquals(2, node.waitForMessages(2, 5000).size());
+		assertEquals(0, scheduler.getRunning(RequestClass.MESSAGE));
+	}
+
+	private void notFound(FCPMessage get) throws Exception {
+		FCPMessage failed = new FCPMessage(get.getId(), "GetFailed");
+		failed.headers.put("Code", "13");
+		node.send(failed);
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * WatchSetTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.fcp;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class WatchSetTest extends FCPTestBase {
+	private WatchSet watches;
+
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+		watches = new WatchSet(new AsyncFCPClient(pool));
+	}
+
+	public void testWatchIsOnlyStartedOnce() throws Exception {
+		assertNull(watches.poll("KSK@slot"));
+		assertNull(watches.poll("KSK@slot"));
+
+		FCPMessage get = assertReceived(1).get(0);
+		assertEquals("ClientGet", get.getType());
+		assertEquals("KSK@slot", get.headers.get("URI"));
+		assertEquals("-1", get.headers.get("MaxRetries"));
+		assertEquals(1, watches.size());
+	}
+
+	public void testCompletedWatchIsHandedBack() throws Exception {
+		assertNull(watches.poll("KSK@slot"));
+		FCPMessage get = node.waitForMessages(1, 5000).get(0);
+
+		FCPMessage found = new FCPMessage(get.getId(), "AllData");
+		found.setData(new ByteArrayInputStream(new byte[] {1, 2, 3}));
+		node.send(found);
+
+		FCPRequest<FCPData> req = null;
+		long end = System.currentTimeMillis() + 5000;
+		while(req == null && System.currentTimeMillis() < end) {
+			req = watches.poll("KSK@slot");
+			if(req == null) Thread.sleep(10);
+		}
+		assertNotNull(req);
+		FCPData data = req.getResult();
+		assertEquals(3, data.length());
+		data.release();
+		assertEquals(0, watches.size());
+
+		// looking again starts a new watch
+		assertNull(watches.poll("KSK@slot"));
+		assertEquals(2, node.waitForMessages(2, 5000).size());
+	}
+
+	public void testRetainStopsOtherWatches() throws Exception {
+		assertNull(watches.poll("KSK@one"));
+		assertNull(watches.poll("KSK@two"));
+		node.waitForMessages(2, 5000);
+		assertEquals(2, watches.size());
+
+		watches.retain(Arrays.asList("KSK@two"));
+		assertEquals(1, watches.size());
+
+		watches.retain(Collections.<String>emptyList());
+		assertEquals(0, watches.size());
+		assertEquals(0, pool.getConnection().getOutstandingRequests());
+	}
+
+	public void testClosedSetStopsWatches() throws Exception {
+		assertNull(watches.poll("KSK@slot"));
+		node.waitForMessages(1, 5000);
+		assertEquals(1, pool.getConnection().getOutstandingRequests());
+
+		watches.close();
+		assertEquals(0, watches.size());
+		assertEquals(0, pool.getConnection().getOutstandingRequests());
+
+		// and no new watch is started
+		assertNull(watches.poll("KSK@slot"));
+		assertEquals(0, watches.size());
+		assertEquals(0, pool.getConnection().getOutstandingRequests());
+	}
+}
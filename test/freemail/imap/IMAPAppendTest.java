@@ -1,10 +1,17 @@
 package freemail.imap;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
+import fakes.ConfigurableAccountManager;
+import fakes.FakeSocket;
+import freemail.AccountManager;
+
 public class IMAPAppendTest extends IMAPTestBase {
 	private static final List<String> INITIAL_RESPONSES;
 	static {
@@ -167,4 +174,33 @@ public class IMAPAppendTest extends IMAPTestBase {
 
 		runSimpleTest(commands, expectedResponse);
 	}
+
+	/*
+	 * The literal isn't text in any particular charset, so it has to be stored byte for byte or
+	 * its size will change.
+	 */
+	public void testAppendStoresLiteralExactly() throws IOException {
+		FakeSocket sock = new FakeSocket();
+		AccountManager accManager = new ConfigurableAccountManager(accountManagerDir, false, accountDirs);
+		new Thread(new IMAPHandler(accManager, sock)).start();
+
+		OutputStream toHandler = sock.getOutputStreamOtherSide();
+		BufferedReader fromHandler = new BufferedReader(new InputStreamReader(sock.getInputStreamOtherSide(), "ISO-8859-1"));
+
+		String literal = "Subject: caf\u00e9\r\n\r\n\u00ff\r\n";
+		String commands = "0001 LOGIN " + USERNAME + " test\r\n"
+		                + "0002 SELECT INBOX\r\n"
+		                + "0003 APPEND INBOX {" + literal.length() + "}\r\n"
+		                + literal + "\r\n"
+		                + "0004 UID FETCH 11 RFC822.SIZE\r\n";
+		toHandler.write(commands.getBytes("ISO-8859-1"));
+		toHandler.flush();
+
+		assertEquals("0001 OK Logged in", readTaggedResponse(fromHandler));
+		assertEquals("0002 OK [READ-WRITE] Done", readTaggedResponse(fromHandler));
+		assertEquals("+ OK", fromHandler.readLine());
+		assertEquals("0003 OK APPEND completed", readTaggedResponse(fromHandler));
+		assertEquals("* 11 FETCH (RFC822.SIZE " + literal.length() + " UID 11)", fromHandler.readLine());
+		assertEquals("0004 OK Fetch completed", fromHandler.readLine());
+	}
 }
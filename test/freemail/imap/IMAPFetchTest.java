@@ -19,11 +19,19 @@
 
 package freemail.imap;
 
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
+import fakes.ConfigurableAccountManager;
+import fakes.FakeSocket;
+import freemail.AccountManager;
+
 public class IMAPFetchTest extends IMAPTestBase {
 	private static final List<String> INITIAL_RESPONSES;
 	static {
@@ -120,6 +128,53 @@ public class IMAPFetchTest extends IMAPTestBase {
 		runSimpleTest(commands, expectedResponse);
 	}
 
+	public void testFetchHeader() throws IOException {
+		List<String> commands = new LinkedList<String>();
+		commands.add("0001 LOGIN " + USERNAME + " test");
+		commands.add("0002 SELECT INBOX");
+		commands.add("0003 FETCH 1 (BODY.PEEK[HEADER])");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.add("* 1 FETCH (BODY[HEADER] {32}");
+		expectedResponse.add("Subject: IMAP test message 0");
+		expectedResponse.add("");
+		expectedResponse.add(")");
+		expectedResponse.add("0003 OK Fetch completed");
+
+		runSimpleTest(commands, expectedResponse);
+	}
+
+	public void testFetchHeaderRange() throws IOException {
+		List<String> commands = new LinkedList<String>();
+		commands.add("0001 LOGIN " + USERNAME + " test");
+		commands.add("0002 SELECT INBOX");
+		commands.add("0003 FETCH 1 (BODY.PEEK[HEADER]<9.4>)");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.add("* 1 FETCH (BODY[HEADER]<9> {4}");
+		expectedResponse.add("IMAP)");
+		expectedResponse.add("0003 OK Fetch completed");
+
+		runSimpleTest(commands, expectedResponse);
+	}
+
+	public void testFetchEmptyText() throws IOException {
+		List<String> commands = new LinkedList<String>();
+		commands.add("0001 LOGIN " + USERNAME + " test");
+		commands.add("0002 SELECT INBOX");
+		commands.add("0003 FETCH 1 (BODY.PEEK[TEXT])");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.add("* 1 FETCH (BODY[TEXT] {0}");
+		expectedResponse.add(")");
+		expectedResponse.add("0003 OK Fetch completed");
+
+		runSimpleTest(commands, expectedResponse);
+	}
+
 	public void testFetchSequenceNumberRangeWithWildcard() throws IOException {
 		List<String> commands = new LinkedList<String>();
 		commands.add("0001 LOGIN " + USERNAME + " test");
@@ -284,4 +339,41 @@ public class IMAPFetchTest extends IMAPTestBase {
 
 		runSimpleTest(commands, expectedResponse);
 	}
+
+	/*
+	 * If the file can't be opened, e.g. because another session expunged the message, no literal
+	 * must be promised, or the client would read the rest of the session as the message.
+	 */
+	public void testFetchOfMessageThatHasGone() throws IOException {
+		FakeSocket sock = new FakeSocket();
+		AccountManager accManager = new ConfigurableAccountManager(accountManagerDir, false, accountDirs);
+		new Thread(new IMAPHandler(accManager, sock)).start();
+
+		PrintWriter toHandler = new PrintWriter(sock.getOutputStreamOtherSide());
+		BufferedReader fromHandler = new BufferedReader(new InputStreamReader(sock.getInputStreamOtherSide()));
+
+		fromHandler.readLine(); //Greeting
+		send(toHandler, "0001 LOGIN " + USERNAME + " test\r\n");
+		assertEquals("0001 OK Logged in", readTaggedResponse(fromHandler));
+		send(toHandler, "0002 SELECT INBOX\r\n");
+		assertEquals("0002 OK [READ-WRITE] Done", readTaggedResponse(fromHandler));
+
+		// a directory in its place, so the folder still lists the message but it can't be read
+		File inbox = new File(accountDirs.get(USERNAME), "inbox");
+		File message = null;
+		for(File f : inbox.listFiles()) {
+			if(f.getName().split(",")[0].equals("1")) message = f;
+		}
+		assertNotNull(message);
+		assertTrue(message.delete());
+		assertTrue(message.mkdir());
+
+		send(toHandler, "0003 FETCH 1 (BODY.PEEK[])\r\n");
+		send(toHandler, "0004 NOOP\r\n");
+		String line;
+		while(!(line = fromHandler.readLine()).startsWith("0003 ")) {
+			assertFalse(line, line.contains("{"));
+		}
+		assertEquals("0004 OK NOOP completed", readTaggedResponse(fromHandler));
+	}
 }
@@ -0,0 +1,55 @@
+/*
+ * BackoffTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.utils;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class BackoffTest extends TestCase {
+	public void testDelaysGrowUpToMax() {
+		Backoff backoff = new Backoff(1000, 8000, new Random(42));
+
+		long step = 1000;
+		for(int i = 0; i < 10; i++) {
+			long delay = backoff.next();
+			assertTrue("Delay " + delay + " too short for step " + step, delay >= step / 2);
+			assertTrue("Delay " + delay + " too long for step " + step, delay <= step);
+			step = Math.min(step * 2, 8000);
+		}
+	}
+
+	public void testReset() {
+		Backoff backoff = new Backoff(1000, 60000, new Random(42));
+		for(int i = 0; i < 5; i++) {
+			backoff.next();
+		}
+
+		backoff.reset();
+		assertTrue(backoff.next() <= 1000);
+	}
+
+	public void testJitter() {
+		// two clients starting at the same time shouldn't retry in lockstep
+		Backoff a = new Backoff(10000, 60000, new Random(1));
+		Backoff b = new Backoff(10000, 60000, new Random(2));
+		assertTrue(a.next() != b.next());
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ * FlightRecorderTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.utils;
+
+import junit.framework.TestCase;
+
+public class FlightRecorderTest extends TestCase {
+	private static final FlightRecorder.EventType TEST_EVENT = new FlightRecorder.EventType(
+			"freemail.Test", "Test", "Tests",
+			FlightRecorder.Field.text("text", "Text"),
+			FlightRecorder.Field.bytes("bytes", "Bytes"));
+
+	public void testEventDoesNothingWhenNotRecording() {
+		assertFalse(TEST_EVENT.isEnabled());
+		FlightRecorder.Event event = TEST_EVENT.begin();
+		assertFalse(event.isRecording());
+		event.set(0, "text").set(1, 5).commit();
+	}
+
+	public void testEventIsRecordedWhenEnabled() throws Exception {
+		if(!FlightRecorder.isAvailable()) return;
+
+		// jdk.jfr.Recording, which can't be compiled against here either
+		Class<?> recordingClass = Class.forName("jdk.jfr.Recording");
+		Object recording = recordingClass.newInstance();
+		recordingClass.getMethod("enable", String.class).invoke(recording, "freemail.Test");
+		recordingClass.getMethod("start").invoke(recording);
+		try {
+			assertTrue(TEST_EVENT.isEnabled());
+			FlightRecorder.Event event = TEST_EVENT.begin();
+			assertTrue(event.isRecording());
+			event.set(0, "text").set(1, 5).commit();
+		} finally {
+			recordingClass.getMethod("close").invoke(recording);
+		}
+		assertFalse(TEST_EVENT.isEnabled());
+	}
+}
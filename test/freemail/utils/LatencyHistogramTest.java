@@ -0,0 +1,77 @@
+/*
+ * LatencyHistogramTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package freemail.utils;
+
+import junit.framework.TestCase;
+
+public class LatencyHistogramTest extends TestCase {
+	public void testEmpty() {
+		LatencyHistogram h = new LatencyHistogram();
+		assertEquals(0, h.getCount());
+		assertEquals(0, h.getPercentile(50));
+		assertEquals(0, h.getMean());
+	}
+
+	public void testSmallValuesAreExact() {
+		LatencyHistogram h = new LatencyHistogram();
+		for(int i = 1; i <= 10; i++) {
+			h.record(i);
+		}
+		assertEquals(10, h.getCount());
+		assertEquals(5, h.getPercentile(50));
+		assertEquals(10, h.getPercentile(99));
+		assertEquals(10, h.getMax());
+		assertEquals(5, h.getMean());
+	}
+
+	public void testPercentilesAreClose() {
+		LatencyHistogram h = new LatencyHistogram();
+		for(int i = 1; i <= 100000; i++) {
+			h.record(i * 1000L);
+		}
+		assertClose(50000000, h.getPercentile(50));
+		assertClose(90000000, h.getPercentile(90));
+		assertClose(99000000, h.getPercentile(99));
+		assertEquals(100000000, h.getPercentile(100));
+	}
+
+	public void testHugeValuesAreCapped() {
+		LatencyHistogram h = new LatencyHistogram();
+		h.record(Long.MAX_VALUE);
+		h.record(-5);
+		assertEquals(2, h.getCount());
+		assertEquals(0, h.getPercentile(50));
+		assertTrue(h.getMax() > 0);
+	}
+
+	public void testCopyIsIndependent() {
+		LatencyHistogram h = new LatencyHistogram();
+		h.record(100);
+		LatencyHistogram copy = h.copy();
+		h.record(200);
+		assertEquals(1, copy.getCount());
+		assertEquals(2, h.getCount());
+	}
+
+	private static void assertClose(long expected, long actual) {
+		assertTrue("Expected about " + expected + " but got " + actual,
+				Math.abs(actual - expected) <= expected / 16);
+	}
+}